@@ -5,13 +5,9 @@ import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
-import java.io.InputStream;
-import java.util.Properties;
-
+import cn.ollyice.framework.core.AbsSdk;
 import cn.ollyice.framework.core.Callback;
 import cn.ollyice.framework.core.IActivity;
 import cn.ollyice.framework.core.IApplication;
@@ -23,10 +19,10 @@ import cn.ollyice.framework.info.ExtraInfo;
 import cn.ollyice.framework.info.OrderInfo;
 import cn.ollyice.framework.info.PayInfo;
 import cn.ollyice.framework.info.UserInfo;
+import cn.ollyice.framework.util.Lazy;
 
 import static cn.ollyice.framework.Systems.ApplicationName;
 import static cn.ollyice.framework.Systems.HttpName;
-import static cn.ollyice.framework.Systems.PropertiesName;
 import static cn.ollyice.framework.Systems.SdkName;
 
 /**
@@ -34,55 +30,48 @@ import static cn.ollyice.framework.Systems.SdkName;
  */
 
 public class AndGameSdk {
-    private static final Handler MainHadler = new Handler(Looper.getMainLooper());
+    public static final MainDispatcher Dispatcher = new MainDispatcher();
     public static IApplication Application;
     public static IGame Game;
     public static IActivity Activity;
 
     private static IApplication ApplicationProxy;
-    private static ISdk SdkProxy;
+    private static volatile ISdk SdkProxy;
+    private static volatile Lazy<Class<?>> SdkClass;
 
     static{
-        try {
-            InputStream is = AndGameSdk.class.getClassLoader().getResourceAsStream(PropertiesName);
-            Properties properties = new Properties();
-            properties.load(is);
-            ApplicationProxy = newInstance(properties.getProperty(ApplicationName));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
+        //application的回调马上就要用到 只能同步创建
+        ApplicationProxy = Bootstrap.newInstance(ApplicationName);
         Application = new AndGameApplication();
     }
 
-
-    static void runOnUiThread(Runnable runnable) {
-        MainHadler.post(runnable);
-    }
-
-    private static <T> T newInstance(String className) {
-        try {
-            return (T) Class.forName(className).newInstance();
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * sdk的类在后台线程加载 对象在主线程的Application.onCreate里创建,
+     * 渠道sdk的构造函数经常会创建Handler或者操作界面 不能放到后台线程
+     */
+    private static ISdk sdk() {
+        ISdk sdk = SdkProxy;
+        if (sdk == null && SdkClass != null) {
+            synchronized (AndGameSdk.class) {
+                sdk = SdkProxy;
+                if (sdk == null && SdkClass != null) {
+                    sdk = Bootstrap.newInstance(SdkClass, SdkName);
+                    SdkProxy = sdk;
+                    SdkClass = null;//创建失败也不再重试
+                }
+            }
         }
-        return null;
+        return sdk;
     }
 
     private static final class AndGameApplication implements IApplication {
         private static final String TAG = "ApplicationProxy";
 
         private void initSdk(Context context){
-            try {
-                InputStream is = AndGameSdk.class.getClassLoader().getResourceAsStream(PropertiesName);
-                Properties properties = new Properties();
-                properties.load(is);
-                SdkProxy = newInstance(properties.getProperty(SdkName));
-                IHttp http = newInstance(properties.getProperty(HttpName));
-                HttpManager.setInstance(http);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            //sdk和http互不依赖 不占用attachBaseContext的时间:
+            //sdk只在后台加载类 到onCreate再在主线程创建对象, http对象没有线程要求 直接在后台创建
+            SdkClass = Bootstrap.prefetch(SdkName);
+            HttpManager.setInstance(Bootstrap.<IHttp>async(HttpName));
 
             Object object = new AndGameActivity();
 
@@ -93,7 +82,9 @@ public class AndGameSdk {
         @Override
         public void attachBaseContext(android.app.Application app) {
             if (ApplicationProxy != null) {
+                StartupTrace.Span span = StartupTrace.begin("attachBaseContext");
                 ApplicationProxy.attachBaseContext(app);
+                span.end();
                 initSdk(app);
             } else {
                 Log.e(TAG, "the proxy application object is null");
@@ -103,7 +94,10 @@ public class AndGameSdk {
         @Override
         public void onCreate(android.app.Application app) {
             if (ApplicationProxy != null) {
+                StartupTrace.Span span = StartupTrace.begin("onCreate");
                 ApplicationProxy.onCreate(app);
+                span.end();
+                sdk();//在主线程创建sdk对象
             } else {
                 Log.e(TAG, "the proxy application object is null");
             }
@@ -146,83 +140,111 @@ public class AndGameSdk {
         }
     }
 
-    private static final class AndGameActivity implements ISdk {
+    private static final class AndGameActivity implements ISdk, MainDispatcher.Target {
         private static final String TAG = "ActivityProxy";
+        private static final int DO_INIT = 1;
+        private static final int DO_LOGIN = 2;
+        private static final int DO_LOGOUT = 3;
+        private static final int DO_PAY = 4;
+        private static final int DO_SUBMIT = 5;
+        private static final int OPEN_USER_CENTER = 6;
+
+        private final FanOutCall mInitCall = new FanOutCall();
+        private final FanOutCall mLoginCall = new FanOutCall();
 
         @Override
-        public void doInit(final android.app.Activity activity, final Callback<Integer> onSuccess, final Callback<Throwable> onFailed, final Callback<Integer> onLogout) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (SdkProxy != null) {
-                        SdkProxy.doInit(activity, onSuccess, onFailed,onLogout);
-                    } else {
-                        Log.e(TAG, "the proxy sdk object is null");
-                    }
+        public void execute(MainDispatcher.Command command) {
+            ISdk sdk = sdk();
+            if (sdk == null) {
+                Log.e(TAG, "the proxy sdk object is null");
+                if (command.onError != null) {//没有发给sdk 当作取消 不然初始化/登录会一直在合并
+                    command.onError.onNext(new IllegalStateException("the proxy sdk object is null"));
                 }
-            });
+                return;
+            }
+            switch (command.what) {
+                case DO_INIT:
+                    try {
+                        sdk.doInit(command.activity, command.onSuccess, command.onError, command.onLogout);
+                    } catch (RuntimeException e) {//sdk抛异常不会再回调 结束这次初始化
+                        command.onError.onNext(e);
+                        throw e;
+                    }
+                    break;
+                case DO_LOGIN:
+                    try {
+                        sdk.doLogin(command.activity, command.onSuccess, command.onError);
+                    } catch (RuntimeException e) {
+                        command.onError.onNext(e);
+                        throw e;
+                    }
+                    break;
+                case DO_LOGOUT:
+                    sdk.doLogout(command.activity);
+                    break;
+                case DO_PAY:
+                    sdk.doPay(command.activity, command.payInfo, command.onSuccess, command.onError);
+                    break;
+                case DO_SUBMIT:
+                    sdk.doSubmit(command.activity, command.extra);
+                    break;
+                case OPEN_USER_CENTER:
+                    sdk.openUserCenter(command.activity);
+                    break;
+            }
+        }
+
+        @Override
+        public void doInit(final android.app.Activity activity, final Callback<Integer> onSuccess, final Callback<Throwable> onFailed, final Callback<Integer> onLogout) {
+            if (!mInitCall.join(onSuccess, onFailed, onLogout)) {//正在初始化 等同一个结果
+                Dispatcher.onCoalesced();
+                return;
+            }
+            MainDispatcher.Command command = Dispatcher.obtain(this, DO_INIT, activity);
+            command.onSuccess = mInitCall.onSuccess;
+            command.onError = mInitCall.onError;
+            command.onLogout = mInitCall.onLogout;
+            Dispatcher.dispatch(command);
         }
 
         @Override
         public void doLogin(final Activity activity, final Callback<Integer> onSuccess, final Callback<Throwable> onFailed) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (SdkProxy != null) {
-                        SdkProxy.doLogin(activity, onSuccess, onFailed);
-                    } else {
-                        Log.e(TAG, "the proxy sdk object is null");
-                    }
-                }
-            });
+            if (!mLoginCall.join(onSuccess, onFailed, null)) {//正在登录 等同一个结果
+                Dispatcher.onCoalesced();
+                return;
+            }
+            MainDispatcher.Command command = Dispatcher.obtain(this, DO_LOGIN, activity);
+            command.onSuccess = mLoginCall.onSuccess;
+            command.onError = mLoginCall.onError;
+            Dispatcher.dispatch(command);
         }
 
         @Override
         public void doLogout(final Activity activity) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (SdkProxy != null) {
-                        SdkProxy.doLogout(activity);
-                    } else {
-                        Log.e(TAG, "the proxy sdk object is null");
-                    }
-                }
-            });
+            Dispatcher.dispatch(Dispatcher.obtain(this, DO_LOGOUT, activity));
         }
 
         @Override
         public void doPay(final Activity activity, final PayInfo pay, final Callback<Integer> onSuccess, final Callback<Throwable> onFailed) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (SdkProxy != null) {
-                        SdkProxy.doPay(activity, pay, onSuccess, onFailed);
-                    } else {
-                        Log.e(TAG, "the proxy sdk object is null");
-                    }
-                }
-            });
+            MainDispatcher.Command command = Dispatcher.obtain(this, DO_PAY, activity);
+            command.payInfo = pay;
+            command.onSuccess = onSuccess;
+            command.onError = onFailed;
+            Dispatcher.dispatch(command);
         }
 
         @Override
         public void doSubmit(final Activity activity, final ExtraInfo extra) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (SdkProxy != null) {
-                        SdkProxy.doSubmit(activity, extra);
-                    } else {
-                        Log.e(TAG, "the proxy sdk object is null");
-                    }
-                }
-            });
+            MainDispatcher.Command command = Dispatcher.obtain(this, DO_SUBMIT, activity);
+            command.extra = extra;
+            Dispatcher.dispatch(command);
         }
 
         @Override
         public void doExit(Activity activity, Callback<Integer> onSuccess, Callback<Throwable> onError) {
-            if (SdkProxy != null) {
-                SdkProxy.doExit(activity, onSuccess, onError);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.doExit(activity, onSuccess, onError);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -230,32 +252,25 @@ public class AndGameSdk {
 
         @Override
         public UserInfo getUserInfo() {
-            if (SdkProxy != null) {
-                return SdkProxy.getUserInfo();
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                return sdk.getUserInfo();
             }
             return null;
         }
 
         @Override
         public OrderInfo getOrderInfo() {
-            if (SdkProxy != null) {
-                return SdkProxy.getOrderInfo();
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                return sdk.getOrderInfo();
             }
             return null;
         }
 
         @Override
         public void openUserCenter(final Activity activity) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (SdkProxy != null) {
-                        SdkProxy.openUserCenter(activity);
-                    } else {
-                        Log.e(TAG, "the proxy sdk object is null");
-                    }
-                }
-            });
+            Dispatcher.dispatch(Dispatcher.obtain(this, OPEN_USER_CENTER, activity));
         }
 
         @Override
@@ -265,8 +280,9 @@ public class AndGameSdk {
 
         @Override
         public void onCreate(final Activity activity) {
-            if (SdkProxy != null) {
-                SdkProxy.onCreate(activity);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onCreate(activity);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -274,8 +290,9 @@ public class AndGameSdk {
 
         @Override
         public void onResume(final Activity activity) {
-            if (SdkProxy != null) {
-                SdkProxy.onResume(activity);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onResume(activity);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -283,8 +300,9 @@ public class AndGameSdk {
 
         @Override
         public void onRestart(final Activity activity) {
-            if (SdkProxy != null) {
-                SdkProxy.onRestart(activity);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onRestart(activity);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -292,8 +310,9 @@ public class AndGameSdk {
 
         @Override
         public void onStart(final Activity activity) {
-            if (SdkProxy != null) {
-                SdkProxy.onStart(activity);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onStart(activity);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -301,8 +320,12 @@ public class AndGameSdk {
 
         @Override
         public void onPause(final Activity activity) {
-            if (SdkProxy != null) {
-                SdkProxy.onPause(activity);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onPause(activity);
+                if (sdk instanceof AbsSdk) {
+                    ((AbsSdk) sdk).flushSubmit();
+                }
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -310,8 +333,9 @@ public class AndGameSdk {
 
         @Override
         public void onStop(final Activity activity) {
-            if (SdkProxy != null) {
-                SdkProxy.onStop(activity);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onStop(activity);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -319,8 +343,12 @@ public class AndGameSdk {
 
         @Override
         public void onDestroy(final Activity activity) {
-            if (SdkProxy != null) {
-                SdkProxy.onDestroy(activity);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onDestroy(activity);
+                if (sdk instanceof AbsSdk) {
+                    ((AbsSdk) sdk).flushSubmit();
+                }
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -328,8 +356,9 @@ public class AndGameSdk {
 
         @Override
         public void onActivityResult(final Activity activity, final int requestCode, final int resultCode, final Intent data) {
-            if (SdkProxy != null) {
-                SdkProxy.onActivityResult(activity, requestCode, resultCode, data);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onActivityResult(activity, requestCode, resultCode, data);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -337,8 +366,9 @@ public class AndGameSdk {
 
         @Override
         public void onRequestPermissionsResult(final Activity activity,int requestCode, String[] permissions, int[] grantResults) {
-            if (SdkProxy != null) {
-                SdkProxy.onRequestPermissionsResult(activity,requestCode,permissions,grantResults);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onRequestPermissionsResult(activity,requestCode,permissions,grantResults);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -346,8 +376,9 @@ public class AndGameSdk {
 
         @Override
         public void onConfigurationChanged(final Activity activity, final Configuration newConfig) {
-            if (SdkProxy != null) {
-                SdkProxy.onConfigurationChanged(activity, newConfig);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onConfigurationChanged(activity, newConfig);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -355,8 +386,9 @@ public class AndGameSdk {
 
         @Override
         public void onNewIntent(final Activity activity, final Intent intent) {
-            if (SdkProxy != null) {
-                SdkProxy.onNewIntent(activity, intent);
+            ISdk sdk = sdk();
+            if (sdk != null) {
+                sdk.onNewIntent(activity, intent);
             } else {
                 Log.e(TAG, "the proxy sdk object is null");
             }
@@ -0,0 +1,142 @@
+package cn.ollyice.framework;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import cn.ollyice.framework.util.Lazy;
+
+import static cn.ollyice.framework.Systems.PropertiesName;
+
+/**
+ * Created by ollyice on 2018/6/23.
+ * 框架启动阶段 配置文件只解析一次,
+ * 互不依赖的对象通过{@link #async}放到后台线程并行创建 第一次使用时没创建完就等待或者直接在当前线程创建,
+ * 构造函数必须在主线程执行的对象(渠道sdk)通过{@link #prefetch}只在后台加载类
+ */
+
+public final class Bootstrap {
+    private static final Executor EXECUTOR = new ThreadPoolExecutor(0, 2, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "AndGameSdk Bootstrap");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static Properties sProperties;
+
+    private Bootstrap() {
+    }
+
+    /**
+     * assets/cn.ollyice.framework.properties 读取失败时返回空的Properties
+     */
+    public static synchronized Properties properties() {
+        if (sProperties == null) {
+            StartupTrace.Span span = StartupTrace.begin("properties");
+            Properties properties = new Properties();
+            InputStream is = null;
+            try {
+                is = Bootstrap.class.getClassLoader().getResourceAsStream(PropertiesName);
+                properties.load(is);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            sProperties = properties;
+            span.end();
+        }
+        return sProperties;
+    }
+
+    /**
+     * 通过配置文件里的类名创建对象 配置错误返回null
+     */
+    public static <T> T newInstance(String key) {
+        String className = properties().getProperty(key);
+        if (className == null) {
+            return null;
+        }
+        StartupTrace.Span span = StartupTrace.begin("new " + key);
+        try {
+            return (T) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * 在后台线程加载配置文件里的类 只做类加载的I/O 不执行静态初始化也不创建对象,
+     * 对象由{@link #newInstance(Lazy, String)}在需要的线程上创建 配置错误时结果为null
+     */
+    public static Lazy<Class<?>> prefetch(final String key) {
+        Lazy<Class<?>> lazy = new Lazy<>(new Callable<Class<?>>() {
+            @Override
+            public Class<?> call() throws Exception {
+                String className = properties().getProperty(key);
+                if (className == null) {
+                    return null;
+                }
+                StartupTrace.Span span = StartupTrace.begin("load " + key);
+                try {
+                    return Class.forName(className, false, Bootstrap.class.getClassLoader());
+                } finally {
+                    span.end();
+                }
+            }
+        });
+        EXECUTOR.execute(lazy);
+        return lazy;
+    }
+
+    /**
+     * 用{@link #prefetch}加载的类在当前线程创建对象 类还没加载完就等待 失败返回null
+     */
+    public static <T> T newInstance(Lazy<Class<?>> type, String key) {
+        Class<?> clazz = type.getOrCreate();
+        if (clazz == null) {
+            return null;
+        }
+        StartupTrace.Span span = StartupTrace.begin("new " + key);
+        try {
+            return (T) clazz.newInstance();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * 在后台线程创建配置文件里的对象 只用于构造函数没有线程要求的对象
+     */
+    public static <T> Lazy<T> async(final String key) {
+        Lazy<T> lazy = new Lazy<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return newInstance(key);
+            }
+        });
+        EXECUTOR.execute(lazy);
+        return lazy;
+    }
+}
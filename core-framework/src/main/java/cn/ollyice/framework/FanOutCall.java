@@ -0,0 +1,99 @@
+package cn.ollyice.framework;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.ollyice.framework.core.Callback;
+
+/**
+ * Created by ollyice on 2018/6/24.
+ * 发给sdk的初始化/登录调用 结果分发给所有合并进来的调用方.
+ * 只在sdk调用还没有回调时合并;成功、失败或者取消(没有发给sdk)都算结束,之后的调用会重新发给sdk.
+ * 每种调用只有一个对象 回调和列表重复使用
+ */
+
+final class FanOutCall {
+    private final List<Callback<Integer>> mSuccess = new ArrayList<>();
+    private final List<Callback<Throwable>> mError = new ArrayList<>();
+    private final List<Callback<Integer>> mLogout = new ArrayList<>();
+    private boolean mPending;
+
+    final Callback<Integer> onSuccess = new Callback<Integer>() {
+        @Override
+        public void onNext(Integer result) {
+            List<Callback<Integer>> callbacks = finish(mSuccess);
+            if (callbacks == null) {
+                return;
+            }
+            for (Callback<Integer> callback : callbacks) {
+                callback.onNext(result);
+            }
+        }
+    };
+
+    /**
+     * 失败和取消都走这里
+     */
+    final Callback<Throwable> onError = new Callback<Throwable>() {
+        @Override
+        public void onNext(Throwable result) {
+            List<Callback<Throwable>> callbacks = finish(mError);
+            if (callbacks == null) {
+                return;
+            }
+            for (Callback<Throwable> callback : callbacks) {
+                callback.onNext(result);
+            }
+        }
+    };
+
+    //登出回调在初始化完成之后还会用到 不结束
+    final Callback<Integer> onLogout = new Callback<Integer>() {
+        @Override
+        public void onNext(Integer result) {
+            List<Callback<Integer>> callbacks;
+            synchronized (FanOutCall.this) {
+                callbacks = new ArrayList<>(mLogout);
+            }
+            for (Callback<Integer> callback : callbacks) {
+                callback.onNext(result);
+            }
+        }
+    };
+
+    /**
+     * 加入调用 返回true表示没有正在进行的调用,调用方要把这次调用发给sdk;
+     * 返回false表示已经合并到正在进行的调用里
+     */
+    synchronized boolean join(Callback<Integer> onSuccess, Callback<Throwable> onError, Callback<Integer> onLogout) {
+        boolean start = !mPending;
+        if (start) {
+            mPending = true;
+            mSuccess.clear();
+            mError.clear();
+            mLogout.clear();//sdk会换成这次调用的登出回调
+        }
+        if (onSuccess != null) {
+            mSuccess.add(onSuccess);
+        }
+        if (onError != null) {
+            mError.add(onError);
+        }
+        if (onLogout != null) {
+            mLogout.add(onLogout);
+        }
+        return start;
+    }
+
+    /**
+     * 结束这次调用 返回要回调的调用方;已经结束的调用再回调返回null
+     */
+    private synchronized <T> List<T> finish(List<T> callbacks) {
+        if (!mPending) {
+            return null;
+        }
+        mPending = false;
+        //回调里可能马上发起下一次调用 所以先复制出来
+        return new ArrayList<>(callbacks);
+    }
+}
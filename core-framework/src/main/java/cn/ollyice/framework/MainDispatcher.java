@@ -0,0 +1,139 @@
+package cn.ollyice.framework;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.ollyice.framework.core.Callback;
+import cn.ollyice.framework.info.ExtraInfo;
+import cn.ollyice.framework.info.PayInfo;
+
+/**
+ * Created by ollyice on 2018/6/24.
+ * 把游戏方的调用切到主线程 已经在主线程时直接执行,
+ * 命令对象从池里取用完放回 和android的Message.obtain一样
+ */
+
+public final class MainDispatcher {
+    private static final int MAX_POOL_SIZE = 10;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mQueued = new AtomicLong();
+    private final AtomicLong mInlined = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    private final Object mPoolLock = new Object();
+    private Command mPool;
+    private int mPoolSize;
+
+    MainDispatcher() {
+    }
+
+    /**
+     * 从池里取一个命令 用{@link #dispatch}执行后自动回收
+     */
+    Command obtain(Target target, int what, Activity activity) {
+        Command command = null;
+        synchronized (mPoolLock) {
+            if (mPool != null) {
+                command = mPool;
+                mPool = command.next;
+                command.next = null;
+                mPoolSize--;
+            }
+        }
+        if (command == null) {
+            command = new Command(this);
+        }
+        command.target = target;
+        command.what = what;
+        command.activity = activity;
+        return command;
+    }
+
+    void dispatch(Command command) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mInlined.incrementAndGet();
+            command.run();
+        } else {
+            mQueued.incrementAndGet();
+            mHandler.post(command);
+        }
+    }
+
+    void onCoalesced() {
+        mCoalesced.incrementAndGet();
+    }
+
+    /**
+     * 切到主线程排队执行的次数
+     */
+    public long queuedCount() {
+        return mQueued.get();
+    }
+
+    /**
+     * 已经在主线程直接执行的次数
+     */
+    public long inlinedCount() {
+        return mInlined.get();
+    }
+
+    /**
+     * 合并到正在进行的初始化/登录里面的次数
+     */
+    public long coalescedCount() {
+        return mCoalesced.get();
+    }
+
+    private void recycle(Command command) {
+        command.target = null;
+        command.what = 0;
+        command.activity = null;
+        command.payInfo = null;
+        command.extra = null;
+        command.onSuccess = null;
+        command.onError = null;
+        command.onLogout = null;
+        synchronized (mPoolLock) {
+            if (mPoolSize < MAX_POOL_SIZE) {
+                command.next = mPool;
+                mPool = command;
+                mPoolSize++;
+            }
+        }
+    }
+
+    interface Target {
+        void execute(Command command);
+    }
+
+    static final class Command implements Runnable {
+        private final MainDispatcher dispatcher;
+        Command next;
+
+        Target target;
+        int what;
+        Activity activity;
+        PayInfo payInfo;
+        ExtraInfo extra;
+        Callback<Integer> onSuccess;
+        Callback<Throwable> onError;
+        Callback<Integer> onLogout;
+
+        Command(MainDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void run() {
+            try {
+                target.execute(this);
+            } finally {
+                dispatcher.recycle(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package cn.ollyice.framework;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by ollyice on 2018/6/23.
+ * 记录框架启动各阶段的耗时 logcat过滤StartupTrace查看
+ */
+
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    private static final List<Span> sSpans = new ArrayList<>();
+
+    public static Span begin(String name) {
+        return new Span(name);
+    }
+
+    /**
+     * 已经结束的阶段 按结束时间排序
+     */
+    public static List<Span> spans() {
+        synchronized (sSpans) {
+            return new ArrayList<>(sSpans);
+        }
+    }
+
+    public static final class Span {
+        public final String name;
+        public final String thread;
+        public final long startNanos;
+        private long endNanos;
+
+        Span(String name) {
+            this.name = name;
+            this.thread = Thread.currentThread().getName();
+            this.startNanos = System.nanoTime();
+        }
+
+        public void end() {
+            endNanos = System.nanoTime();
+            synchronized (sSpans) {
+                sSpans.add(this);
+            }
+            Log.d(TAG, toString());
+        }
+
+        public long durationMillis() {
+            return (endNanos - startNanos) / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + (endNanos - startNanos) / 1000 + "us on " + thread;
+        }
+    }
+}
@@ -9,4 +9,5 @@ public class Systems {
     public static final String ApplicationName = "cn.ollyice.framework.application";
     public static final String SdkName = "cn.ollyice.framework.sdk";
     public static final String HttpName = "cn.ollyice.framework.http";
+    public static final String HttpBaseUrlName = "cn.ollyice.framework.http.baseUrl";
 }
@@ -19,9 +19,12 @@ import cn.ollyice.framework.info.UserInfo;
 
 public abstract class AbsSdk implements ISdk,IInterpolator,ICallback,IPay{
     final String TAG = "AbsSdk";
+    private static final String WAIT_SERVER_NOTIFY_MESSAGE = "等待服务器通知";
     private OrderInfo mOrderInfo = new OrderInfo();
     private UserInfo mUserInfo = new UserInfo();
     private ExtraInfo mExtraInfo;
+    private final SubmitPipeline mSubmitPipeline = new SubmitPipeline();
+    private NotifyQueue mNotifyQueue;
 
     private LoginParams mLoginParams = new LoginParams();
     private PayParams mPayParams = new PayParams();
@@ -31,6 +34,8 @@ public abstract class AbsSdk implements ISdk,IInterpolator,ICallback,IPay{
     @Override
     public void doInit(Activity activity, Callback<Integer> onSuccess, Callback<Throwable> onError, Callback<Integer> onLogout) {
         mLogout = onLogout;
+        //重新发送上次没有完成的发货通知
+        mNotifyQueue = NotifyQueue.get(activity);
     }
 
     @Override
@@ -44,19 +49,15 @@ public abstract class AbsSdk implements ISdk,IInterpolator,ICallback,IPay{
     @Override
     public void doSubmit(Activity activity, ExtraInfo extra) {
         mExtraInfo = extra;
-        if (HttpManager.getInstance() != null){
-            HttpManager.getInstance().submit(mExtraInfo.hashMap(), new IHttp.CallString() {
-                @Override
-                public void onNext(String response) {
-
-                }
-            }, new IHttp.CallError() {
-                @Override
-                public void onNext(String error) {
+        //合并短时间内的多次上报
+        mSubmitPipeline.offer(mExtraInfo);
+    }
 
-                }
-            });
-        }
+    /**
+     * 立即发送缓存的角色信息 界面onPause/onDestroy时由框架调用
+     */
+    public final void flushSubmit() {
+        mSubmitPipeline.flush();
     }
 
     @Override
@@ -69,15 +70,19 @@ public abstract class AbsSdk implements ISdk,IInterpolator,ICallback,IPay{
 
         //生成默认订单状态
         getOrderInfo().setOrderState(OrderInfo.ORDER_STATE_WAIT_SERVER_NOTIFY)
-                .setErrorMessage("等待服务器通知")
+                .setErrorMessage(WAIT_SERVER_NOTIFY_MESSAGE)
                 .setOrderPrice(payInfo.getPrice())
                 .setOrderId(payInfo.getOrderId());
+        if (mNotifyQueue == null) {
+            mNotifyQueue = NotifyQueue.get(activity);
+        }
         if (!payInfo.success()){//payInfo里面有空值
             String error = "订单数据不全:" + payInfo.hashMap().toString();
             getOrderInfo().setOrderState(OrderInfo.ORDER_STATE_PAY_FAILED)
                     .setErrorMessage(error)
                     .setOrderPrice(payInfo.getPrice())
                     .setOrderId(payInfo.getOrderId());
+            mNotifyQueue.state(getOrderInfo());
             onPayFailed();
             return;
         }
@@ -85,9 +90,11 @@ public abstract class AbsSdk implements ISdk,IInterpolator,ICallback,IPay{
             HttpManager.getInstance().pay(mergePayInfo(payInfo), new IHttp.CallPay() {//请求服务器记录订单信息
                 @Override
                 public void onNext(String orderId, String notifyUrl, Map<String, String> extraInfo) {
-                    if (!TextUtils.isEmpty(orderId)) {//替换订单id
+                    if (!TextUtils.isEmpty(orderId)) {//替换订单id 日志和之后的发货通知都用服务器的订单id
                         payInfo.setOrderId(orderId);
+                        getOrderInfo().setOrderId(orderId);
                     }
+                    mNotifyQueue.state(getOrderInfo());
                     if (!TextUtils.isEmpty(notifyUrl)){//替换支付回调地址
                         payInfo.setPayNotifyUrl(notifyUrl);
                     }
@@ -101,6 +108,7 @@ public abstract class AbsSdk implements ISdk,IInterpolator,ICallback,IPay{
                             .setErrorMessage(error)
                             .setOrderPrice(payInfo.getPrice())
                             .setOrderId(payInfo.getOrderId());
+                    mNotifyQueue.state(getOrderInfo());
                     onPayFailed();
                 }
             });
@@ -110,6 +118,7 @@ public abstract class AbsSdk implements ISdk,IInterpolator,ICallback,IPay{
                     .setErrorMessage(error)
                     .setOrderPrice(payInfo.getPrice())
                     .setOrderId(payInfo.getOrderId());
+            mNotifyQueue.state(getOrderInfo());
             onPayFailed();
         }
     }
@@ -150,24 +159,30 @@ public abstract class AbsSdk implements ISdk,IInterpolator,ICallback,IPay{
     public void onPaySuccess() {
         if (interpolatePaySuccess()){
             //部分渠道sdk不会通知服务器发货 所以需要我们发行方SDK通知服务器去查询是否到账然后发货
-            if (HttpManager.getInstance() != null){
-                HttpManager.getInstance().notify(getChannelOrderInfo(), new IHttp.CallString() {
-                    @Override
-                    public void onNext(String response) {
-                        mPayParams.onSuccess.onNext(0);
-                    }
-                }, new IHttp.CallError() {
-                    @Override
-                    public void onNext(String error) {
-                        getOrderInfo().setErrorMessage(error);
-                        onPayFailed();
-                    }
-                });
-            }else{
+            //先写入日志再通知 失败时订单保持等待服务器通知状态 队列在后台继续重试
+            if (mNotifyQueue == null) {
+                mNotifyQueue = NotifyQueue.get(mPayParams.activity);
+            }
+            if (HttpManager.getInstance() == null){
                 Log.e(TAG,"请实现http接口");
-                getOrderInfo().setErrorMessage("支付失败");
-                onPayFailed();
             }
+            getOrderInfo().setOrderState(OrderInfo.ORDER_STATE_WAIT_SERVER_NOTIFY);
+            mNotifyQueue.state(getOrderInfo());
+            mNotifyQueue.enqueue(getOrderInfo().getOrderId(), getChannelOrderInfo(), new IHttp.CallString() {
+                @Override
+                public void onNext(String response) {
+                    getOrderInfo().setOrderState(OrderInfo.ORDER_STATE_PAY_SUCCESS);
+                    mNotifyQueue.state(getOrderInfo());
+                    mPayParams.onSuccess.onNext(0);
+                }
+            }, new IHttp.CallError() {
+                @Override
+                public void onNext(String error) {
+                    //订单保持等待服务器通知状态 队列在后台继续重试 这里只回调失败
+                    getOrderInfo().setErrorMessage(error);
+                    notifyPayFailed();
+                }
+            });
         }else{
             mPayParams.onSuccess.onNext(0);
         }
@@ -175,6 +190,20 @@ public abstract class AbsSdk implements ISdk,IInterpolator,ICallback,IPay{
 
     @Override
     public void onPayFailed() {
+        //渠道sdk直接回调失败(用户取消/渠道出错)时订单还是等待服务器通知状态 记录结束状态 否则日志里会一直保留这个订单
+        if (getOrderInfo().getOrderState() == OrderInfo.ORDER_STATE_WAIT_SERVER_NOTIFY) {
+            getOrderInfo().setOrderState(OrderInfo.ORDER_STATE_PAY_FAILED);
+            if (WAIT_SERVER_NOTIFY_MESSAGE.equals(getOrderInfo().getErrorMessage())) {//渠道没有设置失败原因
+                getOrderInfo().setErrorMessage("支付失败");
+            }
+            if (mNotifyQueue != null) {
+                mNotifyQueue.state(getOrderInfo());
+            }
+        }
+        notifyPayFailed();
+    }
+
+    private void notifyPayFailed() {
         mPayParams.onError.onNext(new Throwable(getOrderInfo().getErrorMessage()));
     }
 
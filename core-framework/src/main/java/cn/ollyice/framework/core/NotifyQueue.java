@@ -0,0 +1,272 @@
+package cn.ollyice.framework.core;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import cn.ollyice.framework.http.HttpManager;
+import cn.ollyice.framework.info.OrderInfo;
+
+/**
+ * Created by ollyice on 2018/6/21.
+ * 通知服务器发货的队列 请求先写入{@link OrderJournal}再发送,
+ * 失败后按指数退避重试,进程被杀后下次启动时重新发送未完成的通知.
+ * 每条通知带上幂等键{@link #KEY_IDEMPOTENCY},服务器需要据此去重.
+ * 日志的打开和读写都在一个后台线程按顺序执行 调用方(通常是主线程)不做磁盘io.
+ */
+
+public class NotifyQueue {
+    private static final String TAG = "NotifyQueue";
+    public static final String KEY_IDEMPOTENCY = "notifyKey";
+    static final String JOURNAL_DIR = "order_journal";
+    static final long INITIAL_BACKOFF = 2000;//毫秒
+    static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+    private static NotifyQueue sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Executor mWorker;//日志io都在这里执行 单线程所以写入顺序和调用顺序一致
+    private OrderJournal mJournal;//只在mWorker里访问 打开失败时为null 只在内存里重试
+    private final Map<String, Map<String, String>> mPending = new HashMap<>();
+    private final Map<String, Long> mBackoff = new HashMap<>();
+    private final Set<String> mInFlight = new HashSet<>();
+    private final Map<String, List<Waiter>> mWaiters = new HashMap<>();//等待本次发送结果的回调
+
+    NotifyQueue(Executor worker) {
+        mWorker = worker;
+    }
+
+    /**
+     * 第一次调用时在后台线程打开日志并重新发送上次没有完成的通知
+     */
+    public static synchronized NotifyQueue get(Context context) {
+        if (sInstance == null) {
+            //单线程 空闲时回收
+            Executor worker = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            sInstance = new NotifyQueue(worker);
+            sInstance.open(new File(context.getApplicationContext().getFilesDir(), JOURNAL_DIR));
+        }
+        return sInstance;
+    }
+
+    /**
+     * 打开日志 读出的通知加入队列后重新发送 打开之前enqueue的通知在内存里更新 不会被覆盖
+     */
+    void open(final File directory) {
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mJournal = OrderJournal.open(directory);
+                } catch (IOException e) {
+                    Log.e(TAG, "open order journal failed", e);
+                    return;
+                }
+                List<String> keys = new ArrayList<>();
+                synchronized (NotifyQueue.this) {
+                    for (Map.Entry<String, Map<String, String>> entry : mJournal.pending().entrySet()) {
+                        if (!mPending.containsKey(entry.getKey())) {
+                            mPending.put(entry.getKey(), entry.getValue());
+                            keys.add(entry.getKey());
+                        }
+                    }
+                }
+                for (String key : keys) {
+                    send(key, null, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * 记录订单状态变化
+     */
+    public void state(OrderInfo orderInfo) {
+        //OrderInfo是可变的 在当前线程取值
+        final String orderId = orderInfo.getOrderId();
+        final int state = orderInfo.getOrderState();
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal == null) {
+                    return;
+                }
+                try {
+                    mJournal.state(orderId, state);
+                } catch (IOException e) {
+                    Log.e(TAG, "write order state failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 写入日志后发送通知 call/error回调这次enqueue之后第一次发送的结果 之后在后台重试直到服务器确认
+     * 同一个订单的通知正在发送时 回调挂到那次发送上
+     */
+    public void enqueue(String orderId, Map<String, String> body,
+                        final IHttp.CallString call, final IHttp.CallError error) {
+        final String key = orderId != null && orderId.length() > 0 ? orderId : UUID.randomUUID().toString();
+        final Map<String, String> request = new HashMap<>();
+        if (body != null) {
+            request.putAll(body);
+        }
+        request.put(KEY_IDEMPOTENCY, key);
+        synchronized (this) {
+            mPending.put(key, request);
+            mBackoff.remove(key);
+        }
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal != null) {
+                    try {
+                        mJournal.notify(key, request);
+                    } catch (IOException e) {
+                        Log.e(TAG, "write notify failed", e);
+                    }
+                }
+                send(key, call, error);
+            }
+        });
+    }
+
+    /**
+     * 未完成的通知数
+     */
+    public synchronized int pendingCount() {
+        return mPending.size();
+    }
+
+    private void send(final String key, IHttp.CallString call, IHttp.CallError error) {
+        final Map<String, String> body;
+        synchronized (this) {
+            body = mPending.get(key);
+            if (body == null) {//已经完成
+                if (call != null) {
+                    call.onNext("");
+                }
+                return;
+            }
+            if (call != null || error != null) {
+                List<Waiter> waiters = mWaiters.get(key);
+                if (waiters == null) {
+                    waiters = new ArrayList<>();
+                    mWaiters.put(key, waiters);
+                }
+                waiters.add(new Waiter(call, error));
+            }
+            if (!mInFlight.add(key)) {//正在发送 等那次的结果
+                return;
+            }
+        }
+        IHttp http = HttpManager.getInstance();
+        if (http == null) {
+            synchronized (this) {
+                mInFlight.remove(key);
+            }
+            retry(key);
+            failed(key, "无法连接服务器:请实现相关服务");
+            return;
+        }
+        http.notify(body, new IHttp.CallString() {
+            @Override
+            public void onNext(final String response) {
+                final List<Waiter> waiters;
+                synchronized (NotifyQueue.this) {
+                    mInFlight.remove(key);
+                    mPending.remove(key);
+                    mBackoff.remove(key);
+                    waiters = mWaiters.remove(key);
+                }
+                mWorker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mJournal == null) {
+                            return;
+                        }
+                        try {
+                            mJournal.done(key);
+                        } catch (IOException e) {
+                            Log.e(TAG, "write done failed", e);
+                        }
+                    }
+                });
+                if (waiters != null) {
+                    for (Waiter waiter : waiters) {
+                        if (waiter.call != null) {
+                            waiter.call.onNext(response);
+                        }
+                    }
+                }
+            }
+        }, new IHttp.CallError() {
+            @Override
+            public void onNext(String message) {
+                synchronized (NotifyQueue.this) {
+                    mInFlight.remove(key);
+                }
+                retry(key);
+                failed(key, message);
+            }
+        });
+    }
+
+    /**
+     * 回调等待这次发送的error 之后的重试不再回调
+     */
+    private void failed(String key, String message) {
+        List<Waiter> waiters;
+        synchronized (this) {
+            waiters = mWaiters.remove(key);
+        }
+        if (waiters != null) {
+            for (Waiter waiter : waiters) {
+                if (waiter.error != null) {
+                    waiter.error.onNext(message);
+                }
+            }
+        }
+    }
+
+    private void retry(final String key) {
+        long delay;
+        synchronized (this) {
+            Long last = mBackoff.get(key);
+            delay = last == null ? INITIAL_BACKOFF : Math.min(last * 2, MAX_BACKOFF);
+            mBackoff.put(key, delay);
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                send(key, null, null);
+            }
+        }, delay);
+    }
+
+    private static final class Waiter {
+        final IHttp.CallString call;
+        final IHttp.CallError error;
+
+        Waiter(IHttp.CallString call, IHttp.CallError error) {
+            this.call = call;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package cn.ollyice.framework.core;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import cn.ollyice.framework.info.OrderInfo;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.BufferedSource;
+import cn.ollyice.library.okio.Okio;
+
+/**
+ * Created by ollyice on 2018/6/21.
+ * 订单事件日志 只追加写入 格式参考okhttp的DiskLruCache journal
+ *
+ *     cn.ollyice.framework.OrderJournal
+ *     1
+ *
+ *     STATE orderId state
+ *     NOTIFY key body
+ *     DONE key
+ *
+ * STATE记录订单状态变化,NOTIFY记录一条需要通知服务器发货的请求,DONE表示服务器已经确认.
+ * key是幂等键 服务器根据它去重,body是url编码后的请求参数.
+ * 冗余记录超过阈值后在后台线程重写日志,只保留未完成的通知,所以启动时读取的行数只和未完成的通知数有关.
+ */
+
+public final class OrderJournal {
+    private static final String TAG = "OrderJournal";
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+    static final String MAGIC = "cn.ollyice.framework.OrderJournal";
+    static final String VERSION_1 = "1";
+
+    private static final String STATE = "STATE";
+    private static final String NOTIFY = "NOTIFY";
+    private static final String DONE = "DONE";
+
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final File journalFileBackup;
+    private final Executor executor;
+
+    //未完成的通知 key -> body
+    private final LinkedHashMap<String, Map<String, String>> pending = new LinkedHashMap<>();
+    //未完成订单的最新状态 orderId -> state
+    private final LinkedHashMap<String, Integer> states = new LinkedHashMap<>();
+    private BufferedSink journalWriter;
+    private int redundantOpCount;
+    private boolean compacting;
+
+    private final Runnable compactRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (OrderJournal.this) {
+                try {
+                    rebuildJournal();
+                } catch (IOException e) {//日志还是完整的 下一次写入时会再尝试重写
+                    Log.w(TAG, "compact order journal failed", e);
+                } finally {
+                    compacting = false;
+                }
+            }
+        }
+    };
+
+    OrderJournal(File directory, Executor executor) {
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+        this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        this.executor = executor;
+    }
+
+    /**
+     * 打开目录下的日志 不存在的时候新建
+     */
+    public static OrderJournal open(File directory) throws IOException {
+        //单线程 空闲时回收 和DiskLruCache一样
+        Executor executor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        OrderJournal journal = new OrderJournal(directory, executor);
+        journal.initialize();
+        return journal;
+    }
+
+    synchronized void initialize() throws IOException {
+        File directory = journalFile.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("failed to create directory " + directory);
+        }
+        //重写过程中崩溃 使用备份
+        if (journalFileBackup.exists()) {
+            if (journalFile.exists()) {
+                journalFileBackup.delete();
+            } else {
+                journalFileBackup.renameTo(journalFile);
+            }
+        }
+        if (journalFile.exists()) {
+            try {
+                readJournal();
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "order journal is corrupt, rebuilding it", e);
+                pending.clear();
+                states.clear();
+            }
+        }
+        rebuildJournal();
+    }
+
+    private void readJournal() throws IOException {
+        BufferedSource source = Okio.buffer(Okio.source(journalFile));
+        try {
+            String magic = source.readUtf8LineStrict();
+            String version = source.readUtf8LineStrict();
+            String blank = source.readUtf8LineStrict();
+            if (!MAGIC.equals(magic) || !VERSION_1.equals(version) || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version + ", " + blank + "]");
+            }
+            int lineCount = 0;
+            while (true) {
+                try {
+                    readJournalLine(source.readUtf8LineStrict());
+                    lineCount++;
+                } catch (EOFException endOfJournal) {
+                    break;
+                }
+            }
+            redundantOpCount = lineCount - pending.size() - states.size();
+
+            //最后一行不完整(写入时崩溃) 重写后再追加
+            if (!source.exhausted()) {
+                rebuildJournal();
+            } else {
+                journalWriter = Okio.buffer(Okio.appendingSink(journalFile));
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ", -1);
+        if (STATE.equals(parts[0]) && parts.length == 3) {
+            String orderId = decode(parts[1]);
+            int state = Integer.parseInt(parts[2]);
+            states.remove(orderId);
+            if (isLive(state)) {
+                states.put(orderId, state);
+            }
+        } else if (NOTIFY.equals(parts[0]) && parts.length == 3) {
+            String key = decode(parts[1]);
+            pending.remove(key);
+            pending.put(key, decodeBody(parts[2]));
+        } else if (DONE.equals(parts[0]) && parts.length == 2) {
+            String key = decode(parts[1]);
+            pending.remove(key);
+            states.remove(key);
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * 只保留未完成的记录 写到临时文件再替换
+     */
+    private void rebuildJournal() throws IOException {
+        BufferedSink writer = Okio.buffer(Okio.sink(journalFileTmp));
+        try {
+            writer.writeUtf8(MAGIC).writeByte('\n');
+            writer.writeUtf8(VERSION_1).writeByte('\n');
+            writer.writeByte('\n');
+            for (Map.Entry<String, Integer> entry : states.entrySet()) {
+                writeState(writer, entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Map<String, String>> entry : pending.entrySet()) {
+                writeNotify(writer, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            writer.close();
+        }
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+        if (journalFile.exists()) {
+            journalFileBackup.delete();
+            journalFile.renameTo(journalFileBackup);
+        }
+        if (!journalFileTmp.renameTo(journalFile)) {
+            throw new IOException("failed to rename " + journalFileTmp + " to " + journalFile);
+        }
+        journalFileBackup.delete();
+        journalWriter = Okio.buffer(Okio.appendingSink(journalFile));
+        redundantOpCount = 0;
+    }
+
+    /**
+     * 记录订单状态 已经结束的订单在下次重写时丢弃
+     */
+    public synchronized void state(String orderId, int state) throws IOException {
+        if (orderId == null || orderId.length() == 0) {
+            return;
+        }
+        if (states.remove(orderId) != null) {
+            redundantOpCount++;
+        }
+        if (isLive(state)) {
+            states.put(orderId, state);
+        } else {//订单已经结束 这一行重写时不再保留
+            redundantOpCount++;
+        }
+        writeState(journalWriter, orderId, state);
+        journalWriter.flush();
+        compactIfNeeded();
+    }
+
+    /**
+     * 记录一条待发送的通知 写入磁盘后才返回
+     */
+    public synchronized void notify(String key, Map<String, String> body) throws IOException {
+        if (pending.remove(key) != null) {
+            redundantOpCount++;
+        }
+        pending.put(key, body);
+        writeNotify(journalWriter, key, body);
+        journalWriter.flush();
+        compactIfNeeded();
+    }
+
+    /**
+     * 服务器已经确认 对应订单的状态也一起清掉
+     */
+    public synchronized void done(String key) throws IOException {
+        if (pending.remove(key) == null) {
+            return;
+        }
+        redundantOpCount++;
+        if (states.remove(key) != null) {
+            redundantOpCount++;
+        }
+        journalWriter.writeUtf8(DONE).writeByte(' ').writeUtf8(encode(key)).writeByte('\n');
+        journalWriter.flush();
+        redundantOpCount++;//DONE这一行本身也是冗余的
+        compactIfNeeded();
+    }
+
+    /**
+     * 未完成的通知 按写入顺序
+     */
+    public synchronized Map<String, Map<String, String>> pending() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(pending));
+    }
+
+    public synchronized void close() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+            journalWriter = null;
+        }
+    }
+
+    /**
+     * 只有等待服务器通知的订单需要在重写后保留
+     */
+    private static boolean isLive(int state) {
+        return state == OrderInfo.ORDER_STATE_WAIT_SERVER_NOTIFY;
+    }
+
+    private void compactIfNeeded() {
+        if (!compacting && redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= pending.size() + states.size()) {
+            compacting = true;
+            executor.execute(compactRunnable);
+        }
+    }
+
+    private static void writeState(BufferedSink writer, String orderId, int state) throws IOException {
+        writer.writeUtf8(STATE).writeByte(' ').writeUtf8(encode(orderId))
+                .writeByte(' ').writeDecimalLong(state).writeByte('\n');
+    }
+
+    private static void writeNotify(BufferedSink writer, String key, Map<String, String> body) throws IOException {
+        writer.writeUtf8(NOTIFY).writeByte(' ').writeUtf8(encode(key))
+                .writeByte(' ').writeUtf8(encodeBody(body)).writeByte('\n');
+    }
+
+    private static String encodeBody(Map<String, String> body) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> entry : body.entrySet()) {
+            if (result.length() > 0) {
+                result.append('&');
+            }
+            result.append(encode(entry.getKey())).append('=').append(encode(entry.getValue()));
+        }
+        return result.toString();
+    }
+
+    private static Map<String, String> decodeBody(String body) {
+        Map<String, String> result = new LinkedHashMap<>();
+        if (body.length() == 0) {
+            return result;
+        }
+        for (String pair : body.split("&")) {
+            int index = pair.indexOf('=');
+            if (index == -1) {
+                result.put(decode(pair), "");
+            } else {
+                result.put(decode(pair.substring(0, index)), decode(pair.substring(index + 1)));
+            }
+        }
+        return result;
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s != null ? s : "", "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package cn.ollyice.framework.core;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cn.ollyice.framework.http.HttpManager;
+import cn.ollyice.framework.info.ExtraInfo;
+
+/**
+ * Created by ollyice on 2018/6/20.
+ * 角色信息上报管道
+ * 缓存{@link ExtraInfo}事件,同一角色/服务器/事件类型只保留最新一条,
+ * 达到数量阈值或者等待时间到了之后一起发送.
+ * 服务器的submit接口只认识单条事件 所以每个key仍然是一次{@link IHttp#submit}请求,body还是原始的hashMap
+ * 发送失败的事件放回队列 等待下一次定时发送 连续失败时重试间隔按指数增长,有上限
+ * 同一条事件失败{@link #MAX_ATTEMPTS}次后丢弃
+ */
+
+public class SubmitPipeline {
+    public static final int DEFAULT_BATCH_SIZE = 10;//缓存的事件数达到这个值时立即发送
+    public static final long DEFAULT_FLUSH_DELAY = 3000;//第一条事件进入后最多等待的时间 毫秒
+    public static final int DEFAULT_MAX_PENDING_BYTES = 64 * 1024;//缓存事件占用的内存上限 字节
+    public static final long MIN_RETRY_DELAY = 1000;//第一次失败后的重试间隔下限 毫秒
+    public static final long MAX_RETRY_DELAY = 5 * 60 * 1000;//重试间隔的上限 毫秒
+    public static final int MAX_ATTEMPTS = 5;//同一条事件最多发送的次数
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final int mBatchSize;
+    private final long mFlushDelay;
+    private final int mMaxPendingBytes;
+
+    private final LinkedHashMap<String, Event> mPending = new LinkedHashMap<>();
+    private int mPendingBytes;
+    private boolean mFlushScheduled;
+    private int mFlushCount;//每次发送加一 用来把同一次发送的多条失败算作一次
+    private int mFailedFlush;//最近一次有失败的发送
+    private int mFailures;//连续失败的发送次数 有一条成功就清零
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public SubmitPipeline() {
+        this(DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_DELAY, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    public SubmitPipeline(int batchSize, long flushDelay, int maxPendingBytes) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize <= 0: " + batchSize);
+        if (flushDelay < 0) throw new IllegalArgumentException("flushDelay < 0: " + flushDelay);
+        if (maxPendingBytes <= 0) throw new IllegalArgumentException("maxPendingBytes <= 0: " + maxPendingBytes);
+        mBatchSize = batchSize;
+        mFlushDelay = flushDelay;
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * 加入一条角色信息 同一个key的旧事件会被覆盖
+     */
+    public void offer(ExtraInfo extra) {
+        if (extra == null) {
+            return;
+        }
+        //ExtraInfo是游戏方传入的可变对象 这里保存一份快照
+        Event event = new Event(new HashMap<>(extra.hashMap()));
+        boolean flushNow;
+        synchronized (this) {
+            put(keyOf(extra), event);
+            flushNow = mPending.size() >= mBatchSize;
+            if (!flushNow) {
+                scheduleFlush();
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * 立即发送所有缓存的事件 在onPause/onDestroy时调用
+     */
+    public void flush() {
+        final LinkedHashMap<String, Event> batch;
+        final IHttp http = HttpManager.getInstance();
+        final int flushCount;
+        synchronized (this) {
+            if (mFlushScheduled) {
+                mFlushScheduled = false;
+                mHandler.removeCallbacks(mFlushRunnable);
+            }
+            if (http == null || mPending.isEmpty()) {//没有http实现的时候继续缓存 受内存上限约束
+                return;
+            }
+            batch = new LinkedHashMap<>(mPending);
+            mPending.clear();
+            mPendingBytes = 0;
+            flushCount = ++mFlushCount;
+            for (Event event : batch.values()) {
+                event.attempts++;
+            }
+        }
+        for (final Map.Entry<String, Event> entry : batch.entrySet()) {
+            http.submit(entry.getValue().body, new IHttp.CallString() {
+                @Override
+                public void onNext(String response) {
+                    submitted();
+                }
+            }, new IHttp.CallError() {
+                @Override
+                public void onNext(String error) {
+                    requeue(entry.getKey(), entry.getValue(), flushCount);
+                }
+            });
+        }
+    }
+
+    /**
+     * 当前缓存的事件数
+     */
+    public synchronized int pendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * 下一次定时发送的等待时间 没有失败时是flushDelay
+     * 连续失败n次时是max(flushDelay, MIN_RETRY_DELAY) * 2^(n-1) 不超过MAX_RETRY_DELAY
+     */
+    synchronized long nextFlushDelay() {
+        if (mFailures == 0) {
+            return mFlushDelay;
+        }
+        long delay = Math.max(mFlushDelay, MIN_RETRY_DELAY) << Math.min(mFailures - 1, 20);
+        return Math.min(delay, MAX_RETRY_DELAY);
+    }
+
+    private synchronized void submitted() {
+        mFailures = 0;
+    }
+
+    /**
+     * 发送失败的事件放回队列 已经有更新事件的key不再放回 发送次数用完的事件丢弃
+     * 放回后按退避时间重新安排一次定时发送 否则失败的事件要等到下一次offer/flush才会再发
+     */
+    private synchronized void requeue(String key, Event event, int flushCount) {
+        if (flushCount != mFailedFlush) {
+            mFailedFlush = flushCount;
+            mFailures++;
+        }
+        if (event.attempts < MAX_ATTEMPTS && !mPending.containsKey(key)) {
+            put(key, event);
+        }
+        if (!mPending.isEmpty()) {
+            scheduleFlush();
+        }
+    }
+
+    //调用时需要持有this锁
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, nextFlushDelay());
+        }
+    }
+
+    private void put(String key, Event event) {
+        Event old = mPending.remove(key);
+        if (old != null) {
+            mPendingBytes -= old.size;
+        }
+        mPending.put(key, event);
+        mPendingBytes += event.size;
+        //超出内存上限时丢弃最旧的事件
+        Iterator<Event> iterator = mPending.values().iterator();
+        while (mPendingBytes > mMaxPendingBytes && mPending.size() > 1) {
+            mPendingBytes -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    static String keyOf(ExtraInfo extra) {
+        return extra.getDataType() + "|" + extra.getServerID() + "|" + extra.getRoleID();
+    }
+
+    private static int sizeOf(Map<String, String> event) {
+        int size = 0;
+        for (Map.Entry<String, String> entry : event.entrySet()) {
+            size += length(entry.getKey()) + length(entry.getValue());
+        }
+        return size * 2;//char占两个字节
+    }
+
+    private static int length(String s) {
+        return s != null ? s.length() : 0;
+    }
+
+    /**
+     * 一条缓存的事件 attempts是已经发送的次数
+     */
+    private static final class Event {
+        final Map<String, String> body;
+        final int size;
+        int attempts;
+
+        Event(Map<String, String> body) {
+            this.body = body;
+            this.size = sizeOf(body);
+        }
+    }
+}
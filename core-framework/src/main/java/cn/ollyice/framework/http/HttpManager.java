@@ -1,19 +1,32 @@
 package cn.ollyice.framework.http;
 
 import cn.ollyice.framework.core.IHttp;
+import cn.ollyice.framework.util.Lazy;
 
 /**
  * Created by admin on 2018/6/19.
  */
 
 public class HttpManager {
-    private static IHttp instance;
+    private static volatile IHttp instance;
+    private static volatile Lazy<IHttp> lazyInstance;
 
     public static IHttp getInstance(){
-        return instance;
+        IHttp http = instance;
+        if (http == null && lazyInstance != null) {//第一次使用时才等待创建完成
+            http = lazyInstance.getOrCreate();
+            instance = http;
+        }
+        return http;
     }
 
     public static void setInstance(IHttp instance) {
+        HttpManager.lazyInstance = null;
         HttpManager.instance = instance;
     }
+
+    public static void setInstance(Lazy<IHttp> instance) {
+        HttpManager.instance = null;
+        HttpManager.lazyInstance = instance;
+    }
 }
@@ -0,0 +1,21 @@
+package cn.ollyice.framework.http;
+
+import java.util.Map;
+
+import cn.ollyice.library.okhttp.ResponseBody;
+import cn.ollyice.library.retrofit.Call;
+import cn.ollyice.library.retrofit.http.FieldMap;
+import cn.ollyice.library.retrofit.http.FormUrlEncoded;
+import cn.ollyice.library.retrofit.http.POST;
+import cn.ollyice.library.retrofit.http.Url;
+
+/**
+ * Created by admin on 2018/6/20.
+ * 所有sdk接口都是表单post 路径由{@link RetrofitHttp}决定
+ */
+
+interface HttpService {
+    @FormUrlEncoded
+    @POST
+    Call<ResponseBody> post(@Url String url, @FieldMap Map<String, String> body);
+}
@@ -0,0 +1,306 @@
+package cn.ollyice.framework.http;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import cn.ollyice.framework.Bootstrap;
+import cn.ollyice.framework.core.IHttp;
+import cn.ollyice.library.gson.JsonElement;
+import cn.ollyice.library.gson.JsonObject;
+import cn.ollyice.library.gson.JsonParser;
+import cn.ollyice.library.okhttp.ConnectionPool;
+import cn.ollyice.library.okhttp.HttpUrl;
+import cn.ollyice.library.okhttp.Interceptor;
+import cn.ollyice.library.okhttp.OkHttpClient;
+import cn.ollyice.library.okhttp.Protocol;
+import cn.ollyice.library.okhttp.Request;
+import cn.ollyice.library.okhttp.Response;
+import cn.ollyice.library.okhttp.ResponseBody;
+import cn.ollyice.library.retrofit.Call;
+import cn.ollyice.library.retrofit.Retrofit;
+
+import static cn.ollyice.framework.Systems.HttpBaseUrlName;
+import static cn.ollyice.framework.Systems.PropertiesName;
+
+/**
+ * Created by admin on 2018/6/20.
+ * 基于retrofit + okhttp的默认http实现 在配置文件里面写
+ * cn.ollyice.framework.http=cn.ollyice.framework.http.RetrofitHttp
+ * cn.ollyice.framework.http.baseUrl=https://服务器地址/
+ *
+ * 服务器统一返回 {"code":0,"msg":"","data":{...}} code为0表示成功,
+ * 协议不一样的话继承这个类重写parseXXX方法即可.
+ * 所有实例共用一个OkHttpClient的连接池和线程池,android上回调在主线程执行.
+ */
+
+public class RetrofitHttp implements IHttp {
+    public static final String PATH_UPDATE = "update";
+    public static final String PATH_LOGIN = "login";
+    public static final String PATH_SUBMIT = "submit";
+    public static final String PATH_PAY = "pay";
+    public static final String PATH_NOTIFY = "notify";
+
+    static final int DEFAULT_TIMEOUT = 10000;//毫秒
+    static final int NOTIFY_TIMEOUT = 30000;//通知发货需要服务器去渠道查询 时间长一点
+
+    private static OkHttpClient sSharedClient;
+
+    private final HttpUrl mBaseUrl;
+    private final HttpService mService;
+    private final Map<String, Integer> mTimeouts = new HashMap<>();
+
+    /**
+     * 反射创建时使用 baseUrl从配置文件读取
+     */
+    public RetrofitHttp() {
+        this(readBaseUrl());
+    }
+
+    public RetrofitHttp(String baseUrl) {
+        this(baseUrl, sharedClient(), null);
+    }
+
+    /**
+     * @param callbackExecutor 回调执行的线程 为null时使用平台默认(android主线程),
+     *                         在jvm上对着本地mock服务器测试的时候可以传一个直接执行的Executor
+     */
+    public RetrofitHttp(String baseUrl, OkHttpClient client, Executor callbackExecutor) {
+        mBaseUrl = HttpUrl.parse(baseUrl);
+        if (mBaseUrl == null) {
+            throw new IllegalArgumentException("Illegal base url: " + baseUrl);
+        }
+        setTimeout(PATH_UPDATE, DEFAULT_TIMEOUT);
+        setTimeout(PATH_LOGIN, DEFAULT_TIMEOUT);
+        setTimeout(PATH_SUBMIT, DEFAULT_TIMEOUT);
+        setTimeout(PATH_PAY, DEFAULT_TIMEOUT);
+        setTimeout(PATH_NOTIFY, NOTIFY_TIMEOUT);
+
+        //newBuilder()出来的client和原来的共用连接池和线程池
+        OkHttpClient endpointClient = client.newBuilder()
+                .addInterceptor(new TimeoutInterceptor())
+                .build();
+        Retrofit.Builder builder = new Retrofit.Builder()
+                .baseUrl(mBaseUrl)
+                .client(endpointClient);
+        if (callbackExecutor != null) {
+            builder.callbackExecutor(callbackExecutor);
+        }
+        mService = builder.build().create(HttpService.class);
+    }
+
+    /**
+     * 所有sdk请求共用的client
+     */
+    public static synchronized OkHttpClient sharedClient() {
+        if (sSharedClient == null) {
+            sSharedClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(5, 5, TimeUnit.MINUTES))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))//https时通过ALPN协商http2 多个请求复用一个连接
+                    .connectTimeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .readTimeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .writeTimeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        return sSharedClient;
+    }
+
+    /**
+     * 设置某个接口的超时时间 毫秒
+     */
+    public void setTimeout(String path, int timeoutMillis) {
+        if (timeoutMillis <= 0) throw new IllegalArgumentException("timeoutMillis <= 0: " + timeoutMillis);
+        HttpUrl url = mBaseUrl.resolve(path);
+        if (url == null) throw new IllegalArgumentException("Illegal path: " + path);
+        synchronized (mTimeouts) {
+            mTimeouts.put(url.encodedPath(), timeoutMillis);
+        }
+    }
+
+    @Override
+    public void update(Map<String, String> body, final CallUpdate call, final CallError error) {
+        enqueue(PATH_UPDATE, body, error, new Parser() {
+            @Override
+            public void parse(String response) throws Exception {
+                parseUpdate(response, call, error);
+            }
+        });
+    }
+
+    @Override
+    public void login(Map<String, String> body, final CallLogin call, final CallError error) {
+        enqueue(PATH_LOGIN, body, error, new Parser() {
+            @Override
+            public void parse(String response) throws Exception {
+                parseLogin(response, call, error);
+            }
+        });
+    }
+
+    @Override
+    public void submit(Map<String, String> body, CallString call, CallError error) {
+        post(PATH_SUBMIT, body, call, error);
+    }
+
+    @Override
+    public void pay(Map<String, String> body, final CallPay call, final CallError error) {
+        enqueue(PATH_PAY, body, error, new Parser() {
+            @Override
+            public void parse(String response) throws Exception {
+                parsePay(response, call, error);
+            }
+        });
+    }
+
+    @Override
+    public void notify(Map<String, String> body, CallString call, CallError error) {
+        post(PATH_NOTIFY, body, call, error);
+    }
+
+    @Override
+    public void post(String url, Map<String, String> body, final CallString call, final CallError error) {
+        enqueue(url, body, error, new Parser() {
+            @Override
+            public void parse(String response) throws Exception {
+                parseString(response, call, error);
+            }
+        });
+    }
+
+    protected void parseUpdate(String response, CallUpdate call, CallError error) throws Exception {
+        JsonObject data = data(response, error);
+        if (data != null) {
+            call.onNext(string(data, "notifyUrl"), string(data, "downloadUrl"),
+                    integer(data, "appVersion"), integer(data, "resVersion"),
+                    extra(data, "notifyUrl", "downloadUrl", "appVersion", "resVersion"));
+        }
+    }
+
+    protected void parseLogin(String response, CallLogin call, CallError error) throws Exception {
+        JsonObject data = data(response, error);
+        if (data != null) {
+            call.onNext(string(data, "userId"), string(data, "userName"), string(data, "userToken"));
+        }
+    }
+
+    protected void parsePay(String response, CallPay call, CallError error) throws Exception {
+        JsonObject data = data(response, error);
+        if (data != null) {
+            call.onNext(string(data, "orderId"), string(data, "notifyUrl"),
+                    extra(data, "orderId", "notifyUrl"));
+        }
+    }
+
+    protected void parseString(String response, CallString call, CallError error) throws Exception {
+        if (data(response, error) != null) {
+            call.onNext(response);
+        }
+    }
+
+    /**
+     * 检查code 成功时返回data对象 失败时回调error并返回null
+     */
+    protected JsonObject data(String response, CallError error) throws Exception {
+        JsonObject json = new JsonParser().parse(response).getAsJsonObject();
+        int code = integer(json, "code");
+        if (code != 0) {
+            error.onNext(json.has("msg") ? string(json, "msg") : "code:" + code);
+            return null;
+        }
+        JsonElement data = json.get("data");
+        return data != null && data.isJsonObject() ? data.getAsJsonObject() : new JsonObject();
+    }
+
+    private void enqueue(String path, Map<String, String> body, final CallError error, final Parser parser) {
+        mService.post(path, notNull(body)).enqueue(new cn.ollyice.library.retrofit.Callback<ResponseBody>() {
+            @Override
+            public void onResponse(Call<ResponseBody> call, cn.ollyice.library.retrofit.Response<ResponseBody> response) {
+                if (!response.isSuccessful()) {
+                    error.onNext("HTTP " + response.code() + " " + response.message());
+                    return;
+                }
+                try {
+                    ResponseBody responseBody = response.body();
+                    parser.parse(responseBody != null ? responseBody.string() : "");
+                } catch (Exception e) {
+                    error.onNext(e.toString());
+                }
+            }
+
+            @Override
+            public void onFailure(Call<ResponseBody> call, Throwable t) {
+                error.onNext(t.toString());
+            }
+        });
+    }
+
+    private static String string(JsonObject json, String key) {
+        JsonElement element = json.get(key);
+        return element != null && !element.isJsonNull() ? element.getAsString() : "";
+    }
+
+    private static int integer(JsonObject json, String key) {
+        JsonElement element = json.get(key);
+        return element != null && !element.isJsonNull() ? element.getAsInt() : 0;
+    }
+
+    private static Map<String, String> extra(JsonObject data, String... excludes) {
+        Map<String, String> map = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : data.entrySet()) {
+            if (!Arrays.asList(excludes).contains(entry.getKey()) && entry.getValue().isJsonPrimitive()) {
+                map.put(entry.getKey(), entry.getValue().getAsString());
+            }
+        }
+        return map;
+    }
+
+    /**
+     * retrofit的FieldMap不允许null值
+     */
+    private static Map<String, String> notNull(Map<String, String> body) {
+        Map<String, String> map = new HashMap<>();
+        if (body != null) {
+            for (Map.Entry<String, String> entry : body.entrySet()) {
+                if (entry.getKey() != null) {
+                    map.put(entry.getKey(), entry.getValue() != null ? entry.getValue() : "");
+                }
+            }
+        }
+        return map;
+    }
+
+    private static String readBaseUrl() {
+        String baseUrl = Bootstrap.properties().getProperty(HttpBaseUrlName);
+        if (baseUrl == null) {
+            throw new IllegalStateException("can not read " + HttpBaseUrlName + " from " + PropertiesName);
+        }
+        return baseUrl;
+    }
+
+    private interface Parser {
+        void parse(String response) throws Exception;
+    }
+
+    /**
+     * 按请求路径设置超时时间
+     */
+    private final class TimeoutInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            Integer timeout;
+            synchronized (mTimeouts) {
+                timeout = mTimeouts.get(request.url().encodedPath());
+            }
+            if (timeout != null) {
+                chain = chain.withConnectTimeout(timeout, TimeUnit.MILLISECONDS)
+                        .withReadTimeout(timeout, TimeUnit.MILLISECONDS)
+                        .withWriteTimeout(timeout, TimeUnit.MILLISECONDS);
+            }
+            return chain.proceed(request);
+        }
+    }
+}
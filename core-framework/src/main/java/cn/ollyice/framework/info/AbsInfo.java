@@ -0,0 +1,69 @@
+package cn.ollyice.framework.info;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cn.ollyice.library.okio.BufferedSink;
+
+/**
+ * Created by ollyice on 2018/6/22.
+ * 基于{@link FieldTable}的信息类 setter只写数组,
+ * 校验只遍历一次数组 hashMap只在字段变化后重新生成,也可以直接写入okio的sink不经过map
+ */
+
+public abstract class AbsInfo implements IHashMap {
+    private final FieldTable mTable;
+    private final String[] mValues;
+    private long mSetMask;//已经设置过的字段
+    private Map<String, String> mHashMap;
+
+    AbsInfo(FieldTable table) {
+        mTable = table;
+        mValues = new String[table.names.length];
+    }
+
+    final void put(int field, String value) {
+        mValues[field] = value;
+        mSetMask |= 1L << field;
+        mHashMap = null;
+    }
+
+    @Override
+    public List<String> canEmptyKeys() {
+        return mTable.canEmptyKeys();
+    }
+
+    @Override
+    public boolean success() {
+        return !mTable.hasEmptyValue(mValues, mSetMask);
+    }
+
+    @Override
+    public Map<String, String> hashMap() {
+        if (mHashMap == null) {
+            Map<String, String> map = new HashMap<>();
+            for (long bits = mSetMask; bits != 0; bits &= bits - 1) {
+                int i = Long.numberOfTrailingZeros(bits);
+                map.put(mTable.names[i], mValues[i]);
+            }
+            mHashMap = map;
+        }
+        return mHashMap;
+    }
+
+    /**
+     * 以表单格式写入 key1=value1&key2=value2
+     */
+    public void writeForm(BufferedSink sink) throws IOException {
+        mTable.writeForm(mValues, mSetMask, sink);
+    }
+
+    /**
+     * 以json对象格式写入
+     */
+    public void writeJson(BufferedSink sink) throws IOException {
+        mTable.writeJson(mValues, mSetMask, sink);
+    }
+}
@@ -1,15 +1,27 @@
 package cn.ollyice.framework.info;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 /**
  * Created by ollyice on 2018/6/19.
  * 游戏角色信息
  */
 
-public class ExtraInfo implements IHashMap{
+public class ExtraInfo extends AbsInfo{
+    private static final FieldTable TABLE = FieldTable.allCanEmpty(
+            "dataType","cpUid","roleID","roleName","roleLevel","serverID","serverName","moneyNum",
+            "vip","union","createRoleTime"
+    );
+    private static final int DATA_TYPE = 0;
+    private static final int CP_UID = 1;
+    private static final int ROLE_ID = 2;
+    private static final int ROLE_NAME = 3;
+    private static final int ROLE_LEVEL = 4;
+    private static final int SERVER_ID = 5;
+    private static final int SERVER_NAME = 6;
+    private static final int MONEY_NUM = 7;
+    private static final int VIP = 8;
+    private static final int UNION = 9;
+    private static final int CREATE_ROLE_TIME = 10;
+
     private static final int SUBMIT_EXTRA_ERROR = 0;
     public static final int SUBMIT_EXTRA_ENTER_GAME = 1;//进入游戏
     public static final int SUBMIT_EXTRA_LEVEL_UP = 2;//角色升级
@@ -29,7 +41,9 @@ public class ExtraInfo implements IHashMap{
     private String union = "暂无";//工会
     private long createRoleTime = 0;//角色创建时间
 
-    private HashMap<String,String> mHashMap = new HashMap<>();
+    public ExtraInfo() {
+        super(TABLE);
+    }
 
     public int getDataType() {
         return dataType;
@@ -77,82 +91,67 @@ public class ExtraInfo implements IHashMap{
 
     public ExtraInfo setDataType(int dataType) {
         this.dataType = dataType;
-        mHashMap.put("dataType",dataType + "");
+        put(DATA_TYPE,dataType + "");
         return this;
     }
 
     public ExtraInfo setCpUid(String cpUid) {
         this.cpUid = cpUid;
-        mHashMap.put("cpUid",cpUid);
+        put(CP_UID,cpUid);
         return this;
     }
 
     public ExtraInfo setRoleID(String roleID) {
         this.roleID = roleID;
-        mHashMap.put("roleID",roleID);
+        put(ROLE_ID,roleID);
         return this;
     }
 
     public ExtraInfo setRoleName(String roleName) {
         this.roleName = roleName;
-        mHashMap.put("roleName",roleName);
+        put(ROLE_NAME,roleName);
         return this;
     }
 
     public ExtraInfo setRoleLevel(String roleLevel) {
         this.roleLevel = roleLevel;
-        mHashMap.put("roleLevel",roleLevel);
+        put(ROLE_LEVEL,roleLevel);
         return this;
     }
 
     public ExtraInfo setServerID(String serverID) {
         this.serverID = serverID;
-        mHashMap.put("serverID",serverID);
+        put(SERVER_ID,serverID);
         return this;
     }
 
     public ExtraInfo setServerName(String serverName) {
         this.serverName = serverName;
-        mHashMap.put("serverName",serverName);
+        put(SERVER_NAME,serverName);
         return this;
     }
 
     public ExtraInfo setMoneyNum(String moneyNum) {
         this.moneyNum = moneyNum;
-        mHashMap.put("moneyNum",moneyNum);
+        put(MONEY_NUM,moneyNum);
         return this;
     }
 
     public ExtraInfo setVip(String vip) {
         this.vip = vip;
-        mHashMap.put("vip",vip);
+        put(VIP,vip);
         return this;
     }
 
     public ExtraInfo setUnion(String union) {
         this.union = union;
-        mHashMap.put("union",union);
+        put(UNION,union);
         return this;
     }
 
     public ExtraInfo setCreateRoleTime(long createRoleTime) {
         this.createRoleTime = createRoleTime;
-        mHashMap.put("createRoleTime",createRoleTime + "");
+        put(CREATE_ROLE_TIME,createRoleTime + "");
         return this;
     }
-
-    @Override
-    public List<String> canEmptyKeys() {
-        return null;
-    }
-
-    @Override
-    public boolean success() {
-        return HashMapUtils.isEmptyValue(hashMap(),canEmptyKeys());
-    }
-
-    @Override
-    public Map<String, String> hashMap() {
-        return mHashMap;
-    }
 }
@@ -0,0 +1,175 @@
+package cn.ollyice.framework.info;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import cn.ollyice.library.okio.BufferedSink;
+
+/**
+ * Created by ollyice on 2018/6/22.
+ * 信息类的固定字段表 字段按下标存放在String数组里,
+ * 已设置的字段和可空字段各用一个long的bit位表示 最多64个字段
+ */
+
+final class FieldTable {
+    private static final byte[] HEX_DIGITS =
+            {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    final String[] names;
+    final long canEmptyMask;
+    private final List<String> canEmptyKeys;
+
+    FieldTable(String[] names, String... canEmpty) {
+        if (names.length > 64) throw new IllegalArgumentException("too many fields: " + names.length);
+        this.names = names;
+        long mask = 0;
+        for (String key : canEmpty) {
+            mask |= 1L << indexOf(key);
+        }
+        this.canEmptyMask = mask;
+        this.canEmptyKeys = Collections.unmodifiableList(keys(mask));
+    }
+
+    /**
+     * 所有字段都可以为空
+     */
+    static FieldTable allCanEmpty(String... names) {
+        return new FieldTable(names, names);
+    }
+
+    int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown field: " + name);
+    }
+
+    List<String> canEmptyKeys() {
+        return canEmptyKeys;
+    }
+
+    /**
+     * 已设置的字段里面有不允许为空的空值 只遍历需要检查的bit位
+     */
+    boolean hasEmptyValue(String[] values, long setMask) {
+        long check = setMask & ~canEmptyMask;
+        while (check != 0) {
+            String value = values[Long.numberOfTrailingZeros(check)];
+            if (value == null || value.length() == 0) {
+                return true;
+            }
+            check &= check - 1;//清掉最低位
+        }
+        return false;
+    }
+
+    /**
+     * 按application/x-www-form-urlencoded格式写入 只写已设置的字段
+     */
+    void writeForm(String[] values, long setMask, BufferedSink sink) throws IOException {
+        boolean first = true;
+        for (long bits = setMask; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            if (!first) {
+                sink.writeByte('&');
+            }
+            first = false;
+            writeFormEncoded(names[i], sink);
+            sink.writeByte('=');
+            writeFormEncoded(values[i], sink);
+        }
+    }
+
+    /**
+     * 写成json对象 值都是字符串
+     */
+    void writeJson(String[] values, long setMask, BufferedSink sink) throws IOException {
+        sink.writeByte('{');
+        boolean first = true;
+        for (long bits = setMask; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            if (!first) {
+                sink.writeByte(',');
+            }
+            first = false;
+            writeJsonString(names[i], sink);
+            sink.writeByte(':');
+            writeJsonString(values[i], sink);
+        }
+        sink.writeByte('}');
+    }
+
+    private List<String> keys(long mask) {
+        List<String> result = new ArrayList<>();
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            result.add(names[Long.numberOfTrailingZeros(bits)]);
+        }
+        return result;
+    }
+
+    private static void writeFormEncoded(String s, BufferedSink sink) throws IOException {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0, length = s.length(); i < length; ) {
+            int c = s.codePointAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '*') {
+                sink.writeByte(c);
+            } else if (c == ' ') {
+                sink.writeByte('+');
+            } else if (c < 0x80) {
+                writePercent(c, sink);
+            } else if (c < 0x800) {
+                writePercent(0xc0 | (c >> 6), sink);
+                writePercent(0x80 | (c & 0x3f), sink);
+            } else if (c < 0x10000) {
+                writePercent(0xe0 | (c >> 12), sink);
+                writePercent(0x80 | ((c >> 6) & 0x3f), sink);
+                writePercent(0x80 | (c & 0x3f), sink);
+            } else {
+                writePercent(0xf0 | (c >> 18), sink);
+                writePercent(0x80 | ((c >> 12) & 0x3f), sink);
+                writePercent(0x80 | ((c >> 6) & 0x3f), sink);
+                writePercent(0x80 | (c & 0x3f), sink);
+            }
+            i += Character.charCount(c);
+        }
+    }
+
+    private static void writePercent(int b, BufferedSink sink) throws IOException {
+        sink.writeByte('%');
+        sink.writeByte(HEX_DIGITS[(b >> 4) & 0xf]);
+        sink.writeByte(HEX_DIGITS[b & 0xf]);
+    }
+
+    private static void writeJsonString(String s, BufferedSink sink) throws IOException {
+        sink.writeByte('"');
+        if (s != null) {
+            int start = 0;
+            for (int i = 0, length = s.length(); i < length; i++) {
+                char c = s.charAt(i);
+                if (c != '"' && c != '\\' && c >= 0x20) {
+                    continue;
+                }
+                if (i > start) {
+                    sink.writeUtf8(s, start, i);
+                }
+                if (c == '"' || c == '\\') {
+                    sink.writeByte('\\').writeByte(c);
+                } else {
+                    sink.writeUtf8("\\u00").writeByte(HEX_DIGITS[c >> 4]).writeByte(HEX_DIGITS[c & 0xf]);
+                }
+                start = i + 1;
+            }
+            if (s.length() > start) {
+                sink.writeUtf8(s, start, s.length());
+            }
+        }
+        sink.writeByte('"');
+    }
+}
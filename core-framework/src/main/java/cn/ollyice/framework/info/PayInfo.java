@@ -2,19 +2,31 @@ package cn.ollyice.framework.info;
 
 import android.text.TextUtils;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 /**
  * Created by ollyice on 2018/6/19.
  */
 
-public class PayInfo implements IHashMap{
-    private final String[] EMPTY = new String[]{
-            "payNotifyUrl","extension"
-    };
+public class PayInfo extends AbsInfo{
+    private static final FieldTable TABLE = new FieldTable(new String[]{
+            "productId","productName","productDesc","price","orderId","buyNum","coinNum","serverID",
+            "serverName","roleID","roleName","roleLevel","vip","payNotifyUrl","extension"
+    }, "payNotifyUrl","extension");
+    private static final int PRODUCT_ID = 0;
+    private static final int PRODUCT_NAME = 1;
+    private static final int PRODUCT_DESC = 2;
+    private static final int PRICE = 3;
+    private static final int ORDER_ID = 4;
+    private static final int BUY_NUM = 5;
+    private static final int COIN_NUM = 6;
+    private static final int SERVER_ID = 7;
+    private static final int SERVER_NAME = 8;
+    private static final int ROLE_ID = 9;
+    private static final int ROLE_NAME = 10;
+    private static final int ROLE_LEVEL = 11;
+    private static final int VIP = 12;
+    private static final int PAY_NOTIFY_URL = 13;
+    private static final int EXTENSION = 14;
+
     private String productId = "";//	充值商品ID，游戏内的商品ID
     private String productName = "";//	商品名称，比如100元宝，500钻石...
     private String productDesc = "";//	商品描述，比如 充值100元宝，赠送20元宝
@@ -31,7 +43,9 @@ public class PayInfo implements IHashMap{
     private String payNotifyUrl = "";//	游戏服务器支付回调地址，渠道SDK支付成功，异步通知Server，Server根据该地址，通知游戏服务器发货
     private String extension = "";//	支付成功之后，原样返回给游戏服务器
 
-    private Map<String,String> mHashMap = new HashMap<>();
+    public PayInfo() {
+        super(TABLE);
+    }
 
     public String getProductId() {
         return productId;
@@ -95,108 +109,93 @@ public class PayInfo implements IHashMap{
 
     public PayInfo setProductId(String productId) {
         this.productId = productId;
-        mHashMap.put("productId",productId);
+        put(PRODUCT_ID,productId);
         return this;
     }
 
     public PayInfo setProductName(String productName) {
         this.productName = productName;
-        mHashMap.put("productName",productName);
+        put(PRODUCT_NAME,productName);
         return this;
     }
 
     public PayInfo setProductDesc(String productDesc) {
         this.productDesc = productDesc;
-        mHashMap.put("productDesc",productDesc);
+        put(PRODUCT_DESC,productDesc);
         return this;
     }
 
     public PayInfo setPrice(String price) {
         this.price = price;
-        mHashMap.put("price",price);
+        put(PRICE,price);
         return this;
     }
 
     public PayInfo setOrderId(String orderId) {
         this.orderId = orderId;
-        mHashMap.put("orderId",orderId);
+        put(ORDER_ID,orderId);
         return this;
     }
 
     public PayInfo setBuyNum(int buyNum) {
         this.buyNum = buyNum;
-        mHashMap.put("buyNum",buyNum + "");
+        put(BUY_NUM,buyNum + "");
         return this;
     }
 
     public PayInfo setCoinNum(String coinNum) {
         this.coinNum = coinNum;
-        mHashMap.put("coinNum",coinNum);
+        put(COIN_NUM,coinNum);
         return this;
     }
 
     public PayInfo setServerID(String serverID) {
         this.serverID = serverID;
-        mHashMap.put("serverID",serverID);
+        put(SERVER_ID,serverID);
         return this;
     }
 
     public PayInfo setServerName(String serverName) {
         this.serverName = serverName;
-        mHashMap.put("serverName",serverName);
+        put(SERVER_NAME,serverName);
         return this;
     }
 
     public PayInfo setRoleID(String roleID) {
         this.roleID = roleID;
-        mHashMap.put("roleID",roleID);
+        put(ROLE_ID,roleID);
         return this;
     }
 
     public PayInfo setRoleName(String roleName) {
         this.roleName = roleName;
-        mHashMap.put("roleName",roleName);
+        put(ROLE_NAME,roleName);
         return this;
     }
 
     public PayInfo setRoleLevel(String roleLevel) {
         this.roleLevel = roleLevel;
-        mHashMap.put("roleLevel",roleLevel);
+        put(ROLE_LEVEL,roleLevel);
         return this;
     }
 
     public PayInfo setVip(String vip) {
         this.vip = vip;
-        mHashMap.put("vip",vip);
+        put(VIP,vip);
         return this;
     }
 
     public PayInfo setPayNotifyUrl(String payNotifyUrl) {
         this.payNotifyUrl = payNotifyUrl;
         if (!TextUtils.isEmpty(payNotifyUrl)) {
-            mHashMap.put("payNotifyUrl", payNotifyUrl);
+            put(PAY_NOTIFY_URL,payNotifyUrl);
         }
         return this;
     }
 
     public PayInfo setExtension(String extension) {
         this.extension = extension;
-        mHashMap.put("extension", extension);
+        put(EXTENSION,extension);
         return this;
     }
-
-    @Override
-    public List<String> canEmptyKeys() {
-        return Arrays.asList(EMPTY);
-    }
-
-    @Override
-    public boolean success() {
-        return HashMapUtils.isEmptyValue(hashMap(),canEmptyKeys());
-    }
-
-    @Override
-    public Map<String, String> hashMap() {
-        return mHashMap;
-    }
 }
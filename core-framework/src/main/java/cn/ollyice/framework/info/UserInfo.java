@@ -4,11 +4,22 @@ package cn.ollyice.framework.info;
  * Created by ollyice on 2018/6/19.
  */
 
-public class UserInfo {
+public class UserInfo extends AbsInfo{
+    private static final FieldTable TABLE = new FieldTable(new String[]{
+            "userId","userName","userToken"
+    }, "userName");
+    private static final int USER_ID = 0;
+    private static final int USER_NAME = 1;
+    private static final int USER_TOKEN = 2;
+
     private String userId;// 用户Id 唯一标示
     private String userName;// 用户名
     private String userToken;// 用户凭证
 
+    public UserInfo() {
+        super(TABLE);
+    }
+
     public String getUserId() {
         return userId;
     }
@@ -23,16 +34,19 @@ public class UserInfo {
 
     public UserInfo setUserId(String userId) {
         this.userId = userId;
+        put(USER_ID,userId);
         return this;
     }
 
     public UserInfo setUserName(String userName) {
         this.userName = userName;
+        put(USER_NAME,userName);
         return this;
     }
 
     public UserInfo setUserToken(String userToken) {
         this.userToken = userToken;
+        put(USER_TOKEN,userToken);
         return this;
     }
 }
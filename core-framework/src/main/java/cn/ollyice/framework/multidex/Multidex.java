@@ -5,6 +5,7 @@ import android.content.Context;
 import java.io.File;
 import java.lang.reflect.Array;
 
+import cn.ollyice.framework.StartupTrace;
 import dalvik.system.DexClassLoader;
 import dalvik.system.PathClassLoader;
 
@@ -14,6 +15,7 @@ import dalvik.system.PathClassLoader;
 
 public class Multidex {
     public static void install(Context context, File file){
+        StartupTrace.Span span = StartupTrace.begin("multidex install " + file.getName());
         ClassLoader parent = Multidex.class.getClassLoader();
         String dexDir = context.getDir("support_dex",Context.MODE_PRIVATE)
                 .getAbsolutePath();
@@ -31,6 +33,7 @@ public class Multidex {
         }catch (Exception e){
             e.printStackTrace();
         }
+        span.end();
     }
 
     private static Object getDexElements(Object pathList) throws Exception {
@@ -50,16 +53,11 @@ public class Multidex {
         Class<?> localClass = firstArray.getClass().getComponentType();
 
         //modify to sure plugin jar class is first use
-        int firstArrayLength = Array.getLength(secondArray);
-        int allLength = firstArrayLength + Array.getLength(firstArray);
-        Object result = Array.newInstance(localClass, allLength);
-        for (int k = 0; k < allLength; ++k) {
-            if (k < firstArrayLength) {
-                Array.set(result, k, Array.get(secondArray, k));
-            } else {
-                Array.set(result, k, Array.get(firstArray, k - firstArrayLength));
-            }
-        }
+        int secondArrayLength = Array.getLength(secondArray);
+        int firstArrayLength = Array.getLength(firstArray);
+        Object result = Array.newInstance(localClass, secondArrayLength + firstArrayLength);
+        System.arraycopy(secondArray, 0, result, 0, secondArrayLength);
+        System.arraycopy(firstArray, 0, result, secondArrayLength, firstArrayLength);
         return result;
     }
 }
@@ -1,54 +1,156 @@
 package cn.ollyice.framework.util;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+
+import cn.ollyice.framework.StartupTrace;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.BufferedSource;
+import cn.ollyice.library.okio.HashingSink;
+import cn.ollyice.library.okio.HashingSource;
+import cn.ollyice.library.okio.Okio;
 
 /**
  * Created by admin on 2018/6/19.
  */
 
 public class AssetsUtils {
+    //释放出来的文件旁边保存一份记录: 第一行sha256, 第二行释放时apk的版本, 第三行释放出来的文件的大小和修改时间
+    static final String HASH_SUFFIX = ".sha256";
+
     public static File releaseFile(Context context, String dir, String name){
-        String outputDir = context.getDir("support_apk",Context.MODE_PRIVATE).getAbsolutePath();
-        File file = new File(outputDir,name);
-        if (file.exists() && file.isFile()){
+        StartupTrace.Span span = StartupTrace.begin("releaseFile " + name);
+        try {
+            String outputDir = context.getDir("support_apk",Context.MODE_PRIVATE).getAbsolutePath();
+            File file = new File(outputDir,name);
+            File hashFile = new File(outputDir,name + HASH_SUFFIX);
+            String apkStamp = apkStamp(context);
+            if (file.exists() && file.isFile() && hashFile.exists()){
+                //记录是文件完整写入之后才写的 记录存在就说明文件释放完整了
+                String[] record = readRecord(hashFile);
+                if (record != null && fileStamp(file).equals(record[2])){
+                    //apk没有更新 直接复用 不用每次启动都计算hash
+                    if (apkStamp != null && apkStamp.equals(record[1])){
+                        return file;
+                    }
+                    //apk更新过 只读一遍asset算hash 插件没变的话只更新记录 不重新写文件
+                    if (record[0].equals(hashAsset(context, dir + name))){
+                        writeRecord(hashFile, record[0], apkStamp, fileStamp(file));
+                        return file;
+                    }
+                }
+            }
+            File tempFile = new File(outputDir,name + ".temp");
+            if (tempFile.exists() && tempFile.isFile()){
+                tempFile.delete();
+            }
+            String hash;
+            BufferedSource in = null;
+            BufferedSink out = null;
+            try {
+                in = Okio.buffer(Okio.source(context.getAssets().open(dir + name)));
+                HashingSink hashingSink = HashingSink.sha256(Okio.sink(tempFile));
+                out = Okio.buffer(hashingSink);
+                out.writeAll(in);
+                out.close();
+                out = null;
+                hash = hashingSink.hash().hex();
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(out);
+                out = null;
+                tempFile.delete();
+                return null;
+            } finally {
+                closeQuietly(in);
+                closeQuietly(out);
+            }
+            //先删掉旧的hash 替换文件后再写新的hash 中途崩溃的话下次会重新释放
+            hashFile.delete();
+            if (!tempFile.renameTo(file)){
+                return null;
+            }
+            writeRecord(hashFile, hash, apkStamp, fileStamp(file));
             return file;
+        } finally {
+            span.end();
         }
-        File tempFile = new File(outputDir,name + ".temp");
-        if (tempFile.exists() && tempFile.isFile()){
-            tempFile.delete();
+    }
+
+    //apk的版本号和安装时间 覆盖安装同一个版本号时安装时间也会变
+    private static String apkStamp(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            return info.versionCode + "-" + info.lastUpdateTime;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
         }
-        InputStream in = null;
-        OutputStream out = null;
+    }
+
+    private static String fileStamp(File file) {
+        return file.length() + "-" + file.lastModified();
+    }
+
+    private static String hashAsset(Context context, String path) {
+        BufferedSource source = null;
         try {
-            in = context.getAssets().open(dir + name);
-            out = new FileOutputStream(tempFile.getAbsolutePath());
-            byte[] bytes = new byte[1024];
-            int i;
-            while ((i = in.read(bytes)) != -1) {
-                out.write(bytes, 0, i);
+            HashingSource hashingSource = HashingSource.sha256(Okio.source(context.getAssets().open(path)));
+            source = Okio.buffer(hashingSource);
+            source.readAll(Okio.blackhole());
+            return hashingSource.hash().hex();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(source);
+        }
+    }
+
+    //旧版本只保存了hash 读出来的文件记录为null 会重新释放一次
+    private static String[] readRecord(File hashFile) {
+        BufferedSource source = null;
+        try {
+            source = Okio.buffer(Okio.source(hashFile));
+            String[] record = new String[3];
+            for (int i = 0; i < record.length; i++) {
+                record[i] = source.readUtf8Line();
             }
+            return record[0] != null ? record : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(source);
+        }
+    }
+
+    private static void writeRecord(File hashFile, String hash, String apkStamp, String fileStamp) {
+        BufferedSink sink = null;
+        try {
+            sink = Okio.buffer(Okio.sink(hashFile));
+            sink.writeUtf8(hash).writeByte('\n');
+            sink.writeUtf8(String.valueOf(apkStamp)).writeByte('\n');
+            sink.writeUtf8(fileStamp).writeByte('\n');
         } catch (IOException e) {
             e.printStackTrace();
-            file = null;
+            hashFile.delete();
         } finally {
+            closeQuietly(sink);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
             try {
-                if (in != null)
-                    in.close();
-                if (out != null)
-                    out.close();
+                closeable.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-        if (tempFile != null && tempFile.exists() && tempFile.isFile()){
-            tempFile.renameTo(file);
-        }
-        return file;
     }
 }
@@ -0,0 +1,41 @@
+package cn.ollyice.framework.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Created by ollyice on 2018/6/23.
+ * 延迟创建的对象 可以提前丢到后台线程去创建,
+ * 第一次使用时如果还没开始就在当前线程创建,正在其他线程创建就等待结果
+ */
+
+public class Lazy<T> extends FutureTask<T> {
+    public Lazy(Callable<T> callable) {
+        super(callable);
+    }
+
+    /**
+     * 创建失败返回null
+     */
+    public T getOrCreate() {
+        run();//已经执行过或者正在执行时直接返回
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return null;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package cn.ollyice.framework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.ollyice.framework.core.Callback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by ollyice on 2018/6/24.
+ * 只在sdk调用进行中合并 任何结束回调之后都重新发给sdk
+ */
+
+public class FanOutCallTest {
+    private final FanOutCall call = new FanOutCall();
+    private final List<String> events = new ArrayList<>();
+
+    @Test
+    public void callersJoinPendingCall() {
+        assertTrue(call.join(success("a"), error("a"), null));
+        assertFalse(call.join(success("b"), error("b"), null));
+        call.onSuccess.onNext(1);
+        assertEquals("[a success 1, b success 1]", events.toString());
+    }
+
+    @Test
+    public void successEndsCall() {
+        call.join(success("a"), error("a"), null);
+        call.onSuccess.onNext(1);
+        assertTrue(call.join(success("b"), error("b"), null));
+        call.onSuccess.onNext(2);
+        assertEquals("[a success 1, b success 2]", events.toString());
+    }
+
+    @Test
+    public void failureEndsCall() {
+        call.join(success("a"), error("a"), null);
+        assertFalse(call.join(success("b"), error("b"), null));
+        call.onError.onNext(new Exception("boom"));
+        assertTrue(call.join(success("c"), error("c"), null));
+        call.onSuccess.onNext(1);
+        assertEquals("[a error boom, b error boom, c success 1]", events.toString());
+    }
+
+    @Test
+    public void lateCallbackIsIgnored() {
+        call.join(success("a"), error("a"), null);
+        call.onSuccess.onNext(1);
+        call.onError.onNext(new Exception("late"));
+        call.onSuccess.onNext(2);
+        assertEquals("[a success 1]", events.toString());
+    }
+
+    @Test
+    public void callbackCanStartNextCall() {
+        call.join(new Callback<Integer>() {
+            @Override
+            public void onNext(Integer result) {
+                events.add("retry " + call.join(success("b"), error("b"), null));
+            }
+        }, error("a"), null);
+        call.onSuccess.onNext(1);
+        call.onSuccess.onNext(2);
+        assertEquals("[retry true, b success 2]", events.toString());
+    }
+
+    @Test
+    public void logoutGoesToCallersOfLatestCall() {
+        call.join(success("a"), error("a"), logout("a"));
+        call.join(success("b"), error("b"), logout("b"));
+        call.onSuccess.onNext(1);
+        call.onLogout.onNext(0);
+        call.onLogout.onNext(0);//登出不结束
+        call.join(success("c"), error("c"), logout("c"));
+        call.onLogout.onNext(0);
+        assertEquals("[a success 1, b success 1, a logout, b logout, a logout, b logout, c logout]",
+                events.toString());
+    }
+
+    private Callback<Integer> success(final String name) {
+        return new Callback<Integer>() {
+            @Override
+            public void onNext(Integer result) {
+                events.add(name + " success " + result);
+            }
+        };
+    }
+
+    private Callback<Throwable> error(final String name) {
+        return new Callback<Throwable>() {
+            @Override
+            public void onNext(Throwable result) {
+                events.add(name + " error " + result.getMessage());
+            }
+        };
+    }
+
+    private Callback<Integer> logout(final String name) {
+        return new Callback<Integer>() {
+            @Override
+            public void onNext(Integer result) {
+                events.add(name + " logout");
+            }
+        };
+    }
+}
@@ -0,0 +1,85 @@
+package cn.ollyice.framework.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by ollyice on 2018/6/25.
+ * 测试用的{@link IHttp} 只记录submit和notify请求 由测试决定每个请求成功还是失败
+ */
+
+class FakeHttp implements IHttp {
+    final List<Request> requests = new ArrayList<>();
+
+    @Override
+    public void update(Map<String, String> body, CallUpdate call, CallError error) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void login(Map<String, String> body, CallLogin call, CallError error) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void submit(Map<String, String> body, CallString call, CallError error) {
+        requests.add(new Request(body, call, error));
+        notifyAll();
+    }
+
+    @Override
+    public void pay(Map<String, String> body, CallPay call, CallError error) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void notify(Map<String, String> body, CallString call, CallError error) {
+        requests.add(new Request(body, call, error));
+        notifyAll();
+    }
+
+    @Override
+    public void post(String url, Map<String, String> body, CallString call, CallError error) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 取出最早的一个请求 最多等待1秒
+     */
+    synchronized Request take() throws InterruptedException {
+        long end = System.currentTimeMillis() + 1000;
+        while (requests.isEmpty()) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new AssertionError("no request");
+            }
+            wait(wait);
+        }
+        return requests.remove(0);
+    }
+
+    synchronized int requestCount() {
+        return requests.size();
+    }
+
+    static class Request {
+        final Map<String, String> body;
+        final CallString call;
+        final CallError error;
+
+        Request(Map<String, String> body, CallString call, CallError error) {
+            this.body = body;
+            this.call = call;
+            this.error = error;
+        }
+
+        void succeed() {
+            call.onNext("ok");
+        }
+
+        void fail() {
+            error.onNext("error");
+        }
+    }
+}
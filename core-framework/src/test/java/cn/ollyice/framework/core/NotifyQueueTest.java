@@ -0,0 +1,136 @@
+package cn.ollyice.framework.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import cn.ollyice.framework.http.HttpManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by ollyice on 2018/6/25.
+ * {@link NotifyQueue}的回调和日志 后台线程换成直接执行
+ */
+
+public class NotifyQueueTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder tempDir = new TemporaryFolder();
+
+    private final FakeHttp http = new FakeHttp();
+    private final List<String> results = new ArrayList<>();
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        HttpManager.setInstance(http);
+        dir = tempDir.newFolder(NotifyQueue.JOURNAL_DIR);
+    }
+
+    @After
+    public void tearDown() {
+        HttpManager.setInstance((IHttp) null);
+    }
+
+    @Test
+    public void successIsJournaledAsDone() throws Exception {
+        NotifyQueue queue = open();
+        queue.enqueue("o1", Collections.singletonMap("price", "6"), call("a"), error("a"));
+        assertEquals(Collections.singleton("o1"), journaledKeys());
+
+        FakeHttp.Request request = http.take();
+        assertEquals("o1", request.body.get(NotifyQueue.KEY_IDEMPOTENCY));
+        assertEquals("6", request.body.get("price"));
+        request.succeed();
+
+        assertEquals(Collections.singletonList("a:ok"), results);
+        assertEquals(0, queue.pendingCount());
+        assertTrue(journaledKeys().isEmpty());
+    }
+
+    @Test
+    public void renotifyWhileInFlightGetsTheInFlightResult() throws Exception {
+        NotifyQueue queue = open();
+        queue.enqueue("o1", null, call("first"), error("first"));
+        queue.enqueue("o1", null, call("second"), error("second"));
+        assertEquals(1, http.requestCount());//服务器按幂等键去重 不需要再发一次
+
+        http.take().succeed();
+        assertEquals(Arrays.asList("first:ok", "second:ok"), results);
+    }
+
+    @Test
+    public void failureReachesEveryWaiterAndKeepsTheNotify() throws Exception {
+        NotifyQueue queue = open();
+        queue.enqueue("o1", null, call("first"), error("first"));
+        queue.enqueue("o1", null, call("second"), error("second"));
+
+        http.take().fail();
+        assertEquals(Arrays.asList("first:error", "second:error"), results);
+        assertEquals(1, queue.pendingCount());
+        assertEquals(Collections.singleton("o1"), journaledKeys());
+    }
+
+    @Test
+    public void unfinishedNotifiesAreResentOnOpen() throws Exception {
+        OrderJournal journal = OrderJournal.open(dir);
+        journal.notify("o1", Collections.singletonMap(NotifyQueue.KEY_IDEMPOTENCY, "o1"));
+        journal.close();
+
+        NotifyQueue queue = open();
+        assertEquals(1, queue.pendingCount());
+        http.take().succeed();
+        assertEquals(0, queue.pendingCount());
+        assertTrue(journaledKeys().isEmpty());
+    }
+
+    private NotifyQueue open() {
+        NotifyQueue queue = new NotifyQueue(DIRECT);
+        queue.open(dir);
+        return queue;
+    }
+
+    private Set<String> journaledKeys() throws Exception {
+        OrderJournal journal = OrderJournal.open(dir);
+        Map<String, Map<String, String>> pending = journal.pending();
+        journal.close();
+        return pending.keySet();
+    }
+
+    private IHttp.CallString call(final String name) {
+        return new IHttp.CallString() {
+            @Override
+            public void onNext(String response) {
+                results.add(name + ":" + response);
+            }
+        };
+    }
+
+    private IHttp.CallError error(final String name) {
+        return new IHttp.CallError() {
+            @Override
+            public void onNext(String error) {
+                results.add(name + ":" + error);
+            }
+        };
+    }
+}
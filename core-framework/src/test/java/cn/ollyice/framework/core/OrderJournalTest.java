@@ -0,0 +1,151 @@
+package cn.ollyice.framework.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import cn.ollyice.framework.info.OrderInfo;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by ollyice on 2018/6/25.
+ * {@link OrderJournal}的重放 重写和崩溃恢复
+ */
+
+public class OrderJournalTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private static final int WAIT = OrderInfo.ORDER_STATE_WAIT_SERVER_NOTIFY;
+    private static final int DONE = OrderInfo.ORDER_STATE_PAY_SUCCESS;
+
+    @Rule
+    public final TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void replayKeepsUnfinishedNotifiesInOrder() throws Exception {
+        OrderJournal journal = open();
+        journal.notify("b", body("price", "6"));
+        journal.notify("a", body("price", "1"));
+        journal.notify("c", body("note", "x y&z=1"));//需要编码的字符
+        journal.done("a");
+        journal.notify("b", body("price", "12"));//同一个key后写的覆盖前面的
+        journal.close();
+
+        Map<String, Map<String, String>> pending = open().pending();
+        assertEquals(Arrays.asList("c", "b"), Arrays.asList(pending.keySet().toArray()));
+        assertEquals(body("price", "12"), pending.get("b"));
+        assertEquals(body("note", "x y&z=1"), pending.get("c"));
+    }
+
+    @Test
+    public void finishedOrderStatesAreDroppedByCompaction() throws Exception {
+        OrderJournal journal = open();
+        journal.state("o1", WAIT);
+        journal.notify("o1", body("price", "1"));
+        for (int i = 0; i < 2000; i++) {//冗余记录超过阈值 重写日志
+            journal.state("tmp" + i, WAIT);
+            journal.state("tmp" + i, DONE);
+        }
+        journal.close();
+
+        assertEquals(Arrays.asList(
+                OrderJournal.MAGIC,
+                OrderJournal.VERSION_1,
+                "",
+                "STATE o1 " + WAIT,
+                "NOTIFY o1 price=1"), readJournal());
+        assertEquals(Collections.singleton("o1"), open().pending().keySet());
+    }
+
+    @Test
+    public void compactionDropsDoneNotifies() throws Exception {
+        OrderJournal journal = open();
+        for (int i = 0; i < 1000; i++) {
+            journal.notify("k" + i, body("i", "" + i));
+            journal.done("k" + i);
+        }
+        journal.notify("last", body("i", "last"));
+        journal.close();
+
+        assertEquals(4, readJournal().size());
+        assertEquals(Collections.singleton("last"), open().pending().keySet());
+    }
+
+    @Test
+    public void partialLastLineIsDiscarded() throws Exception {
+        OrderJournal journal = open();
+        journal.notify("a", body("price", "1"));
+        journal.close();
+        BufferedSink sink = Okio.buffer(Okio.appendingSink(journalFile()));
+        sink.writeUtf8("NOTIFY b pri");//写入时进程被杀
+        sink.close();
+
+        journal = open();
+        assertEquals(Collections.singleton("a"), journal.pending().keySet());
+        journal.notify("b", body("price", "2"));//重写后可以继续追加
+        journal.close();
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(open().pending().keySet().toArray()));
+    }
+
+    @Test
+    public void backupIsRestoredWhenJournalIsMissing() throws Exception {
+        OrderJournal journal = open();
+        journal.notify("a", body("price", "1"));
+        journal.close();
+        assertTrue(journalFile().renameTo(new File(tempDir.getRoot(), OrderJournal.JOURNAL_FILE_BACKUP)));
+
+        assertEquals(Collections.singleton("a"), open().pending().keySet());
+        assertFalse(new File(tempDir.getRoot(), OrderJournal.JOURNAL_FILE_BACKUP).exists());
+    }
+
+    @Test
+    public void corruptJournalIsRebuiltEmpty() throws Exception {
+        BufferedSink sink = Okio.buffer(Okio.sink(journalFile()));
+        sink.writeUtf8("not a journal\n1\n\nNOTIFY a price=1\n");
+        sink.close();
+
+        OrderJournal journal = open();
+        assertTrue(journal.pending().isEmpty());
+        journal.close();
+        assertEquals(Arrays.asList(OrderJournal.MAGIC, OrderJournal.VERSION_1, ""), readJournal());
+    }
+
+    private OrderJournal open() throws IOException {
+        OrderJournal journal = new OrderJournal(tempDir.getRoot(), DIRECT);//重写在当前线程完成
+        journal.initialize();
+        return journal;
+    }
+
+    private File journalFile() {
+        return new File(tempDir.getRoot(), OrderJournal.JOURNAL_FILE);
+    }
+
+    private List<String> readJournal() throws IOException {
+        String journal = Okio.buffer(Okio.source(journalFile())).readUtf8();
+        return Arrays.asList(journal.substring(0, journal.length() - 1).split("\n", -1));
+    }
+
+    private static Map<String, String> body(String key, String value) {
+        Map<String, String> body = new HashMap<>();
+        body.put(key, value);
+        return body;
+    }
+}
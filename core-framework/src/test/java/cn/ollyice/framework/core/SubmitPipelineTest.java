@@ -0,0 +1,140 @@
+package cn.ollyice.framework.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cn.ollyice.framework.http.HttpManager;
+import cn.ollyice.framework.info.ExtraInfo;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Created by ollyice on 2018/6/25.
+ * {@link SubmitPipeline}的合并 失败重试和退避
+ * 定时发送依赖主线程Handler 这里直接调用flush()
+ */
+
+public class SubmitPipelineTest {
+    private final FakeHttp http = new FakeHttp();
+    private final SubmitPipeline pipeline = new SubmitPipeline(10, 3000, 64 * 1024);
+
+    @Before
+    public void setUp() {
+        HttpManager.setInstance(http);
+    }
+
+    @After
+    public void tearDown() {
+        HttpManager.setInstance((IHttp) null);
+    }
+
+    @Test
+    public void sameRoleAndTypeCoalesce() throws Exception {
+        pipeline.offer(extra("r1", "1"));
+        pipeline.offer(extra("r1", "2"));
+        pipeline.offer(extra("r2", "5"));
+        assertEquals(2, pipeline.pendingCount());
+
+        pipeline.flush();
+        assertEquals(2, http.requestCount());
+        assertEquals("2", http.take().body.get("roleLevel"));
+        assertEquals("5", http.take().body.get("roleLevel"));
+        assertEquals(0, pipeline.pendingCount());
+    }
+
+    @Test
+    public void batchSizeFlushesImmediately() throws Exception {
+        SubmitPipeline small = new SubmitPipeline(2, 3000, 64 * 1024);
+        small.offer(extra("r1", "1"));
+        assertEquals(0, http.requestCount());
+        small.offer(extra("r2", "1"));
+        assertEquals(2, http.requestCount());
+    }
+
+    @Test
+    public void failedEventIsRetried() throws Exception {
+        pipeline.offer(extra("r1", "1"));
+        pipeline.flush();
+        http.take().fail();
+        assertEquals(1, pipeline.pendingCount());
+
+        pipeline.flush();
+        assertEquals("1", http.take().body.get("roleLevel"));
+    }
+
+    @Test
+    public void requeueDoesNotOverwriteNewerEvent() throws Exception {
+        pipeline.offer(extra("r1", "1"));
+        pipeline.flush();
+        FakeHttp.Request first = http.take();
+
+        pipeline.offer(extra("r1", "2"));//第一次发送还没有结果时角色升级了
+        first.fail();
+        assertEquals(1, pipeline.pendingCount());
+
+        pipeline.flush();
+        assertEquals("2", http.take().body.get("roleLevel"));
+        assertEquals(0, http.requestCount());
+    }
+
+    @Test
+    public void failuresBackOffUntilTheCeiling() throws Exception {
+        assertEquals(3000, pipeline.nextFlushDelay());
+        long[] expected = {3000, 6000, 12000, 24000, 48000, 96000, 192000, 300000, 300000};
+        for (long delay : expected) {
+            pipeline.offer(extra("r" + delay, "1"));//新事件 不受发送次数限制
+            pipeline.flush();
+            failAll();
+            assertEquals(delay, pipeline.nextFlushDelay());
+        }
+
+        pipeline.flush();
+        succeedAll();
+        assertEquals(3000, pipeline.nextFlushDelay());
+    }
+
+    @Test
+    public void manyFailuresInOneFlushCountOnce() throws Exception {
+        pipeline.offer(extra("r1", "1"));
+        pipeline.offer(extra("r2", "1"));
+        pipeline.offer(extra("r3", "1"));
+        pipeline.flush();
+        failAll();
+        assertEquals(3000, pipeline.nextFlushDelay());
+        pipeline.flush();
+        failAll();
+        assertEquals(6000, pipeline.nextFlushDelay());
+    }
+
+    @Test
+    public void eventIsDroppedAfterMaxAttempts() throws Exception {
+        pipeline.offer(extra("r1", "1"));
+        for (int i = 0; i < SubmitPipeline.MAX_ATTEMPTS; i++) {
+            assertEquals(1, pipeline.pendingCount());
+            pipeline.flush();
+            http.take().fail();
+        }
+        assertEquals(0, pipeline.pendingCount());
+    }
+
+    private void failAll() throws InterruptedException {
+        while (http.requestCount() > 0) {
+            http.take().fail();
+        }
+    }
+
+    private void succeedAll() throws InterruptedException {
+        while (http.requestCount() > 0) {
+            http.take().succeed();
+        }
+    }
+
+    private static ExtraInfo extra(String roleId, String level) {
+        return new ExtraInfo()
+                .setDataType(ExtraInfo.SUBMIT_EXTRA_LEVEL_UP)
+                .setServerID("s1")
+                .setRoleID(roleId)
+                .setRoleLevel(level);
+    }
+}
@@ -0,0 +1,213 @@
+package cn.ollyice.framework.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import cn.ollyice.framework.core.IHttp;
+import cn.ollyice.library.okhttp.OkHttpClient;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.BufferedSource;
+import cn.ollyice.library.okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by ollyice on 2018/6/25.
+ * 在jvm上对着本地回环服务器测试{@link RetrofitHttp}的成功和失败回调
+ * 服务器按顺序返回{@link #enqueueResponse}放入的响应 并记录收到的请求
+ */
+
+public class RetrofitHttpTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> requests = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> results = new LinkedBlockingQueue<>();
+    private ServerSocket server;
+    private OkHttpClient client;
+    private RetrofitHttp http;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("RetrofitHttpTest server") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        serve(server.accept());
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        client = new OkHttpClient();
+        http = new RetrofitHttp("http://127.0.0.1:" + server.getLocalPort() + "/sdk/", client, DIRECT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        client.connectionPool().evictAll();
+    }
+
+    @Test
+    public void submitSuccess() throws Exception {
+        enqueueResponse(200, "{\"code\":0,\"msg\":\"\",\"data\":{}}");
+        http.submit(body("roleID", "r1"), callString(), callError());
+
+        assertEquals("call:{\"code\":0,\"msg\":\"\",\"data\":{}}", takeResult());
+        String request = requests.take();
+        assertTrue(request, request.startsWith("POST /sdk/submit "));
+        assertTrue(request, request.endsWith("roleID=r1"));
+    }
+
+    @Test
+    public void submitNullValuesAreSentEmpty() throws Exception {
+        enqueueResponse(200, "{\"code\":0}");
+        http.submit(body("union", null), callString(), callError());
+
+        assertTrue(takeResult().startsWith("call:"));
+        assertTrue(requests.take().endsWith("union="));
+    }
+
+    @Test
+    public void submitRejectedByServer() throws Exception {
+        enqueueResponse(200, "{\"code\":3,\"msg\":\"bad role\"}");
+        http.submit(body("roleID", "r1"), callString(), callError());
+        assertEquals("error:bad role", takeResult());
+    }
+
+    @Test
+    public void submitHttpError() throws Exception {
+        enqueueResponse(500, "");
+        http.submit(body("roleID", "r1"), callString(), callError());
+        assertEquals("error:HTTP 500 Server Error", takeResult());
+    }
+
+    @Test
+    public void paySuccess() throws Exception {
+        enqueueResponse(200, "{\"code\":0,\"data\":{\"orderId\":\"o1\","
+                + "\"notifyUrl\":\"https://n.test/\",\"sign\":\"abc\",\"nested\":{}}}");
+        http.pay(body("price", "6"), new IHttp.CallPay() {
+            @Override
+            public void onNext(String orderId, String notifyUrl, Map<String, String> extraInfo) {
+                results.add("pay:" + orderId + " " + notifyUrl + " " + extraInfo);
+            }
+        }, callError());
+
+        assertEquals("pay:o1 https://n.test/ " + Collections.singletonMap("sign", "abc"), takeResult());
+        assertTrue(requests.take().startsWith("POST /sdk/pay "));
+    }
+
+    @Test
+    public void payMalformedResponse() throws Exception {
+        enqueueResponse(200, "not json");
+        http.pay(body("price", "6"), new IHttp.CallPay() {
+            @Override
+            public void onNext(String orderId, String notifyUrl, Map<String, String> extraInfo) {
+                results.add("pay:" + orderId);
+            }
+        }, callError());
+        assertTrue(takeResult().startsWith("error:"));
+    }
+
+    @Test
+    public void connectionFailure() throws Exception {
+        server.close();
+        http.submit(body("roleID", "r1"), callString(), callError());
+        assertTrue(takeResult().startsWith("error:java.net.ConnectException"));
+    }
+
+    private void enqueueResponse(int code, String body) {
+        responses.add(code + " " + body);
+    }
+
+    private String takeResult() throws InterruptedException {
+        String result = results.poll(5, TimeUnit.SECONDS);
+        if (result == null) {
+            throw new AssertionError("no callback");
+        }
+        return result;
+    }
+
+    private IHttp.CallString callString() {
+        return new IHttp.CallString() {
+            @Override
+            public void onNext(String response) {
+                results.add("call:" + response);
+            }
+        };
+    }
+
+    private IHttp.CallError callError() {
+        return new IHttp.CallError() {
+            @Override
+            public void onNext(String error) {
+                results.add("error:" + error);
+            }
+        };
+    }
+
+    private static Map<String, String> body(String key, String value) {
+        Map<String, String> body = new HashMap<>();
+        body.put(key, value);
+        return body;
+    }
+
+    private void serve(final Socket socket) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    BufferedSource source = Okio.buffer(Okio.source(socket));
+                    BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                    while (true) {
+                        String requestLine = source.readUtf8LineStrict();
+                        long contentLength = 0;
+                        for (String line; !(line = source.readUtf8LineStrict()).isEmpty(); ) {
+                            if (line.toLowerCase().startsWith("content-length:")) {
+                                contentLength = Long.parseLong(line.substring(15).trim());
+                            }
+                        }
+                        requests.add(requestLine + " " + source.readUtf8(contentLength));
+
+                        String response = responses.take();
+                        int space = response.indexOf(' ');
+                        String code = response.substring(0, space);
+                        byte[] body = response.substring(space + 1).getBytes("UTF-8");
+                        sink.writeUtf8("HTTP/1.1 " + code + (code.equals("200") ? " OK" : " Server Error"))
+                                .writeUtf8("\r\nContent-Length: " + body.length + "\r\n\r\n")
+                                .write(body)
+                                .flush();
+                    }
+                } catch (IOException | InterruptedException ignored) {
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
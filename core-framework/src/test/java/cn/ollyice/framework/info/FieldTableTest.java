@@ -0,0 +1,173 @@
+package cn.ollyice.framework.info;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cn.ollyice.library.okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by ollyice on 2018/6/22.
+ * 信息类的字段表: 每个字段设置后都要原样出现在hashMap、表单和json里
+ */
+
+public class FieldTableTest {
+    //需要转义的值 表单和json都要能还原
+    private static final String ODD = "a b&c=d\"e\\f\n中文😀*~";
+
+    @Test
+    public void payInfoRoundTripsEveryField() throws IOException {
+        PayInfo info = new PayInfo()
+                .setProductId("p1").setProductName(ODD).setProductDesc("desc").setPrice("600")
+                .setOrderId("o1").setBuyNum(2).setCoinNum("10").setServerID("s1")
+                .setServerName("server").setRoleID("r1").setRoleName("role").setRoleLevel("9")
+                .setVip("3").setPayNotifyUrl("http://a/b?c=d").setExtension("");
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("productId", "p1");
+        expected.put("productName", ODD);
+        expected.put("productDesc", "desc");
+        expected.put("price", "600");
+        expected.put("orderId", "o1");
+        expected.put("buyNum", "2");
+        expected.put("coinNum", "10");
+        expected.put("serverID", "s1");
+        expected.put("serverName", "server");
+        expected.put("roleID", "r1");
+        expected.put("roleName", "role");
+        expected.put("roleLevel", "9");
+        expected.put("vip", "3");
+        expected.put("payNotifyUrl", "http://a/b?c=d");
+        expected.put("extension", "");
+        assertRoundTrips(expected, info);
+        assertTrue(info.success());
+    }
+
+    @Test
+    public void extraInfoRoundTripsEveryField() throws IOException {
+        ExtraInfo info = new ExtraInfo()
+                .setDataType(ExtraInfo.SUBMIT_EXTRA_LEVEL_UP).setCpUid("u1").setRoleID("r1")
+                .setRoleName(ODD).setRoleLevel("9").setServerID("s1").setServerName("server")
+                .setMoneyNum("100").setVip("").setUnion("union").setCreateRoleTime(1529650000L);
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("dataType", "2");
+        expected.put("cpUid", "u1");
+        expected.put("roleID", "r1");
+        expected.put("roleName", ODD);
+        expected.put("roleLevel", "9");
+        expected.put("serverID", "s1");
+        expected.put("serverName", "server");
+        expected.put("moneyNum", "100");
+        expected.put("vip", "");
+        expected.put("union", "union");
+        expected.put("createRoleTime", "1529650000");
+        assertRoundTrips(expected, info);
+        assertTrue(info.success());
+    }
+
+    @Test
+    public void userInfoRoundTripsEveryField() throws IOException {
+        UserInfo info = new UserInfo().setUserId("u1").setUserName(ODD).setUserToken("t1");
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("userId", "u1");
+        expected.put("userName", ODD);
+        expected.put("userToken", "t1");
+        assertRoundTrips(expected, info);
+    }
+
+    @Test
+    public void onlySetFieldsAreWritten() throws IOException {
+        UserInfo info = new UserInfo().setUserToken("t1");
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("userToken", "t1");
+        assertRoundTrips(expected, info);
+    }
+
+    @Test
+    public void emptyValueFailsOnlyWhenNotAllowed() {
+        assertTrue(new UserInfo().setUserId("u1").setUserName("").setUserToken("t1").success());
+        assertFalse(new UserInfo().setUserId("u1").setUserToken("").success());
+        assertFalse(new UserInfo().setUserId(null).setUserToken("t1").success());
+        assertTrue(new ExtraInfo().setRoleID("").setServerID(null).success());
+    }
+
+    @Test
+    public void setterInvalidatesHashMap() {
+        UserInfo info = new UserInfo().setUserId("u1");
+        assertEquals("u1", info.hashMap().get("userId"));
+        info.setUserId("u2");
+        assertEquals("u2", info.hashMap().get("userId"));
+    }
+
+    private static void assertRoundTrips(Map<String, String> expected, AbsInfo info)
+            throws IOException {
+        assertEquals(expected, info.hashMap());
+
+        Buffer form = new Buffer();
+        info.writeForm(form);
+        assertEquals(expected, parseForm(form.readUtf8()));
+
+        Buffer json = new Buffer();
+        info.writeJson(json);
+        assertEquals(expected, parseJson(json.readUtf8()));
+    }
+
+    private static Map<String, String> parseForm(String form) throws IOException {
+        Map<String, String> result = new HashMap<>();
+        if (form.isEmpty()) {
+            return result;
+        }
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            result.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                    URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return result;
+    }
+
+    /**
+     * 只认FieldTable写出的格式: 平铺的对象 键值都是字符串
+     */
+    private static Map<String, String> parseJson(String json) {
+        Map<String, String> result = new HashMap<>();
+        int[] pos = {1};
+        assertEquals('{', json.charAt(0));
+        while (json.charAt(pos[0]) != '}') {
+            if (json.charAt(pos[0]) == ',') {
+                pos[0]++;
+            }
+            String key = readJsonString(json, pos);
+            assertEquals(':', json.charAt(pos[0]++));
+            result.put(key, readJsonString(json, pos));
+        }
+        assertEquals(json.length() - 1, pos[0]);
+        return result;
+    }
+
+    private static String readJsonString(String json, int[] pos) {
+        assertEquals('"', json.charAt(pos[0]++));
+        StringBuilder result = new StringBuilder();
+        while (true) {
+            char c = json.charAt(pos[0]++);
+            if (c == '"') {
+                return result.toString();
+            }
+            assertTrue("unescaped control character", c >= 0x20);
+            if (c == '\\') {
+                c = json.charAt(pos[0]++);
+                if (c == 'u') {
+                    c = (char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16);
+                    pos[0] += 4;
+                }
+            }
+            result.append(c);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package cn.ollyice.framework.info;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cn.ollyice.library.okio.Buffer;
+
+/**
+ * Created by ollyice on 2018/6/22.
+ * 信息类的微基准 对比{@link FieldTable}和原来HashMap+List.contains的实现
+ * 每一轮: 设置全部字段 -> success() -> 生成请求体
+ * 直接运行main 参数为轮数 默认200000 计时前先确认两种实现生成的字段一致
+ * 字段表本身的正确性见{@link FieldTableTest}
+ */
+
+public class InfoBenchmark {
+    private static final String[] PAY_KEYS = {
+            "productId", "productName", "productDesc", "price", "orderId", "buyNum", "coinNum",
+            "serverID", "serverName", "roleID", "roleName", "roleLevel", "vip", "extension"
+    };
+    private static final List<String> PAY_CAN_EMPTY = Arrays.asList("payNotifyUrl", "extension");
+
+    public static void main(String[] args) throws IOException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Map<String, String> expected = map(0);
+        if (!expected.equals(payInfo(0).hashMap())) {
+            throw new AssertionError("FieldTable和HashMap的字段不一致");
+        }
+        for (int i = 0; i < 3; i++) {//前两次是预热
+            long map = mapRounds(rounds);
+            long table = tableRounds(rounds);
+            if (i == 2) {
+                System.out.printf("HashMap+List.contains: %6.0f ns/round%n", (double) map / rounds);
+                System.out.printf("FieldTable:            %6.0f ns/round%n", (double) table / rounds);
+            }
+        }
+    }
+
+    /**
+     * 原来的实现: setter写HashMap, success()遍历map并且对每个空值做List.contains, 请求体先转成map再编码
+     */
+    static long mapRounds(int rounds) throws IOException {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            Map<String, String> map = map(r);
+            boolean success = !isEmptyValue(map, PAY_CAN_EMPTY);
+            StringBuilder body = new StringBuilder();
+            for (Map.Entry<String, String> entry : new HashMap<>(map).entrySet()) {
+                if (body.length() > 0) {
+                    body.append('&');
+                }
+                body.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append('=')
+                        .append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+            sink += body.length() + (success ? 1 : 0);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0) throw new AssertionError();
+        return elapsed;
+    }
+
+    static long tableRounds(int rounds) throws IOException {
+        long sink = 0;
+        Buffer buffer = new Buffer();
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            PayInfo info = payInfo(r);
+            boolean success = info.success();
+            info.writeForm(buffer);
+            sink += buffer.size() + (success ? 1 : 0);
+            buffer.clear();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0) throw new AssertionError();
+        return elapsed;
+    }
+
+    private static Map<String, String> map(int round) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < PAY_KEYS.length; i++) {
+            map.put(PAY_KEYS[i], value(i, round));
+        }
+        return map;
+    }
+
+    private static PayInfo payInfo(int r) {
+        return new PayInfo()
+                .setProductId(value(0, r)).setProductName(value(1, r)).setProductDesc(value(2, r))
+                .setPrice(value(3, r)).setOrderId(value(4, r)).setBuyNum(1).setCoinNum(value(6, r))
+                .setServerID(value(7, r)).setServerName(value(8, r)).setRoleID(value(9, r))
+                .setRoleName(value(10, r)).setRoleLevel(value(11, r)).setVip(value(12, r))
+                .setExtension(value(13, r));
+    }
+
+    private static String value(int field, int round) {
+        return field == 13 ? "" : (field == 5 ? "1" : "v" + field);
+    }
+
+    //原HashMapUtils.isEmptyValue 去掉了TextUtils
+    private static boolean isEmptyValue(Map<String, String> map, List<String> emptyList) {
+        for (String key : map.keySet()) {
+            if (key == null || key.length() == 0) {
+                return true;
+            }
+            String value = map.get(key);
+            if ((value == null || value.length() == 0) && !emptyList.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -34,6 +34,7 @@ import cn.ollyice.library.okhttp.internal.cache.CacheRequest;
 import cn.ollyice.library.okhttp.internal.cache.CacheStrategy;
 import cn.ollyice.library.okhttp.internal.cache.DiskLruCache;
 import cn.ollyice.library.okhttp.internal.cache.InternalCache;
+import cn.ollyice.library.okhttp.internal.cache.RequestCollapser;
 import cn.ollyice.library.okhttp.internal.http.HttpHeaders;
 import cn.ollyice.library.okhttp.internal.http.HttpMethod;
 import cn.ollyice.library.okhttp.internal.http.StatusLine;
@@ -130,6 +131,16 @@ import cn.ollyice.library.okio.Source;
  *       .build();
  * }</pre>
  *
+ * <h3>Stale Responses and Shared Requests</h3>
+ *
+ * <p>Servers can permit stale responses with the <a href="https://tools.ietf.org/html/rfc5861">RFC
+ * 5861</a> directives. A response with {@code stale-while-revalidate} is served while it's stale,
+ * and refreshed by a low priority background call. A response with {@code stale-if-error} is
+ * served while it's stale if revalidating it fails with an I/O error or a server error.
+ *
+ * <p>When several calls miss the cache for the same URL at once, only one of them makes a network
+ * request. If its response is cacheable the others share it, each reading the body at its own pace.
+ *
  * <p>The {@link CacheControl} class can configure request caching directives and parse response
  * caching directives. It even offers convenient constants {@link CacheControl#FORCE_NETWORK} and
  * {@link CacheControl#FORCE_CACHE} that address the use cases above.
@@ -167,6 +178,7 @@ public final class Cache implements Closeable, Flushable {
   };
 
   final DiskLruCache cache;
+  final RequestCollapser requestCollapser;
 
   /* read and write statistics, all guarded by 'this' */
   int writeSuccessCount;
@@ -179,8 +191,30 @@ public final class Cache implements Closeable, Flushable {
     this(directory, maxSize, FileSystem.SYSTEM);
   }
 
+  /**
+   * Creates a cache like {@link #Cache(File, long)} whose journal is split into shards so that
+   * concurrent calls don't wait on each other, and is binary if {@code binaryJournal} is true. A
+   * binary journal is faster to open when the cache holds many responses. A directory written by
+   * {@link #Cache(File, long)} or with either journal is converted when it's opened, but the result
+   * can't be read by {@link #Cache(File, long)} or by earlier releases.
+   */
+  public Cache(File directory, long maxSize, boolean binaryJournal) {
+    this(directory, maxSize, FileSystem.SYSTEM, binaryJournal);
+  }
+
   Cache(File directory, long maxSize, FileSystem fileSystem) {
-    this.cache = DiskLruCache.create(fileSystem, directory, VERSION, ENTRY_COUNT, maxSize);
+    // One shard and a text journal, as earlier releases wrote.
+    this(DiskLruCache.create(fileSystem, directory, VERSION, ENTRY_COUNT, maxSize), directory);
+  }
+
+  Cache(File directory, long maxSize, FileSystem fileSystem, boolean binaryJournal) {
+    this(DiskLruCache.create(fileSystem, directory, VERSION, ENTRY_COUNT, maxSize,
+        DiskLruCache.DEFAULT_SHARD_COUNT, binaryJournal), directory);
+  }
+
+  private Cache(DiskLruCache cache, File directory) {
+    this.cache = cache;
+    this.requestCollapser = new RequestCollapser(directory);
   }
 
   public static String key(HttpUrl url) {
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import cn.ollyice.library.okhttp.internal.NamedRunnable;
+
+/**
+ * A {@link Dns} that remembers the addresses that another {@link Dns} returns.
+ *
+ * <p>Each result is fresh for a time to live, and then stale for a further grace period. Fresh
+ * results are returned directly. Stale results are returned too, but also refreshed in the
+ * background so that later lookups get a fresh result without waiting. Once the grace period has
+ * passed, lookups wait for a new result. Java's resolver doesn't expose record TTLs, so the time
+ * to live is configured here; choose one no longer than the TTLs of the hosts being looked up.
+ *
+ * <p>Concurrent lookups of a host that isn't cached share one lookup. Failed lookups aren't cached,
+ * but a failed background refresh leaves the stale result in place. Use {@link #prefetch} to
+ * resolve hosts before they're needed, such as at application startup.
+ */
+public final class CachingDns implements Dns {
+  private final Dns delegate;
+  private final Executor executor;
+  private final long timeToLiveNanos;
+  private final long staleNanos;
+  private final int maxSize;
+
+  /** Results by host name, least recently used first. Guarded by this. */
+  private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Lookups in progress by host name. Guarded by this. */
+  private final Map<String, FutureTask<List<InetAddress>>> lookups = new HashMap<>();
+
+  private int hitCount;
+  private int staleHitCount;
+  private int missCount;
+
+  /**
+   * @param delegate the DNS that performs lookups, usually {@link Dns#SYSTEM}.
+   * @param executor runs background refreshes and prefetches.
+   * @param timeToLive how long a result is fresh.
+   * @param stale how long after that a result may still be returned while it's refreshed.
+   * @param maxSize the maximum number of hosts to remember.
+   */
+  public CachingDns(Dns delegate, Executor executor, long timeToLive, long stale, TimeUnit unit,
+      int maxSize) {
+    if (delegate == null) throw new NullPointerException("delegate == null");
+    if (executor == null) throw new NullPointerException("executor == null");
+    if (timeToLive <= 0) throw new IllegalArgumentException("timeToLive <= 0: " + timeToLive);
+    if (stale < 0) throw new IllegalArgumentException("stale < 0: " + stale);
+    if (maxSize < 1) throw new IllegalArgumentException("maxSize < 1: " + maxSize);
+    this.delegate = delegate;
+    this.executor = executor;
+    this.timeToLiveNanos = unit.toNanos(timeToLive);
+    this.staleNanos = unit.toNanos(stale);
+    this.maxSize = maxSize;
+  }
+
+  @Override public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+    if (hostname == null) throw new UnknownHostException("hostname == null");
+
+    FutureTask<List<InetAddress>> lookup;
+    boolean startLookup = false;
+    synchronized (this) {
+      Entry entry = entries.get(hostname);
+      long now = System.nanoTime();
+      if (entry != null && now - entry.resolvedAtNanos < timeToLiveNanos) {
+        hitCount++;
+        return entry.addresses;
+      }
+      if (entry != null && now - entry.resolvedAtNanos < timeToLiveNanos + staleNanos) {
+        staleHitCount++;
+        refreshLater(hostname);
+        return entry.addresses;
+      }
+
+      missCount++;
+      lookup = lookups.get(hostname);
+      if (lookup == null) {
+        lookup = newLookup(hostname);
+        lookups.put(hostname, lookup);
+        startLookup = true;
+      }
+    }
+
+    if (startLookup) lookup.run(); // Resolve on this thread. Others may wait for it.
+    return await(hostname, lookup);
+  }
+
+  /**
+   * Resolves {@code hostnames} in the background unless their results are still fresh. Lookups
+   * that follow find the results already cached.
+   */
+  public void prefetch(List<String> hostnames) {
+    synchronized (this) {
+      long now = System.nanoTime();
+      for (String hostname : hostnames) {
+        Entry entry = entries.get(hostname);
+        if (entry != null && now - entry.resolvedAtNanos < timeToLiveNanos) continue;
+        refreshLater(hostname);
+      }
+    }
+  }
+
+  /** Forgets the result for {@code hostname}, such as after connecting to its addresses failed. */
+  public synchronized void invalidate(String hostname) {
+    entries.remove(hostname);
+  }
+
+  /** Forgets all results. */
+  public synchronized void evictAll() {
+    entries.clear();
+  }
+
+  /** Returns the number of lookups answered with a fresh result. */
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of lookups answered with a stale result while it was refreshed. */
+  public synchronized int staleHitCount() {
+    return staleHitCount;
+  }
+
+  /** Returns the number of lookups that waited for the delegate. */
+  public synchronized int missCount() {
+    return missCount;
+  }
+
+  /** Returns the number of hosts remembered. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private void refreshLater(final String hostname) {
+    assert Thread.holdsLock(this);
+    if (lookups.containsKey(hostname)) return; // Already in progress.
+    final FutureTask<List<InetAddress>> lookup = newLookup(hostname);
+    try {
+      executor.execute(new NamedRunnable("OkHttp DNS %s", hostname) {
+        @Override protected void execute() {
+          lookup.run();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The executor is shut down or saturated. Skip the refresh; a later lookup will retry it.
+      return;
+    }
+    // The lookup can't finish and unregister itself before this: it needs our lock to do so.
+    lookups.put(hostname, lookup);
+  }
+
+  /**
+   * Returns a lookup of {@code hostname} that caches its result when run. The caller must add it
+   * to {@link #lookups} once it's sure to run, so that other lookups of the host wait for it.
+   */
+  private FutureTask<List<InetAddress>> newLookup(final String hostname) {
+    assert Thread.holdsLock(this);
+    FutureTask<List<InetAddress>> lookup = new FutureTask<>(new Callable<List<InetAddress>>() {
+      @Override public List<InetAddress> call() throws UnknownHostException {
+        List<InetAddress> addresses = null;
+        try {
+          addresses = Collections.unmodifiableList(delegate.lookup(hostname));
+          return addresses;
+        } finally {
+          synchronized (CachingDns.this) {
+            lookups.remove(hostname);
+            if (addresses != null && !addresses.isEmpty()) put(hostname, addresses);
+          }
+        }
+      }
+    });
+    return lookup;
+  }
+
+  private void put(String hostname, List<InetAddress> addresses) {
+    entries.put(hostname, new Entry(addresses, System.nanoTime()));
+    if (entries.size() > maxSize) {
+      entries.remove(entries.keySet().iterator().next()); // Least recently used.
+    }
+  }
+
+  private static List<InetAddress> await(String hostname, FutureTask<List<InetAddress>> lookup)
+      throws UnknownHostException {
+    try {
+      return lookup.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      UnknownHostException unknownHostException =
+          new UnknownHostException("Interrupted looking up " + hostname);
+      unknownHostException.initCause(e);
+      throw unknownHostException;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UnknownHostException) throw (UnknownHostException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      UnknownHostException unknownHostException =
+          new UnknownHostException("Failed to look up " + hostname);
+      unknownHostException.initCause(cause);
+      throw unknownHostException;
+    }
+  }
+
+  static final class Entry {
+    final List<InetAddress> addresses;
+    final long resolvedAtNanos;
+
+    Entry(List<InetAddress> addresses, long resolvedAtNanos) {
+      this.addresses = addresses;
+      this.resolvedAtNanos = resolvedAtNanos;
+    }
+  }
+}
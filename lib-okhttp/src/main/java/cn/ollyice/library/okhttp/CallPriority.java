@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scheduling priority of an asynchronous call, and optionally a deadline by which it must
+ * start. Attach one to a request as its {@linkplain Request.Builder#tag tag}: <pre>   {@code
+ *
+ *   Request request = new Request.Builder()
+ *       .url("https://pay.example.com/order")
+ *       .tag(CallPriority.HIGH.withDeadline(5, TimeUnit.SECONDS))
+ *       .build();
+ * }</pre>
+ *
+ * <p>When calls must queue, the {@link Dispatcher} starts calls of a higher priority first. Among
+ * calls of the same priority it shares capacity fairly between hosts, and calls to the same host
+ * start earliest deadline first. A call whose deadline passes while it is queued is canceled
+ * instead of started. Requests without a priority tag are {@link #NORMAL}.
+ */
+public final class CallPriority {
+  static final int LEVEL_COUNT = 3;
+  static final long NO_DEADLINE = -1L;
+
+  /** For calls that the user is waiting on, like login and payment. */
+  public static final CallPriority HIGH = new CallPriority(0, NO_DEADLINE);
+
+  /** The default. */
+  public static final CallPriority NORMAL = new CallPriority(1, NO_DEADLINE);
+
+  /** For calls that can wait, like prefetching images and uploading analytics. */
+  public static final CallPriority LOW = new CallPriority(2, NO_DEADLINE);
+
+  final int level;
+
+  /** How long a call may wait to start after it is enqueued, or {@link #NO_DEADLINE}. */
+  final long deadlineNanos;
+
+  private CallPriority(int level, long deadlineNanos) {
+    this.level = level;
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  /**
+   * Returns a priority at this level whose call is canceled if it hasn't started within {@code
+   * duration} of being enqueued. The deadline is measured from each enqueue, so the returned
+   * priority may be shared by many requests.
+   */
+  public CallPriority withDeadline(long duration, TimeUnit unit) {
+    if (duration < 0) throw new IllegalArgumentException("duration < 0: " + duration);
+    if (unit == null) throw new NullPointerException("unit == null");
+    return new CallPriority(level, unit.toNanos(duration));
+  }
+
+  /** Returns true if calls with this priority have a deadline. */
+  public boolean hasDeadline() {
+    return deadlineNanos != NO_DEADLINE;
+  }
+
+  static CallPriority of(Request request) {
+    Object tag = request.tag();
+    return tag instanceof CallPriority ? (CallPriority) tag : NORMAL;
+  }
+
+  @Override public String toString() {
+    String name = level == 0 ? "HIGH" : level == 1 ? "NORMAL" : "LOW";
+    return hasDeadline() ? name + " (deadline)" : name;
+  }
+}
@@ -18,11 +18,12 @@ package cn.ollyice.library.okhttp;
 
 import java.lang.ref.Reference;
 import java.net.Socket;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -40,6 +41,10 @@ import static cn.ollyice.library.okhttp.internal.Util.closeQuietly;
  * Manages reuse of HTTP and HTTP/2 connections for reduced network latency. HTTP requests that
  * share the same {@link Address} may share a {@link Connection}. This class implements the policy
  * of which connections to keep open for future use.
+ *
+ * <p>Connections are indexed by address, so finding one to reuse only considers connections to
+ * the same address plus any HTTP/2 connections that could be coalesced. Idle connections are kept
+ * in least recently used order, so choosing one to evict doesn't scan the pool.
  */
 public final class ConnectionPool {
   /**
@@ -54,6 +59,10 @@ public final class ConnectionPool {
   /** The maximum number of idle connections for each address. */
   private final int maxIdleConnections;
   private final long keepAliveDurationNs;
+
+  /** The number of connections checked for leaks each time the cleanup thread takes the lock. */
+  static final int CLEANUP_BATCH_SIZE = 64;
+
   private final Runnable cleanupRunnable = new Runnable() {
     @Override public void run() {
       while (true) {
@@ -73,7 +82,28 @@ public final class ConnectionPool {
     }
   };
 
-  private final Deque<RealConnection> connections = new ArrayDeque<>();
+  /**
+   * Every pooled connection, in use or idle. Each connection knows its {@linkplain
+   * RealConnection#poolIndex index} here, so removal swaps the last connection into its slot.
+   */
+  private final List<RealConnection> connections = new ArrayList<>();
+
+  /**
+   * Pooled connections by the address they were established for, so lookups skip other hosts.
+   * These lists are only as long as the number of connections to one address, so they're searched
+   * and reordered linearly.
+   */
+  private final Map<Address, List<RealConnection>> connectionsByAddress = new HashMap<>();
+
+  /** Pooled HTTP/2 connections, which may also carry requests for other hosts by coalescing. */
+  private final Set<RealConnection> multiplexedConnections = new LinkedHashSet<>();
+
+  /** Idle pooled connections, least recently used first. */
+  private final Set<RealConnection> idleConnections = new LinkedHashSet<>();
+
+  /** Where the next cleanup resumes its sweep for leaked allocations. */
+  private int sweepIndex;
+
   final RouteDatabase routeDatabase = new RouteDatabase();
   boolean cleanupRunning;
 
@@ -98,11 +128,7 @@ public final class ConnectionPool {
 
   /** Returns the number of idle connections in the pool. */
   public synchronized int idleConnectionCount() {
-    int total = 0;
-    for (RealConnection connection : connections) {
-      if (connection.allocations.isEmpty()) total++;
-    }
-    return total;
+    return idleConnections.size();
   }
 
   /**
@@ -115,44 +141,124 @@ public final class ConnectionPool {
     return connections.size();
   }
 
+  /** Returns the number of idle connections in the pool to {@code host}. */
+  public synchronized int idleConnectionCount(String host) {
+    int total = 0;
+    for (Map.Entry<Address, List<RealConnection>> entry : connectionsByAddress.entrySet()) {
+      if (!entry.getKey().url().host().equals(host)) continue;
+      for (RealConnection connection : entry.getValue()) {
+        if (connection.allocations.isEmpty()) total++;
+      }
+    }
+    return total;
+  }
+
+  /** Returns the number of connections in the pool to {@code host}, both active and idle. */
+  public synchronized int connectionCount(String host) {
+    int total = 0;
+    for (Map.Entry<Address, List<RealConnection>> entry : connectionsByAddress.entrySet()) {
+      if (entry.getKey().url().host().equals(host)) total += entry.getValue().size();
+    }
+    return total;
+  }
+
+  /** Returns the hosts that this pool holds connections to. */
+  public synchronized Set<String> hosts() {
+    Set<String> result = new LinkedHashSet<>();
+    for (Address address : connectionsByAddress.keySet()) {
+      result.add(address.url().host());
+    }
+    return result;
+  }
+
   /**
    * Returns a recycled connection to {@code address}, or null if no such connection exists. The
    * route is null if the address has not yet been routed.
    */
   @Nullable RealConnection get(Address address, StreamAllocation streamAllocation, Route route) {
     assert (Thread.holdsLock(this));
-    for (RealConnection connection : connections) {
-      if (connection.isEligible(address, route)) {
-        streamAllocation.acquire(connection, true);
-        return connection;
+    List<RealConnection> candidates = connectionsByAddress.get(address);
+    if (candidates != null) {
+      // Prefer the most recently used connection: it's the least likely to have gone stale.
+      for (int i = candidates.size() - 1; i >= 0; i--) {
+        RealConnection connection = candidates.get(i);
+        if (connection.isEligible(address, route)) {
+          acquire(connection, streamAllocation);
+          return connection;
+        }
+      }
+    }
+
+    // Connections to other hosts can only be shared by HTTP/2 coalescing, which needs a route.
+    if (route != null) {
+      for (RealConnection connection : multiplexedConnections) {
+        if (connection.isEligible(address, route)) {
+          acquire(connection, streamAllocation);
+          return connection;
+        }
       }
     }
     return null;
   }
 
+  private void acquire(RealConnection connection, StreamAllocation streamAllocation) {
+    streamAllocation.acquire(connection, true);
+    idleConnections.remove(connection);
+  }
+
   /**
    * Replaces the connection held by {@code streamAllocation} with a shared connection if possible.
    * This recovers when multiple multiplexed connections are created concurrently.
    */
   @Nullable Socket deduplicate(Address address, StreamAllocation streamAllocation) {
     assert (Thread.holdsLock(this));
-    for (RealConnection connection : connections) {
+    // Without a route only exact host matches are eligible, so other addresses needn't be checked.
+    List<RealConnection> candidates = connectionsByAddress.get(address);
+    if (candidates == null) return null;
+    for (RealConnection connection : candidates) {
       if (connection.isEligible(address, null)
           && connection.isMultiplexed()
           && connection != streamAllocation.connection()) {
+        idleConnections.remove(connection);
         return streamAllocation.releaseAndAcquire(connection);
       }
     }
     return null;
   }
 
+  /**
+   * Returns true if another connection to {@code address} should be opened to bring it up to
+   * {@code connectionCount}. This is false if the address already has an HTTP/2 connection, which
+   * is shared by all calls, or if opening one would exceed the idle connection limit.
+   */
+  synchronized boolean needsPrewarm(Address address, int connectionCount) {
+    if (idleConnections.size() >= maxIdleConnections) return false;
+    List<RealConnection> forAddress = connectionsByAddress.get(address);
+    if (forAddress == null) return true;
+    if (forAddress.size() >= connectionCount) return false;
+    for (RealConnection connection : forAddress) {
+      if (connection.isMultiplexed() && !connection.noNewStreams) return false;
+    }
+    return true;
+  }
+
   void put(RealConnection connection) {
     assert (Thread.holdsLock(this));
     if (!cleanupRunning) {
       cleanupRunning = true;
       executor.execute(cleanupRunnable);
     }
+    connection.poolIndex = connections.size();
     connections.add(connection);
+    Address address = connection.route().address();
+    List<RealConnection> forAddress = connectionsByAddress.get(address);
+    if (forAddress == null) {
+      forAddress = new ArrayList<>(2);
+      connectionsByAddress.put(address, forAddress);
+    }
+    forAddress.add(connection);
+    if (connection.isMultiplexed()) multiplexedConnections.add(connection);
+    if (connection.allocations.isEmpty()) idleConnections.add(connection);
   }
 
   /**
@@ -162,24 +268,51 @@ public final class ConnectionPool {
   boolean connectionBecameIdle(RealConnection connection) {
     assert (Thread.holdsLock(this));
     if (connection.noNewStreams || maxIdleConnections == 0) {
-      connections.remove(connection);
+      remove(connection);
       return true;
     } else {
+      // Move it to the most recently used end. Connections that were never pooled aren't tracked.
+      if (connection.poolIndex != -1) {
+        List<RealConnection> forAddress = connectionsByAddress.get(connection.route().address());
+        forAddress.remove(connection);
+        forAddress.add(connection);
+        idleConnections.remove(connection);
+        idleConnections.add(connection);
+      }
       notifyAll(); // Awake the cleanup thread: we may have exceeded the idle connection limit.
       return false;
     }
   }
 
+  /** Removes {@code connection} from the pool and its indexes. */
+  private void remove(RealConnection connection) {
+    int index = connection.poolIndex;
+    if (index == -1) return;
+    RealConnection last = connections.remove(connections.size() - 1);
+    if (last != connection) {
+      connections.set(index, last);
+      last.poolIndex = index;
+    }
+    connection.poolIndex = -1;
+    Address address = connection.route().address();
+    List<RealConnection> forAddress = connectionsByAddress.get(address);
+    if (forAddress != null) {
+      forAddress.remove(connection);
+      if (forAddress.isEmpty()) connectionsByAddress.remove(address);
+    }
+    multiplexedConnections.remove(connection);
+    idleConnections.remove(connection);
+  }
+
   /** Close and remove all idle connections in the pool. */
   public void evictAll() {
     List<RealConnection> evictedConnections = new ArrayList<>();
     synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
+      for (RealConnection connection : new ArrayList<>(connections)) {
         if (connection.allocations.isEmpty()) {
           connection.noNewStreams = true;
           evictedConnections.add(connection);
-          i.remove();
+          remove(connection);
         }
       }
     }
@@ -193,45 +326,51 @@ public final class ConnectionPool {
    * Performs maintenance on this pool, evicting the connection that has been idle the longest if
    * either it has exceeded the keep alive limit or the idle connections limit.
    *
+   * <p>In-use connections are checked for leaked allocations a batch at a time, releasing the lock
+   * between batches so that a large pool doesn't stall calls acquiring connections.
+   *
    * <p>Returns the duration in nanos to sleep until the next scheduled call to this method. Returns
    * -1 if no further cleanups are required.
    */
   long cleanup(long now) {
-    int inUseConnectionCount = 0;
-    int idleConnectionCount = 0;
-    RealConnection longestIdleConnection = null;
-    long longestIdleDurationNs = Long.MIN_VALUE;
+    RealConnection evictedConnection = null;
 
-    // Find either a connection to evict, or the time that the next eviction is due.
     synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
-
-        // If the connection is in use, keep searching.
-        if (pruneAndGetAllocationCount(connection, now) > 0) {
-          inUseConnectionCount++;
-          continue;
+      // Continue the sweep for leaked allocations. A connection that leaked its last allocation
+      // is past its keep alive, so evict it right away.
+      int sweepEnd = Math.min(sweepIndex + CLEANUP_BATCH_SIZE, connections.size());
+      for (; sweepIndex < sweepEnd; sweepIndex++) {
+        RealConnection connection = connections.get(sweepIndex);
+        if (connection.allocations.isEmpty()) continue;
+        if (pruneAndGetAllocationCount(connection, now) == 0) {
+          evictedConnection = connection;
+          break;
         }
+      }
+      boolean sweepComplete = sweepIndex >= connections.size();
+      if (sweepComplete) sweepIndex = 0;
 
-        idleConnectionCount++;
-
-        // If the connection is ready to be evicted, we're done.
-        long idleDurationNs = now - connection.idleAtNanos;
-        if (idleDurationNs > longestIdleDurationNs) {
-          longestIdleDurationNs = idleDurationNs;
-          longestIdleConnection = connection;
+      // The least recently used idle connection has been idle the longest.
+      if (evictedConnection == null && !idleConnections.isEmpty()) {
+        RealConnection longestIdleConnection = idleConnections.iterator().next();
+        long longestIdleDurationNs = now - longestIdleConnection.idleAtNanos;
+        if (longestIdleDurationNs >= this.keepAliveDurationNs
+            || idleConnections.size() > this.maxIdleConnections) {
+          evictedConnection = longestIdleConnection;
+        } else if (sweepComplete) {
+          // A connection will be ready to evict soon.
+          return keepAliveDurationNs - longestIdleDurationNs;
         }
       }
 
-      if (longestIdleDurationNs >= this.keepAliveDurationNs
-          || idleConnectionCount > this.maxIdleConnections) {
-        // We've found a connection to evict. Remove it from the list, then close it below (outside
+      if (evictedConnection != null) {
+        // We've found a connection to evict. Remove it from the pool, then close it below (outside
         // of the synchronized block).
-        connections.remove(longestIdleConnection);
-      } else if (idleConnectionCount > 0) {
-        // A connection will be ready to evict soon.
-        return keepAliveDurationNs - longestIdleDurationNs;
-      } else if (inUseConnectionCount > 0) {
+        remove(evictedConnection);
+      } else if (!sweepComplete) {
+        // Give waiting callers a chance at the lock, then continue the sweep.
+        return 0;
+      } else if (!connections.isEmpty()) {
         // All connections are in use. It'll be at least the keep alive duration 'til we run again.
         return keepAliveDurationNs;
       } else {
@@ -241,7 +380,7 @@ public final class ConnectionPool {
       }
     }
 
-    closeQuietly(longestIdleConnection.socket());
+    closeQuietly(evictedConnection.socket());
 
     // Cleanup again immediately.
     return 0;
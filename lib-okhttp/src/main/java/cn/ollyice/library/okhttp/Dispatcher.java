@@ -18,9 +18,13 @@ package cn.ollyice.library.okhttp;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -35,8 +39,16 @@ import cn.ollyice.library.okhttp.internal.Util;
  * <p>Each dispatcher uses an {@link ExecutorService} to run calls internally. If you supply your
  * own executor, it should be able to run {@linkplain #getMaxRequests the configured maximum} number
  * of calls concurrently.
+ *
+ * <p>Calls that can't start yet wait in a queue per host. When a call finishes, the next call to
+ * start is the one with the highest {@link CallPriority}. Hosts with calls of equal priority are
+ * served in proportion to their {@linkplain #setHostWeight weights}, and calls to the same host
+ * start earliest deadline first. Choosing the next call takes O(log n) time.
  */
 public final class Dispatcher {
+  /** The virtual time a host with weight 1 is charged for each call it starts. */
+  private static final long VIRTUAL_TIME_PER_CALL = 1L << 20;
+
   private int maxRequests = 64;
   private int maxRequestsPerHost = 5;
   private @Nullable Runnable idleCallback;
@@ -44,8 +56,28 @@ public final class Dispatcher {
   /** Executes calls. Created lazily. */
   private @Nullable ExecutorService executorService;
 
-  /** Ready async calls in the order they'll be run. */
-  private final Deque<AsyncCall> readyAsyncCalls = new ArrayDeque<>();
+  /** Ready and running async calls by host. Hosts are removed when they have neither. */
+  private final Map<String, HostCalls> hostCalls = new HashMap<>();
+
+  /**
+   * Hosts with ready calls that are below {@link #maxRequestsPerHost}, in the order they'll be
+   * served. A host is in this set exactly when {@link HostCalls#isReady} is true. Its position
+   * depends on its first ready call and its virtual time, so it must be removed before either
+   * changes and added back after.
+   */
+  private final TreeSet<HostCalls> readyHosts = new TreeSet<>(HostCalls.SERVICE_ORDER);
+
+  private final Map<String, Integer> hostWeights = new HashMap<>();
+
+  /** The virtual time of the host served most recently. Newly-ready hosts start here. */
+  private long virtualTime;
+  private long nextSequence;
+  private int readyCallCount;
+
+  private final long[] startedCounts = new long[CallPriority.LEVEL_COUNT];
+  private final long[] expiredCounts = new long[CallPriority.LEVEL_COUNT];
+  private final long[] totalQueueNanos = new long[CallPriority.LEVEL_COUNT];
+  private final long[] maxQueueNanos = new long[CallPriority.LEVEL_COUNT];
 
   /** Running asynchronous calls. Includes canceled calls that haven't finished yet. */
   private final Deque<AsyncCall> runningAsyncCalls = new ArrayDeque<>();
@@ -101,6 +133,10 @@ public final class Dispatcher {
       throw new IllegalArgumentException("max < 1: " + maxRequestsPerHost);
     }
     this.maxRequestsPerHost = maxRequestsPerHost;
+    readyHosts.clear();
+    for (HostCalls host : hostCalls.values()) {
+      if (host.isReady(maxRequestsPerHost)) readyHosts.add(host);
+    }
     promoteCalls();
   }
 
@@ -124,12 +160,42 @@ public final class Dispatcher {
     this.idleCallback = idleCallback;
   }
 
+  /**
+   * Sets the share of capacity that {@code host} gets when calls to several hosts are queued at the
+   * same priority. A host with weight 2 starts twice as many calls as a host with weight 1. The
+   * default weight is 1.
+   */
+  public synchronized void setHostWeight(String host, int weight) {
+    if (host == null) throw new NullPointerException("host == null");
+    if (weight < 1) throw new IllegalArgumentException("weight < 1: " + weight);
+    hostWeights.put(host, weight);
+    HostCalls calls = hostCalls.get(host);
+    if (calls != null) calls.weight = weight;
+  }
+
   synchronized void enqueue(AsyncCall call) {
-    if (runningAsyncCalls.size() < maxRequests && runningCallsForHost(call) < maxRequestsPerHost) {
-      runningAsyncCalls.add(call);
-      executorService().execute(call);
+    CallPriority priority = CallPriority.of(call.request());
+    call.priority = priority.level;
+    call.sequence = nextSequence++;
+    call.enqueuedAtNanos = System.nanoTime();
+    call.hasDeadline = priority.hasDeadline();
+    if (call.hasDeadline) call.deadlineNanoTime = call.enqueuedAtNanos + priority.deadlineNanos;
+
+    HostCalls host = hostCalls.get(call.host());
+    if (host == null) {
+      Integer weight = hostWeights.get(call.host());
+      host = new HostCalls(call.host(), weight != null ? weight : 1);
+      hostCalls.put(call.host(), host);
+    }
+
+    if (runningAsyncCalls.size() < maxRequests && host.runningCount < maxRequestsPerHost) {
+      start(host, call);
     } else {
-      readyAsyncCalls.add(call);
+      if (host.isReady(maxRequestsPerHost)) readyHosts.remove(host);
+      if (host.ready.isEmpty()) host.virtualTime = Math.max(host.virtualTime, virtualTime);
+      host.ready.add(call);
+      readyCallCount++;
+      if (host.isReady(maxRequestsPerHost)) readyHosts.add(host);
     }
   }
 
@@ -138,8 +204,10 @@ public final class Dispatcher {
    * Call#execute() synchronously} and {@linkplain Call#enqueue asynchronously}.
    */
   public synchronized void cancelAll() {
-    for (AsyncCall call : readyAsyncCalls) {
-      call.get().cancel();
+    for (HostCalls host : hostCalls.values()) {
+      for (AsyncCall call : host.ready) {
+        call.get().cancel();
+      }
     }
 
     for (AsyncCall call : runningAsyncCalls) {
@@ -152,29 +220,36 @@ public final class Dispatcher {
   }
 
   private void promoteCalls() {
-    if (runningAsyncCalls.size() >= maxRequests) return; // Already running max capacity.
-    if (readyAsyncCalls.isEmpty()) return; // No ready calls to promote.
+    while (runningAsyncCalls.size() < maxRequests && !readyHosts.isEmpty()) {
+      HostCalls host = readyHosts.pollFirst();
+      AsyncCall call = host.ready.poll();
+      readyCallCount--;
 
-    for (Iterator<AsyncCall> i = readyAsyncCalls.iterator(); i.hasNext(); ) {
-      AsyncCall call = i.next();
+      // Charge the host for this call. Heavier hosts are charged less, so they're served sooner.
+      virtualTime = host.virtualTime;
+      host.virtualTime += VIRTUAL_TIME_PER_CALL / host.weight;
 
-      if (runningCallsForHost(call) < maxRequestsPerHost) {
-        i.remove();
-        runningAsyncCalls.add(call);
-        executorService().execute(call);
-      }
-
-      if (runningAsyncCalls.size() >= maxRequests) return; // Reached max capacity.
+      start(host, call);
+      if (host.isReady(maxRequestsPerHost)) readyHosts.add(host);
     }
   }
 
-  /** Returns the number of running calls that share a host with {@code call}. */
-  private int runningCallsForHost(AsyncCall call) {
-    int result = 0;
-    for (AsyncCall c : runningAsyncCalls) {
-      if (c.host().equals(call.host())) result++;
+  private void start(HostCalls host, AsyncCall call) {
+    long queueNanos = System.nanoTime() - call.enqueuedAtNanos;
+    int level = call.priority;
+    startedCounts[level]++;
+    totalQueueNanos[level] += queueNanos;
+    maxQueueNanos[level] = Math.max(maxQueueNanos[level], queueNanos);
+
+    // Don't spend a connection on a call that's already too late. It runs only to fail promptly.
+    if (call.hasDeadline && call.deadlineNanoTime - System.nanoTime() < 0L) {
+      expiredCounts[level]++;
+      call.get().cancel();
     }
-    return result;
+
+    host.runningCount++;
+    runningAsyncCalls.add(call);
+    executorService().execute(call);
   }
 
   /** Used by {@code Call#execute} to signal it is in-flight. */
@@ -197,7 +272,10 @@ public final class Dispatcher {
     Runnable idleCallback;
     synchronized (this) {
       if (!calls.remove(call)) throw new AssertionError("Call wasn't in-flight!");
-      if (promoteCalls) promoteCalls();
+      if (promoteCalls) {
+        hostFinished(((AsyncCall) call).host());
+        promoteCalls();
+      }
       runningCallsCount = runningCallsCount();
       idleCallback = this.idleCallback;
     }
@@ -207,11 +285,26 @@ public final class Dispatcher {
     }
   }
 
+  private void hostFinished(String hostName) {
+    HostCalls host = hostCalls.get(hostName);
+    boolean wasReady = host.isReady(maxRequestsPerHost);
+    if (wasReady) readyHosts.remove(host);
+    host.runningCount--;
+    if (host.isReady(maxRequestsPerHost)) {
+      if (!wasReady) host.virtualTime = Math.max(host.virtualTime, virtualTime);
+      readyHosts.add(host);
+    } else if (host.runningCount == 0 && host.ready.isEmpty()) {
+      hostCalls.remove(hostName);
+    }
+  }
+
   /** Returns a snapshot of the calls currently awaiting execution. */
   public synchronized List<Call> queuedCalls() {
     List<Call> result = new ArrayList<>();
-    for (AsyncCall asyncCall : readyAsyncCalls) {
-      result.add(asyncCall.get());
+    for (HostCalls host : hostCalls.values()) {
+      for (AsyncCall asyncCall : host.ready) {
+        result.add(asyncCall.get());
+      }
     }
     return Collections.unmodifiableList(result);
   }
@@ -227,10 +320,75 @@ public final class Dispatcher {
   }
 
   public synchronized int queuedCallsCount() {
-    return readyAsyncCalls.size();
+    return readyCallCount;
   }
 
   public synchronized int runningCallsCount() {
     return runningAsyncCalls.size() + runningSyncCalls.size();
   }
+
+  /** Returns the number of async calls of {@code priority} that have been started. */
+  public synchronized long startedCallCount(CallPriority priority) {
+    return startedCounts[priority.level];
+  }
+
+  /** Returns the number of async calls of {@code priority} canceled because their deadline passed. */
+  public synchronized long expiredCallCount(CallPriority priority) {
+    return expiredCounts[priority.level];
+  }
+
+  /** Returns the total time that started async calls of {@code priority} spent queued. */
+  public synchronized long totalQueueTime(CallPriority priority, TimeUnit unit) {
+    return unit.convert(totalQueueNanos[priority.level], TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns the longest time that a started async call of {@code priority} spent queued. */
+  public synchronized long maxQueueTime(CallPriority priority, TimeUnit unit) {
+    return unit.convert(maxQueueNanos[priority.level], TimeUnit.NANOSECONDS);
+  }
+
+  /** Ready and running async calls to one host. */
+  static final class HostCalls {
+    /** Orders ready hosts by their first call's priority, then by virtual time. */
+    static final Comparator<HostCalls> SERVICE_ORDER = new Comparator<HostCalls>() {
+      @Override public int compare(HostCalls a, HostCalls b) {
+        int priorityA = a.ready.peek().priority;
+        int priorityB = b.ready.peek().priority;
+        if (priorityA != priorityB) return priorityA < priorityB ? -1 : 1;
+        if (a.virtualTime != b.virtualTime) return a.virtualTime < b.virtualTime ? -1 : 1;
+        return a.host.compareTo(b.host);
+      }
+    };
+
+    /**
+     * Orders a host's ready calls by priority, then deadline, then arrival. Calls with a deadline
+     * go before calls without one. Deadlines are nano times, so they're compared by subtraction.
+     */
+    static final Comparator<AsyncCall> CALL_ORDER = new Comparator<AsyncCall>() {
+      @Override public int compare(AsyncCall a, AsyncCall b) {
+        if (a.priority != b.priority) return a.priority < b.priority ? -1 : 1;
+        if (a.hasDeadline != b.hasDeadline) return a.hasDeadline ? -1 : 1;
+        if (a.hasDeadline) {
+          long difference = a.deadlineNanoTime - b.deadlineNanoTime;
+          if (difference != 0L) return difference < 0L ? -1 : 1;
+        }
+        return a.sequence < b.sequence ? -1 : a.sequence > b.sequence ? 1 : 0;
+      }
+    };
+
+    final String host;
+    final PriorityQueue<AsyncCall> ready = new PriorityQueue<>(11, CALL_ORDER);
+    int runningCount;
+    int weight;
+    long virtualTime;
+
+    HostCalls(String host, int weight) {
+      this.host = host;
+      this.weight = weight;
+    }
+
+    boolean isReady(int maxRequestsPerHost) {
+      return !ready.isEmpty() && runningCount < maxRequestsPerHost;
+    }
+  }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.BufferedSource;
+
+/**
+ * Learns which hosts an application calls most, so that connections to them can be {@linkplain
+ * OkHttpClient#prewarm prewarmed} at the next startup.
+ *
+ * <p>Install this as an {@linkplain OkHttpClient.Builder#addInterceptor application interceptor}.
+ * It counts calls per origin (scheme, host and port). Persist what it learned with {@link #writeTo}
+ * and restore it with {@link #readFrom} when the application starts again, then call {@link
+ * #prewarm}: <pre>   {@code
+ *
+ *   HostLearner learner = new HostLearner(4);
+ *   OkHttpClient client = new OkHttpClient.Builder()
+ *       .addInterceptor(learner)
+ *       .build();
+ *   learner.readFrom(savedHosts);
+ *   learner.prewarm(client);
+ * }</pre>
+ *
+ * <p>To favor recent behavior, all counts are halved whenever the number of tracked origins grows
+ * past four times the number of hosts to prewarm, and origins whose count drops to zero are
+ * forgotten.
+ */
+public final class HostLearner implements Interceptor {
+  private final int maxHosts;
+
+  /** Calls per origin. Guarded by this. */
+  private final Map<HttpUrl, Integer> counts = new LinkedHashMap<>();
+
+  /** @param maxHosts the number of hosts that {@link #hotHosts} returns and that are prewarmed. */
+  public HostLearner(int maxHosts) {
+    if (maxHosts < 1) throw new IllegalArgumentException("maxHosts < 1: " + maxHosts);
+    this.maxHosts = maxHosts;
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    record(request.url(), 1);
+    return chain.proceed(request);
+  }
+
+  /** Returns the origins called most often, most frequent first. */
+  public synchronized List<HttpUrl> hotHosts() {
+    List<Map.Entry<HttpUrl, Integer>> entries = new ArrayList<>(counts.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<HttpUrl, Integer>>() {
+      @Override public int compare(Map.Entry<HttpUrl, Integer> a, Map.Entry<HttpUrl, Integer> b) {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    List<HttpUrl> result = new ArrayList<>();
+    for (int i = 0, size = Math.min(maxHosts, entries.size()); i < size; i++) {
+      result.add(entries.get(i).getKey());
+    }
+    return result;
+  }
+
+  /** Prewarms one connection to each of the {@linkplain #hotHosts hot hosts} with {@code client}. */
+  public void prewarm(OkHttpClient client) {
+    for (HttpUrl url : hotHosts()) {
+      client.prewarm(url, 1);
+    }
+  }
+
+  /** Writes the learned counts to {@code sink}, one origin per line. */
+  public void writeTo(BufferedSink sink) throws IOException {
+    Map<HttpUrl, Integer> snapshot;
+    synchronized (this) {
+      snapshot = new LinkedHashMap<>(counts);
+    }
+    for (Map.Entry<HttpUrl, Integer> entry : snapshot.entrySet()) {
+      sink.writeDecimalLong(entry.getValue())
+          .writeByte(' ')
+          .writeUtf8(entry.getKey().toString())
+          .writeByte('\n');
+    }
+  }
+
+  /**
+   * Reads counts written by {@link #writeTo} from {@code source} and adds them to the counts
+   * learned so far. Malformed lines are skipped.
+   */
+  public void readFrom(BufferedSource source) throws IOException {
+    for (String line; (line = source.readUtf8Line()) != null; ) {
+      int space = line.indexOf(' ');
+      if (space == -1) continue;
+      HttpUrl url = HttpUrl.parse(line.substring(space + 1));
+      if (url == null) continue;
+      int count;
+      try {
+        count = Integer.parseInt(line.substring(0, space));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (count > 0) record(url, count);
+    }
+  }
+
+  private synchronized void record(HttpUrl url, int count) {
+    HttpUrl origin = new HttpUrl.Builder()
+        .scheme(url.scheme())
+        .host(url.host())
+        .port(url.port())
+        .build();
+    Integer existing = counts.get(origin);
+    long total = (existing != null ? existing : 0L) + count;
+    counts.put(origin, (int) Math.min(total, Integer.MAX_VALUE));
+
+    if (counts.size() > maxHosts * 4) {
+      for (Iterator<Map.Entry<HttpUrl, Integer>> i = counts.entrySet().iterator(); i.hasNext(); ) {
+        Map.Entry<HttpUrl, Integer> entry = i.next();
+        int halved = entry.getValue() / 2;
+        if (halved == 0) {
+          i.remove();
+        } else {
+          entry.setValue(halved);
+        }
+      }
+    }
+  }
+}
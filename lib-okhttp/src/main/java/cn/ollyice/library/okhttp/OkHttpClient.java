@@ -39,8 +39,10 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 import cn.ollyice.library.okhttp.internal.Internal;
+import cn.ollyice.library.okhttp.internal.NamedRunnable;
 import cn.ollyice.library.okhttp.internal.Util;
 import cn.ollyice.library.okhttp.internal.cache.InternalCache;
+import cn.ollyice.library.okhttp.internal.cache.RequestCollapser;
 import cn.ollyice.library.okhttp.internal.connection.RealConnection;
 import cn.ollyice.library.okhttp.internal.connection.RouteDatabase;
 import cn.ollyice.library.okhttp.internal.connection.StreamAllocation;
@@ -217,6 +219,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
   final boolean followSslRedirects;
   final boolean followRedirects;
   final boolean retryOnConnectionFailure;
+  final boolean fastFallback;
   final int connectTimeout;
   final int readTimeout;
   final int writeTimeout;
@@ -264,6 +267,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     this.followSslRedirects = builder.followSslRedirects;
     this.followRedirects = builder.followRedirects;
     this.retryOnConnectionFailure = builder.retryOnConnectionFailure;
+    this.fastFallback = builder.fastFallback;
     this.connectTimeout = builder.connectTimeout;
     this.readTimeout = builder.readTimeout;
     this.writeTimeout = builder.writeTimeout;
@@ -343,6 +347,10 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return cache != null ? cache.internalCache : internalCache;
   }
 
+  @Nullable RequestCollapser requestCollapser() {
+    return cache != null ? cache.requestCollapser : null;
+  }
+
   public Dns dns() {
     return dns;
   }
@@ -387,6 +395,10 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return retryOnConnectionFailure;
   }
 
+  public boolean fastFallback() {
+    return fastFallback;
+  }
+
   public Dispatcher dispatcher() {
     return dispatcher;
   }
@@ -428,6 +440,33 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return RealCall.newRealCall(this, request, false /* for web socket */);
   }
 
+  /**
+   * Opens up to {@code connectionCount} connections to {@code url}'s host in the background and
+   * leaves them idle in the {@linkplain #connectionPool connection pool}, so that later calls to
+   * the host skip DNS, TCP and TLS. Use this at startup for hosts whose first call is latency
+   * sensitive, like login or payment endpoints. Each handshake also caches its TLS session, so
+   * connections made later can resume it.
+   *
+   * <p>No request is sent. Fewer connections are opened if the host already has some, if it speaks
+   * HTTP/2 (which needs only one), or if they would exceed the pool's idle connection limit.
+   * Connection events are reported to the {@linkplain Builder#eventListenerFactory event listener}
+   * of a call for {@code url}.
+   */
+  public void prewarm(HttpUrl url, int connectionCount) {
+    if (url == null) throw new NullPointerException("url == null");
+    if (connectionCount < 1) {
+      throw new IllegalArgumentException("connectionCount < 1: " + connectionCount);
+    }
+    final int count = connectionCount;
+    final RealCall call = RealCall.newRealCall(
+        this, new Request.Builder().url(url).build(), false /* for web socket */);
+    dispatcher.executorService().execute(new NamedRunnable("OkHttp Prewarm %s", url.redact()) {
+      @Override protected void execute() {
+        call.prewarm(count);
+      }
+    });
+  }
+
   /**
    * Uses {@code request} to connect a new web socket.
    */
@@ -465,6 +504,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     boolean followSslRedirects;
     boolean followRedirects;
     boolean retryOnConnectionFailure;
+    boolean fastFallback;
     int connectTimeout;
     int readTimeout;
     int writeTimeout;
@@ -517,6 +557,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       this.followSslRedirects = okHttpClient.followSslRedirects;
       this.followRedirects = okHttpClient.followRedirects;
       this.retryOnConnectionFailure = okHttpClient.retryOnConnectionFailure;
+      this.fastFallback = okHttpClient.fastFallback;
       this.connectTimeout = okHttpClient.connectTimeout;
       this.readTimeout = okHttpClient.readTimeout;
       this.writeTimeout = okHttpClient.writeTimeout;
@@ -790,6 +831,19 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       return this;
     }
 
+    /**
+     * Configure this client to race connections to a host's IP addresses, as described by <a
+     * href="https://tools.ietf.org/html/rfc8305">RFC 8305 Happy Eyeballs</a>. When enabled, a new
+     * direct connection tries the host's addresses with IPv6 and IPv4 interleaved, starting the
+     * next attempt every 250 ms or as soon as one fails, and keeps whichever connects first. This
+     * keeps a broken IPv6 route from stalling calls for the full connect timeout. By default
+     * addresses are tried one at a time.
+     */
+    public Builder fastFallback(boolean fastFallback) {
+      this.fastFallback = fastFallback;
+      return this;
+    }
+
     /**
      * Sets the dispatcher used to set policy and execute asynchronous requests. Must not be null.
      */
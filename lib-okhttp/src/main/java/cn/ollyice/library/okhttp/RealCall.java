@@ -121,9 +121,48 @@ final class RealCall implements Call {
     return retryAndFollowUpInterceptor.streamAllocation();
   }
 
+  /**
+   * Opens up to {@code connectionCount} connections to this call's host and leaves them idle in the
+   * connection pool. No request is sent. Connection events are reported to this call's event
+   * listener between {@code callStart} and {@code callEnd}.
+   */
+  void prewarm(int connectionCount) {
+    synchronized (this) {
+      if (executed) throw new IllegalStateException("Already Executed");
+      executed = true;
+    }
+    eventListener.callStart(this);
+    ConnectionPool connectionPool = client.connectionPool();
+    Address address = retryAndFollowUpInterceptor.createAddress(originalRequest.url());
+    try {
+      for (int i = 0; i < connectionCount && connectionPool.needsPrewarm(address, connectionCount)
+          && !isCanceled(); i++) {
+        StreamAllocation streamAllocation =
+            new StreamAllocation(connectionPool, address, this, eventListener, null);
+        try {
+          streamAllocation.prewarm(client.connectTimeoutMillis(), client.readTimeoutMillis(),
+              client.writeTimeoutMillis(), client.retryOnConnectionFailure(),
+              client.fastFallback());
+        } finally {
+          streamAllocation.release();
+        }
+      }
+      eventListener.callEnd(this);
+    } catch (IOException e) {
+      eventListener.callFailed(this, e);
+    }
+  }
+
   final class AsyncCall extends NamedRunnable {
     private final Callback responseCallback;
 
+    // Scheduling state, assigned and guarded by the dispatcher.
+    int priority;
+    boolean hasDeadline;
+    long deadlineNanoTime;
+    long sequence;
+    long enqueuedAtNanos;
+
     AsyncCall(Callback responseCallback) {
       super("OkHttp %s", redactedUrl());
       this.responseCallback = responseCallback;
@@ -186,7 +225,8 @@ final class RealCall implements Call {
     interceptors.addAll(client.interceptors());
     interceptors.add(retryAndFollowUpInterceptor);
     interceptors.add(new BridgeInterceptor(client.cookieJar()));
-    interceptors.add(new CacheInterceptor(client.internalCache()));
+    interceptors.add(
+        new CacheInterceptor(client.internalCache(), client.requestCollapser(), client));
     interceptors.add(new ConnectInterceptor(client));
     if (!forWebSocket) {
       interceptors.addAll(client.networkInterceptors());
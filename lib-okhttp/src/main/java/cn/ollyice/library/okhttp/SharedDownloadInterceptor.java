@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import cn.ollyice.library.okhttp.internal.cache.RequestCollapser;
+import cn.ollyice.library.okhttp.internal.http.HttpHeaders;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+
+/**
+ * Downloads each resource once for all the calls that request it at about the same time. Install
+ * this as an {@linkplain OkHttpClient.Builder#addInterceptor application interceptor} of a client
+ * that downloads large resources: <pre>   {@code
+ *
+ *   OkHttpClient client = new OkHttpClient.Builder()
+ *       .addInterceptor(new SharedDownloadInterceptor(
+ *           new File(context.getCacheDir(), "downloads"), 5, TimeUnit.MINUTES))
+ *       .build();
+ * }</pre>
+ *
+ * <p>The first call for a URL downloads it. The body is written to a file in {@code directory} as
+ * it's read, and calls for the same URL that come while it downloads read that file at their own
+ * pace, from the start. Whichever reader is furthest ahead reads the network. Once every reader is
+ * closed a complete download is kept for the retention time, and calls in that time replay it from
+ * disk without using the network.
+ *
+ * <p>Only {@code GET} requests without {@code Range} or conditional headers are shared, and only
+ * their {@code 200} responses. Downloads are identified by URL like the {@link Cache}, so calls
+ * for one URL must not expect different responses. Unlike the cache this ignores {@code
+ * Cache-Control}: use it for resources that are immutable over the retention time. Don't share
+ * {@code directory} with other instances.
+ */
+public final class SharedDownloadInterceptor implements Interceptor {
+  private final RequestCollapser collapser;
+
+  /**
+   * @param directory where downloads are written. Files left there by an earlier process are
+   *     deleted.
+   * @param retention how long to keep a complete download after its last reader closes. Zero
+   *     keeps downloads only while they're read.
+   */
+  public SharedDownloadInterceptor(File directory, long retention, TimeUnit unit) {
+    if (directory == null) throw new NullPointerException("directory == null");
+    if (retention < 0) throw new IllegalArgumentException("retention < 0: " + retention);
+    this.collapser = new RequestCollapser(directory, unit.toMillis(retention));
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!RequestCollapser.isCollapsible(request)) return chain.proceed(request);
+
+    RequestCollapser.Fetch fetch = collapser.lead(request);
+    if (fetch == null) {
+      Response sharedResponse = collapser.follow(chain.call(), request);
+      return sharedResponse != null ? sharedResponse : chain.proceed(request);
+    }
+
+    try {
+      Response response = chain.proceed(request);
+      if (response.code() != HTTP_OK || !HttpHeaders.hasBody(response)) return response;
+      return fetch.publish(response);
+    } finally {
+      // Calls waiting for a response that won't be shared make their own requests.
+      fetch.release();
+    }
+  }
+}
@@ -17,6 +17,8 @@
 package cn.ollyice.library.okhttp.internal.cache;
 
 import java.io.IOException;
+import javax.annotation.Nullable;
+import cn.ollyice.library.okhttp.Call;
 import cn.ollyice.library.okhttp.Headers;
 import cn.ollyice.library.okhttp.Interceptor;
 import cn.ollyice.library.okhttp.Protocol;
@@ -41,12 +43,29 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static cn.ollyice.library.okhttp.internal.Util.closeQuietly;
 import static cn.ollyice.library.okhttp.internal.Util.discard;
 
-/** Serves requests from the cache and writes responses to the cache. */
+/**
+ * Serves requests from the cache and writes responses to the cache. With a {@link
+ * RequestCollapser} this also serves responses under {@code stale-while-revalidate}, and shares
+ * one network request between concurrent calls that miss the cache for the same resource.
+ */
 public final class CacheInterceptor implements Interceptor {
   final InternalCache cache;
+  final @Nullable RequestCollapser collapser;
+  final @Nullable Call.Factory callFactory;
 
   public CacheInterceptor(InternalCache cache) {
+    this(cache, null, null);
+  }
+
+  /**
+   * @param collapser shares requests between calls, or null to not share them.
+   * @param callFactory makes the calls that revalidate stale responses in the background.
+   */
+  public CacheInterceptor(InternalCache cache, @Nullable RequestCollapser collapser,
+      @Nullable Call.Factory callFactory) {
     this.cache = cache;
+    this.collapser = collapser;
+    this.callFactory = callFactory;
   }
 
   @Override public Response intercept(Chain chain) throws IOException {
@@ -59,12 +78,23 @@ public final class CacheInterceptor implements Interceptor {
     CacheStrategy strategy = new CacheStrategy.Factory(now, chain.request(), cacheCandidate).get();
     Request networkRequest = strategy.networkRequest;
     Response cacheResponse = strategy.cacheResponse;
+    Response staleIfErrorResponse = strategy.staleIfErrorResponse;
+
+    // Serve a stale response and refresh it in the background, unless this call is that refresh.
+    Response staleResponse = strategy.staleResponse;
+    if (staleResponse != null && (collapser == null || callFactory == null
+        || !collapser.revalidate(callFactory, chain.call(), chain.request()))) {
+      staleResponse = null;
+    }
 
     if (cache != null) {
-      cache.trackResponse(strategy);
+      // A stale response served while it's revalidated is a cache hit.
+      cache.trackResponse(
+          staleResponse != null ? new CacheStrategy(null, staleResponse) : strategy);
     }
 
-    if (cacheCandidate != null && cacheResponse == null) {
+    if (cacheCandidate != null && cacheResponse == null && staleResponse == null
+        && staleIfErrorResponse == null) {
       closeQuietly(cacheCandidate.body()); // The cache candidate wasn't applicable. Close it.
     }
 
@@ -87,17 +117,63 @@ public final class CacheInterceptor implements Interceptor {
           .cacheResponse(stripBody(cacheResponse))
           .build();
     }
+    if (staleResponse != null) {
+      return staleResponse.newBuilder()
+          .cacheResponse(stripBody(staleResponse))
+          .build();
+    }
+
+    // Share the network request of another call that missed the cache for this resource, or make
+    // a request for such calls to share.
+    RequestCollapser.Fetch fetch = null;
+    if (cacheResponse == null && collapser != null
+        && RequestCollapser.isCollapsible(networkRequest)) {
+      fetch = collapser.lead(networkRequest);
+      if (fetch == null) {
+        Response sharedResponse = collapser.follow(chain.call(), networkRequest);
+        if (sharedResponse != null) {
+          if (cacheCandidate != null) closeQuietly(cacheCandidate.body());
+          return sharedResponse;
+        }
+      }
+    }
+
+    try {
+      return networkResponse(chain, networkRequest, cacheCandidate, cacheResponse,
+          staleIfErrorResponse, fetch);
+    } finally {
+      // Calls waiting for a response that won't be shared make their own requests.
+      if (fetch != null) fetch.release();
+    }
+  }
 
+  private Response networkResponse(Chain chain, Request networkRequest, Response cacheCandidate,
+      Response cacheResponse, Response staleIfErrorResponse, RequestCollapser.Fetch fetch)
+      throws IOException {
     Response networkResponse = null;
+    boolean networkFailed = false;
     try {
       networkResponse = chain.proceed(networkRequest);
+    } catch (IOException e) {
+      if (staleIfErrorResponse == null) throw e;
+      networkFailed = true;
     } finally {
       // If we're crashing on I/O or otherwise, don't leak the cache body.
-      if (networkResponse == null && cacheCandidate != null) {
+      if (networkResponse == null && !networkFailed && cacheCandidate != null) {
         closeQuietly(cacheCandidate.body());
       }
     }
 
+    // Serve a stale response if the request or the server failed and stale-if-error permits it.
+    if (networkFailed
+        || (isServerError(networkResponse.code()) && staleIfErrorResponse != null)) {
+      if (networkResponse != null) closeQuietly(networkResponse.body());
+      return staleIfErrorResponse.newBuilder()
+          .addHeader("Warning", "111 HttpURLConnection \"Revalidation failed\"")
+          .cacheResponse(stripBody(staleIfErrorResponse))
+          .build();
+    }
+
     // If we have a cache response too, then we're doing a conditional get.
     if (cacheResponse != null) {
       if (networkResponse.code() == HTTP_NOT_MODIFIED) {
@@ -118,6 +194,8 @@ public final class CacheInterceptor implements Interceptor {
       } else {
         closeQuietly(cacheResponse.body());
       }
+    } else if (staleIfErrorResponse != null) {
+      closeQuietly(staleIfErrorResponse.body());
     }
 
     Response response = networkResponse.newBuilder()
@@ -129,7 +207,8 @@ public final class CacheInterceptor implements Interceptor {
       if (HttpHeaders.hasBody(response) && CacheStrategy.isCacheable(response, networkRequest)) {
         // Offer this request to the cache.
         CacheRequest cacheRequest = cache.put(response);
-        return cacheWritingResponse(cacheRequest, response);
+        response = cacheWritingResponse(cacheRequest, response);
+        return fetch != null ? fetch.publish(response) : response;
       }
 
       if (HttpMethod.invalidatesCache(networkRequest.method())) {
@@ -144,6 +223,11 @@ public final class CacheInterceptor implements Interceptor {
     return response;
   }
 
+  /** Returns true for the server errors that permit serving a stale response, per RFC 5861. */
+  private static boolean isServerError(int code) {
+    return code == 500 || code == 502 || code == 503 || code == 504;
+  }
+
   private static Response stripBody(Response response) {
     return response != null && response.body() != null
         ? response.newBuilder().body(null).build()
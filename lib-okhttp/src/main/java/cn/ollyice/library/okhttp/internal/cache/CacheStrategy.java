@@ -54,9 +54,28 @@ public final class CacheStrategy {
   /** The cached response to return or validate; or null if this call doesn't use a cache. */
   public final @Nullable Response cacheResponse;
 
+  /**
+   * A stale cached response to return immediately while {@link #networkRequest} refreshes the cache
+   * in the background, as permitted by {@code stale-while-revalidate}; or null.
+   */
+  public final @Nullable Response staleResponse;
+
+  /**
+   * A stale cached response to return if {@link #networkRequest} fails, as permitted by {@code
+   * stale-if-error}; or null.
+   */
+  public final @Nullable Response staleIfErrorResponse;
+
   CacheStrategy(Request networkRequest, Response cacheResponse) {
+    this(networkRequest, cacheResponse, null, null);
+  }
+
+  CacheStrategy(Request networkRequest, Response cacheResponse, Response staleResponse,
+      Response staleIfErrorResponse) {
     this.networkRequest = networkRequest;
     this.cacheResponse = cacheResponse;
+    this.staleResponse = staleResponse;
+    this.staleIfErrorResponse = staleIfErrorResponse;
   }
 
   /** Returns true if {@code response} can be stored to later serve another request. */
@@ -227,15 +246,31 @@ public final class CacheStrategy {
       }
 
       if (!responseCaching.noCache() && ageMillis + minFreshMillis < freshMillis + maxStaleMillis) {
-        Response.Builder builder = cacheResponse.newBuilder();
-        if (ageMillis + minFreshMillis >= freshMillis) {
-          builder.addHeader("Warning", "110 HttpURLConnection \"Response is stale\"");
+        return new CacheStrategy(
+            null, cacheResponseWithWarnings(ageMillis + minFreshMillis >= freshMillis, ageMillis));
+      }
+
+      // RFC 5861 permits serving a stale response while it's revalidated, or if revalidation
+      // fails. Requests that ask for a fresh response don't get a stale one while revalidating.
+      Response staleResponse = null;
+      Response staleIfErrorResponse = null;
+      if (!responseCaching.noCache() && !responseCaching.mustRevalidate()) {
+        int staleWhileRevalidateSeconds = requestCaching.maxAgeSeconds() == -1
+            && requestCaching.minFreshSeconds() == -1
+            ? responseCaching.staleWhileRevalidateSeconds()
+            : -1;
+        if (staleWhileRevalidateSeconds != -1
+            && ageMillis < freshMillis + SECONDS.toMillis(staleWhileRevalidateSeconds)) {
+          staleResponse = cacheResponseWithWarnings(true, ageMillis);
         }
-        long oneDayMillis = 24 * 60 * 60 * 1000L;
-        if (ageMillis > oneDayMillis && isFreshnessLifetimeHeuristic()) {
-          builder.addHeader("Warning", "113 HttpURLConnection \"Heuristic expiration\"");
+
+        int staleIfErrorSeconds = requestCaching.staleIfErrorSeconds() != -1
+            ? requestCaching.staleIfErrorSeconds()
+            : responseCaching.staleIfErrorSeconds();
+        if (staleIfErrorSeconds != -1
+            && ageMillis < freshMillis + SECONDS.toMillis(staleIfErrorSeconds)) {
+          staleIfErrorResponse = cacheResponseWithWarnings(true, ageMillis);
         }
-        return new CacheStrategy(null, builder.build());
       }
 
       // Find a condition to add to the request. If the condition is satisfied, the response body
@@ -252,7 +287,8 @@ public final class CacheStrategy {
         conditionName = "If-Modified-Since";
         conditionValue = servedDateString;
       } else {
-        return new CacheStrategy(request, null); // No condition! Make a regular request.
+        // No condition! Make a regular request.
+        return new CacheStrategy(request, null, staleResponse, staleIfErrorResponse);
       }
 
       Headers.Builder conditionalRequestHeaders = request.headers().newBuilder();
@@ -261,7 +297,21 @@ public final class CacheStrategy {
       Request conditionalRequest = request.newBuilder()
           .headers(conditionalRequestHeaders.build())
           .build();
-      return new CacheStrategy(conditionalRequest, cacheResponse);
+      return new CacheStrategy(
+          conditionalRequest, cacheResponse, staleResponse, staleIfErrorResponse);
+    }
+
+    /** Returns the cached response with warnings if it is stale or its lifetime was guessed. */
+    private Response cacheResponseWithWarnings(boolean stale, long ageMillis) {
+      Response.Builder builder = cacheResponse.newBuilder();
+      if (stale) {
+        builder.addHeader("Warning", "110 HttpURLConnection \"Response is stale\"");
+      }
+      long oneDayMillis = 24 * 60 * 60 * 1000L;
+      if (ageMillis > oneDayMillis && isFreshnessLifetimeHeuristic()) {
+        builder.addHeader("Warning", "113 HttpURLConnection \"Heuristic expiration\"");
+      }
+      return builder.build();
     }
 
     /**
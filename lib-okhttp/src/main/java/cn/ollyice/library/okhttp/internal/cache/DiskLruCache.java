@@ -13,6 +13,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+
 package cn.ollyice.library.okhttp.internal.cache;
 
 import java.io.Closeable;
@@ -23,19 +24,28 @@ import java.io.Flushable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 import cn.ollyice.library.okhttp.internal.Util;
 import cn.ollyice.library.okhttp.internal.io.FileSystem;
 import cn.ollyice.library.okhttp.internal.platform.Platform;
+import cn.ollyice.library.okio.Buffer;
 import cn.ollyice.library.okio.BufferedSink;
 import cn.ollyice.library.okio.BufferedSource;
 import cn.ollyice.library.okio.Okio;
@@ -79,6 +89,12 @@ import static cn.ollyice.library.okhttp.internal.platform.Platform.WARN;
  * the time that {@link #get} was called. Updates and removals after the call do not impact ongoing
  * reads.
  *
+ * <p>Entries are split by key hash into independent shards, each with its own lock, LRU order and
+ * journal, so that edits of different keys rarely contend. Reads don't lock at all: they record
+ * their access in a buffer that is applied to the LRU order in batches. When the cache is over its
+ * limit it evicts the least recently used entry among the shards' least recently used entries,
+ * which approximates a single LRU order.
+ *
  * <p>This class is tolerant of some I/O errors. If files are missing from the filesystem, the
  * corresponding entries will be dropped from the cache. If an error occurs while writing a cache
  * value, the edit will fail silently. Callers should handle other problems by catching {@code
@@ -97,6 +113,30 @@ public final class DiskLruCache implements Closeable, Flushable {
   private static final String REMOVE = "REMOVE";
   private static final String READ = "READ";
 
+  /** Suffix of binary journals, whose records are like the text journal's lines. */
+  static final String BINARY_JOURNAL_SUFFIX = ".bin";
+  static final int BINARY_MAGIC = 0x444c5255; // "DLRU"
+  static final int BINARY_VERSION_1 = 1;
+  private static final byte OP_CLEAN = 1;
+  private static final byte OP_DIRTY = 2;
+  private static final byte OP_REMOVE = 3;
+  private static final byte OP_READ = 4;
+
+  /** A number of shards that lets many threads edit a cache without waiting on each other. */
+  public static final int DEFAULT_SHARD_COUNT = 8;
+
+  /** Redundant journal lines across all shards that trigger compaction. */
+  static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+  /** Reads a shard buffers before applying them to its LRU order. */
+  static final int READ_BATCH_SIZE = 64;
+
+  /** Reads a shard buffers before it drops them. The LRU order is then slightly stale. */
+  static final int MAX_BUFFERED_READS = 16 * READ_BATCH_SIZE;
+
+  /** The range that entries' access times are spread over when a cache is opened. */
+  private static final long INITIAL_ACCESS_RANGE = 1L << 32;
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -135,37 +175,57 @@ public final class DiskLruCache implements Closeable, Flushable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * A cache with more than one shard keeps one journal per shard, named
+     * "journal-0", "journal-1" and so on, each holding the lines of its shard's
+     * keys. Each shard compacts its own journal. A cache with one shard uses
+     * "journal", and a sharded cache that finds only "journal" reads it and
+     * splits it into shard journals.
+     *
+     * A cache may instead keep binary journals, named like the text journals
+     * with a ".bin" suffix. Their header is four big-endian ints: the magic
+     * 0x444c5255, the binary format's version, the application's version and
+     * the value count. Each record that follows is an op byte (1 CLEAN, 2 DIRTY,
+     * 3 REMOVE, 4 READ), the key's length as a byte, the key's ASCII bytes, and
+     * for CLEAN records the lengths of the values as 8-byte longs. With keys of
+     * one length, as the HTTP cache's are, records of each kind have a fixed
+     * width and are read without any parsing. Each compaction checkpoints the
+     * live entries, and compaction keeps the records after that fewer than the
+     * live entries (or a small constant), so opening reads a number of records
+     * proportional to the entries in the cache. Journals found in the other
+     * format are converted when the cache is opened.
      */
 
   final FileSystem fileSystem;
   final File directory;
   private final File journalFile;
-  private final File journalFileTmp;
   private final File journalFileBackup;
   private final int appVersion;
   private long maxSize;
   final int valueCount;
-  private long size = 0;
-  BufferedSink journalWriter;
-  final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<>(0, 0.75f, true);
-  int redundantOpCount;
-  boolean hasJournalErrors;
-
-  // Must be read and written when synchronized on 'this'.
-  boolean initialized;
-  boolean closed;
-  boolean mostRecentTrimFailed;
-  boolean mostRecentRebuildFailed;
+  final boolean binaryJournal;
+  final Shard[] shards;
+
+  /** The total size of all shards. */
+  private final AtomicLong size = new AtomicLong();
 
   /**
    * To differentiate between old and current snapshots, each entry is given a sequence number each
    * time an edit is committed. A snapshot is stale if its sequence number is not equal to its
    * entry's sequence number.
    */
-  private long nextSequenceNumber = 0;
+  private final AtomicLong nextSequenceNumber = new AtomicLong();
 
-  /** Used to run 'cleanupRunnable' for journal rebuilds. */
-  private final Executor executor;
+  /** Orders accesses across shards, so that trimming can compare shards' eldest entries. */
+  final AtomicLong accessClock = new AtomicLong();
+
+  // Must be written when synchronized on 'this'.
+  volatile boolean initialized;
+  volatile boolean closed;
+  volatile boolean mostRecentTrimFailed;
+
+  /** Used to run 'cleanupRunnable' for trimming and compaction, and shards' read drains. */
+  final Executor executor;
   private final Runnable cleanupRunnable = new Runnable() {
     public void run() {
       synchronized (DiskLruCache.this) {
@@ -179,30 +239,29 @@ public final class DiskLruCache implements Closeable, Flushable {
           mostRecentTrimFailed = true;
         }
 
-        try {
-          if (journalRebuildRequired()) {
-            rebuildJournal();
-            redundantOpCount = 0;
-          }
-        } catch (IOException e) {
-          mostRecentRebuildFailed = true;
-          journalWriter = Okio.buffer(Okio.blackhole());
+        // Compact incrementally: only shards with enough redundant lines, one shard at a time.
+        for (Shard shard : shards) {
+          shard.compactIfRequired();
         }
       }
     }
   };
 
   DiskLruCache(FileSystem fileSystem, File directory, int appVersion, int valueCount, long maxSize,
-      Executor executor) {
+      Executor executor, int shardCount, boolean binaryJournal) {
     this.fileSystem = fileSystem;
     this.directory = directory;
     this.appVersion = appVersion;
     this.journalFile = new File(directory, JOURNAL_FILE);
-    this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
     this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
     this.executor = executor;
+    this.binaryJournal = binaryJournal;
+    this.shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new Shard(i);
+    }
   }
 
   public synchronized void initialize() throws IOException {
@@ -213,21 +272,65 @@ public final class DiskLruCache implements Closeable, Flushable {
     }
 
     // If a bkp file exists, use it instead.
-    if (fileSystem.exists(journalFileBackup)) {
-      // If journal file also exists just delete backup file.
-      if (fileSystem.exists(journalFile)) {
-        fileSystem.delete(journalFileBackup);
-      } else {
-        fileSystem.rename(journalFileBackup, journalFile);
-      }
+    restoreBackup(journalFile, journalFileBackup);
+    boolean hasJournals = false;
+    boolean hasOtherJournals = false;
+    for (Shard shard : shards) {
+      restoreBackup(shard.journalFile, shard.journalFileBackup);
+      restoreBackup(shard.otherJournalFile, shard.otherJournalFileBackup);
+      hasJournals |= fileSystem.exists(shard.journalFile);
+      hasOtherJournals |= fileSystem.exists(shard.otherJournalFile);
     }
+    // Convert journals in the other format, or split the single journal of an unsharded cache.
+    boolean convert = !hasJournals && hasOtherJournals;
+    boolean split = !hasJournals && !hasOtherJournals && fileSystem.exists(journalFile);
 
     // Prefer to pick up where we left off.
-    if (fileSystem.exists(journalFile)) {
+    if (hasJournals || convert || split) {
       try {
-        readJournal();
+        if (hasJournals) {
+          for (Shard shard : shards) {
+            if (!fileSystem.exists(shard.journalFile)) {
+              throw new IOException("missing journal " + shard.journalFile.getName());
+            }
+            if (readJournal(shard.journalFile, binaryJournal)) {
+              shard.journalWriter = shard.newJournalWriter();
+            } else {
+              // We ended on a truncated line. Rebuild the journal before appending to it.
+              shard.rebuildJournal();
+              shard.redundantOpCount = 0;
+            }
+            // Left over if converting was interrupted.
+            deleteIfExists(shard.otherJournalFile);
+          }
+        } else {
+          if (split) {
+            readJournal(journalFile, false);
+          } else {
+            for (Shard shard : shards) {
+              if (!fileSystem.exists(shard.otherJournalFile)) {
+                throw new IOException("missing journal " + shard.otherJournalFile.getName());
+              }
+              readJournal(shard.otherJournalFile, !binaryJournal);
+            }
+          }
+          for (Shard shard : shards) {
+            shard.rebuildJournal();
+            shard.redundantOpCount = 0;
+          }
+          for (Shard shard : shards) {
+            deleteIfExists(shard.otherJournalFile);
+          }
+          if (split) fileSystem.delete(journalFile);
+        }
         processJournal();
         initialized = true;
+        for (Shard shard : shards) {
+          if (shard.journalRebuildRequired()) {
+            executor.execute(cleanupRunnable); // Compact so the next open reads fewer records.
+            break;
+          }
+        }
         return;
       } catch (IOException journalIsCorrupt) {
         Platform.get().log(WARN, "DiskLruCache " + directory + " is corrupt: "
@@ -243,37 +346,83 @@ public final class DiskLruCache implements Closeable, Flushable {
       }
     }
 
-    rebuildJournal();
+    for (Shard shard : shards) {
+      shard.rebuildJournal();
+    }
 
     initialized = true;
   }
 
+  private void deleteIfExists(File file) throws IOException {
+    if (fileSystem.exists(file)) fileSystem.delete(file);
+  }
+
+  private void restoreBackup(File journal, File backup) throws IOException {
+    if (fileSystem.exists(backup)) {
+      // If journal file also exists just delete backup file.
+      if (fileSystem.exists(journal)) {
+        fileSystem.delete(backup);
+      } else {
+        fileSystem.rename(backup, journal);
+      }
+    }
+  }
+
   /**
    * Create a cache which will reside in {@code directory}. This cache is lazily initialized on
    * first access and will be created if it does not exist.
    *
+   * <p>The cache has one shard and a text journal, so its directory stays readable by earlier
+   * releases. Use {@link #create(FileSystem, File, int, int, long, int, boolean)} to shard it.
+   *
    * @param directory a writable directory
    * @param valueCount the number of values per cache entry. Must be positive.
    * @param maxSize the maximum number of bytes this cache should use to store
    */
   public static DiskLruCache create(FileSystem fileSystem, File directory, int appVersion,
       int valueCount, long maxSize) {
+    return create(fileSystem, directory, appVersion, valueCount, maxSize, 1, false);
+  }
+
+  /**
+   * Create a cache like {@link #create(FileSystem, File, int, int, long)} whose entries are split
+   * into {@code shardCount} shards. A cache with one shard and a text journal is compatible with
+   * the journal of earlier releases. A sharded cache splits such a journal when it opens, but
+   * earlier releases can't read the sharded journals it leaves.
+   *
+   * @param binaryJournal true to keep the journal in binary, which is faster to open than text
+   *     when the cache holds many entries.
+   */
+  public static DiskLruCache create(FileSystem fileSystem, File directory, int appVersion,
+      int valueCount, long maxSize, int shardCount, boolean binaryJournal) {
     if (maxSize <= 0) {
       throw new IllegalArgumentException("maxSize <= 0");
     }
     if (valueCount <= 0) {
       throw new IllegalArgumentException("valueCount <= 0");
     }
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("shardCount <= 0");
+    }
 
     // Use a single background thread to evict entries.
     Executor executor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
         new LinkedBlockingQueue<Runnable>(), Util.threadFactory("OkHttp DiskLruCache", true));
 
-    return new DiskLruCache(fileSystem, directory, appVersion, valueCount, maxSize, executor);
+    return new DiskLruCache(fileSystem, directory, appVersion, valueCount, maxSize, executor,
+        shardCount, binaryJournal);
   }
 
-  private void readJournal() throws IOException {
-    BufferedSource source = Okio.buffer(fileSystem.source(journalFile));
+  /**
+   * Reads the records of {@code file} into the shards that own their keys. Returns false if the
+   * journal ended on a truncated record.
+   */
+  private boolean readJournal(File file, boolean binary) throws IOException {
+    return binary ? readBinaryJournal(file) : readTextJournal(file);
+  }
+
+  private boolean readTextJournal(File file) throws IOException {
+    BufferedSource source = Okio.buffer(fileSystem.source(file));
     try {
       String magic = source.readUtf8LineStrict();
       String version = source.readUtf8LineStrict();
@@ -289,37 +438,85 @@ public final class DiskLruCache implements Closeable, Flushable {
             + valueCountString + ", " + blank + "]");
       }
 
-      int lineCount = 0;
       while (true) {
         try {
           readJournalLine(source.readUtf8LineStrict());
-          lineCount++;
         } catch (EOFException endOfJournal) {
           break;
         }
       }
-      redundantOpCount = lineCount - lruEntries.size();
 
-      // If we ended on a truncated line, rebuild the journal before appending to it.
-      if (!source.exhausted()) {
-        rebuildJournal();
-      } else {
-        journalWriter = newJournalWriter();
-      }
+      return source.exhausted();
     } finally {
       Util.closeQuietly(source);
     }
   }
 
-  private BufferedSink newJournalWriter() throws FileNotFoundException {
-    Sink fileSink = fileSystem.appendingSink(journalFile);
-    Sink faultHidingSink = new FaultHidingSink(fileSink) {
-      @Override protected void onException(IOException e) {
-        assert (Thread.holdsLock(DiskLruCache.this));
-        hasJournalErrors = true;
+  private boolean readBinaryJournal(File file) throws IOException {
+    BufferedSource source = Okio.buffer(fileSystem.source(file));
+    try {
+      int magic = source.readInt();
+      int version = source.readInt();
+      int appVersionValue = source.readInt();
+      int valueCountValue = source.readInt();
+      if (magic != BINARY_MAGIC
+          || version != BINARY_VERSION_1
+          || appVersionValue != appVersion
+          || valueCountValue != valueCount) {
+        throw new IOException("unexpected journal header: [" + Integer.toHexString(magic) + ", "
+            + version + ", " + valueCountValue + "]");
       }
-    };
-    return Okio.buffer(faultHidingSink);
+
+      long[] lengths = new long[valueCount];
+      while (!source.exhausted()) {
+        byte op;
+        String key;
+        try {
+          op = source.readByte();
+          key = source.readUtf8(source.readByte() & 0xff);
+          if (op == OP_CLEAN) {
+            for (int i = 0; i < valueCount; i++) {
+              lengths[i] = source.readLong();
+            }
+          }
+        } catch (EOFException truncated) {
+          return false;
+        }
+        readJournalRecord(op, key, lengths);
+      }
+
+      return true;
+    } finally {
+      Util.closeQuietly(source);
+    }
+  }
+
+  private void readJournalRecord(byte op, String key, long[] lengths) throws IOException {
+    if (op != OP_CLEAN && op != OP_DIRTY && op != OP_REMOVE && op != OP_READ) {
+      throw new IOException("unexpected journal record: " + op + " " + key);
+    }
+
+    Shard shard = shardFor(key);
+    shard.redundantOpCount++; // Counts records until processJournal() subtracts the live entries.
+    if (op == OP_REMOVE) {
+      shard.lruEntries.remove(key);
+      return;
+    }
+
+    Entry entry = shard.lruEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(shard, key);
+      shard.lruEntries.put(key, entry);
+    }
+
+    if (op == OP_CLEAN) {
+      entry.readable = true;
+      entry.currentEditor = null;
+      System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+    } else if (op == OP_DIRTY) {
+      entry.currentEditor = new Editor(entry);
+    }
+    // READ records were already applied by calling lruEntries.get().
   }
 
   private void readJournalLine(String line) throws IOException {
@@ -333,18 +530,21 @@ public final class DiskLruCache implements Closeable, Flushable {
     final String key;
     if (secondSpace == -1) {
       key = line.substring(keyBegin);
-      if (firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
-        lruEntries.remove(key);
-        return;
-      }
     } else {
       key = line.substring(keyBegin, secondSpace);
     }
 
-    Entry entry = lruEntries.get(key);
+    Shard shard = shardFor(key);
+    shard.redundantOpCount++; // Counts lines until processJournal() subtracts the live entries.
+    if (secondSpace == -1 && firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
+      shard.lruEntries.remove(key);
+      return;
+    }
+
+    Entry entry = shard.lruEntries.get(key);
     if (entry == null) {
-      entry = new Entry(key);
-      lruEntries.put(key, entry);
+      entry = new Entry(shard, key);
+      shard.lruEntries.put(key, entry);
     }
 
     if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
@@ -366,89 +566,104 @@ public final class DiskLruCache implements Closeable, Flushable {
    * are assumed to be inconsistent and will be deleted.
    */
   private void processJournal() throws IOException {
-    fileSystem.delete(journalFileTmp);
-    for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-      Entry entry = i.next();
-      if (entry.currentEditor == null) {
-        for (int t = 0; t < valueCount; t++) {
-          size += entry.lengths[t];
-        }
-      } else {
-        entry.currentEditor = null;
-        for (int t = 0; t < valueCount; t++) {
-          fileSystem.delete(entry.cleanFiles[t]);
-          fileSystem.delete(entry.dirtyFiles[t]);
+    for (Shard shard : shards) {
+      fileSystem.delete(shard.journalFileTmp);
+      for (Iterator<Entry> i = shard.lruEntries.values().iterator(); i.hasNext(); ) {
+        Entry entry = i.next();
+        if (entry.currentEditor == null) {
+          for (int t = 0; t < valueCount; t++) {
+            shard.size += entry.lengths[t];
+          }
+          entry.publish();
+        } else {
+          entry.currentEditor = null;
+          for (int t = 0; t < valueCount; t++) {
+            fileSystem.delete(entry.cleanFile(t));
+            fileSystem.delete(entry.dirtyFile(t));
+          }
+          i.remove();
         }
-        i.remove();
       }
+
+      // Journals don't record the order across shards, so spread each shard's entries evenly over
+      // the same range of access times.
+      long position = 0;
+      long count = shard.lruEntries.size();
+      for (Entry entry : shard.lruEntries.values()) {
+        entry.lastAccess = position++ * INITIAL_ACCESS_RANGE / count;
+        shard.entryIndex.put(entry.key, entry);
+      }
+      shard.redundantOpCount = Math.max(0, shard.redundantOpCount - shard.lruEntries.size());
+      size.addAndGet(shard.size);
     }
+    accessClock.set(INITIAL_ACCESS_RANGE);
   }
 
-  /**
-   * Creates a new journal that omits redundant information. This replaces the current journal if it
-   * exists.
-   */
-  synchronized void rebuildJournal() throws IOException {
-    if (journalWriter != null) {
-      journalWriter.close();
+  private void writeJournalHeader(Buffer sink) {
+    if (binaryJournal) {
+      sink.writeInt(BINARY_MAGIC);
+      sink.writeInt(BINARY_VERSION_1);
+      sink.writeInt(appVersion);
+      sink.writeInt(valueCount);
+    } else {
+      sink.writeUtf8(MAGIC).writeByte('\n');
+      sink.writeUtf8(VERSION_1).writeByte('\n');
+      sink.writeDecimalLong(appVersion).writeByte('\n');
+      sink.writeDecimalLong(valueCount).writeByte('\n');
+      sink.writeByte('\n');
     }
+  }
 
-    BufferedSink writer = Okio.buffer(fileSystem.sink(journalFileTmp));
-    try {
-      writer.writeUtf8(MAGIC).writeByte('\n');
-      writer.writeUtf8(VERSION_1).writeByte('\n');
-      writer.writeDecimalLong(appVersion).writeByte('\n');
-      writer.writeDecimalLong(valueCount).writeByte('\n');
-      writer.writeByte('\n');
-
-      for (Entry entry : lruEntries.values()) {
-        if (entry.currentEditor != null) {
-          writer.writeUtf8(DIRTY).writeByte(' ');
-          writer.writeUtf8(entry.key);
-          writer.writeByte('\n');
-        } else {
-          writer.writeUtf8(CLEAN).writeByte(' ');
-          writer.writeUtf8(entry.key);
-          entry.writeLengths(writer);
-          writer.writeByte('\n');
+  /** Writes a record in this cache's journal format. Only CLEAN records have {@code lengths}. */
+  void writeJournalRecord(Buffer sink, String state, String key, @Nullable long[] lengths) {
+    if (binaryJournal) {
+      sink.writeByte(CLEAN.equals(state) ? OP_CLEAN
+          : DIRTY.equals(state) ? OP_DIRTY
+          : REMOVE.equals(state) ? OP_REMOVE
+          : OP_READ);
+      sink.writeByte(key.length());
+      sink.writeUtf8(key);
+      if (lengths != null) {
+        for (long length : lengths) {
+          sink.writeLong(length);
         }
       }
-    } finally {
-      writer.close();
-    }
-
-    if (fileSystem.exists(journalFile)) {
-      fileSystem.rename(journalFile, journalFileBackup);
+    } else {
+      sink.writeUtf8(state).writeByte(' ').writeUtf8(key);
+      if (lengths != null) {
+        for (long length : lengths) {
+          sink.writeByte(' ').writeDecimalLong(length);
+        }
+      }
+      sink.writeByte('\n');
     }
-    fileSystem.rename(journalFileTmp, journalFile);
-    fileSystem.delete(journalFileBackup);
+  }
 
-    journalWriter = newJournalWriter();
-    hasJournalErrors = false;
-    mostRecentRebuildFailed = false;
+  Shard shardFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return shards[(h & Integer.MAX_VALUE) % shards.length];
   }
 
   /**
-   * Returns a snapshot of the entry named {@code key}, or null if it doesn't exist is not currently
-   * readable. If a value is returned, it is moved to the head of the LRU queue.
+   * Returns a snapshot of the entry named {@code key}, or null if it doesn't exist or is not
+   * currently readable. If a value is returned, it is moved to the head of the LRU queue.
+   *
+   * <p>This doesn't take any locks unless the entry is being committed concurrently.
    */
-  public synchronized Snapshot get(String key) throws IOException {
-    initialize();
+  public Snapshot get(String key) throws IOException {
+    if (!initialized) initialize();
 
     checkNotClosed();
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null || !entry.readable) return null;
+    Shard shard = shardFor(key);
+    Entry entry = shard.entryIndex.get(key);
+    if (entry == null) return null;
 
     Snapshot snapshot = entry.snapshot();
     if (snapshot == null) return null;
 
-    redundantOpCount++;
-    journalWriter.writeUtf8(READ).writeByte(' ').writeUtf8(key).writeByte('\n');
-    if (journalRebuildRequired()) {
-      executor.execute(cleanupRunnable);
-    }
-
+    shard.recordRead(entry);
     return snapshot;
   }
 
@@ -459,43 +674,58 @@ public final class DiskLruCache implements Closeable, Flushable {
     return edit(key, ANY_SEQUENCE_NUMBER);
   }
 
-  synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-    initialize();
+  Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    if (!initialized) initialize();
 
     checkNotClosed();
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
-        || entry.sequenceNumber != expectedSequenceNumber)) {
-      return null; // Snapshot is stale.
-    }
-    if (entry != null && entry.currentEditor != null) {
-      return null; // Another edit is in progress.
-    }
-    if (mostRecentTrimFailed || mostRecentRebuildFailed) {
-      // The OS has become our enemy! If the trim job failed, it means we are storing more data than
-      // requested by the user. Do not allow edits so we do not go over that limit any further. If
-      // the journal rebuild failed, the journal writer will not be active, meaning we will not be
-      // able to record the edit, causing file leaks. In both cases, we want to retry the clean up
-      // so we can get out of this state!
-      executor.execute(cleanupRunnable);
-      return null;
+    Shard shard = shardFor(key);
+    Entry entry;
+    Editor editor;
+    long ticket;
+    synchronized (shard) {
+      entry = shard.lruEntries.get(key);
+      if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
+          || entry.sequenceNumber != expectedSequenceNumber)) {
+        return null; // Snapshot is stale.
+      }
+      if (entry != null && entry.currentEditor != null) {
+        return null; // Another edit is in progress.
+      }
+      if (mostRecentTrimFailed || shard.mostRecentRebuildFailed) {
+        // The OS has become our enemy! If the trim job failed, it means we are storing more data
+        // than requested by the user. Do not allow edits so we do not go over that limit any
+        // further. If the journal rebuild failed, the journal writer will not be active, meaning we
+        // will not be able to record the edit, causing file leaks. In both cases, we want to retry
+        // the clean up so we can get out of this state!
+        executor.execute(cleanupRunnable);
+        return null;
+      }
+
+      ticket = shard.appendJournal(DIRTY, key);
+      if (entry == null) {
+        entry = new Entry(shard, key);
+        shard.putEntry(entry);
+      }
+      editor = new Editor(entry);
+      entry.currentEditor = editor;
     }
 
-    // Flush the journal before creating files to prevent file leaks.
-    journalWriter.writeUtf8(DIRTY).writeByte(' ').writeUtf8(key).writeByte('\n');
-    journalWriter.flush();
+    // Flush the journal before creating files to prevent file leaks. Concurrent edits of this
+    // shard share one flush.
+    shard.commitJournal(ticket);
 
-    if (hasJournalErrors) {
-      return null; // Don't edit; the journal can't be written.
+    if (shard.hasJournalErrors) {
+      // Don't edit; the journal can't be written.
+      synchronized (shard) {
+        if (entry.currentEditor == editor) {
+          entry.currentEditor = null;
+          if (!entry.readable) shard.removeFromMaps(entry);
+        }
+      }
+      return null;
     }
 
-    if (entry == null) {
-      entry = new Entry(key);
-      lruEntries.put(key, entry);
-    }
-    Editor editor = new Editor(entry);
-    entry.currentEditor = editor;
     return editor;
   }
 
@@ -526,13 +756,19 @@ public final class DiskLruCache implements Closeable, Flushable {
    * Returns the number of bytes currently being used to store the values in this cache. This may be
    * greater than the max size if a background deletion is pending.
    */
-  public synchronized long size() throws IOException {
-    initialize();
-    return size;
+  public long size() throws IOException {
+    if (!initialized) initialize();
+    return size.get();
   }
 
-  synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+  /**
+   * Returns the journal ticket of the lines that record this edit. The caller must commit the
+   * journal after releasing the shard's lock.
+   */
+  long completeEdit(Editor editor, boolean success) throws IOException {
     Entry entry = editor.entry;
+    Shard shard = entry.shard;
+    assert Thread.holdsLock(shard);
     if (entry.currentEditor != editor) {
       throw new IllegalStateException();
     }
@@ -541,64 +777,55 @@ public final class DiskLruCache implements Closeable, Flushable {
     if (success && !entry.readable) {
       for (int i = 0; i < valueCount; i++) {
         if (!editor.written[i]) {
-          editor.abort();
+          completeEdit(editor, false);
+          editor.done = true;
           throw new IllegalStateException("Newly created entry didn't create value for index " + i);
         }
-        if (!fileSystem.exists(entry.dirtyFiles[i])) {
-          editor.abort();
-          return;
+        if (!fileSystem.exists(entry.dirtyFile(i))) {
+          return completeEdit(editor, false);
         }
       }
     }
 
+    // Readers that race with the renames below retry under this shard's lock.
+    if (success) entry.published = null;
     for (int i = 0; i < valueCount; i++) {
-      File dirty = entry.dirtyFiles[i];
+      File dirty = entry.dirtyFile(i);
       if (success) {
         if (fileSystem.exists(dirty)) {
-          File clean = entry.cleanFiles[i];
+          File clean = entry.cleanFile(i);
           fileSystem.rename(dirty, clean);
           long oldLength = entry.lengths[i];
           long newLength = fileSystem.size(clean);
           entry.lengths[i] = newLength;
-          size = size - oldLength + newLength;
+          shard.size += newLength - oldLength;
+          size.addAndGet(newLength - oldLength);
         }
       } else {
         fileSystem.delete(dirty);
       }
     }
 
-    redundantOpCount++;
+    shard.redundantOpCount++;
     entry.currentEditor = null;
+    long ticket;
     if (entry.readable | success) {
       entry.readable = true;
-      journalWriter.writeUtf8(CLEAN).writeByte(' ');
-      journalWriter.writeUtf8(entry.key);
-      entry.writeLengths(journalWriter);
-      journalWriter.writeByte('\n');
       if (success) {
-        entry.sequenceNumber = nextSequenceNumber++;
+        entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+        entry.lastAccess = accessClock.incrementAndGet();
+        entry.publish();
       }
+      ticket = shard.appendJournal(CLEAN, entry);
     } else {
-      lruEntries.remove(entry.key);
-      journalWriter.writeUtf8(REMOVE).writeByte(' ');
-      journalWriter.writeUtf8(entry.key);
-      journalWriter.writeByte('\n');
+      shard.removeFromMaps(entry);
+      ticket = shard.appendJournal(REMOVE, entry.key);
     }
-    journalWriter.flush();
 
-    if (size > maxSize || journalRebuildRequired()) {
+    if (size.get() > maxSize || shard.journalRebuildRequired()) {
       executor.execute(cleanupRunnable);
     }
-  }
-
-  /**
-   * We only rebuild the journal when it will halve the size of the journal and eliminate at least
-   * 2000 ops.
-   */
-  boolean journalRebuildRequired() {
-    final int redundantOpCompactThreshold = 2000;
-    return redundantOpCount >= redundantOpCompactThreshold
-        && redundantOpCount >= lruEntries.size();
+    return ticket;
   }
 
   /**
@@ -607,46 +834,28 @@ public final class DiskLruCache implements Closeable, Flushable {
    *
    * @return true if an entry was removed.
    */
-  public synchronized boolean remove(String key) throws IOException {
-    initialize();
+  public boolean remove(String key) throws IOException {
+    if (!initialized) initialize();
 
     checkNotClosed();
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null) return false;
-    boolean removed = removeEntry(entry);
-    if (removed && size <= maxSize) mostRecentTrimFailed = false;
-    return removed;
-  }
-
-  boolean removeEntry(Entry entry) throws IOException {
-    if (entry.currentEditor != null) {
-      entry.currentEditor.detach(); // Prevent the edit from completing normally.
-    }
-
-    for (int i = 0; i < valueCount; i++) {
-      fileSystem.delete(entry.cleanFiles[i]);
-      size -= entry.lengths[i];
-      entry.lengths[i] = 0;
-    }
-
-    redundantOpCount++;
-    journalWriter.writeUtf8(REMOVE).writeByte(' ').writeUtf8(entry.key).writeByte('\n');
-    lruEntries.remove(entry.key);
-
-    if (journalRebuildRequired()) {
-      executor.execute(cleanupRunnable);
+    Shard shard = shardFor(key);
+    boolean removed;
+    synchronized (shard) {
+      Entry entry = shard.lruEntries.get(key);
+      if (entry == null) return false;
+      removed = shard.removeEntry(entry);
     }
-
-    return true;
+    if (removed && size.get() <= maxSize) mostRecentTrimFailed = false;
+    return removed;
   }
 
   /** Returns true if this cache has been closed. */
-  public synchronized boolean isClosed() {
+  public boolean isClosed() {
     return closed;
   }
 
-  private synchronized void checkNotClosed() {
+  private void checkNotClosed() {
     if (isClosed()) {
       throw new IllegalStateException("cache is closed");
     }
@@ -658,7 +867,9 @@ public final class DiskLruCache implements Closeable, Flushable {
 
     checkNotClosed();
     trimToSize();
-    journalWriter.flush();
+    for (Shard shard : shards) {
+      shard.commitJournal();
+    }
   }
 
   /** Closes this cache. Stored values will remain on the filesystem. */
@@ -667,22 +878,71 @@ public final class DiskLruCache implements Closeable, Flushable {
       closed = true;
       return;
     }
-    // Copying for safe iteration.
-    for (Entry entry : lruEntries.values().toArray(new Entry[lruEntries.size()])) {
-      if (entry.currentEditor != null) {
-        entry.currentEditor.abort();
+    for (Shard shard : shards) {
+      List<Editor> editors = new ArrayList<>();
+      synchronized (shard) {
+        for (Entry entry : shard.lruEntries.values()) {
+          if (entry.currentEditor != null) {
+            editors.add(entry.currentEditor);
+          }
+        }
+      }
+      for (Editor editor : editors) {
+        editor.abortUnlessCommitted();
       }
     }
     trimToSize();
-    journalWriter.close();
-    journalWriter = null;
     closed = true;
+    for (Shard shard : shards) {
+      shard.closeJournal();
+    }
   }
 
+  /**
+   * Evicts the least recently used entries while the cache is too big. Shards track their own LRU
+   * order, so this collects enough of each shard's eldest entries to cover the excess, picks the
+   * least recently accessed of them, and then evicts that many eldest entries from each shard. Each
+   * pass locks every shard twice, however many entries it evicts.
+   */
   void trimToSize() throws IOException {
-    while (size > maxSize) {
-      Entry toEvict = lruEntries.values().iterator().next();
-      removeEntry(toEvict);
+    while (size.get() > maxSize) {
+      long excess = size.get() - maxSize;
+      List<long[]> candidates = new ArrayList<>();
+      for (Shard shard : shards) {
+        synchronized (shard) {
+          shard.drainReads();
+          shard.collectEldest(excess, candidates);
+        }
+      }
+
+      Collections.sort(candidates, new Comparator<long[]>() {
+        @Override public int compare(long[] a, long[] b) {
+          return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+        }
+      });
+      int[] evictCounts = new int[shards.length];
+      long covered = 0L;
+      for (int i = 0; i < candidates.size() && covered < excess; i++) {
+        long[] candidate = candidates.get(i);
+        evictCounts[(int) candidate[2]]++;
+        covered += candidate[1];
+      }
+
+      boolean evicted = false;
+      for (Shard shard : shards) {
+        synchronized (shard) {
+          for (int i = 0; i < evictCounts[shard.index]; i++) {
+            Entry eldest = shard.eldest();
+            if (eldest == null) break;
+            shard.removeEntry(eldest);
+            evicted = true;
+          }
+        }
+      }
+      if (!evicted) break;
+    }
+    for (Shard shard : shards) {
+      shard.commitJournal();
     }
     mostRecentTrimFailed = false;
   }
@@ -702,9 +962,14 @@ public final class DiskLruCache implements Closeable, Flushable {
    */
   public synchronized void evictAll() throws IOException {
     initialize();
-    // Copying for safe iteration.
-    for (Entry entry : lruEntries.values().toArray(new Entry[lruEntries.size()])) {
-      removeEntry(entry);
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        // Copying for safe iteration.
+        for (Entry entry : shard.lruEntries.values().toArray(new Entry[shard.lruEntries.size()])) {
+          shard.removeEntry(entry);
+        }
+      }
+      shard.commitJournal();
     }
     mostRecentTrimFailed = false;
   }
@@ -732,11 +997,17 @@ public final class DiskLruCache implements Closeable, Flushable {
    *
    * <p>The returned iterator supports {@link Iterator#remove}.
    */
-  public synchronized Iterator<Snapshot> snapshots() throws IOException {
+  public Iterator<Snapshot> snapshots() throws IOException {
     initialize();
+    final List<Entry> entries = new ArrayList<>();
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        entries.addAll(shard.lruEntries.values());
+      }
+    }
     return new Iterator<Snapshot>() {
       /** Iterate a copy of the entries to defend against concurrent modification errors. */
-      final Iterator<Entry> delegate = new ArrayList<>(lruEntries.values()).iterator();
+      final Iterator<Entry> delegate = entries.iterator();
 
       /** The snapshot to return from {@link #next}. Null if we haven't computed that yet. */
       Snapshot nextSnapshot;
@@ -747,17 +1018,15 @@ public final class DiskLruCache implements Closeable, Flushable {
       @Override public boolean hasNext() {
         if (nextSnapshot != null) return true;
 
-        synchronized (DiskLruCache.this) {
-          // If the cache is closed, truncate the iterator.
-          if (closed) return false;
+        // If the cache is closed, truncate the iterator.
+        if (closed) return false;
 
-          while (delegate.hasNext()) {
-            Entry entry = delegate.next();
-            Snapshot snapshot = entry.snapshot();
-            if (snapshot == null) continue; // Evicted since we copied the entries.
-            nextSnapshot = snapshot;
-            return true;
-          }
+        while (delegate.hasNext()) {
+          Entry entry = delegate.next();
+          Snapshot snapshot = entry.snapshot();
+          if (snapshot == null) continue; // Evicted since we copied the entries.
+          nextSnapshot = snapshot;
+          return true;
         }
 
         return false;
@@ -784,6 +1053,302 @@ public final class DiskLruCache implements Closeable, Flushable {
     };
   }
 
+  /**
+   * The entries of the keys whose hash selects this shard, with their LRU order and journal.
+   *
+   * <p>Entry state is guarded by this shard. The journal file is guarded by {@link #journalLock},
+   * which is always acquired before this shard's lock: lines are appended to {@link
+   * #pendingJournal} while holding this shard's lock, and written and flushed later while holding
+   * only the journal lock. Callers that must know their lines are on disk wait in {@link
+   * #commitJournal(long)}, and one flush commits the lines of every caller that waited.
+   */
+  final class Shard {
+    final int index;
+    final File journalFile;
+    final File journalFileTmp;
+    final File journalFileBackup;
+
+    /** This shard's journal in the format this cache doesn't use, to be converted. */
+    final File otherJournalFile;
+    final File otherJournalFileBackup;
+
+    /** Entries in access order, least recently used first. */
+    final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<>(0, 0.75f, true);
+
+    /** The same entries, for reads that don't lock this shard. */
+    final ConcurrentHashMap<String, Entry> entryIndex = new ConcurrentHashMap<>();
+
+    /** Entries read but not yet moved in {@link #lruEntries}. */
+    final ConcurrentLinkedQueue<Entry> readBuffer = new ConcurrentLinkedQueue<>();
+    final AtomicInteger readBufferSize = new AtomicInteger();
+    final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    long size;
+    int redundantOpCount;
+    volatile boolean hasJournalErrors;
+    boolean mostRecentRebuildFailed;
+
+    /** Journal lines not yet written to {@link #journalWriter}, and a count of them. */
+    final Buffer pendingJournal = new Buffer();
+    long journalTicket;
+
+    final Object journalLock = new Object();
+    /** Guarded by {@link #journalLock}. */
+    BufferedSink journalWriter;
+    /** The ticket of the last line flushed. Guarded by {@link #journalLock}. */
+    long committedTicket;
+
+    final Runnable drainRunnable = new Runnable() {
+      @Override public void run() {
+        drainScheduled.set(false);
+        synchronized (Shard.this) {
+          if (closed) return;
+          drainReads();
+        }
+        try {
+          commitJournal();
+        } catch (IOException ignored) {
+        }
+      }
+    };
+
+    Shard(int index) {
+      this.index = index;
+      String textName = shards.length == 1 ? JOURNAL_FILE : JOURNAL_FILE + "-" + index;
+      String binaryName = textName + BINARY_JOURNAL_SUFFIX;
+      String name = binaryJournal ? binaryName : textName;
+      String otherName = binaryJournal ? textName : binaryName;
+      journalFile = new File(directory, name);
+      journalFileTmp = new File(directory, name + ".tmp");
+      journalFileBackup = new File(directory, name + ".bkp");
+      otherJournalFile = new File(directory, otherName);
+      otherJournalFileBackup = new File(directory, otherName + ".bkp");
+    }
+
+    /**
+     * Records that {@code entry} was read. Reads are applied to the LRU order in batches by the
+     * executor, and dropped if the executor falls far behind.
+     */
+    void recordRead(Entry entry) {
+      entry.lastAccess = accessClock.incrementAndGet();
+      if (readBufferSize.get() >= MAX_BUFFERED_READS) return;
+      readBuffer.add(entry);
+      if (readBufferSize.incrementAndGet() >= READ_BATCH_SIZE
+          && drainScheduled.compareAndSet(false, true)) {
+        executor.execute(drainRunnable);
+      }
+    }
+
+    /** Moves buffered reads to the back of the LRU order and journals them. */
+    void drainReads() {
+      assert Thread.holdsLock(this);
+      for (Entry entry; (entry = readBuffer.poll()) != null; ) {
+        readBufferSize.decrementAndGet();
+        if (lruEntries.get(entry.key) != entry) continue; // Removed since it was read.
+        redundantOpCount++;
+        appendJournal(READ, entry.key);
+      }
+    }
+
+    Entry eldest() {
+      assert Thread.holdsLock(this);
+      Iterator<Entry> i = lruEntries.values().iterator();
+      return i.hasNext() ? i.next() : null;
+    }
+
+    /**
+     * Adds this shard's least recently used entries to {@code candidates} as {@code [lastAccess,
+     * byteCount, shard index]} until they cover {@code byteCount} bytes.
+     */
+    void collectEldest(long byteCount, List<long[]> candidates) {
+      assert Thread.holdsLock(this);
+      long covered = 0L;
+      for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+        if (covered >= byteCount) break;
+        Entry entry = i.next();
+        long entryByteCount = 0L;
+        for (long length : entry.lengths) {
+          entryByteCount += length;
+        }
+        candidates.add(new long[] {entry.lastAccess, entryByteCount, index});
+        covered += entryByteCount;
+      }
+    }
+
+    void putEntry(Entry entry) {
+      lruEntries.put(entry.key, entry);
+      entryIndex.put(entry.key, entry);
+    }
+
+    void removeFromMaps(Entry entry) {
+      lruEntries.remove(entry.key);
+      entryIndex.remove(entry.key, entry);
+    }
+
+    boolean removeEntry(Entry entry) throws IOException {
+      assert Thread.holdsLock(this);
+      entry.published = null;
+      if (entry.currentEditor != null) {
+        entry.currentEditor.detach(); // Prevent the edit from completing normally.
+      }
+
+      for (int i = 0; i < valueCount; i++) {
+        fileSystem.delete(entry.cleanFile(i));
+        size -= entry.lengths[i];
+        DiskLruCache.this.size.addAndGet(-entry.lengths[i]);
+        entry.lengths[i] = 0;
+      }
+
+      redundantOpCount++;
+      appendJournal(REMOVE, entry.key);
+      removeFromMaps(entry);
+
+      if (journalRebuildRequired()) {
+        executor.execute(cleanupRunnable);
+      }
+
+      return true;
+    }
+
+    /** Appends a line for {@code key} and returns its journal ticket. */
+    long appendJournal(String state, String key) {
+      assert Thread.holdsLock(this);
+      writeJournalRecord(pendingJournal, state, key, null);
+      return ++journalTicket;
+    }
+
+    /** Appends a line for {@code entry} with its lengths and returns its journal ticket. */
+    long appendJournal(String state, Entry entry) {
+      assert Thread.holdsLock(this);
+      writeJournalRecord(pendingJournal, state, entry.key, entry.lengths);
+      return ++journalTicket;
+    }
+
+    /** Writes and flushes all lines appended so far. */
+    void commitJournal() throws IOException {
+      long ticket;
+      synchronized (this) {
+        ticket = journalTicket;
+      }
+      commitJournal(ticket);
+    }
+
+    /**
+     * Writes and flushes lines up to {@code ticket}, unless a concurrent caller already did. Must
+     * not be called while holding this shard's lock.
+     */
+    void commitJournal(long ticket) throws IOException {
+      synchronized (journalLock) {
+        if (committedTicket >= ticket) return; // Another caller's flush included our lines.
+
+        Buffer batch = new Buffer();
+        long batchTicket;
+        synchronized (this) {
+          batch.write(pendingJournal, pendingJournal.size());
+          batchTicket = journalTicket;
+        }
+        if (journalWriter == null) {
+          hasJournalErrors = true; // Closed.
+          return;
+        }
+        journalWriter.write(batch, batch.size());
+        journalWriter.flush();
+        committedTicket = batchTicket;
+      }
+    }
+
+    void closeJournal() throws IOException {
+      synchronized (journalLock) {
+        synchronized (this) {
+          drainReads();
+          if (journalWriter == null) return;
+          journalWriter.write(pendingJournal, pendingJournal.size());
+          committedTicket = journalTicket;
+          journalWriter.close();
+          journalWriter = null;
+        }
+      }
+    }
+
+    /**
+     * We only rebuild the journal when it will halve the size of the journal and eliminate at
+     * least this shard's share of 2000 ops.
+     */
+    boolean journalRebuildRequired() {
+      int redundantOpCompactThreshold = Math.max(1, REDUNDANT_OP_COMPACT_THRESHOLD / shards.length);
+      return redundantOpCount >= redundantOpCompactThreshold
+          && redundantOpCount >= lruEntries.size();
+    }
+
+    void compactIfRequired() {
+      synchronized (journalLock) {
+        synchronized (this) {
+          drainReads();
+          try {
+            if (journalRebuildRequired()) {
+              rebuildJournal();
+              redundantOpCount = 0;
+            }
+          } catch (IOException e) {
+            mostRecentRebuildFailed = true;
+            journalWriter = Okio.buffer(Okio.blackhole());
+          }
+        }
+      }
+    }
+
+    BufferedSink newJournalWriter() throws FileNotFoundException {
+      Sink fileSink = fileSystem.appendingSink(journalFile);
+      Sink faultHidingSink = new FaultHidingSink(fileSink) {
+        @Override protected void onException(IOException e) {
+          assert (Thread.holdsLock(journalLock));
+          hasJournalErrors = true;
+        }
+      };
+      return Okio.buffer(faultHidingSink);
+    }
+
+    /**
+     * Creates a new journal that omits redundant information. This replaces the current journal if
+     * it exists, and discards lines that weren't written yet because the new journal includes
+     * them. Callers must hold the journal lock and this shard's lock unless the cache is still
+     * initializing.
+     */
+    void rebuildJournal() throws IOException {
+      if (journalWriter != null) {
+        journalWriter.close();
+      }
+
+      BufferedSink writer = Okio.buffer(fileSystem.sink(journalFileTmp));
+      try {
+        writeJournalHeader(writer.buffer());
+
+        for (Entry entry : lruEntries.values()) {
+          if (entry.currentEditor != null) {
+            writeJournalRecord(writer.buffer(), DIRTY, entry.key, null);
+          } else {
+            writeJournalRecord(writer.buffer(), CLEAN, entry.key, entry.lengths);
+          }
+          writer.emitCompleteSegments();
+        }
+      } finally {
+        writer.close();
+      }
+
+      if (fileSystem.exists(journalFile)) {
+        fileSystem.rename(journalFile, journalFileBackup);
+      }
+      fileSystem.rename(journalFileTmp, journalFile);
+      fileSystem.delete(journalFileBackup);
+
+      journalWriter = newJournalWriter();
+      pendingJournal.clear();
+      committedTicket = journalTicket;
+      hasJournalErrors = false;
+      mostRecentRebuildFailed = false;
+    }
+  }
+
   /** A snapshot of the values for an entry. */
   public final class Snapshot implements Closeable {
     private final String key;
@@ -831,7 +1396,7 @@ public final class DiskLruCache implements Closeable, Flushable {
   public final class Editor {
     final Entry entry;
     final boolean[] written;
-    private boolean done;
+    boolean done;
 
     Editor(Entry entry) {
       this.entry = entry;
@@ -848,7 +1413,7 @@ public final class DiskLruCache implements Closeable, Flushable {
       if (entry.currentEditor == this) {
         for (int i = 0; i < valueCount; i++) {
           try {
-            fileSystem.delete(entry.dirtyFiles[i]);
+            fileSystem.delete(entry.dirtyFile(i));
           } catch (IOException e) {
             // This file is potentially leaked. Not much we can do about that.
           }
@@ -862,7 +1427,7 @@ public final class DiskLruCache implements Closeable, Flushable {
      * been committed.
      */
     public Source newSource(int index) {
-      synchronized (DiskLruCache.this) {
+      synchronized (entry.shard) {
         if (done) {
           throw new IllegalStateException();
         }
@@ -870,7 +1435,7 @@ public final class DiskLruCache implements Closeable, Flushable {
           return null;
         }
         try {
-          return fileSystem.source(entry.cleanFiles[index]);
+          return fileSystem.source(entry.cleanFile(index));
         } catch (FileNotFoundException e) {
           return null;
         }
@@ -883,7 +1448,7 @@ public final class DiskLruCache implements Closeable, Flushable {
      * when {@link #commit} is called. The returned output stream does not throw IOExceptions.
      */
     public Sink newSink(int index) {
-      synchronized (DiskLruCache.this) {
+      synchronized (entry.shard) {
         if (done) {
           throw new IllegalStateException();
         }
@@ -893,7 +1458,7 @@ public final class DiskLruCache implements Closeable, Flushable {
         if (!entry.readable) {
           written[index] = true;
         }
-        File dirtyFile = entry.dirtyFiles[index];
+        File dirtyFile = entry.dirtyFile(index);
         Sink sink;
         try {
           sink = fileSystem.sink(dirtyFile);
@@ -902,7 +1467,7 @@ public final class DiskLruCache implements Closeable, Flushable {
         }
         return new FaultHidingSink(sink) {
           @Override protected void onException(IOException e) {
-            synchronized (DiskLruCache.this) {
+            synchronized (entry.shard) {
               detach();
             }
           }
@@ -915,15 +1480,7 @@ public final class DiskLruCache implements Closeable, Flushable {
      * may be started on the same key.
      */
     public void commit() throws IOException {
-      synchronized (DiskLruCache.this) {
-        if (done) {
-          throw new IllegalStateException();
-        }
-        if (entry.currentEditor == this) {
-          completeEdit(this, true);
-        }
-        done = true;
-      }
+      complete(true);
     }
 
     /**
@@ -931,36 +1488,65 @@ public final class DiskLruCache implements Closeable, Flushable {
      * key.
      */
     public void abort() throws IOException {
-      synchronized (DiskLruCache.this) {
-        if (done) {
-          throw new IllegalStateException();
-        }
-        if (entry.currentEditor == this) {
-          completeEdit(this, false);
-        }
-        done = true;
-      }
+      complete(false);
     }
 
     public void abortUnlessCommitted() {
-      synchronized (DiskLruCache.this) {
+      long ticket = 0L;
+      synchronized (entry.shard) {
         if (!done && entry.currentEditor == this) {
           try {
-            completeEdit(this, false);
+            ticket = completeEdit(this, false);
           } catch (IOException ignored) {
           }
         }
       }
+      if (ticket != 0L) {
+        try {
+          entry.shard.commitJournal(ticket);
+        } catch (IOException ignored) {
+        }
+      }
+    }
+
+    private void complete(boolean success) throws IOException {
+      long ticket = 0L;
+      synchronized (entry.shard) {
+        if (done) {
+          throw new IllegalStateException();
+        }
+        if (entry.currentEditor == this) {
+          ticket = completeEdit(this, success);
+        }
+        done = true;
+      }
+      if (ticket != 0L) {
+        entry.shard.commitJournal(ticket);
+      }
+    }
+  }
+
+  /** The values that readers of an entry see. Replaced, never changed, when an edit commits. */
+  static final class Published {
+    final long sequenceNumber;
+    final long[] lengths;
+
+    Published(long sequenceNumber, long[] lengths) {
+      this.sequenceNumber = sequenceNumber;
+      this.lengths = lengths;
     }
   }
 
   private final class Entry {
+    final Shard shard;
     final String key;
 
     /** Lengths of this entry's files. */
     final long[] lengths;
-    final File[] cleanFiles;
-    final File[] dirtyFiles;
+
+    /** Created on first use: most entries read from the journal are never used. */
+    private volatile File[] cleanFiles;
+    private volatile File[] dirtyFiles;
 
     /** True if this entry has ever been published. */
     boolean readable;
@@ -971,23 +1557,45 @@ public final class DiskLruCache implements Closeable, Flushable {
     /** The sequence number of the most recently committed edit to this entry. */
     long sequenceNumber;
 
-    Entry(String key) {
+    /**
+     * What readers see, or null if this entry isn't readable or its files are being replaced.
+     * Written while holding the shard's lock; read without it.
+     */
+    volatile Published published;
+
+    /** The {@link #accessClock} time of the most recent access, for trimming across shards. */
+    volatile long lastAccess;
+
+    Entry(Shard shard, String key) {
+      this.shard = shard;
       this.key = key;
 
       lengths = new long[valueCount];
-      cleanFiles = new File[valueCount];
-      dirtyFiles = new File[valueCount];
+    }
+
+    File cleanFile(int index) {
+      File[] result = cleanFiles;
+      if (result == null) cleanFiles = result = files("");
+      return result[index];
+    }
 
+    File dirtyFile(int index) {
+      File[] result = dirtyFiles;
+      if (result == null) dirtyFiles = result = files(".tmp");
+      return result[index];
+    }
+
+    private File[] files(String suffix) {
+      File[] result = new File[valueCount];
       // The names are repetitive so re-use the same builder to avoid allocations.
       StringBuilder fileBuilder = new StringBuilder(key).append('.');
       int truncateTo = fileBuilder.length();
       for (int i = 0; i < valueCount; i++) {
-        fileBuilder.append(i);
-        cleanFiles[i] = new File(directory, fileBuilder.toString());
-        fileBuilder.append(".tmp");
-        dirtyFiles[i] = new File(directory, fileBuilder.toString());
+        fileBuilder.append(i).append(suffix);
+        result[i] = new File(directory, fileBuilder.toString());
         fileBuilder.setLength(truncateTo);
       }
+      return result;
     }
 
     /** Set lengths using decimal numbers like "10123". */
@@ -1005,49 +1613,74 @@ public final class DiskLruCache implements Closeable, Flushable {
       }
     }
 
-    /** Append space-prefixed lengths to {@code writer}. */
-    void writeLengths(BufferedSink writer) throws IOException {
-      for (long length : lengths) {
-        writer.writeByte(' ').writeDecimalLong(length);
-      }
-    }
-
     private IOException invalidLengths(String[] strings) throws IOException {
       throw new IOException("unexpected journal line: " + Arrays.toString(strings));
     }
 
+    /** Makes the current lengths and sequence number visible to readers. */
+    void publish() {
+      published = new Published(sequenceNumber, lengths.clone());
+    }
+
     /**
      * Returns a snapshot of this entry. This opens all streams eagerly to guarantee that we see a
      * single published snapshot. If we opened streams lazily then the streams could come from
      * different edits.
+     *
+     * <p>This opens the streams without locking, then checks that no edit was committed while it
+     * did. If one was, or a file is missing, it tries again while holding the shard's lock.
      */
     Snapshot snapshot() {
-      if (!Thread.holdsLock(DiskLruCache.this)) throw new AssertionError();
+      Published published = this.published;
+      if (published == null) return null;
+
+      Source[] sources = openSources();
+      if (sources != null && this.published == published) {
+        return new Snapshot(key, published.sequenceNumber, sources, published.lengths);
+      }
+      closeSources(sources);
+
+      synchronized (shard) {
+        published = this.published;
+        if (published == null) return null;
+        sources = openSources();
+        if (sources != null) {
+          return new Snapshot(key, published.sequenceNumber, sources, published.lengths);
+        }
 
+        // A file must have been deleted manually! Since the entry is no longer valid, remove it so
+        // the metadata is accurate (i.e. the cache size.)
+        try {
+          if (shard.lruEntries.get(key) == this) shard.removeEntry(this);
+        } catch (IOException ignored) {
+        }
+        return null;
+      }
+    }
+
+    /** Returns sources for every value, or null if a file is missing. */
+    private @Nullable Source[] openSources() {
       Source[] sources = new Source[valueCount];
-      long[] lengths = this.lengths.clone(); // Defensive copy since these can be zeroed out.
       try {
         for (int i = 0; i < valueCount; i++) {
-          sources[i] = fileSystem.source(cleanFiles[i]);
+          sources[i] = fileSystem.source(cleanFile(i));
         }
-        return new Snapshot(key, sequenceNumber, sources, lengths);
+        return sources;
       } catch (FileNotFoundException e) {
-        // A file must have been deleted manually!
-        for (int i = 0; i < valueCount; i++) {
-          if (sources[i] != null) {
-            Util.closeQuietly(sources[i]);
-          } else {
-            break;
-          }
-        }
-        // Since the entry is no longer valid, remove it so the metadata is accurate (i.e. the cache
-        // size.)
-        try {
-          removeEntry(this);
-        } catch (IOException ignored) {
-        }
+        closeSources(sources);
         return null;
       }
     }
+
+    private void closeSources(@Nullable Source[] sources) {
+      if (sources == null) return;
+      for (Source source : sources) {
+        if (source != null) {
+          Util.closeQuietly(source);
+        } else {
+          break;
+        }
+      }
+    }
   }
 }
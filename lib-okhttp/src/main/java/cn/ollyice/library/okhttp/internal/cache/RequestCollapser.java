@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import cn.ollyice.library.okhttp.Cache;
+import cn.ollyice.library.okhttp.Call;
+import cn.ollyice.library.okhttp.CallPriority;
+import cn.ollyice.library.okhttp.Callback;
+import cn.ollyice.library.okhttp.Headers;
+import cn.ollyice.library.okhttp.Request;
+import cn.ollyice.library.okhttp.Response;
+import cn.ollyice.library.okhttp.internal.Internal;
+import cn.ollyice.library.okhttp.internal.cache2.Relay;
+import cn.ollyice.library.okhttp.internal.http.HttpHeaders;
+import cn.ollyice.library.okhttp.internal.http.RealResponseBody;
+import cn.ollyice.library.okhttp.internal.http.StatusLine;
+import cn.ollyice.library.okio.Buffer;
+import cn.ollyice.library.okio.ByteString;
+import cn.ollyice.library.okio.ForwardingSource;
+import cn.ollyice.library.okio.Okio;
+import cn.ollyice.library.okio.Source;
+
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static cn.ollyice.library.okhttp.internal.Util.closeQuietly;
+
+/**
+ * Shares network requests between concurrent calls for the same cached resource.
+ *
+ * <p>When several calls miss the cache for one URL at the same time, only the first goes to the
+ * network and the others wait for its response. If that response is cacheable, each waiting call
+ * gets a copy whose body is teed through a {@link Relay}: whichever reader is furthest ahead pulls
+ * bytes from the network, which writes them to the cache and to a relay file, and the other readers
+ * read that file at their own pace. If the response isn't cacheable the waiting calls make their
+ * own requests.
+ *
+ * <p>With a retention time this relays every published response, not only those that calls are
+ * waiting for. Calls that come later read the relay file from the start. Once the last reader
+ * closes, a complete relay file is kept for the retention time so that calls in that time replay
+ * it from disk instead of making a request.
+ *
+ * <p>This also runs the background requests that refresh responses served under {@code
+ * stale-while-revalidate}, one per resource at a time.
+ */
+public final class RequestCollapser {
+  /** Upstream bytes kept in memory for readers that keep up. Readers that lag read the file. */
+  private static final long RELAY_BUFFER_SIZE = 64 * 1024L;
+
+  /** How often calls waiting for another call's response check whether they were canceled. */
+  private static final long CANCEL_POLL_MILLIS = 100L;
+
+  private static final String RELAY_FILE_SUFFIX = ".relay";
+
+  /** Where relay files are written. */
+  private final File directory;
+
+  /** How long complete relay files are kept for later calls, or -1 to not keep them. */
+  private final long retentionMillis;
+
+  /** Requests in progress by cache key. Guarded by this. */
+  private final Map<String, Fetch> fetches = new LinkedHashMap<>();
+
+  /** Complete relay files kept for later calls, by cache key. Guarded by this. */
+  private final Map<String, Recording> recordings = new LinkedHashMap<>();
+
+  /** Background refreshes in progress by cache key. Guarded by this. */
+  private final Map<String, Call> revalidations = new LinkedHashMap<>();
+
+  private final AtomicInteger relayFileCount = new AtomicInteger();
+  private final AtomicBoolean staleRelayFilesDeleted = new AtomicBoolean();
+
+  public RequestCollapser(File directory) {
+    this(directory, -1L);
+  }
+
+  /**
+   * @param retentionMillis how long to keep complete relay files for later calls to replay, or -1
+   *     to only relay responses to calls that are waiting for them.
+   */
+  public RequestCollapser(File directory, long retentionMillis) {
+    if (retentionMillis < -1L) {
+      throw new IllegalArgumentException("retentionMillis < -1: " + retentionMillis);
+    }
+    this.directory = directory;
+    this.retentionMillis = retentionMillis;
+  }
+
+  /**
+   * Returns true if a response to {@code request} may be shared with other calls. Range and
+   * conditional requests expect a response of their own.
+   */
+  public static boolean isCollapsible(Request request) {
+    return request.method().equals("GET")
+        && request.header("Range") == null
+        && request.header("If-None-Match") == null
+        && request.header("If-Modified-Since") == null;
+  }
+
+  /**
+   * Returns a new fetch that the caller must make and then {@linkplain Fetch#publish publish} or
+   * {@linkplain Fetch#release release}. Returns null if another call is already fetching {@code
+   * request}'s resource or if it's been recorded, in which case the caller should {@link #follow}.
+   */
+  public @Nullable Fetch lead(Request request) {
+    String key = Cache.key(request.url());
+    synchronized (this) {
+      if (fetches.containsKey(key) || recording(key) != null) return null;
+      Fetch fetch = new Fetch(key, request);
+      fetches.put(key, fetch);
+      return fetch;
+    }
+  }
+
+  /**
+   * Waits for the call fetching {@code request}'s resource and returns a copy of its response, or
+   * replays the recorded response. Returns null if that response can't be shared or if that call
+   * has finished, in which case the caller should make its own request.
+   */
+  public @Nullable Response follow(Call call, Request request) throws IOException {
+    String key = Cache.key(request.url());
+    Fetch fetch;
+    Recording recording = null;
+    synchronized (this) {
+      fetch = fetches.get(key);
+      if (fetch == null) recording = recording(key);
+    }
+    if (fetch != null) return fetch.await(call, request);
+    if (recording != null) return replay(key, recording, request);
+    return null;
+  }
+
+  /** Returns the unexpired recording of {@code key}, or null if there isn't one. */
+  private @Nullable Recording recording(String key) {
+    assert Thread.holdsLock(this);
+    Recording recording = recordings.get(key);
+    if (recording != null && System.nanoTime() - recording.expiresAtNanos >= 0) {
+      recordings.remove(key);
+      recording.file.delete();
+      return null;
+    }
+    return recording;
+  }
+
+  /** Returns the recorded response for {@code request}, or null if it can't be read. */
+  private @Nullable Response replay(String key, Recording recording, Request request) {
+    Relay relay;
+    try {
+      relay = Relay.read(recording.file);
+    } catch (IOException e) {
+      synchronized (this) {
+        if (recordings.get(key) == recording) recordings.remove(key);
+      }
+      recording.file.delete();
+      return null;
+    }
+
+    Source source = relay.newSource();
+    try {
+      Buffer metadata = new Buffer().write(relay.metadata());
+      StatusLine statusLine = StatusLine.parse(metadata.readUtf8LineStrict());
+      Headers.Builder headersBuilder = new Headers.Builder();
+      for (String line; (line = metadata.readUtf8Line()) != null; ) {
+        Internal.instance.addLenient(headersBuilder, line);
+      }
+      Headers headers = headersBuilder.build();
+      return new Response.Builder()
+          .request(request)
+          .protocol(statusLine.protocol)
+          .code(statusLine.code)
+          .message(statusLine.message)
+          .headers(headers)
+          .body(new RealResponseBody(headers.get("Content-Type"),
+              HttpHeaders.contentLength(headers), Okio.buffer(source)))
+          .sentRequestAtMillis(-1L)
+          .receivedResponseAtMillis(System.currentTimeMillis())
+          .build();
+    } catch (IOException e) {
+      closeQuietly(source);
+      return null;
+    }
+  }
+
+  /** Returns the status line and headers of {@code response}, to be replayed later. */
+  private static ByteString metadata(Response response) {
+    Buffer result = new Buffer();
+    result.writeUtf8(new StatusLine(response.protocol(), response.code(), response.message())
+        .toString()).writeByte('\n');
+    Headers headers = response.headers();
+    for (int i = 0, size = headers.size(); i < size; i++) {
+      result.writeUtf8(headers.name(i))
+          .writeUtf8(": ")
+          .writeUtf8(headers.value(i))
+          .writeByte('\n');
+    }
+    return result.readByteString();
+  }
+
+  /**
+   * Refreshes the cached response to {@code request} with a new low priority call from {@code
+   * callFactory}. Returns false if {@code call} is itself that refresh and should make its request.
+   */
+  public boolean revalidate(Call.Factory callFactory, Call call, Request request) {
+    final String key = Cache.key(request.url());
+    final Call revalidation;
+    synchronized (this) {
+      Call running = revalidations.get(key);
+      if (running == call) return false;
+      if (running != null) return true; // Already refreshing.
+      revalidation = callFactory.newCall(backgroundRequest(request));
+      revalidations.put(key, revalidation);
+    }
+
+    revalidation.enqueue(new Callback() {
+      @Override public void onFailure(Call call, IOException e) {
+        revalidated(key, call);
+      }
+
+      @Override public void onResponse(Call call, Response response) throws IOException {
+        try {
+          // The cache is only written as the body is read. A 304's body is already cached.
+          Response networkResponse = response.networkResponse();
+          if (networkResponse != null && networkResponse.code() != HTTP_NOT_MODIFIED) {
+            response.body().source().readAll(Okio.blackhole());
+          }
+        } finally {
+          closeQuietly(response);
+          revalidated(key, call);
+        }
+      }
+    });
+    return true;
+  }
+
+  private synchronized void revalidated(String key, Call call) {
+    if (revalidations.get(key) == call) revalidations.remove(key);
+  }
+
+  /** Returns {@code request} at low priority, unless its tag is something other than a priority. */
+  private static Request backgroundRequest(Request request) {
+    Object tag = request.tag();
+    if (tag != request && !(tag instanceof CallPriority)) return request;
+    return request.newBuilder().tag(CallPriority.LOW).build();
+  }
+
+  private File newRelayFile() {
+    if (!directory.isDirectory()) directory.mkdirs();
+
+    // Relay files are only needed while their fetch is read. Delete any left by a crash.
+    if (staleRelayFilesDeleted.compareAndSet(false, true)) {
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (file.getName().endsWith(RELAY_FILE_SUFFIX)) file.delete();
+        }
+      }
+    }
+
+    return new File(directory, relayFileCount.incrementAndGet() + RELAY_FILE_SUFFIX);
+  }
+
+  /** A request for a resource that other calls may share. */
+  public final class Fetch {
+    final String key;
+
+    /** The request of the call making this fetch. */
+    final Request request;
+
+    /** Calls waiting for the response. Guarded by this. */
+    int waitingCount;
+
+    /** True once the response is published or the fetch failed. Guarded by this. */
+    boolean done;
+
+    /** These are null unless the response is shared. They don't change once {@link #done}. */
+    @Nullable Relay relay;
+    @Nullable File relayFile;
+    @Nullable Response response;
+    long contentLength;
+
+    /** Sources opened for the calls that were waiting when the response was shared. */
+    final Deque<Source> handoffSources = new ArrayDeque<>();
+
+    Fetch(String key, Request request) {
+      this.key = key;
+      this.request = request;
+    }
+
+    /**
+     * Shares {@code response} with the calls waiting for it and returns this call's copy. The
+     * caller must have checked that the response may be shared.
+     */
+    public Response publish(Response response) {
+      Relay relay = null;
+      synchronized (this) {
+        done = true;
+
+        boolean record = retentionMillis != -1L;
+        if ((waitingCount > 0 || record) && !HttpHeaders.hasVaryAll(response)) {
+          File file = newRelayFile();
+          try {
+            relay = Relay.edit(file, response.body().source(),
+                record ? metadata(response) : ByteString.EMPTY, RELAY_BUFFER_SIZE);
+          } catch (IOException e) {
+            file.delete(); // Waiting calls will make their own requests.
+          }
+
+          if (relay != null) {
+            this.relay = relay;
+            this.relayFile = file;
+            this.contentLength = response.body().contentLength();
+            this.response = response.newBuilder().body(null).build();
+            for (int i = 0; i < waitingCount; i++) {
+              handoffSources.add(relay.newSource());
+            }
+            response = copy(response.request(), relay.newSource());
+          }
+        }
+
+        notifyAll();
+      }
+
+      if (relay == null) finished();
+      return response;
+    }
+
+    /**
+     * Releases the calls waiting for this fetch to make their own requests. Does nothing if the
+     * response was published.
+     */
+    public void release() {
+      synchronized (this) {
+        if (done) return;
+        done = true;
+        notifyAll();
+      }
+      finished();
+    }
+
+    @Nullable Response await(Call call, Request request) throws IOException {
+      Source source;
+      synchronized (this) {
+        if (done) {
+          // A late joiner. It reads what's been relayed so far from the relay file.
+          source = relay != null ? relay.newSource() : null;
+        } else {
+          waitingCount++;
+          try {
+            while (!done) {
+              if (call.isCanceled()) {
+                waitingCount--;
+                throw new IOException("Canceled");
+              }
+              wait(CANCEL_POLL_MILLIS);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!done) {
+              waitingCount--;
+              throw new InterruptedIOException();
+            }
+          }
+          source = handoffSources.poll();
+        }
+      }
+      if (source == null) return null;
+
+      if (!HttpHeaders.varyMatches(response, this.request.headers(), request)) {
+        new SharedSource(source).close();
+        return null;
+      }
+      return copy(request, source);
+    }
+
+    /** Returns the shared response for {@code request}, with a body read from {@code source}. */
+    private Response copy(Request request, Source source) {
+      String contentType = response.header("Content-Type");
+      return response.newBuilder()
+          .request(request)
+          .body(new RealResponseBody(
+              contentType, contentLength, Okio.buffer(new SharedSource(source))))
+          .build();
+    }
+
+    private void finished() {
+      synchronized (RequestCollapser.this) {
+        if (fetches.get(key) == this) fetches.remove(key);
+      }
+    }
+
+    /** Ends this fetch, keeping its relay file if it's complete and recordings are retained. */
+    private void relayClosed() {
+      boolean record = retentionMillis != -1L
+          && relay.isComplete()
+          && HttpHeaders.varyFields(response.headers()).isEmpty();
+      List<File> expired = new ArrayList<>();
+      synchronized (RequestCollapser.this) {
+        if (fetches.get(key) == this) fetches.remove(key);
+        if (record) {
+          long now = System.nanoTime();
+          for (Iterator<Recording> i = recordings.values().iterator(); i.hasNext(); ) {
+            Recording recording = i.next();
+            if (now - recording.expiresAtNanos >= 0) {
+              i.remove();
+              expired.add(recording.file);
+            }
+          }
+          Recording replaced = recordings.put(key,
+              new Recording(relayFile, now + MILLISECONDS.toNanos(retentionMillis)));
+          if (replaced != null) expired.add(replaced.file);
+        }
+      }
+      if (!record) expired.add(relayFile);
+      for (File file : expired) {
+        file.delete();
+      }
+    }
+
+    /** Ends this fetch once its last reader is closed. */
+    final class SharedSource extends ForwardingSource {
+      private boolean closed;
+
+      SharedSource(Source delegate) {
+        super(delegate);
+      }
+
+      @Override public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        super.close();
+        if (relay.isClosed()) relayClosed();
+      }
+    }
+  }
+
+  /** A complete relay file and when it expires. */
+  static final class Recording {
+    final File file;
+    final long expiresAtNanos;
+
+    Recording(File file, long expiresAtNanos) {
+      this.file = file;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+}
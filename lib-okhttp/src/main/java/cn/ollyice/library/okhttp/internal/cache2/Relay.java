@@ -38,7 +38,7 @@ import static cn.ollyice.library.okhttp.internal.Util.closeQuietly;
  */
 // TODO(jwilson): what to do about timeouts? They could be different and unfortunately when any
 //     timeout is hit we like to tear down the whole stream.
-final class Relay {
+public final class Relay {
   private static final int SOURCE_UPSTREAM = 1;
   private static final int SOURCE_FILE = 2;
 
@@ -84,6 +84,9 @@ final class Relay {
   /** True if there are no further bytes to read from {@code upstream}. Guarded by this. */
   boolean complete;
 
+  /** True if reading {@code upstream} failed. Later reads fail too. Guarded by this. */
+  boolean upstreamFailed;
+
   /** User-supplied additional data persisted with the source data. */
   private final ByteString metadata;
 
@@ -144,21 +147,27 @@ final class Relay {
     RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
     FileOperator fileOperator = new FileOperator(randomAccessFile.getChannel());
 
-    // Read the header.
-    Buffer header = new Buffer();
-    fileOperator.read(0, header, FILE_HEADER_SIZE);
-    ByteString prefix = header.readByteString(PREFIX_CLEAN.size());
-    if (!prefix.equals(PREFIX_CLEAN)) throw new IOException("unreadable cache file");
-    long upstreamSize = header.readLong();
-    long metadataSize = header.readLong();
-
-    // Read the metadata.
-    Buffer metadataBuffer = new Buffer();
-    fileOperator.read(FILE_HEADER_SIZE + upstreamSize, metadataBuffer, metadataSize);
-    ByteString metadata = metadataBuffer.readByteString();
-
-    // Return the result.
-    return new Relay(randomAccessFile, null, upstreamSize, metadata, 0L);
+    boolean success = false;
+    try {
+      // Read the header.
+      Buffer header = new Buffer();
+      fileOperator.read(0, header, FILE_HEADER_SIZE);
+      ByteString prefix = header.readByteString(PREFIX_CLEAN.size());
+      if (!prefix.equals(PREFIX_CLEAN)) throw new IOException("unreadable cache file");
+      long upstreamSize = header.readLong();
+      long metadataSize = header.readLong();
+
+      // Read the metadata.
+      Buffer metadataBuffer = new Buffer();
+      fileOperator.read(FILE_HEADER_SIZE + upstreamSize, metadataBuffer, metadataSize);
+      ByteString metadata = metadataBuffer.readByteString();
+
+      // Return the result.
+      success = true;
+      return new Relay(randomAccessFile, null, upstreamSize, metadata, 0L);
+    } finally {
+      if (!success) closeQuietly(randomAccessFile);
+    }
   }
 
   private void writeHeader(
@@ -199,7 +208,13 @@ final class Relay {
     upstream = null;
   }
 
-  boolean isClosed() {
+  /** Returns true once the file has a complete copy of upstream and can be {@linkplain #read}. */
+  public synchronized boolean isComplete() {
+    return complete;
+  }
+
+  /** Returns true once every source is closed. Sources are not permitted after that. */
+  public synchronized boolean isClosed() {
     return file == null;
   }
 
@@ -261,6 +276,9 @@ final class Relay {
           // No more data upstream. We're done.
           if (complete) return -1L;
 
+          // Another thread failed to read upstream. Don't retry a broken stream.
+          if (upstreamFailed) throw new IOException("upstream failed");
+
           // Another thread is already reading. Wait for that.
           if (upstreamReader != null) {
             timeout.waitUntilNotified(Relay.this);
@@ -298,12 +316,14 @@ final class Relay {
 
       // Read from upstream. This always reads a full buffer: that might be more than what the
       // current call to Source.read() has requested.
+      boolean success = false;
       try {
         long upstreamBytesRead = upstream.read(upstreamBuffer, bufferMaxSize);
 
         // If we've exhausted upstream, we're done.
         if (upstreamBytesRead == -1L) {
           commit(upstreamPos);
+          success = true;
           return -1L;
         }
 
@@ -327,9 +347,11 @@ final class Relay {
           Relay.this.upstreamPos += upstreamBytesRead;
         }
 
+        success = true;
         return bytesRead;
       } finally {
         synchronized (Relay.this) {
+          if (!success) upstreamFailed = true;
           upstreamReader = null;
           Relay.this.notifyAll();
         }
@@ -345,14 +367,20 @@ final class Relay {
       fileOperator = null;
 
       RandomAccessFile fileToClose = null;
+      Source upstreamToClose = null;
       synchronized (Relay.this) {
         sourceCount--;
         if (sourceCount == 0) {
           fileToClose = file;
           file = null;
+          // Nobody is left to read the rest of upstream. Release it.
+          if (!complete) upstreamToClose = upstream;
         }
       }
 
+      if (upstreamToClose != null) {
+        closeQuietly(upstreamToClose);
+      }
       if (fileToClose != null) {
         closeQuietly(fileToClose);
       }
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.connection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import cn.ollyice.library.okhttp.Call;
+import cn.ollyice.library.okhttp.EventListener;
+import cn.ollyice.library.okhttp.Route;
+import cn.ollyice.library.okhttp.internal.NamedRunnable;
+import cn.ollyice.library.okhttp.internal.Util;
+import cn.ollyice.library.okhttp.internal.platform.Platform;
+
+import static cn.ollyice.library.okhttp.internal.Util.closeQuietly;
+
+/**
+ * Races TCP connects to several IP addresses of one host, as described by <a
+ * href="https://tools.ietf.org/html/rfc8305">RFC 8305, Happy Eyeballs Version 2</a>. The addresses
+ * are interleaved by family so that IPv6 and IPv4 alternate. The first attempt starts immediately
+ * and each following attempt starts after {@link #CONNECTION_ATTEMPT_DELAY_MILLIS}, or as soon as
+ * an earlier attempt fails. The first socket to connect wins and the others are closed.
+ *
+ * <p>This keeps an unreachable address, typically a broken IPv6 route, from stalling a call for
+ * the full connect timeout.
+ */
+final class HappyEyeballs {
+  /** The delay between attempts recommended by RFC 8305 section 8. */
+  static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250L;
+
+  /** Runs connect attempts. Threads are daemons and die when idle. */
+  private static final Executor executor = new ThreadPoolExecutor(0 /* corePoolSize */,
+      Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp Happy Eyeballs", true));
+
+  private final List<Route> routes;
+  private final int connectTimeout;
+  private final Call call;
+  private final EventListener eventListener;
+
+  /** Finished attempts, in the order they finished. */
+  private final LinkedBlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+  private final List<Attempt> started = new ArrayList<>();
+
+  /** True once {@link #cancel} is called. No more attempts start after that. */
+  private boolean canceled;
+
+  HappyEyeballs(List<Route> routes, int connectTimeout, Call call, EventListener eventListener) {
+    this.routes = interleave(routes);
+    this.connectTimeout = connectTimeout;
+    this.call = call;
+    this.eventListener = eventListener;
+  }
+
+  /**
+   * Returns the first attempt to connect. Its socket is connected. Attempts that lose are reported
+   * to the event listener as failed. If every attempt fails this throws the first attempt's
+   * exception, which the caller should report.
+   */
+  Attempt connect() throws IOException {
+    Attempt winner = null;
+    int running = 0;
+    try {
+      while (true) {
+        if (started.size() < routes.size() && !isCanceled()) {
+          start(routes.get(started.size()));
+          running++;
+        }
+        if (running == 0) {
+          // Canceled before every route was tried, and every attempt that started has finished.
+          if (started.isEmpty()) throw new ConnectException("Canceled");
+          throw started.get(0).exception;
+        }
+
+        // Wait for an attempt to finish, but only as long as the next attempt should wait.
+        Attempt attempt = started.size() < routes.size() && !isCanceled()
+            ? finished.poll(CONNECTION_ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+            : finished.take();
+        if (attempt == null) continue; // Nothing finished in time. Start another.
+        attempt.done = true;
+        running--;
+
+        if (attempt.exception == null) {
+          winner = attempt;
+          return winner;
+        }
+        if (running == 0 && started.size() == routes.size()) throw started.get(0).exception;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted");
+    } finally {
+      cancelLosers(winner);
+    }
+  }
+
+  /**
+   * Returns the attempts whose connect failed, as opposed to being canceled or beaten by another
+   * attempt. Their routes should be avoided by later connections.
+   */
+  synchronized List<Attempt> failures() {
+    List<Attempt> result = new ArrayList<>();
+    for (Attempt attempt : started) {
+      if (attempt.failed) result.add(attempt);
+    }
+    return result;
+  }
+
+  /**
+   * Closes the sockets of all attempts, including one that has already won, so that a racing
+   * {@link #connect} fails promptly. This is how {@link RealConnection#cancel} reaches sockets that
+   * aren't the connection's yet. Canceled attempts aren't reported as failures.
+   */
+  void cancel() {
+    synchronized (this) {
+      canceled = true;
+      for (Attempt attempt : started) {
+        attempt.canceled = true;
+        closeQuietly(attempt.socket);
+      }
+    }
+  }
+
+  private synchronized boolean isCanceled() {
+    return canceled;
+  }
+
+  private void start(Route route) {
+    Attempt attempt = new Attempt(route);
+    synchronized (this) {
+      attempt.canceled = canceled;
+      started.add(attempt);
+    }
+    eventListener.connectStart(call, route.socketAddress(), route.proxy());
+    executor.execute(attempt);
+  }
+
+  /**
+   * Closes every attempt but the winner, including ones still connecting, and reports them as
+   * failed. If there's no winner the first attempt isn't reported; that's left to the caller.
+   */
+  private void cancelLosers(Attempt winner) {
+    synchronized (this) {
+      for (Attempt attempt : started) {
+        if (attempt == winner) continue;
+        attempt.canceled = true;
+        closeQuietly(attempt.socket);
+      }
+    }
+    for (Attempt attempt : started) {
+      if (attempt == winner || (winner == null && attempt == started.get(0))) continue;
+      IOException e = attempt.done
+          ? attempt.exception
+          : new ConnectException("Canceled: another address connected first");
+      eventListener.connectFailed(
+          call, attempt.route.socketAddress(), attempt.route.proxy(), null, e);
+    }
+  }
+
+  /**
+   * Returns {@code routes} reordered so that address families alternate, starting with the family
+   * of the first route. Order within each family is preserved.
+   */
+  static List<Route> interleave(List<Route> routes) {
+    if (routes.isEmpty()) return routes;
+    boolean firstIsIpv6 = isIpv6(routes.get(0));
+    List<Route> preferred = new ArrayList<>();
+    List<Route> other = new ArrayList<>();
+    for (Route route : routes) {
+      (isIpv6(route) == firstIsIpv6 ? preferred : other).add(route);
+    }
+    List<Route> result = new ArrayList<>(routes.size());
+    for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+      if (i < preferred.size()) result.add(preferred.get(i));
+      if (i < other.size()) result.add(other.get(i));
+    }
+    return result;
+  }
+
+  private static boolean isIpv6(Route route) {
+    return route.socketAddress().getAddress() instanceof Inet6Address;
+  }
+
+  /** One connect attempt. Its socket is connected if {@link #exception} is null. */
+  final class Attempt extends NamedRunnable {
+    final Route route;
+    Socket socket;
+    IOException exception;
+    boolean won;
+    boolean canceled;
+
+    /** True if connecting failed on its own, rather than because this attempt was canceled. */
+    boolean failed;
+
+    /** True once the racing thread has taken this from {@link #finished}. */
+    boolean done;
+
+    Attempt(Route route) {
+      super("OkHttp Happy Eyeballs %s", route.socketAddress());
+      this.route = route;
+    }
+
+    @Override protected void execute() {
+      Socket socket = null;
+      try {
+        socket = route.address().socketFactory().createSocket();
+        synchronized (HappyEyeballs.this) {
+          this.socket = socket;
+          if (canceled) throw new ConnectException("Canceled");
+        }
+        Platform.get().connectSocket(socket, route.socketAddress(), connectTimeout);
+      } catch (IOException e) {
+        closeQuietly(socket); // Canceling may have missed it, if it was created after.
+        ConnectException ce = new ConnectException("Failed to connect to " + route.socketAddress());
+        ce.initCause(e);
+        exception = ce;
+      } catch (SecurityException e) {
+        closeQuietly(socket);
+        ConnectException ce = new ConnectException("Failed to connect to " + route.socketAddress());
+        ce.initCause(e);
+        exception = ce;
+      }
+
+      synchronized (HappyEyeballs.this) {
+        if (exception != null) {
+          failed = !canceled;
+        } else if (!canceled && !anyWon()) {
+          won = true;
+        } else {
+          closeQuietly(socket);
+          if (exception == null) {
+            exception = new ConnectException("Canceled: another address connected first");
+          }
+        }
+      }
+      finished.add(this);
+    }
+  }
+
+  private boolean anyWon() {
+    for (Attempt attempt : started) {
+      if (attempt.won) return true;
+    }
+    return false;
+  }
+}
@@ -27,6 +27,7 @@ import java.net.SocketTimeoutException;
 import java.net.UnknownServiceException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
@@ -76,7 +77,18 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   private static final int MAX_TUNNEL_ATTEMPTS = 21;
 
   private final ConnectionPool connectionPool;
-  private final Route route;
+
+  /** The route to connect. If a fast fallback route connects first, this becomes that route. */
+  private Route route;
+
+  /** Other routes to race against {@link #route} when connecting. */
+  private List<Route> fastFallbackRoutes = Collections.emptyList();
+
+  /** Fast fallback attempts that failed to connect. The caller reports their routes as failed. */
+  final List<HappyEyeballs.Attempt> fastFallbackFailures = new ArrayList<>();
+
+  /** The fast fallback race in progress, so that {@link #cancel} can close its sockets. */
+  private volatile HappyEyeballs happyEyeballs;
 
   // The fields below are initialized by connect() and never reassigned.
 
@@ -113,11 +125,28 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   /** Nanotime timestamp when {@code allocations.size()} reached zero. */
   public long idleAtNanos = Long.MAX_VALUE;
 
+  /** This connection's index in the pool's list of connections, or -1 if it isn't pooled. */
+  public int poolIndex = -1;
+
   public RealConnection(ConnectionPool connectionPool, Route route) {
     this.connectionPool = connectionPool;
     this.route = route;
   }
 
+  /**
+   * Sets other routes to the same host to race against this connection's route, following RFC 8305
+   * Happy Eyeballs. Only direct routes are raced. Call this before {@link #connect}.
+   */
+  void setFastFallbackRoutes(List<Route> routes) {
+    List<Route> result = new ArrayList<>();
+    for (Route candidate : routes) {
+      if (candidate.proxy().type() == Proxy.Type.DIRECT && !candidate.equals(route)) {
+        result.add(candidate);
+      }
+    }
+    this.fastFallbackRoutes = result;
+  }
+
   public static RealConnection testConnection(
       ConnectionPool connectionPool, Route route, Socket socket, long idleAtNanos) {
     RealConnection result = new RealConnection(connectionPool, route);
@@ -228,18 +257,38 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     Proxy proxy = route.proxy();
     Address address = route.address();
 
-    rawSocket = proxy.type() == Proxy.Type.DIRECT || proxy.type() == Proxy.Type.HTTP
-        ? address.socketFactory().createSocket()
-        : new Socket(proxy);
+    if (proxy.type() == Proxy.Type.DIRECT && !fastFallbackRoutes.isEmpty()) {
+      List<Route> routes = new ArrayList<>();
+      routes.add(route);
+      routes.addAll(fastFallbackRoutes);
+      HappyEyeballs happyEyeballs =
+          new HappyEyeballs(routes, connectTimeout, call, eventListener);
+      this.happyEyeballs = happyEyeballs;
+      try {
+        HappyEyeballs.Attempt winner = happyEyeballs.connect();
+        route = winner.route;
+        fastFallbackRoutes = Collections.emptyList(); // Retries reuse the route that won.
+        rawSocket = winner.socket;
+      } finally {
+        // Until now a cancel closes the winner through the race; from here on, as rawSocket.
+        this.happyEyeballs = null;
+        fastFallbackFailures.addAll(happyEyeballs.failures());
+      }
+      rawSocket.setSoTimeout(readTimeout);
+    } else {
+      rawSocket = proxy.type() == Proxy.Type.DIRECT || proxy.type() == Proxy.Type.HTTP
+          ? address.socketFactory().createSocket()
+          : new Socket(proxy);
 
-    eventListener.connectStart(call, route.socketAddress(), proxy);
-    rawSocket.setSoTimeout(readTimeout);
-    try {
-      Platform.get().connectSocket(rawSocket, route.socketAddress(), connectTimeout);
-    } catch (ConnectException e) {
-      ConnectException ce = new ConnectException("Failed to connect to " + route.socketAddress());
-      ce.initCause(e);
-      throw ce;
+      eventListener.connectStart(call, route.socketAddress(), proxy);
+      rawSocket.setSoTimeout(readTimeout);
+      try {
+        Platform.get().connectSocket(rawSocket, route.socketAddress(), connectTimeout);
+      } catch (ConnectException e) {
+        ConnectException ce = new ConnectException("Failed to connect to " + route.socketAddress());
+        ce.initCause(e);
+        throw ce;
+      }
     }
 
     // The following try/catch block is a pseudo hacky way to get around a crash on Android 7.0
@@ -491,6 +540,8 @@ public final class RealConnection extends Http2Connection.Listener implements Co
 
   public void cancel() {
     // Close the raw socket so we don't end up doing synchronous I/O.
+    HappyEyeballs happyEyeballs = this.happyEyeballs;
+    if (happyEyeballs != null) happyEyeballs.cancel(); // Still racing, so there's no raw socket.
     closeQuietly(rawSocket);
   }
 
@@ -237,5 +237,10 @@ public final class RouteSelector {
     public List<Route> getAll() {
       return new ArrayList<>(routes);
     }
+
+    /** Returns the routes that {@link #next} hasn't returned yet. */
+    public List<Route> remaining() {
+      return new ArrayList<>(routes.subList(nextRouteIndex, routes.size()));
+    }
   }
 }
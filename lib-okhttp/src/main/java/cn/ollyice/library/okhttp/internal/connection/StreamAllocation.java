@@ -108,10 +108,11 @@ public final class StreamAllocation {
     int readTimeout = chain.readTimeoutMillis();
     int writeTimeout = chain.writeTimeoutMillis();
     boolean connectionRetryEnabled = client.retryOnConnectionFailure();
+    boolean fastFallback = client.fastFallback();
 
     try {
       RealConnection resultConnection = findHealthyConnection(connectTimeout, readTimeout,
-          writeTimeout, connectionRetryEnabled, doExtensiveHealthChecks);
+          writeTimeout, connectionRetryEnabled, fastFallback, doExtensiveHealthChecks);
       HttpCodec resultCodec = resultConnection.newCodec(client, chain, this);
 
       synchronized (connectionPool) {
@@ -128,11 +129,11 @@ public final class StreamAllocation {
    * until a healthy connection is found.
    */
   private RealConnection findHealthyConnection(int connectTimeout, int readTimeout,
-      int writeTimeout, boolean connectionRetryEnabled, boolean doExtensiveHealthChecks)
-      throws IOException {
+      int writeTimeout, boolean connectionRetryEnabled, boolean fastFallback,
+      boolean doExtensiveHealthChecks) throws IOException {
     while (true) {
       RealConnection candidate = findConnection(connectTimeout, readTimeout, writeTimeout,
-          connectionRetryEnabled);
+          connectionRetryEnabled, fastFallback, true);
 
       // If this is a brand new connection, we can skip the extensive health checks.
       synchronized (connectionPool) {
@@ -152,12 +153,30 @@ public final class StreamAllocation {
     }
   }
 
+  /**
+   * Connects a new connection to the address and adds it to the pool without creating a stream on
+   * it. This takes DNS, TCP and TLS off the critical path of a later call, and leaves the TLS
+   * session cached for resumption. Callers must {@link #release} this allocation afterwards, which
+   * leaves the connection idle in the pool.
+   */
+  public void prewarm(int connectTimeout, int readTimeout, int writeTimeout,
+      boolean connectionRetryEnabled, boolean fastFallback) throws IOException {
+    try {
+      findConnection(connectTimeout, readTimeout, writeTimeout, connectionRetryEnabled,
+          fastFallback, false);
+    } catch (RouteException e) {
+      throw e.getLastConnectException();
+    }
+  }
+
   /**
    * Returns a connection to host a new stream. This prefers the existing connection if it exists,
-   * then the pool, finally building a new connection.
+   * then the pool, finally building a new connection. If {@code usePool} is false this skips the
+   * pool and always builds a new connection. If {@code fastFallback} is true a new connection races
+   * the selected route against the selection's remaining routes.
    */
   private RealConnection findConnection(int connectTimeout, int readTimeout, int writeTimeout,
-      boolean connectionRetryEnabled) throws IOException {
+      boolean connectionRetryEnabled, boolean fastFallback, boolean usePool) throws IOException {
     boolean foundPooledConnection = false;
     RealConnection result = null;
     Route selectedRoute = null;
@@ -182,16 +201,15 @@ public final class StreamAllocation {
         releasedConnection = null;
       }
 
-      if (result == null) {
+      if (result == null && usePool) {
         // Attempt to get a connection from the pool.
         Internal.instance.get(connectionPool, address, this, null);
         if (connection != null) {
           foundPooledConnection = true;
           result = connection;
-        } else {
-          selectedRoute = route;
         }
       }
+      if (result == null) selectedRoute = route;
     }
     closeQuietly(toClose);
 
@@ -216,7 +234,7 @@ public final class StreamAllocation {
     synchronized (connectionPool) {
       if (canceled) throw new IOException("Canceled");
 
-      if (newRouteSelection) {
+      if (newRouteSelection && usePool) {
         // Now that we have a set of IP addresses, make another attempt at getting a connection from
         // the pool. This could match due to connection coalescing.
         List<Route> routes = routeSelection.getAll();
@@ -242,6 +260,7 @@ public final class StreamAllocation {
         route = selectedRoute;
         refusedStreamCount = 0;
         result = new RealConnection(connectionPool, selectedRoute);
+        if (fastFallback) result.setFastFallbackRoutes(routeSelection.remaining());
         acquire(result, false);
       }
     }
@@ -253,12 +272,20 @@ public final class StreamAllocation {
     }
 
     // Do TCP + TLS handshakes. This is a blocking operation.
-    result.connect(
-        connectTimeout, readTimeout, writeTimeout, connectionRetryEnabled, call, eventListener);
+    try {
+      result.connect(
+          connectTimeout, readTimeout, writeTimeout, connectionRetryEnabled, call, eventListener);
+    } finally {
+      // Routes that lost a fast fallback race by failing are avoided like any other failed route.
+      for (HappyEyeballs.Attempt failure : result.fastFallbackFailures) {
+        routeSelector.connectFailed(failure.route, failure.exception);
+      }
+    }
     routeDatabase().connected(result.route());
 
     Socket socket = null;
     synchronized (connectionPool) {
+      route = result.route(); // Fast fallback may have connected a different route.
       reportedAcquired = true;
 
       // Pool the connection.
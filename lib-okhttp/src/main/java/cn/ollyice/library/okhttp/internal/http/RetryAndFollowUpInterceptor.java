@@ -189,7 +189,7 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
     }
   }
 
-  private Address createAddress(HttpUrl url) {
+  public Address createAddress(HttpUrl url) {
     SSLSocketFactory sslSocketFactory = null;
     HostnameVerifier hostnameVerifier = null;
     CertificatePinner certificatePinner = null;
@@ -26,6 +26,7 @@ import cn.ollyice.library.okhttp.internal.Util;
 import cn.ollyice.library.okio.Buffer;
 import cn.ollyice.library.okio.BufferedSource;
 import cn.ollyice.library.okio.ByteString;
+import cn.ollyice.library.okio.ByteStringInterner;
 import cn.ollyice.library.okio.Okio;
 import cn.ollyice.library.okio.Source;
 
@@ -240,7 +241,7 @@ final class Hpack {
     }
 
     private void readLiteralHeaderWithoutIndexingNewName() throws IOException {
-      ByteString name = checkLowercase(readByteString());
+      ByteString name = checkLowercase(readName());
       ByteString value = readByteString();
       headerList.add(new Header(name, value));
     }
@@ -253,7 +254,7 @@ final class Hpack {
     }
 
     private void readLiteralHeaderWithIncrementalIndexingNewName() throws IOException {
-      ByteString name = checkLowercase(readByteString());
+      ByteString name = checkLowercase(readName());
       ByteString value = readByteString();
       insertIntoDynamicTable(-1, new Header(name, value));
     }
@@ -332,6 +333,23 @@ final class Hpack {
       return result;
     }
 
+    /**
+     * Reads a potentially Huffman encoded header name. Names repeat across requests and
+     * connections, so they're interned to share one instance per name.
+     */
+    ByteString readName() throws IOException {
+      int firstByte = readByte();
+      boolean huffmanDecode = (firstByte & 0x80) == 0x80; // 1NNNNNNN
+      int length = readInt(firstByte, PREFIX_7_BITS);
+
+      if (huffmanDecode) {
+        return NAMES.intern(ByteString.of(Huffman.get().decode(source.readByteArray(length))));
+      } else {
+        source.require(length);
+        return NAMES.intern(source.buffer(), length);
+      }
+    }
+
     /** Reads a potentially Huffman encoded byte string. */
     ByteString readByteString() throws IOException {
       int firstByte = readByte();
@@ -348,6 +366,9 @@ final class Hpack {
 
   static final Map<ByteString, Integer> NAME_TO_FIRST_INDEX = nameToFirstIndex();
 
+  /** Literal header names read by all connections. Names longer than 64 bytes aren't kept. */
+  static final ByteStringInterner NAMES = new ByteStringInterner(256, 64);
+
   private static Map<ByteString, Integer> nameToFirstIndex() {
     Map<ByteString, Integer> result = new LinkedHashMap<>(STATIC_HEADER_TABLE.length);
     for (int i = 0; i < STATIC_HEADER_TABLE.length; i++) {
@@ -57,14 +57,16 @@ public final class Http2Connection implements Closeable {
   // Internal state of this connection is guarded by 'this'. No blocking
   // operations may be performed while holding this lock!
   //
-  // Socket writes are guarded by frameWriter.
+  // Socket writes are made by one thread at a time through the writer loop:
+  // its own thread, or a caller awaiting a frame. Other threads enqueue
+  // frames, which never blocks, and await the frames whose I/O must complete
+  // before they return.
   //
   // Socket reads are unguarded but are only made by the reader thread.
   //
-  // Certain operations (like SYN_STREAM) need to synchronize on both the
-  // frameWriter (to do blocking I/O) and this (to create streams). Such
-  // operations must synchronize on 'this' last. This ensures that we never
-  // wait for a blocking operation while holding 'this'.
+  // Certain operations (like SYN_STREAM) enqueue their frames while holding
+  // 'this' so that frames are written in the order of the stream IDs they use.
+  // Such operations await their frames after releasing 'this'.
 
   static final ExecutorService executor = new ThreadPoolExecutor(0,
       Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
@@ -118,6 +120,7 @@ public final class Http2Connection implements Closeable {
   boolean receivedInitialPeerSettings = false;
   final Socket socket;
   final Http2Writer writer;
+  final Http2WriterLoop writerLoop;
 
   // Visible for testing
   final ReaderRunnable readerRunnable;
@@ -153,6 +156,8 @@ public final class Http2Connection implements Closeable {
     bytesLeftInWriteWindow = peerSettings.getInitialWindowSize();
     socket = builder.socket;
     writer = new Http2Writer(builder.sink, client);
+    writerLoop = new Http2WriterLoop(
+        writer, hostname, this, Http2WriterLoop.DEFAULT_MAX_QUEUED_DATA_BYTES);
 
     readerRunnable = new ReaderRunnable(new Http2Reader(builder.source, client));
   }
@@ -212,31 +217,32 @@ public final class Http2Connection implements Closeable {
     boolean flushHeaders;
     Http2Stream stream;
     int streamId;
+    Http2WriterLoop.Frame headers;
 
-    synchronized (writer) {
-      synchronized (this) {
-        if (shutdown) {
-          throw new ConnectionShutdownException();
-        }
-        streamId = nextStreamId;
-        nextStreamId += 2;
-        stream = new Http2Stream(streamId, this, outFinished, inFinished, requestHeaders);
-        flushHeaders = !out || bytesLeftInWriteWindow == 0L || stream.bytesLeftInWriteWindow == 0L;
-        if (stream.isOpen()) {
-          streams.put(streamId, stream);
-        }
+    synchronized (this) {
+      if (shutdown) {
+        throw new ConnectionShutdownException();
+      }
+      streamId = nextStreamId;
+      nextStreamId += 2;
+      stream = new Http2Stream(streamId, this, outFinished, inFinished, requestHeaders);
+      flushHeaders = !out || bytesLeftInWriteWindow == 0L || stream.bytesLeftInWriteWindow == 0L;
+      if (stream.isOpen()) {
+        streams.put(streamId, stream);
       }
       if (associatedStreamId == 0) {
-        writer.synStream(outFinished, streamId, associatedStreamId, requestHeaders);
+        headers = writerLoop.synStream(
+            outFinished, streamId, associatedStreamId, requestHeaders, flushHeaders);
       } else if (client) {
         throw new IllegalArgumentException("client streams shouldn't have associated stream IDs");
       } else { // HTTP/2 has a PUSH_PROMISE frame.
-        writer.pushPromise(associatedStreamId, streamId, requestHeaders);
+        headers = writerLoop.pushPromise(
+            associatedStreamId, streamId, requestHeaders, flushHeaders);
       }
     }
 
     if (flushHeaders) {
-      writer.flush();
+      headers.await();
     }
 
     return stream;
@@ -244,7 +250,7 @@ public final class Http2Connection implements Closeable {
 
   void writeSynReply(int streamId, boolean outFinished, List<Header> alternating)
       throws IOException {
-    writer.synReply(outFinished, streamId, alternating);
+    writerLoop.synReply(outFinished, streamId, alternating);
   }
 
   /**
@@ -258,11 +264,16 @@ public final class Http2Connection implements Closeable {
    *
    * <p>Zero {@code byteCount} writes are not subject to flow control and will not block. The only
    * use case for zero {@code byteCount} is closing a flushed output stream.
+   *
+   * <p>Data is enqueued to the writer loop, so this returns before it's written to the socket. Use
+   * {@link #flush} to wait until it has been. The caller also blocks while the writer loop has too
+   * many bytes of data queued, so a peer that stops reading holds up writers rather than filling
+   * memory, and their write timeouts still apply.
    */
   public void writeData(int streamId, boolean outFinished, Buffer buffer, long byteCount)
       throws IOException {
     if (byteCount == 0) { // Empty data frames are not flow-controlled.
-      writer.data(outFinished, streamId, buffer, 0);
+      writerLoop.data(outFinished, streamId, buffer, 0);
       return;
     }
 
@@ -270,13 +281,14 @@ public final class Http2Connection implements Closeable {
       int toWrite;
       synchronized (Http2Connection.this) {
         try {
-          while (bytesLeftInWriteWindow <= 0) {
+          while (bytesLeftInWriteWindow <= 0 || writerLoop.dataQueueFull()) {
             // Before blocking, confirm that the stream we're writing is still open. It's possible
             // that the stream has since been closed (such as if this write timed out.)
             if (!streams.containsKey(streamId)) {
               throw new IOException("stream closed");
             }
-            Http2Connection.this.wait(); // Wait until we receive a WINDOW_UPDATE.
+            // Wait until we receive a WINDOW_UPDATE or the writer loop writes queued data.
+            Http2Connection.this.wait();
           }
         } catch (InterruptedException e) {
           throw new InterruptedIOException();
@@ -288,7 +300,7 @@ public final class Http2Connection implements Closeable {
       }
 
       byteCount -= toWrite;
-      writer.data(outFinished && byteCount == 0, streamId, buffer, toWrite);
+      writerLoop.data(outFinished && byteCount == 0, streamId, buffer, toWrite);
     }
   }
 
@@ -300,30 +312,22 @@ public final class Http2Connection implements Closeable {
     if (delta > 0) Http2Connection.this.notifyAll();
   }
 
-  void writeSynResetLater(final int streamId, final ErrorCode errorCode) {
-    executor.execute(new NamedRunnable("OkHttp %s stream %d", hostname, streamId) {
-      @Override public void execute() {
-        try {
-          writeSynReset(streamId, errorCode);
-        } catch (IOException ignored) {
-        }
-      }
-    });
+  void writeSynResetLater(int streamId, ErrorCode errorCode) {
+    try {
+      writerLoop.rstStream(streamId, errorCode);
+    } catch (IOException ignored) {
+    }
   }
 
   void writeSynReset(int streamId, ErrorCode statusCode) throws IOException {
-    writer.rstStream(streamId, statusCode);
+    writerLoop.rstStream(streamId, statusCode).await();
   }
 
-  void writeWindowUpdateLater(final int streamId, final long unacknowledgedBytesRead) {
-    executor.execute(new NamedRunnable("OkHttp Window Update %s stream %d", hostname, streamId) {
-      @Override public void execute() {
-        try {
-          writer.windowUpdate(streamId, unacknowledgedBytesRead);
-        } catch (IOException ignored) {
-        }
-      }
-    });
+  void writeWindowUpdateLater(int streamId, long unacknowledgedBytesRead) {
+    try {
+      writerLoop.windowUpdate(streamId, unacknowledgedBytesRead);
+    } catch (IOException ignored) {
+    }
   }
 
   /**
@@ -346,33 +350,24 @@ public final class Http2Connection implements Closeable {
     return ping;
   }
 
-  void writePingLater(
-      final boolean reply, final int payload1, final int payload2, final Ping ping) {
-    executor.execute(new NamedRunnable("OkHttp %s ping %08x%08x",
-        hostname, payload1, payload2) {
-      @Override public void execute() {
-        try {
-          writePing(reply, payload1, payload2, ping);
-        } catch (IOException ignored) {
-        }
-      }
-    });
+  void writePingLater(boolean reply, int payload1, int payload2, Ping ping) {
+    try {
+      writerLoop.ping(reply, payload1, payload2, ping);
+    } catch (IOException ignored) {
+    }
   }
 
   void writePing(boolean reply, int payload1, int payload2, Ping ping) throws IOException {
-    synchronized (writer) {
-      // Observe the sent time immediately before performing I/O.
-      if (ping != null) ping.send();
-      writer.ping(reply, payload1, payload2);
-    }
+    writerLoop.ping(reply, payload1, payload2, ping).await();
   }
 
   synchronized Ping removePing(int id) {
     return pings != null ? pings.remove(id) : null;
   }
 
+  /** Blocks until all frames enqueued before this call have been written and flushed. */
   public void flush() throws IOException {
-    writer.flush();
+    writerLoop.flush().await();
   }
 
   /**
@@ -381,19 +376,17 @@ public final class Http2Connection implements Closeable {
    * to gracefully stop accepting new requests without harming previously established streams.
    */
   public void shutdown(ErrorCode statusCode) throws IOException {
-    synchronized (writer) {
-      int lastGoodStreamId;
-      synchronized (this) {
-        if (shutdown) {
-          return;
-        }
-        shutdown = true;
-        lastGoodStreamId = this.lastGoodStreamId;
+    Http2WriterLoop.Frame goAway;
+    synchronized (this) {
+      if (shutdown) {
+        return;
       }
+      shutdown = true;
       // TODO: propagate exception message into debugData.
       // TODO: configure a timeout on the reader so that it doesn’t block forever.
-      writer.goAway(lastGoodStreamId, statusCode, Util.EMPTY_BYTE_ARRAY);
+      goAway = writerLoop.goAway(lastGoodStreamId, statusCode, Util.EMPTY_BYTE_ARRAY);
     }
+    goAway.await();
   }
 
   /**
@@ -442,9 +435,10 @@ public final class Http2Connection implements Closeable {
       }
     }
 
-    // Close the writer to release its resources (such as deflaters).
+    // Close the writer to release its resources (such as deflaters). This also stops the writer
+    // loop once the frames enqueued before it are written.
     try {
-      writer.close();
+      writerLoop.close();
     } catch (IOException e) {
       if (thrown == null) thrown = e;
     }
@@ -472,28 +466,30 @@ public final class Http2Connection implements Closeable {
    *     except for in tests that don't check for a connection preface.
    */
   void start(boolean sendConnectionPreface) throws IOException {
+    writerLoop.start();
     if (sendConnectionPreface) {
-      writer.connectionPreface();
-      writer.settings(okHttpSettings);
+      writerLoop.connectionPreface();
+      Http2WriterLoop.Frame settings = writerLoop.settings(okHttpSettings);
       int windowSize = okHttpSettings.getInitialWindowSize();
       if (windowSize != Settings.DEFAULT_INITIAL_WINDOW_SIZE) {
-        writer.windowUpdate(0, windowSize - Settings.DEFAULT_INITIAL_WINDOW_SIZE);
+        writerLoop.windowUpdate(0, windowSize - Settings.DEFAULT_INITIAL_WINDOW_SIZE);
       }
+      settings.await();
     }
     new Thread(readerRunnable).start(); // Not a daemon thread.
   }
 
   /** Merges {@code settings} into this peer's settings and sends them to the remote peer. */
   public void setSettings(Settings settings) throws IOException {
-    synchronized (writer) {
-      synchronized (this) {
-        if (shutdown) {
-          throw new ConnectionShutdownException();
-        }
-        okHttpSettings.merge(settings);
-        writer.settings(settings);
+    Http2WriterLoop.Frame frame;
+    synchronized (this) {
+      if (shutdown) {
+        throw new ConnectionShutdownException();
       }
+      okHttpSettings.merge(settings);
+      frame = writerLoop.settings(settings);
     }
+    frame.await();
   }
 
   public synchronized boolean isShutdown() {
@@ -547,8 +543,8 @@ public final class Http2Connection implements Closeable {
   }
 
   /**
-   * Methods in this class must not lock FrameWriter.  If a method needs to write a frame, create an
-   * async task to do so.
+   * Methods in this class must not await frames. If a method needs to write a frame, enqueue it to
+   * the writer loop without waiting.
    */
   class ReaderRunnable extends NamedRunnable implements Http2Reader.Handler {
     final Http2Reader reader;
@@ -689,15 +685,11 @@ public final class Http2Connection implements Closeable {
       }
     }
 
-    private void applyAndAckSettings(final Settings peerSettings) {
-      executor.execute(new NamedRunnable("OkHttp %s ACK Settings", hostname) {
-        @Override public void execute() {
-          try {
-            writer.applyAndAckSettings(peerSettings);
-          } catch (IOException ignored) {
-          }
-        }
-      });
+    private void applyAndAckSettings(Settings peerSettings) {
+      try {
+        writerLoop.applyAndAckSettings(peerSettings);
+      } catch (IOException ignored) {
+      }
     }
 
     @Override public void ackSettings() {
@@ -789,7 +781,7 @@ public final class Http2Connection implements Closeable {
         boolean cancel = pushObserver.onRequest(streamId, requestHeaders);
         try {
           if (cancel) {
-            writer.rstStream(streamId, ErrorCode.CANCEL);
+            writeSynReset(streamId, ErrorCode.CANCEL);
             synchronized (Http2Connection.this) {
               currentPushRequests.remove(streamId);
             }
@@ -806,7 +798,7 @@ public final class Http2Connection implements Closeable {
       @Override public void execute() {
         boolean cancel = pushObserver.onHeaders(streamId, requestHeaders, inFinished);
         try {
-          if (cancel) writer.rstStream(streamId, ErrorCode.CANCEL);
+          if (cancel) writeSynReset(streamId, ErrorCode.CANCEL);
           if (cancel || inFinished) {
             synchronized (Http2Connection.this) {
               currentPushRequests.remove(streamId);
@@ -832,7 +824,7 @@ public final class Http2Connection implements Closeable {
       @Override public void execute() {
         try {
           boolean cancel = pushObserver.onData(streamId, buffer, byteCount, inFinished);
-          if (cancel) writer.rstStream(streamId, ErrorCode.CANCEL);
+          if (cancel) writeSynReset(streamId, ErrorCode.CANCEL);
           if (cancel || inFinished) {
             synchronized (Http2Connection.this) {
               currentPushRequests.remove(streamId);
@@ -42,7 +42,10 @@ import static cn.ollyice.library.okhttp.internal.http2.Http2.TYPE_WINDOW_UPDATE;
 import static cn.ollyice.library.okhttp.internal.http2.Http2.frameLog;
 import static cn.ollyice.library.okhttp.internal.http2.Http2.illegalArgument;
 
-/** Writes HTTP/2 transport frames. */
+/**
+ * Writes HTTP/2 transport frames. Frames are buffered until {@link #flush}, so that a {@link
+ * Http2WriterLoop} can write many frames per socket write.
+ */
 final class Http2Writer implements Closeable {
   private static final Logger logger = Logger.getLogger(Http2.class.getName());
 
@@ -69,7 +72,6 @@ final class Http2Writer implements Closeable {
       logger.fine(format(">> CONNECTION %s", CONNECTION_PREFACE.hex()));
     }
     sink.write(CONNECTION_PREFACE.toByteArray());
-    sink.flush();
   }
 
   /** Applies {@code peerSettings} and then sends a settings ACK. */
@@ -84,7 +86,6 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_ACK;
     int streamId = 0;
     frameHeader(streamId, length, type, flags);
-    sink.flush();
   }
 
   /**
@@ -149,7 +150,6 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_NONE;
     frameHeader(streamId, length, type, flags);
     sink.writeInt(errorCode.httpCode);
-    sink.flush();
   }
 
   /** The maximum size of bytes that may be sent in a single call to {@link #data}. */
@@ -200,7 +200,6 @@ final class Http2Writer implements Closeable {
       sink.writeShort(id);
       sink.writeInt(settings.get(i));
     }
-    sink.flush();
   }
 
   /**
@@ -216,7 +215,6 @@ final class Http2Writer implements Closeable {
     frameHeader(streamId, length, type, flags);
     sink.writeInt(payload1);
     sink.writeInt(payload2);
-    sink.flush();
   }
 
   /**
@@ -241,7 +239,6 @@ final class Http2Writer implements Closeable {
     if (debugData.length > 0) {
       sink.write(debugData);
     }
-    sink.flush();
   }
 
   /**
@@ -259,7 +256,6 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_NONE;
     frameHeader(streamId, length, type, flags);
     sink.writeInt((int) windowSizeIncrement);
-    sink.flush();
   }
 
   public void frameHeader(int streamId, int length, byte type, byte flags) throws IOException {
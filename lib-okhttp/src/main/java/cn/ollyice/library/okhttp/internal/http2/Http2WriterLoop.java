@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.http2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import cn.ollyice.library.okhttp.internal.NamedRunnable;
+import cn.ollyice.library.okio.Buffer;
+
+import static cn.ollyice.library.okhttp.internal.http2.Http2.TYPE_DATA;
+import static cn.ollyice.library.okhttp.internal.http2.Http2.TYPE_GOAWAY;
+import static cn.ollyice.library.okhttp.internal.http2.Http2.TYPE_HEADERS;
+import static cn.ollyice.library.okhttp.internal.http2.Http2.TYPE_PING;
+import static cn.ollyice.library.okhttp.internal.http2.Http2.TYPE_PUSH_PROMISE;
+import static cn.ollyice.library.okhttp.internal.http2.Http2.TYPE_RST_STREAM;
+import static cn.ollyice.library.okhttp.internal.http2.Http2.TYPE_SETTINGS;
+import static cn.ollyice.library.okhttp.internal.http2.Http2.TYPE_WINDOW_UPDATE;
+
+/**
+ * Writes the frames of a connection on a dedicated thread. Callers enqueue frames without taking a
+ * lock and return immediately; the loop writes everything that's queued and then flushes the
+ * socket once. Concurrent streams on one connection share flushes instead of contending for the
+ * writer.
+ *
+ * <p>Each batch is written in three passes. Frames other than DATA and RST_STREAM are written
+ * first, in the order they were enqueued. DATA frames follow, one frame per stream per round so
+ * that a stream with a lot of data doesn't delay the others. A frame enqueued after DATA of its
+ * stream is written in that stream's turn after the DATA, so a stream's frames are never
+ * reordered: a HEADERS frame that ends a stream can't overtake the stream's body. RST_STREAM
+ * frames go last so they never precede data for the stream they reset.
+ *
+ * <p>Frames that must be written before a call returns can be {@linkplain Frame#await awaited}.
+ * A caller awaiting a frame writes the queue itself when no other thread is writing, so the loop
+ * thread is only woken for frames nobody waits on, like window updates and DATA. The first I/O
+ * failure stops the loop: pending frames fail with it, as do later enqueues.
+ *
+ * <p>DATA frames aren't awaited, so the bytes they hold are capped instead. Writers should wait on
+ * the loop's data lock while {@link #dataQueueFull} returns true; the lock is notified once enough
+ * DATA has been written, and when the loop stops.
+ */
+final class Http2WriterLoop extends NamedRunnable {
+  /** Marker type of frames that only request a flush. */
+  private static final byte TYPE_FLUSH = -1;
+
+  /** Marker type of the frame that closes the writer. */
+  private static final byte TYPE_CLOSE = -2;
+
+  /** The most bytes of DATA to queue before writers are asked to wait. */
+  static final long DEFAULT_MAX_QUEUED_DATA_BYTES = 1024 * 1024;
+
+  private final Http2Writer writer;
+  private final Object dataLock;
+  private final long maxQueuedDataBytes;
+
+  /** Bytes of DATA enqueued and not yet written. */
+  private final AtomicLong queuedDataBytes = new AtomicLong();
+
+  private final ConcurrentLinkedQueue<Frame> queue = new ConcurrentLinkedQueue<>();
+
+  /** True while the loop thread is parked, or about to park, waiting for frames. */
+  private final AtomicBoolean parked = new AtomicBoolean();
+
+  /** True while a thread is writing a batch. Only that thread may use the writer. */
+  private final AtomicBoolean writing = new AtomicBoolean();
+
+  /** Frames being written. Guarded by {@link #writing}. */
+  private final List<Frame> batch = new ArrayList<>();
+
+  private volatile Thread thread;
+
+  /** Non-null once the loop has stopped. This is thrown to callers that enqueue more frames. */
+  private volatile IOException stopped;
+
+  Http2WriterLoop(Http2Writer writer, String hostname) {
+    this(writer, hostname, new Object(), DEFAULT_MAX_QUEUED_DATA_BYTES);
+  }
+
+  /**
+   * @param dataLock the monitor that is notified when {@link #dataQueueFull} may have changed to
+   *     false.
+   */
+  Http2WriterLoop(Http2Writer writer, String hostname, Object dataLock, long maxQueuedDataBytes) {
+    super("OkHttp %s Writer", hostname);
+    this.writer = writer;
+    this.dataLock = dataLock;
+    this.maxQueuedDataBytes = maxQueuedDataBytes;
+  }
+
+  /** Starts writing frames on a thread of the connection's executor. */
+  void start() {
+    Http2Connection.executor.execute(this);
+  }
+
+  Frame connectionPreface() throws IOException {
+    return enqueue(new Frame(TYPE_SETTINGS, 0, true) {
+      @Override void write(Http2Writer writer) throws IOException {
+        writer.connectionPreface();
+      }
+    });
+  }
+
+  Frame applyAndAckSettings(final Settings peerSettings) throws IOException {
+    return enqueue(new Frame(TYPE_SETTINGS, 0, true) {
+      @Override void write(Http2Writer writer) throws IOException {
+        writer.applyAndAckSettings(peerSettings);
+      }
+    });
+  }
+
+  Frame settings(Settings settings) throws IOException {
+    // Copy the settings; the caller may merge more into them before this frame is written.
+    final Settings copy = new Settings();
+    copy.merge(settings);
+    return enqueue(new Frame(TYPE_SETTINGS, 0, true) {
+      @Override void write(Http2Writer writer) throws IOException {
+        writer.settings(copy);
+      }
+    });
+  }
+
+  Frame synStream(final boolean outFinished, final int streamId, final int associatedStreamId,
+      final List<Header> headerBlock, boolean flush) throws IOException {
+    return enqueue(new Frame(TYPE_HEADERS, streamId, flush) {
+      @Override void write(Http2Writer writer) throws IOException {
+        writer.synStream(outFinished, streamId, associatedStreamId, headerBlock);
+      }
+    });
+  }
+
+  Frame synReply(final boolean outFinished, final int streamId, final List<Header> headerBlock)
+      throws IOException {
+    return enqueue(new Frame(TYPE_HEADERS, streamId, false) {
+      @Override void write(Http2Writer writer) throws IOException {
+        writer.synReply(outFinished, streamId, headerBlock);
+      }
+    });
+  }
+
+  Frame pushPromise(final int streamId, final int promisedStreamId,
+      final List<Header> requestHeaders, boolean flush) throws IOException {
+    return enqueue(new Frame(TYPE_PUSH_PROMISE, streamId, flush) {
+      @Override void write(Http2Writer writer) throws IOException {
+        writer.pushPromise(streamId, promisedStreamId, requestHeaders);
+      }
+    });
+  }
+
+  /**
+   * Enqueues a DATA frame of {@code byteCount} bytes, which are moved out of {@code source} now.
+   * {@code source} may be null if {@code byteCount} is 0. This doesn't check {@link
+   * #dataQueueFull}; callers wait for room first.
+   */
+  Frame data(final boolean outFinished, final int streamId, Buffer source, final int byteCount)
+      throws IOException {
+    final Buffer data = new Buffer();
+    if (byteCount > 0) data.write(source, byteCount);
+    queuedDataBytes.addAndGet(byteCount);
+    return enqueue(new Frame(TYPE_DATA, streamId, false) {
+      @Override void write(Http2Writer writer) throws IOException {
+        // The peer may have lowered its max frame size since this frame was enqueued.
+        int remaining = byteCount;
+        do {
+          int length = Math.min(remaining, writer.maxDataLength());
+          remaining -= length;
+          writer.data(outFinished && remaining == 0, streamId, data, length);
+        } while (remaining > 0);
+        releaseData(byteCount);
+      }
+    });
+  }
+
+  /**
+   * Returns true if enough DATA is queued that writers should wait on the data lock before
+   * enqueuing more. Once the loop has stopped this returns false, so that waiting writers go on to
+   * fail when they enqueue.
+   */
+  boolean dataQueueFull() {
+    return stopped == null && queuedDataBytes.get() >= maxQueuedDataBytes;
+  }
+
+  private void releaseData(long byteCount) {
+    long queued = queuedDataBytes.addAndGet(-byteCount);
+    if (queued < maxQueuedDataBytes && queued + byteCount >= maxQueuedDataBytes) {
+      notifyDataLock();
+    }
+  }
+
+  private void notifyDataLock() {
+    synchronized (dataLock) {
+      dataLock.notifyAll();
+    }
+  }
+
+  Frame rstStream(final int streamId, final ErrorCode errorCode) throws IOException {
+    return enqueue(new Frame(TYPE_RST_STREAM, streamId, true) {
+      @Override void write(Http2Writer writer) throws IOException {
+        writer.rstStream(streamId, errorCode);
+      }
+    });
+  }
+
+  Frame windowUpdate(final int streamId, final long windowSizeIncrement) throws IOException {
+    return enqueue(new Frame(TYPE_WINDOW_UPDATE, streamId, true) {
+      @Override void write(Http2Writer writer) throws IOException {
+        writer.windowUpdate(streamId, windowSizeIncrement);
+      }
+    });
+  }
+
+  Frame ping(final boolean reply, final int payload1, final int payload2, final Ping ping)
+      throws IOException {
+    return enqueue(new Frame(TYPE_PING, 0, true) {
+      @Override void write(Http2Writer writer) throws IOException {
+        // Observe the sent time immediately before performing I/O.
+        if (ping != null) ping.send();
+        writer.ping(reply, payload1, payload2);
+      }
+    });
+  }
+
+  Frame goAway(final int lastGoodStreamId, final ErrorCode errorCode, final byte[] debugData)
+      throws IOException {
+    return enqueue(new Frame(TYPE_GOAWAY, 0, true) {
+      @Override void write(Http2Writer writer) throws IOException {
+        writer.goAway(lastGoodStreamId, errorCode, debugData);
+      }
+    });
+  }
+
+  /** Enqueues a request to flush all frames that precede it. */
+  Frame flush() throws IOException {
+    return enqueue(new Frame(TYPE_FLUSH, 0, true) {
+      @Override void write(Http2Writer writer) {
+      }
+    });
+  }
+
+  /**
+   * Writes all enqueued frames, closes the writer and stops the loop. This blocks until the writer
+   * is closed.
+   */
+  void close() throws IOException {
+    Frame close;
+    try {
+      close = enqueue(new Frame(TYPE_CLOSE, 0, false) {
+        @Override void write(Http2Writer writer) {
+        }
+      });
+    } catch (IOException e) {
+      writer.close(); // The loop has stopped. Release the writer's resources on this thread.
+      return;
+    }
+    close.await();
+  }
+
+  Frame enqueue(Frame frame) throws IOException {
+    IOException stopped = this.stopped;
+    if (stopped != null) throw stopped;
+    queue.offer(frame);
+    if (this.stopped != null) {
+      failPending(); // The loop stopped concurrently and may not see this frame.
+    } else if (wakesLoop(frame) && !writing.get() && parked.getAndSet(false)) {
+      LockSupport.unpark(thread);
+    }
+    return frame;
+  }
+
+  /**
+   * Returns false for header blocks that aren't flushed. They're only needed once the stream's next
+   * frame is written, which wakes the loop, so waking it for them would cost an extra handoff.
+   */
+  private static boolean wakesLoop(Frame frame) {
+    return frame.flush || (frame.type != TYPE_HEADERS && frame.type != TYPE_PUSH_PROMISE);
+  }
+
+  @Override protected void execute() {
+    thread = Thread.currentThread();
+    while (stopped == null) {
+      drain();
+
+      // Publish that we're parking, then check once more so an enqueue that didn't see the flag
+      // isn't missed. Frames enqueued while another thread is writing are left to that thread.
+      parked.set(true);
+      if (stopped == null && (queue.isEmpty() || writing.get())) LockSupport.park(this);
+      parked.set(false);
+    }
+  }
+
+  /**
+   * Writes batches of queued frames until the queue is empty, unless another thread is already
+   * writing. That thread writes the frames enqueued before it stops.
+   */
+  private void drain() {
+    while (stopped == null && !queue.isEmpty() && writing.compareAndSet(false, true)) {
+      try {
+        for (Frame frame; (frame = queue.poll()) != null; ) {
+          batch.add(frame);
+        }
+
+        Frame close;
+        try {
+          close = writeBatch(batch);
+        } catch (IOException e) {
+          stop(e);
+          return;
+        }
+
+        if (close != null) {
+          IOException failure = null;
+          try {
+            writer.close();
+          } catch (IOException e) {
+            failure = e;
+          }
+          stop(failure != null ? failure : new IOException("closed"));
+          close.complete(failure);
+          return;
+        }
+      } finally {
+        batch.clear();
+        writing.set(false);
+      }
+    }
+  }
+
+  /**
+   * Writes {@code batch} and completes its frames. Returns the batch's request to close the writer,
+   * which is completed once the writer is closed, or null if it has none.
+   */
+  private Frame writeBatch(List<Frame> batch) throws IOException {
+    boolean flush = false;
+    Frame close = null;
+    // Frames of the streams that have DATA in this batch, from their first DATA frame on.
+    Map<Integer, ArrayDeque<Frame>> dataFrames = null;
+    List<Frame> rstStreamFrames = null;
+
+    try {
+      for (int i = 0, size = batch.size(); i < size; i++) {
+        Frame frame = batch.get(i);
+        flush |= frame.flush;
+        if (frame.type == TYPE_RST_STREAM) {
+          if (rstStreamFrames == null) rstStreamFrames = new ArrayList<>();
+          rstStreamFrames.add(frame);
+        } else if (frame.type == TYPE_CLOSE) {
+          close = frame;
+        } else {
+          ArrayDeque<Frame> streamFrames = dataFrames != null
+              ? dataFrames.get(frame.streamId)
+              : null;
+          if (streamFrames == null && frame.type == TYPE_DATA) {
+            if (dataFrames == null) dataFrames = new LinkedHashMap<>();
+            streamFrames = new ArrayDeque<>();
+            dataFrames.put(frame.streamId, streamFrames);
+          }
+          if (streamFrames != null) {
+            streamFrames.add(frame);
+          } else {
+            write(frame);
+          }
+        }
+      }
+
+      // Take turns writing one frame from each stream that has data.
+      while (dataFrames != null && !dataFrames.isEmpty()) {
+        for (Iterator<ArrayDeque<Frame>> i = dataFrames.values().iterator(); i.hasNext(); ) {
+          ArrayDeque<Frame> streamFrames = i.next();
+          write(streamFrames.poll());
+          if (streamFrames.isEmpty()) i.remove();
+        }
+      }
+
+      if (rstStreamFrames != null) {
+        for (int i = 0, size = rstStreamFrames.size(); i < size; i++) {
+          write(rstStreamFrames.get(i));
+        }
+      }
+
+      if (flush) writer.flush();
+    } catch (IOException e) {
+      for (int i = 0, size = batch.size(); i < size; i++) {
+        batch.get(i).complete(e);
+      }
+      throw e;
+    }
+
+    for (int i = 0, size = batch.size(); i < size; i++) {
+      Frame frame = batch.get(i);
+      if (frame != close) frame.complete(null);
+    }
+    return close;
+  }
+
+  /**
+   * Writes {@code frame}. A frame that is rejected before any bytes are written fails alone, except
+   * for DATA: the stream's bytes would be lost, so that fails the connection instead.
+   */
+  private void write(Frame frame) throws IOException {
+    try {
+      frame.write(writer);
+    } catch (IllegalArgumentException e) {
+      if (frame.type == TYPE_DATA) throw new IOException("DATA frame rejected", e);
+      frame.complete(e);
+    }
+  }
+
+  private void stop(IOException e) {
+    stopped = e;
+    failPending();
+    LockSupport.unpark(thread); // Let the loop thread exit.
+    notifyDataLock(); // Writers waiting for room must not wait forever.
+  }
+
+  private void failPending() {
+    for (Frame frame; (frame = queue.poll()) != null; ) {
+      frame.complete(stopped);
+    }
+  }
+
+  /** A frame waiting to be written by the loop. */
+  abstract class Frame {
+    final byte type;
+    final int streamId;
+    final boolean flush;
+    private volatile Thread waiter;
+    private volatile boolean done;
+    private Throwable failure; // Published by writing 'done'.
+
+    Frame(byte type, int streamId, boolean flush) {
+      this.type = type;
+      this.streamId = streamId;
+      this.flush = flush;
+    }
+
+    abstract void write(Http2Writer writer) throws IOException;
+
+    /** Completes this frame. Only the first call has an effect; later calls are ignored. */
+    void complete(Throwable failure) {
+      if (done) return;
+      this.failure = failure;
+      done = true;
+      Thread waiter = this.waiter;
+      if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Blocks until this frame has been written, and flushed if it was enqueued with a flush.
+     * Throws the exception that prevented it from being written. Only one thread may await a frame.
+     *
+     * <p>If no thread is writing, the caller writes the queued frames itself rather than handing
+     * them to the loop thread and waiting for it to be scheduled.
+     */
+    void await() throws IOException {
+      waiter = Thread.currentThread();
+      drain();
+      while (!done) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) throw new InterruptedIOException();
+      }
+      if (failure instanceof IOException) throw (IOException) failure;
+      if (failure != null) throw (RuntimeException) failure;
+    }
+  }
+}
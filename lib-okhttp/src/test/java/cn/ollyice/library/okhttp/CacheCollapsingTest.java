@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Concurrent calls that miss the {@link Cache} for one URL share a single network request. */
+public final class CacheCollapsingTest {
+  private static final int CALL_COUNT = 5;
+
+  /** Larger than the relay's memory buffer, so readers that lag read the relay file. */
+  private static final int BODY_SIZE = 200 * 1024;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private GatedServer server;
+  private OkHttpClient client;
+
+  @After public void tearDown() throws Exception {
+    executor.shutdownNow();
+    if (server != null) server.close();
+    if (client != null) client.cache().delete();
+  }
+
+  @Test public void concurrentMissesShareOneRequest() throws Exception {
+    server = new GatedServer(200, "Cache-Control: max-age=60\r\n", BODY_SIZE);
+    client = newClient();
+
+    List<String> bodies = getConcurrently(server.url("/a"));
+    assertEquals(1, server.requestCount());
+    for (String body : bodies) {
+      assertEquals(BODY_SIZE, body.length());
+      assertTrue(body.startsWith("response 1."));
+    }
+
+    // The shared response was also cached.
+    Response cached = client.newCall(new Request.Builder().url(server.url("/a")).build()).execute();
+    assertEquals(bodies.get(0), cached.body().string());
+    assertEquals(1, server.requestCount());
+  }
+
+  @Test public void noStoreResponsesAreNotShared() throws Exception {
+    server = new GatedServer(200, "Cache-Control: no-store\r\n", BODY_SIZE);
+    client = newClient();
+
+    List<String> bodies = getConcurrently(server.url("/b"));
+    assertEquals(CALL_COUNT, server.requestCount());
+    Set<String> distinct = new HashSet<>();
+    for (String body : bodies) {
+      distinct.add(body);
+    }
+    assertEquals(CALL_COUNT, distinct.size());
+  }
+
+  private OkHttpClient newClient() {
+    return new OkHttpClient.Builder()
+        .cache(new Cache(tempDir.getRoot(), 10 * 1024 * 1024))
+        .build();
+  }
+
+  /** Makes {@link #CALL_COUNT} calls for {@code url} while the first one's response is held. */
+  private List<String> getConcurrently(final HttpUrl url) throws Exception {
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < CALL_COUNT; i++) {
+      futures.add(executor.submit(new Callable<String>() {
+        @Override public String call() throws Exception {
+          Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+          return response.body().string();
+        }
+      }));
+      if (i == 0) server.awaitFirstRequest(); // Make sure the first call leads.
+    }
+    server.awaitFirstRequest();
+    server.open();
+
+    List<String> bodies = new ArrayList<>();
+    for (Future<String> future : futures) {
+      bodies.add(future.get(10, TimeUnit.SECONDS));
+    }
+    return bodies;
+  }
+}
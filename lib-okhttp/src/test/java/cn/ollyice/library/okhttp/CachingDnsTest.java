@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/** Checks {@link CachingDns} against a fake delegate whose answers each test controls. */
+public final class CachingDnsTest {
+  private final FakeDns delegate = new FakeDns();
+  private final QueueExecutor executor = new QueueExecutor();
+
+  @Test public void freshResultIsReturnedWithoutLookup() throws Exception {
+    CachingDns dns = new CachingDns(delegate, executor, 1, 1, TimeUnit.HOURS, 10);
+    delegate.set("a.test", "10.0.0.1");
+
+    assertEquals(addresses("10.0.0.1"), dns.lookup("a.test"));
+    delegate.set("a.test", "10.0.0.2");
+    assertEquals(addresses("10.0.0.1"), dns.lookup("a.test"));
+
+    assertEquals(1, delegate.lookupCount);
+    assertEquals(1, dns.hitCount());
+    assertEquals(1, dns.missCount());
+  }
+
+  @Test public void staleResultIsReturnedAndRefreshedInBackground() throws Exception {
+    CachingDns dns = new CachingDns(delegate, executor, 50, TimeUnit.HOURS.toMillis(1),
+        TimeUnit.MILLISECONDS, 10);
+    delegate.set("a.test", "10.0.0.1");
+    dns.lookup("a.test");
+    Thread.sleep(100);
+
+    delegate.set("a.test", "10.0.0.2");
+    assertEquals(addresses("10.0.0.1"), dns.lookup("a.test"));
+    assertEquals(1, dns.staleHitCount());
+    assertEquals(1, executor.queue.size());
+
+    executor.runAll();
+    assertEquals(addresses("10.0.0.2"), dns.lookup("a.test"));
+    assertEquals(2, delegate.lookupCount);
+  }
+
+  @Test public void rejectedRefreshKeepsStaleResultAndIsRetried() throws Exception {
+    CachingDns dns = new CachingDns(delegate, executor, 50, TimeUnit.HOURS.toMillis(1),
+        TimeUnit.MILLISECONDS, 10);
+    delegate.set("a.test", "10.0.0.1");
+    dns.lookup("a.test");
+    Thread.sleep(100);
+
+    delegate.set("a.test", "10.0.0.2");
+    executor.rejecting = true;
+    assertEquals(addresses("10.0.0.1"), dns.lookup("a.test"));
+    dns.prefetch(hostnames("a.test", "b.test"));
+    assertEquals(0, executor.queue.size());
+
+    // Nothing was left registered as in progress, so the next stale hit refreshes.
+    executor.rejecting = false;
+    assertEquals(addresses("10.0.0.1"), dns.lookup("a.test"));
+    assertEquals(1, executor.queue.size());
+    executor.runAll();
+    assertEquals(addresses("10.0.0.2"), dns.lookup("a.test"));
+  }
+
+  @Test public void expiredResultWaitsForLookup() throws Exception {
+    CachingDns dns = new CachingDns(delegate, executor, 20, 20, TimeUnit.MILLISECONDS, 10);
+    delegate.set("a.test", "10.0.0.1");
+    dns.lookup("a.test");
+    Thread.sleep(100);
+
+    delegate.set("a.test", "10.0.0.2");
+    assertEquals(addresses("10.0.0.2"), dns.lookup("a.test"));
+    assertEquals(2, dns.missCount());
+    assertEquals(0, executor.queue.size());
+  }
+
+  @Test public void concurrentMissesShareOneLookup() throws Exception {
+    final CachingDns dns = new CachingDns(delegate, executor, 1, 1, TimeUnit.HOURS, 10);
+    delegate.set("a.test", "10.0.0.1");
+    delegate.block = new CountDownLatch(1);
+
+    final List<List<InetAddress>> results = Collections.synchronizedList(
+        new ArrayList<List<InetAddress>>());
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread() {
+        @Override public void run() {
+          try {
+            results.add(dns.lookup("a.test"));
+          } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    Thread.sleep(100); // Let every thread reach the lookup.
+    delegate.block.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, delegate.lookupCount);
+    assertEquals(Collections.nCopies(4, addresses("10.0.0.1")), results);
+  }
+
+  @Test public void failedLookupIsNotCached() throws Exception {
+    CachingDns dns = new CachingDns(delegate, executor, 1, 1, TimeUnit.HOURS, 10);
+    try {
+      dns.lookup("a.test");
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+
+    delegate.set("a.test", "10.0.0.1");
+    assertEquals(addresses("10.0.0.1"), dns.lookup("a.test"));
+    assertEquals(2, delegate.lookupCount);
+  }
+
+  @Test public void failedRefreshKeepsStaleResult() throws Exception {
+    CachingDns dns = new CachingDns(delegate, executor, 50, TimeUnit.HOURS.toMillis(1),
+        TimeUnit.MILLISECONDS, 10);
+    delegate.set("a.test", "10.0.0.1");
+    dns.lookup("a.test");
+    Thread.sleep(100);
+
+    delegate.remove("a.test");
+    assertEquals(addresses("10.0.0.1"), dns.lookup("a.test"));
+    executor.runAll(); // The refresh fails.
+    assertEquals(addresses("10.0.0.1"), dns.lookup("a.test"));
+    assertEquals(1, dns.size());
+  }
+
+  @Test public void leastRecentlyUsedHostIsEvicted() throws Exception {
+    CachingDns dns = new CachingDns(delegate, executor, 1, 1, TimeUnit.HOURS, 2);
+    delegate.set("a.test", "10.0.0.1");
+    delegate.set("b.test", "10.0.0.2");
+    delegate.set("c.test", "10.0.0.3");
+    dns.lookup("a.test");
+    dns.lookup("b.test");
+    dns.lookup("a.test"); // b.test is now least recently used.
+    dns.lookup("c.test");
+
+    assertEquals(2, dns.size());
+    assertEquals(3, delegate.lookupCount);
+    dns.lookup("a.test");
+    assertEquals(3, delegate.lookupCount);
+    dns.lookup("b.test");
+    assertEquals(4, delegate.lookupCount);
+  }
+
+  @Test public void prefetchSkipsFreshHosts() throws Exception {
+    CachingDns dns = new CachingDns(delegate, executor, 1, 1, TimeUnit.HOURS, 10);
+    delegate.set("a.test", "10.0.0.1");
+    delegate.set("b.test", "10.0.0.2");
+    dns.lookup("a.test");
+
+    dns.prefetch(hostnames("a.test", "b.test"));
+    assertEquals(1, executor.queue.size());
+    executor.runAll();
+
+    assertEquals(addresses("10.0.0.2"), dns.lookup("b.test"));
+    assertEquals(2, delegate.lookupCount);
+    assertEquals(1, dns.hitCount());
+  }
+
+  private static List<String> hostnames(String... hostnames) {
+    List<String> result = new ArrayList<>();
+    Collections.addAll(result, hostnames);
+    return result;
+  }
+
+  private static List<InetAddress> addresses(String... ips) throws UnknownHostException {
+    List<InetAddress> result = new ArrayList<>();
+    for (String ip : ips) {
+      result.add(InetAddress.getByName(ip));
+    }
+    return result;
+  }
+
+  /** Answers lookups from a table, counting them. */
+  static final class FakeDns implements Dns {
+    private final Map<String, List<InetAddress>> results =
+        Collections.synchronizedMap(new HashMap<String, List<InetAddress>>());
+    volatile int lookupCount;
+    volatile CountDownLatch block;
+
+    void set(String hostname, String ip) throws UnknownHostException {
+      results.put(hostname, addresses(ip));
+    }
+
+    void remove(String hostname) {
+      results.remove(hostname);
+    }
+
+    @Override public synchronized List<InetAddress> lookup(String hostname)
+        throws UnknownHostException {
+      lookupCount++;
+      CountDownLatch block = this.block;
+      if (block != null) {
+        try {
+          block.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+      List<InetAddress> result = results.get(hostname);
+      if (result == null) throw new UnknownHostException(hostname);
+      return result;
+    }
+  }
+
+  /** Holds background refreshes until the test runs them, or rejects them like a shut down pool. */
+  static final class QueueExecutor implements Executor {
+    final List<Runnable> queue = new ArrayList<>();
+    volatile boolean rejecting;
+
+    @Override public synchronized void execute(Runnable command) {
+      if (rejecting) throw new RejectedExecutionException();
+      queue.add(command);
+    }
+
+    void runAll() {
+      List<Runnable> runnables;
+      synchronized (this) {
+        runnables = new ArrayList<>(queue);
+        queue.clear();
+      }
+      for (Runnable runnable : runnables) {
+        runnable.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.SocketFactory;
+import cn.ollyice.library.okhttp.internal.connection.RealConnection;
+import cn.ollyice.library.okhttp.internal.connection.StreamAllocation;
+
+/**
+ * Measures {@link ConnectionPool} lock hold times with many hosts. Several threads acquire and
+ * release pooled connections to random hosts, then churn connections in and out of the pool.
+ * Neither phase touches the network.
+ *
+ * <p>Run {@link #main} with the number of hosts, and optionally the number of threads.
+ */
+public final class ConnectionPoolBenchmark {
+  private static final int CONNECTIONS_PER_HOST = 2;
+  private static final int OPS_PER_THREAD = 200000;
+
+  public static void main(String[] args) throws Exception {
+    int hostCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    new OkHttpClient(); // Installs Internal.instance.
+
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 5, TimeUnit.MINUTES);
+    Address[] addresses = new Address[hostCount];
+    for (int h = 0; h < hostCount; h++) {
+      addresses[h] = address("host" + h + ".example.com");
+      for (int c = 0; c < CONNECTIONS_PER_HOST; c++) {
+        synchronized (pool) {
+          pool.put(connection(pool, addresses[h]));
+        }
+      }
+    }
+
+    for (int round = 0; round < 3; round++) {
+      report("get/release", hostCount, run(pool, addresses, threadCount, false));
+      report("put/remove", hostCount, run(pool, addresses, threadCount, true));
+    }
+  }
+
+  private static long[] run(final ConnectionPool pool, final Address[] addresses,
+      int threadCount, final boolean churn) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    final long[] latencies = new long[threadCount * OPS_PER_THREAD + 1];
+    long start = System.nanoTime();
+    for (int t = 0; t < threadCount; t++) {
+      final int thread = t;
+      new Thread() {
+        @Override public void run() {
+          Random random = new Random(thread);
+          for (int i = 0; i < OPS_PER_THREAD; i++) {
+            Address address = addresses[random.nextInt(addresses.length)];
+            latencies[thread * OPS_PER_THREAD + i] = churn
+                ? putAndRemove(pool, address)
+                : getAndRelease(pool, address);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    done.await();
+    latencies[latencies.length - 1] = System.nanoTime() - start;
+    return latencies;
+  }
+
+  private static long getAndRelease(ConnectionPool pool, Address address) {
+    StreamAllocation streamAllocation =
+        new StreamAllocation(pool, address, null, EventListener.NONE, null);
+    long start = System.nanoTime();
+    RealConnection connection;
+    synchronized (pool) {
+      connection = pool.get(address, streamAllocation, null);
+    }
+    long elapsed = System.nanoTime() - start;
+    if (connection != null) streamAllocation.release();
+    return elapsed;
+  }
+
+  /** Pools a new connection and retires it, as when a server closes a connection after use. */
+  private static long putAndRemove(ConnectionPool pool, Address address) {
+    RealConnection connection = connection(pool, address);
+    long start = System.nanoTime();
+    synchronized (pool) {
+      pool.put(connection);
+      connection.noNewStreams = true;
+      pool.connectionBecameIdle(connection);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String name, int hostCount, long[] latencies) {
+    long elapsedNs = latencies[latencies.length - 1];
+    long[] sorted = Arrays.copyOf(latencies, latencies.length - 1);
+    Arrays.sort(sorted);
+    System.out.printf("%-12s %5d hosts: %6.0f ops/ms  p50 %6.2f us  p99 %8.2f us%n",
+        name, hostCount, sorted.length / (elapsedNs / 1e6),
+        sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3);
+  }
+
+  private static Address address(String host) {
+    return new Address(host, 80, Dns.SYSTEM, SocketFactory.getDefault(), null, null, null,
+        Authenticator.NONE, null, Arrays.asList(Protocol.HTTP_1_1),
+        Arrays.asList(ConnectionSpec.CLEARTEXT), ProxySelector.getDefault());
+  }
+
+  private static RealConnection connection(ConnectionPool pool, Address address) {
+    Route route = new Route(address, Proxy.NO_PROXY,
+        InetSocketAddress.createUnresolved(address.url().host(), 80));
+    return RealConnection.testConnection(pool, route, new Socket(), System.nanoTime());
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the order in which the {@link Dispatcher} starts queued calls. Started calls are recorded
+ * instead of run, and each test finishes them by hand to free a slot.
+ */
+public final class DispatcherPriorityTest {
+  private final RecordingExecutor executor = new RecordingExecutor();
+  private final Dispatcher dispatcher = new Dispatcher(executor);
+  private final OkHttpClient client = new OkHttpClient.Builder()
+      .dispatcher(dispatcher)
+      .build();
+
+  @Before public void setUp() {
+    dispatcher.setMaxRequests(1);
+  }
+
+  @Test public void higherPriorityStartsFirst() {
+    enqueue("/running", CallPriority.NORMAL);
+    enqueue("/low", CallPriority.LOW);
+    enqueue("/normal", CallPriority.NORMAL);
+    enqueue("/high", CallPriority.HIGH);
+
+    assertEquals("/running", finishNext());
+    assertEquals("/high", finishNext());
+    assertEquals("/normal", finishNext());
+    assertEquals("/low", finishNext());
+  }
+
+  @Test public void earlierDeadlineStartsFirstWithinPriority() {
+    enqueue("/running", CallPriority.NORMAL);
+    enqueue("/none", CallPriority.NORMAL);
+    enqueue("/later", CallPriority.NORMAL.withDeadline(2, TimeUnit.HOURS));
+    enqueue("/sooner", CallPriority.NORMAL.withDeadline(1, TimeUnit.HOURS));
+
+    assertEquals("/running", finishNext());
+    assertEquals("/sooner", finishNext());
+    assertEquals("/later", finishNext());
+    assertEquals("/none", finishNext());
+  }
+
+  @Test public void deadlineIsMeasuredFromEnqueue() throws Exception {
+    CallPriority priority = CallPriority.NORMAL.withDeadline(200, TimeUnit.MILLISECONDS);
+    Thread.sleep(300); // Longer than the deadline, but before the call is enqueued.
+    enqueue("/running", CallPriority.NORMAL);
+    Call call = enqueue("/shared", priority);
+
+    assertEquals("/running", finishNext());
+    assertEquals("/shared", finishNext());
+    assertFalse(call.isCanceled());
+    assertEquals(0, dispatcher.expiredCallCount(CallPriority.NORMAL));
+  }
+
+  @Test public void expiredCallIsCanceledWhenStarted() throws Exception {
+    enqueue("/running", CallPriority.NORMAL);
+    Call call = enqueue("/late", CallPriority.HIGH.withDeadline(1, TimeUnit.MILLISECONDS));
+    Thread.sleep(50);
+
+    assertEquals("/running", finishNext());
+    assertEquals("/late", finishNext());
+    assertTrue(call.isCanceled());
+    assertEquals(1, dispatcher.expiredCallCount(CallPriority.HIGH));
+  }
+
+  @Test public void deadlinesCompareAcrossNanoTimeOverflow() {
+    RealCall.AsyncCall sooner = asyncCall("/sooner");
+    RealCall.AsyncCall later = asyncCall("/later");
+    sooner.hasDeadline = true;
+    sooner.deadlineNanoTime = Long.MAX_VALUE - 10L;
+    later.hasDeadline = true;
+    later.deadlineNanoTime = Long.MIN_VALUE + 10L; // 21 ns after sooner, once nanoTime wraps.
+
+    List<RealCall.AsyncCall> calls = new ArrayList<>();
+    calls.add(later);
+    calls.add(sooner);
+    Collections.sort(calls, Dispatcher.HostCalls.CALL_ORDER);
+    assertEquals(sooner, calls.get(0));
+  }
+
+  private Call enqueue(String path, CallPriority priority) {
+    Call call = client.newCall(request(path, priority));
+    call.enqueue(new Callback() {
+      @Override public void onFailure(Call call, IOException e) {
+      }
+
+      @Override public void onResponse(Call call, Response response) {
+      }
+    });
+    return call;
+  }
+
+  private RealCall.AsyncCall asyncCall(String path) {
+    RealCall call = RealCall.newRealCall(client, request(path, CallPriority.NORMAL), false);
+    return call.new AsyncCall(null);
+  }
+
+  private Request request(String path, CallPriority priority) {
+    return new Request.Builder()
+        .url("http://example.com" + path)
+        .tag(priority)
+        .build();
+  }
+
+  /** Finishes the oldest started call, which lets the dispatcher start the next one. */
+  private String finishNext() {
+    RealCall.AsyncCall call = executor.started.remove(0);
+    dispatcher.finished(call);
+    return call.request().url().encodedPath();
+  }
+
+  static final class RecordingExecutor extends AbstractExecutorService {
+    final List<RealCall.AsyncCall> started = new ArrayList<>();
+
+    @Override public void execute(Runnable command) {
+      started.add((RealCall.AsyncCall) command);
+    }
+
+    @Override public void shutdown() {
+    }
+
+    @Override public List<Runnable> shutdownNow() {
+      return Collections.emptyList();
+    }
+
+    @Override public boolean isShutdown() {
+      return false;
+    }
+
+    @Override public boolean isTerminated() {
+      return false;
+    }
+
+    @Override public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return false;
+    }
+  }
+}
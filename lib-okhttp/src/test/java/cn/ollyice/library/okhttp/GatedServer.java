@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.BufferedSource;
+import cn.ollyice.library.okio.Okio;
+
+/**
+ * A loopback HTTP/1.1 server that counts the requests it gets. It holds its response to the first
+ * request until {@link #open} so that calls made meanwhile find that request in flight. Response
+ * {@code n} has {@code headers} and a body of {@code bodySize} bytes that starts with {@code
+ * "response n"}, so calls that share a response get the same body.
+ */
+final class GatedServer implements Closeable {
+  private final ServerSocket serverSocket;
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final CountDownLatch gate = new CountDownLatch(1);
+  private final int code;
+  private final String headers;
+  private final int bodySize;
+
+  GatedServer(int code, String headers, int bodySize) throws IOException {
+    this.code = code;
+    this.headers = headers;
+    this.bodySize = bodySize;
+    this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread("GatedServer") {
+      @Override public void run() {
+        try {
+          while (true) {
+            serve(serverSocket.accept());
+          }
+        } catch (IOException ignored) {
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  HttpUrl url(String path) {
+    return HttpUrl.parse("http://127.0.0.1:" + serverSocket.getLocalPort() + path);
+  }
+
+  int requestCount() {
+    return requestCount.get();
+  }
+
+  /** Waits for the first request, and then for the calls that follow it to be waiting. */
+  void awaitFirstRequest() throws InterruptedException {
+    for (int i = 0; i < 100 && requestCount.get() == 0; i++) {
+      Thread.sleep(50);
+    }
+    if (requestCount.get() == 0) throw new AssertionError("no request");
+    Thread.sleep(300);
+  }
+
+  /** Sends the response to the first request. */
+  void open() {
+    gate.countDown();
+  }
+
+  @Override public void close() throws IOException {
+    gate.countDown();
+    serverSocket.close();
+  }
+
+  private void serve(final Socket socket) {
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          BufferedSource source = Okio.buffer(Okio.source(socket));
+          BufferedSink sink = Okio.buffer(Okio.sink(socket));
+          while (true) {
+            while (!source.readUtf8LineStrict().isEmpty()) {
+            }
+            int n = requestCount.incrementAndGet();
+            if (n == 1 && !gate.await(10, TimeUnit.SECONDS)) throw new IOException("timeout");
+            sink.writeUtf8("HTTP/1.1 " + code + " X\r\n")
+                .writeUtf8(headers)
+                .writeUtf8("Content-Length: " + bodySize + "\r\n\r\n")
+                .writeUtf8(body(n))
+                .flush();
+          }
+        } catch (IOException | InterruptedException ignored) {
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private String body(int n) {
+    StringBuilder result = new StringBuilder(bodySize).append("response ").append(n);
+    while (result.length() < bodySize) {
+      result.append('.');
+    }
+    result.setLength(bodySize);
+    return result.toString();
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import cn.ollyice.library.okio.Buffer;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.BufferedSource;
+import cn.ollyice.library.okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/** Prewarms connections to a loopback HTTP/1.1 server that counts the connections it accepts. */
+public final class PrewarmTest {
+  private final AtomicInteger acceptCount = new AtomicInteger();
+  private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+  private ServerSocket server;
+  private HttpUrl url;
+  private OkHttpClient client;
+
+  @Before public void setUp() throws Exception {
+    server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread("PrewarmTest server") {
+      @Override public void run() {
+        try {
+          while (true) {
+            Socket socket = server.accept();
+            acceptCount.incrementAndGet();
+            serve(socket);
+          }
+        } catch (IOException ignored) {
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    url = HttpUrl.parse("http://127.0.0.1:" + server.getLocalPort() + "/");
+    client = new OkHttpClient.Builder()
+        .eventListener(new EventListener() {
+          @Override public void connectStart(
+              Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            events.add("connectStart");
+          }
+        })
+        .build();
+  }
+
+  @After public void tearDown() throws Exception {
+    server.close();
+    client.connectionPool().evictAll();
+  }
+
+  @Test public void prewarmOpensIdleConnections() throws Exception {
+    client.prewarm(url, 3);
+    awaitIdleConnections(3);
+    assertEquals(3, acceptCount.get());
+    assertEquals(Arrays.asList("connectStart", "connectStart", "connectStart"), events);
+  }
+
+  @Test public void repeatPrewarmOpensNothing() throws Exception {
+    client.prewarm(url, 2);
+    awaitIdleConnections(2);
+    client.prewarm(url, 2);
+    Thread.sleep(200);
+    assertEquals(2, acceptCount.get());
+    assertEquals(2, client.connectionPool().connectionCount());
+  }
+
+  @Test public void callReusesPrewarmedConnection() throws Exception {
+    client.prewarm(url, 1);
+    awaitIdleConnections(1);
+    events.clear();
+
+    Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+    assertEquals("ok", response.body().string());
+    assertEquals(1, acceptCount.get());
+    assertEquals(Collections.emptyList(), events);
+  }
+
+  @Test public void hostLearnerCountsCallsByOrigin() throws Exception {
+    HostLearner learner = new HostLearner(1);
+    OkHttpClient learningClient = client.newBuilder()
+        .addInterceptor(learner)
+        .build();
+    for (int i = 0; i < 3; i++) {
+      learningClient.newCall(new Request.Builder().url(url.resolve("/path" + i)).build())
+          .execute().close();
+    }
+    learner.readFrom(new Buffer().writeUtf8("2 https://b.test/\n"));
+
+    assertEquals(Collections.singletonList(url), learner.hotHosts());
+  }
+
+  @Test public void hostLearnerRoundTripsAndSkipsMalformedLines() throws Exception {
+    HostLearner learner = new HostLearner(2);
+    learner.readFrom(new Buffer().writeUtf8(""
+        + "5 https://a.test/\n"
+        + "3 http://b.test:8080/\n"
+        + "bad\n"
+        + "x https://c.test/\n"
+        + "9 not a url\n"));
+    Buffer saved = new Buffer();
+    learner.writeTo(saved);
+    assertEquals("5 https://a.test/\n3 http://b.test:8080/\n", saved.readUtf8());
+    assertEquals(
+        Arrays.asList(HttpUrl.parse("https://a.test/"), HttpUrl.parse("http://b.test:8080/")),
+        learner.hotHosts());
+  }
+
+  @Test public void hostLearnerHalvesCountsWhenFull() throws Exception {
+    HostLearner learner = new HostLearner(1);
+    learner.readFrom(new Buffer().writeUtf8(""
+        + "8 https://a.test/\n"
+        + "1 https://b.test/\n"
+        + "1 https://c.test/\n"
+        + "1 https://d.test/\n"
+        + "1 https://e.test/\n")); // The fifth origin halves every count.
+    Buffer saved = new Buffer();
+    learner.writeTo(saved);
+    assertEquals("4 https://a.test/\n", saved.readUtf8());
+  }
+
+  private void awaitIdleConnections(int count) throws InterruptedException {
+    for (int i = 0; i < 100 && client.connectionPool().idleConnectionCount() < count; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(count, client.connectionPool().idleConnectionCount());
+  }
+
+  private static void serve(final Socket socket) {
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          BufferedSource source = Okio.buffer(Okio.source(socket));
+          BufferedSink sink = Okio.buffer(Okio.sink(socket));
+          while (true) {
+            while (!source.readUtf8LineStrict().isEmpty()) {
+            }
+            sink.writeUtf8("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok").flush();
+          }
+        } catch (IOException ignored) {
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
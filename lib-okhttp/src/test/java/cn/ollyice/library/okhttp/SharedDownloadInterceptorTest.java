@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Downloads shared by {@link SharedDownloadInterceptor} between concurrent and later calls. */
+public final class SharedDownloadInterceptorTest {
+  private static final int CALL_COUNT = 5;
+  private static final int BODY_SIZE = 200 * 1024;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private GatedServer server;
+  private OkHttpClient client;
+
+  @After public void tearDown() throws Exception {
+    executor.shutdownNow();
+    if (server != null) server.close();
+  }
+
+  @Test public void concurrentReadersShareOneDownload() throws Exception {
+    server = new GatedServer(200, "", BODY_SIZE);
+    client = newClient(0);
+
+    List<String> bodies = getConcurrently(server.url("/a"));
+    assertEquals(1, server.requestCount());
+    for (String body : bodies) {
+      assertEquals(BODY_SIZE, body.length());
+      assertTrue(body.startsWith("response 1."));
+    }
+  }
+
+  @Test public void replayWithinRetentionMakesNoRequest() throws Exception {
+    server = new GatedServer(200, "Content-Type: application/octet-stream\r\n", BODY_SIZE);
+    server.open();
+    client = newClient(60);
+
+    Response first = get(server.url("/b"));
+    String body = first.body().string();
+    Response replayed = get(server.url("/b"));
+    assertEquals(body, replayed.body().string());
+    assertEquals("application/octet-stream", replayed.header("Content-Type"));
+    assertEquals(1, server.requestCount());
+  }
+
+  @Test public void withoutRetentionLaterCallsDownloadAgain() throws Exception {
+    server = new GatedServer(200, "", BODY_SIZE);
+    server.open();
+    client = newClient(0);
+
+    get(server.url("/c")).body().string();
+    assertTrue(get(server.url("/c")).body().string().startsWith("response 2."));
+    assertEquals(2, server.requestCount());
+  }
+
+  @Test public void errorResponsesAreNotShared() throws Exception {
+    server = new GatedServer(404, "", 16);
+    client = newClient(60);
+
+    getConcurrently(server.url("/d"));
+    assertEquals(CALL_COUNT, server.requestCount());
+  }
+
+  private OkHttpClient newClient(long retentionSeconds) {
+    return new OkHttpClient.Builder()
+        .addInterceptor(new SharedDownloadInterceptor(
+            tempDir.getRoot(), retentionSeconds, TimeUnit.SECONDS))
+        .build();
+  }
+
+  private Response get(HttpUrl url) throws Exception {
+    return client.newCall(new Request.Builder().url(url).build()).execute();
+  }
+
+  /** Makes {@link #CALL_COUNT} calls for {@code url} while the first one's response is held. */
+  private List<String> getConcurrently(final HttpUrl url) throws Exception {
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < CALL_COUNT; i++) {
+      futures.add(executor.submit(new Callable<String>() {
+        @Override public String call() throws Exception {
+          return get(url).body().string();
+        }
+      }));
+      if (i == 0) server.awaitFirstRequest(); // Make sure the first call leads.
+    }
+    server.awaitFirstRequest();
+    server.open();
+
+    List<String> bodies = new ArrayList<>();
+    for (Future<String> future : futures) {
+      bodies.add(future.get(10, TimeUnit.SECONDS));
+    }
+    return bodies;
+  }
+}
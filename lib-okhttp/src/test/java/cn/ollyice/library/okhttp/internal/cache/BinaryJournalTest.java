@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import cn.ollyice.library.okhttp.internal.io.FileSystem;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Converts caches between text and binary journals, with one shard and with several. */
+@RunWith(Parameterized.class)
+public final class BinaryJournalTest {
+  @Parameterized.Parameters(name = "{0} shards")
+  public static Collection<Object[]> parameters() {
+    return Arrays.asList(new Object[] {1}, new Object[] {8});
+  }
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private final int shardCount;
+  private File directory;
+  private DiskLruCache cache;
+
+  public BinaryJournalTest(int shardCount) {
+    this.shardCount = shardCount;
+  }
+
+  @Before public void setUp() throws Exception {
+    directory = tempDir.newFolder("cache");
+  }
+
+  @After public void tearDown() throws Exception {
+    if (cache != null) cache.close();
+  }
+
+  @Test public void textJournalIsConvertedToBinary() throws Exception {
+    cache = open(false);
+    for (int i = 0; i < 20; i++) {
+      writeEntry("k" + i, "v" + i);
+    }
+    cache.remove("k3");
+    cache.close();
+
+    cache = open(true);
+    assertEquals("v12", readValue("k12"));
+    assertNull(cache.get("k3"));
+    assertEquals(9 * 2 + 10 * 3 + 19, cache.size()); // "vN" and "vNN", plus one byte each.
+    assertTrue(journal(true).exists());
+    assertFalse(journal(false).exists());
+
+    writeEntry("after", "binary");
+    cache.close();
+    cache = open(true);
+    assertEquals("binary", readValue("after"));
+    assertEquals("v7", readValue("k7"));
+  }
+
+  @Test public void binaryJournalIsConvertedToText() throws Exception {
+    cache = open(true);
+    writeEntry("k1", "one");
+    writeEntry("k2", "two");
+    cache.close();
+
+    cache = open(false);
+    assertEquals("one", readValue("k1"));
+    assertEquals("two", readValue("k2"));
+    assertTrue(journal(false).exists());
+    assertFalse(journal(true).exists());
+  }
+
+  @Test public void truncatedBinaryRecordIsDropped() throws Exception {
+    cache = open(true);
+    for (int i = 0; i < 20; i++) {
+      writeEntry("k" + i, "v" + i);
+    }
+    cache.close();
+
+    // Cut the journal holding the most records partway through its last record.
+    File journal = largestJournal();
+    RandomAccessFile file = new RandomAccessFile(journal, "rw");
+    file.setLength(file.length() - 3);
+    file.close();
+
+    cache = open(true);
+    int count = 0;
+    for (Iterator<DiskLruCache.Snapshot> i = cache.snapshots(); i.hasNext(); ) {
+      i.next().close();
+      count++;
+    }
+    assertTrue("count=" + count, count == 19 || count == 20);
+    writeEntry("after", "truncation");
+    cache.close();
+    cache = open(true);
+    assertEquals("truncation", readValue("after"));
+  }
+
+  private DiskLruCache open(boolean binaryJournal) {
+    return DiskLruCache.create(
+        FileSystem.SYSTEM, directory, 100, 2, Long.MAX_VALUE, shardCount, binaryJournal);
+  }
+
+  /** Returns the first shard's journal, or the only journal of a single-shard cache. */
+  private File journal(boolean binary) {
+    String name = shardCount == 1 ? DiskLruCache.JOURNAL_FILE : DiskLruCache.JOURNAL_FILE + "-0";
+    return new File(directory, binary ? name + DiskLruCache.BINARY_JOURNAL_SUFFIX : name);
+  }
+
+  private File largestJournal() {
+    File result = null;
+    for (File file : directory.listFiles()) {
+      if (!file.getName().endsWith(DiskLruCache.BINARY_JOURNAL_SUFFIX)) continue;
+      if (result == null || file.length() > result.length()) result = file;
+    }
+    return result;
+  }
+
+  private void writeEntry(String key, String value) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    BufferedSink sink = Okio.buffer(editor.newSink(0));
+    sink.writeUtf8(value).close();
+    sink = Okio.buffer(editor.newSink(1));
+    sink.writeUtf8("m").close();
+    editor.commit();
+  }
+
+  private String readValue(String key) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    try {
+      return Okio.buffer(snapshot.getSource(0)).readUtf8();
+    } finally {
+      snapshot.close();
+    }
+  }
+}
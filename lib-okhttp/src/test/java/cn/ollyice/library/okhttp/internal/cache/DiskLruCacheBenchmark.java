@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import cn.ollyice.library.okhttp.internal.io.FileSystem;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.Okio;
+
+/**
+ * Measures {@link DiskLruCache} under concurrent read-through use. Each thread reads keys drawn
+ * from a Zipf distribution, and writes an entry on every miss. The cache holds about 40% of the
+ * key space, so there are steady evictions. Reports throughput, hit ratio and read latency.
+ *
+ * <p>Run {@link #main} with the shard count, thread count and operations per thread. One shard
+ * gives the lock layout of the unsharded cache.
+ */
+public final class DiskLruCacheBenchmark {
+  private static final int KEY_COUNT = 4000;
+  private static final double ZIPF_EXPONENT = 0.9;
+
+  public static void main(String[] args) throws Exception {
+    int shardCount = args.length > 0 ? Integer.parseInt(args[0]) : DiskLruCache.DEFAULT_SHARD_COUNT;
+    int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int opsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+    long maxSize = KEY_COUNT * 2048L * 4 / 10;
+
+    File directory = new File(System.getProperty("java.io.tmpdir"),
+        "DiskLruCacheBenchmark-" + shardCount + "-" + threadCount);
+    if (directory.exists()) FileSystem.SYSTEM.deleteContents(directory);
+    DiskLruCache cache =
+        DiskLruCache.create(FileSystem.SYSTEM, directory, 1, 2, maxSize, shardCount, false);
+    try {
+      run(cache, shardCount, threadCount, opsPerThread);
+    } finally {
+      cache.delete();
+    }
+  }
+
+  private static void run(final DiskLruCache cache, int shardCount, int threadCount,
+      final int opsPerThread) throws InterruptedException {
+    final double[] cdf = zipfCdf();
+    final AtomicLong hits = new AtomicLong();
+    final long[][] latencies = new long[threadCount][opsPerThread];
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        @Override public void run() {
+          Random random = new Random(thread);
+          try {
+            start.await();
+            for (int i = 0; i < opsPerThread; i++) {
+              int index = Arrays.binarySearch(cdf, random.nextDouble());
+              if (index < 0) index = Math.min(-index - 1, KEY_COUNT - 1);
+              String key = "k" + index;
+
+              long readStart = System.nanoTime();
+              boolean hit = read(cache, key);
+              latencies[thread][i] = System.nanoTime() - readStart;
+              if (hit) {
+                hits.incrementAndGet();
+              } else {
+                write(cache, key, new byte[1024 + (index * 7919 % 2048)]);
+              }
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+
+    long startNanos = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    long[] all = new long[threadCount * opsPerThread];
+    for (int t = 0; t < threadCount; t++) {
+      System.arraycopy(latencies[t], 0, all, t * opsPerThread, opsPerThread);
+    }
+    Arrays.sort(all);
+    System.out.printf("shards=%d threads=%d: %.0f ops/s  hit ratio %.3f  read p50 %.1f us"
+            + "  p99 %.1f us%n", shardCount, threadCount, all.length / (elapsedNanos / 1e9),
+        hits.get() / (double) all.length, all[all.length / 2] / 1e3,
+        all[(int) (all.length * 0.99)] / 1e3);
+  }
+
+  private static boolean read(DiskLruCache cache, String key) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot == null) return false;
+    try {
+      Okio.buffer(snapshot.getSource(0)).readByteString();
+      return true;
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  private static void write(DiskLruCache cache, String key, byte[] value) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null) return; // Another thread is writing this key.
+    BufferedSink sink = Okio.buffer(editor.newSink(0));
+    sink.write(value).close();
+    sink = Okio.buffer(editor.newSink(1));
+    sink.writeUtf8("metadata").close();
+    editor.commit();
+  }
+
+  private static double[] zipfCdf() {
+    double[] cdf = new double[KEY_COUNT];
+    double sum = 0;
+    for (int i = 0; i < KEY_COUNT; i++) {
+      sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+      cdf[i] = sum;
+    }
+    for (int i = 0; i < KEY_COUNT; i++) {
+      cdf[i] /= sum;
+    }
+    return cdf;
+  }
+}
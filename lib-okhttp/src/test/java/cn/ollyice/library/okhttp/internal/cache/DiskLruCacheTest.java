@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import cn.ollyice.library.okhttp.internal.io.FileSystem;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.BufferedSource;
+import cn.ollyice.library.okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Smoke tests for the sharded cache: opening a legacy journal, and concurrent use. */
+public final class DiskLruCacheTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private final FileSystem fileSystem = FileSystem.SYSTEM;
+  private File directory;
+  private DiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    directory = tempDir.newFolder("cache");
+  }
+
+  @After public void tearDown() throws Exception {
+    if (cache != null) cache.close();
+  }
+
+  @Test public void legacyJournalIsSplitIntoShards() throws Exception {
+    writeFile(new File(directory, DiskLruCache.JOURNAL_FILE), ""
+        + "libcore.io.DiskLruCache\n"
+        + "1\n"
+        + "100\n"
+        + "2\n"
+        + "\n"
+        + "DIRTY k1\n"
+        + "CLEAN k1 2 1\n"
+        + "DIRTY k2\n"
+        + "CLEAN k2 3 2\n"
+        + "DIRTY k3\n"
+        + "REMOVE k3\n"
+        + "READ k1\n");
+    writeFile(new File(directory, "k1.0"), "v1");
+    writeFile(new File(directory, "k1.1"), "m");
+    writeFile(new File(directory, "k2.0"), "two");
+    writeFile(new File(directory, "k2.1"), "mm");
+
+    cache = open(8);
+    assertEquals("v1", readValue("k1", 0));
+    assertEquals("two", readValue("k2", 0));
+    assertEquals("mm", readValue("k2", 1));
+    assertNull(cache.get("k3"));
+    assertEquals(8, cache.size());
+    assertFalse(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+    for (int i = 0; i < 8; i++) {
+      assertTrue(new File(directory, DiskLruCache.JOURNAL_FILE + "-" + i).exists());
+    }
+
+    // The split journals are read back on the next open.
+    cache.close();
+    cache = open(8);
+    assertEquals("v1", readValue("k1", 0));
+    assertEquals(8, cache.size());
+  }
+
+  @Test public void singleShardKeepsLegacyJournal() throws Exception {
+    cache = open(1);
+    writeEntry("k1", "a", "b");
+    cache.close();
+
+    assertTrue(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+    BufferedSource journal = Okio.buffer(fileSystem.source(
+        new File(directory, DiskLruCache.JOURNAL_FILE)));
+    assertEquals("libcore.io.DiskLruCache", journal.readUtf8LineStrict());
+    journal.close();
+
+    cache = open(1);
+    assertEquals("a", readValue("k1", 0));
+  }
+
+  /** Callers that don't choose a shard count get the journal that earlier releases read. */
+  @Test public void legacyCreateKeepsOneShard() throws Exception {
+    cache = DiskLruCache.create(fileSystem, directory, 100, 2, Long.MAX_VALUE);
+    writeEntry("k1", "a", "b");
+    cache.close();
+
+    assertTrue(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+    for (int i = 0; i < DiskLruCache.DEFAULT_SHARD_COUNT; i++) {
+      assertFalse(new File(directory, DiskLruCache.JOURNAL_FILE + "-" + i).exists());
+    }
+
+    cache = DiskLruCache.create(fileSystem, directory, 100, 2, Long.MAX_VALUE);
+    assertEquals("a", readValue("k1", 0));
+    assertEquals("b", readValue("k1", 1));
+  }
+
+  @Test public void concurrentGetEditAndRemove() throws Exception {
+    // Small enough that entries are evicted while the threads run.
+    cache = DiskLruCache.create(fileSystem, directory, 100, 2, 4 * 1024, 4, false);
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int seed = t;
+      Thread thread = new Thread() {
+        @Override public void run() {
+          Random random = new Random(seed);
+          try {
+            for (int i = 0; i < 2000; i++) {
+              String key = "k" + random.nextInt(40);
+              switch (random.nextInt(4)) {
+                case 0:
+                  cache.remove(key);
+                  break;
+                case 1:
+                  String version = seed + "." + i;
+                  writeEntry(key, key + "@" + version, version);
+                  break;
+                default:
+                  checkConsistent(key);
+              }
+            }
+          } catch (Throwable e) {
+            failures.add(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(Collections.<Throwable>emptyList(), failures);
+
+    // Everything that survived is readable after reopening, and the size adds up.
+    cache.close();
+    cache = DiskLruCache.create(fileSystem, directory, 100, 2, 4 * 1024, 4, false);
+    long size = 0L;
+    for (Iterator<DiskLruCache.Snapshot> i = cache.snapshots(); i.hasNext(); ) {
+      DiskLruCache.Snapshot snapshot = i.next();
+      size += snapshot.getLength(0) + snapshot.getLength(1);
+      checkConsistent(snapshot.key());
+      snapshot.close();
+    }
+    assertEquals(size, cache.size());
+    assertTrue(size <= 4 * 1024);
+  }
+
+  /** Asserts that {@code key}'s two values, if it has any, were written by the same commit. */
+  private void checkConsistent(String key) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot == null) return;
+    try {
+      String value = Okio.buffer(snapshot.getSource(0)).readUtf8();
+      String version = Okio.buffer(snapshot.getSource(1)).readUtf8();
+      assertEquals(key + "@" + version, value);
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  private DiskLruCache open(int shardCount) {
+    return DiskLruCache.create(fileSystem, directory, 100, 2, Long.MAX_VALUE, shardCount, false);
+  }
+
+  private void writeEntry(String key, String value0, String value1) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null) return; // Another thread is editing this entry.
+    BufferedSink sink = Okio.buffer(editor.newSink(0));
+    sink.writeUtf8(value0).close();
+    sink = Okio.buffer(editor.newSink(1));
+    sink.writeUtf8(value1).close();
+    editor.commit();
+  }
+
+  private String readValue(String key, int index) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    try {
+      return Okio.buffer(snapshot.getSource(index)).readUtf8();
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  private void writeFile(File file, String content) throws IOException {
+    BufferedSink sink = Okio.buffer(fileSystem.sink(file));
+    sink.writeUtf8(content).close();
+  }
+}
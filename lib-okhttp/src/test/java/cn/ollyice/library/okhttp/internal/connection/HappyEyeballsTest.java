@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.connection;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.SocketFactory;
+import cn.ollyice.library.okhttp.Address;
+import cn.ollyice.library.okhttp.Authenticator;
+import cn.ollyice.library.okhttp.Call;
+import cn.ollyice.library.okhttp.ConnectionSpec;
+import cn.ollyice.library.okhttp.Dns;
+import cn.ollyice.library.okhttp.EventListener;
+import cn.ollyice.library.okhttp.OkHttpClient;
+import cn.ollyice.library.okhttp.Protocol;
+import cn.ollyice.library.okhttp.Request;
+import cn.ollyice.library.okhttp.Response;
+import cn.ollyice.library.okhttp.Route;
+import cn.ollyice.library.okhttp.internal.Internal;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.BufferedSource;
+import cn.ollyice.library.okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Races connects to loopback addresses. 127.0.0.1 accepts connections; nothing listens on
+ * 127.0.0.2, so connecting there is refused at once unless the test makes it hang until canceled,
+ * standing in for an unreachable address.
+ */
+public final class HappyEyeballsTest {
+  private ServerSocket server;
+  private InetAddress accepting;
+  private InetAddress refusing;
+
+  /** Addresses whose connects hang until the socket is closed. */
+  private volatile List<InetAddress> hanging = Collections.emptyList();
+
+  /** If non-null, creating the socket numbered {@link #gatedSocketIndex} waits for this. */
+  private volatile CountDownLatch createGate;
+  private volatile int gatedSocketIndex;
+  private final AtomicInteger createCount = new AtomicInteger();
+
+  /** Every socket the factory created. */
+  private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+  @Before public void setUp() throws Exception {
+    accepting = InetAddress.getByName("127.0.0.1");
+    refusing = InetAddress.getByName("127.0.0.2");
+    server = new ServerSocket(0, 50, accepting);
+    Thread acceptor = new Thread("HappyEyeballsTest server") {
+      @Override public void run() {
+        try {
+          while (true) serve(server.accept());
+        } catch (IOException ignored) {
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  @After public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test public void refusedRouteLosesAndIsReportedAsFailed() throws Exception {
+    Address address = address(server.getLocalPort());
+    Route refused = route(address, refusing);
+    Route accepted = route(address, accepting);
+    HappyEyeballs happyEyeballs = happyEyeballs(refused, accepted);
+
+    HappyEyeballs.Attempt winner = happyEyeballs.connect();
+    assertSame(accepted, winner.route);
+    assertTrue(winner.socket.isConnected());
+    winner.socket.close();
+
+    List<HappyEyeballs.Attempt> failures = happyEyeballs.failures();
+    assertEquals(1, failures.size());
+    assertSame(refused, failures.get(0).route);
+  }
+
+  @Test public void canceledRouteIsNotReportedAsFailed() throws Exception {
+    hanging = Collections.singletonList(refusing);
+    Address address = address(server.getLocalPort());
+    Route unreachable = route(address, refusing);
+    Route accepted = route(address, accepting);
+
+    HappyEyeballs happyEyeballs = happyEyeballs(unreachable, accepted);
+    long start = System.nanoTime();
+    HappyEyeballs.Attempt winner = happyEyeballs.connect();
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertSame(accepted, winner.route);
+    assertTrue(elapsedMs >= HappyEyeballs.CONNECTION_ATTEMPT_DELAY_MILLIS);
+    winner.socket.close();
+
+    assertEquals(Collections.emptyList(), happyEyeballs.failures());
+  }
+
+  @Test public void cancelClosesEveryAttempt() throws Exception {
+    InetAddress unreachable2 = InetAddress.getByName("127.0.0.3");
+    hanging = Arrays.asList(refusing, unreachable2);
+    Address address = address(server.getLocalPort());
+    final HappyEyeballs happyEyeballs =
+        happyEyeballs(route(address, refusing), route(address, unreachable2));
+
+    Future<HappyEyeballs.Attempt> connect = connectLater(happyEyeballs);
+    Thread.sleep(HappyEyeballs.CONNECTION_ATTEMPT_DELAY_MILLIS + 150); // Both attempts started.
+    assertEquals(2, sockets.size());
+    happyEyeballs.cancel();
+
+    assertConnectFails(connect);
+    assertAllSocketsClosed();
+    assertEquals(Collections.emptyList(), happyEyeballs.failures());
+  }
+
+  /**
+   * An attempt that is still creating its socket when another attempt wins finds out only after
+   * the winner has returned, so it must close that socket itself.
+   */
+  @Test public void loserStillCreatingItsSocketClosesIt() throws Exception {
+    hanging = Collections.singletonList(refusing);
+    InetAddress unreachable2 = InetAddress.getByName("127.0.0.3");
+    createGate = new CountDownLatch(1);
+    gatedSocketIndex = 1; // The second attempt's.
+    Address address = address(server.getLocalPort());
+    HappyEyeballs happyEyeballs = happyEyeballs(
+        route(address, refusing), route(address, unreachable2), route(address, accepting));
+
+    HappyEyeballs.Attempt winner = happyEyeballs.connect();
+    assertEquals(accepting, winner.route.socketAddress().getAddress());
+    winner.socket.close();
+    assertEquals(2, sockets.size()); // The second attempt hasn't created its socket yet.
+
+    createGate.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (sockets.size() < 3 || !sockets.get(2).isClosed()) {
+      assertTrue("socket leaked", System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+    assertAllSocketsClosed();
+  }
+
+  @Test public void cancelingTheCallClosesRacingSockets() throws Exception {
+    final InetAddress unreachable2 = InetAddress.getByName("127.0.0.3");
+    hanging = Arrays.asList(refusing, unreachable2);
+    OkHttpClient client = new OkHttpClient.Builder()
+        .fastFallback(true)
+        .socketFactory(new HangingSocketFactory())
+        .dns(new Dns() {
+          @Override public List<InetAddress> lookup(String hostname) {
+            return Arrays.asList(refusing, unreachable2);
+          }
+        })
+        .build();
+    final Call call = client.newCall(new Request.Builder()
+        .url("http://eyeballs.test:" + server.getLocalPort() + "/")
+        .build());
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Response> response = executor.submit(new Callable<Response>() {
+        @Override public Response call() throws Exception {
+          return call.execute();
+        }
+      });
+      Thread.sleep(HappyEyeballs.CONNECTION_ATTEMPT_DELAY_MILLIS + 150);
+      assertEquals(2, sockets.size());
+      call.cancel();
+
+      try {
+        response.get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException expected) {
+        assertTrue(expected.getCause() instanceof IOException);
+      }
+      assertAllSocketsClosed();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void attemptThreadNamesAreRestored() throws Exception {
+    Address address = address(server.getLocalPort());
+    HappyEyeballs happyEyeballs =
+        happyEyeballs(route(address, refusing), route(address, accepting));
+    happyEyeballs.connect().socket.close();
+    Thread.sleep(100); // Let the losing attempt's thread go idle.
+
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      assertFalse(thread.getName(), thread.getName().contains("127.0.0."));
+    }
+  }
+
+  @Test public void failedRouteIsPostponedByTheClient() throws Exception {
+    OkHttpClient client = new OkHttpClient.Builder()
+        .fastFallback(true)
+        .dns(new Dns() {
+          @Override public List<InetAddress> lookup(String hostname) {
+            return Arrays.asList(refusing, accepting);
+          }
+        })
+        .build();
+    Response response = client.newCall(new Request.Builder()
+        .url("http://eyeballs.test:" + server.getLocalPort() + "/")
+        .build()).execute();
+    assertEquals("ok", response.body().string());
+
+    // The address the client built for the call, so that routes compare equal.
+    Address address = new Address("eyeballs.test", server.getLocalPort(), client.dns(),
+        client.socketFactory(), null, null, null, client.proxyAuthenticator(), client.proxy(),
+        client.protocols(), client.connectionSpecs(), client.proxySelector());
+    RouteDatabase routeDatabase = Internal.instance.routeDatabase(client.connectionPool());
+    assertTrue(routeDatabase.shouldPostpone(route(address, refusing)));
+    assertFalse(routeDatabase.shouldPostpone(route(address, accepting)));
+  }
+
+  private static Future<HappyEyeballs.Attempt> connectLater(final HappyEyeballs happyEyeballs) {
+    FutureTask<HappyEyeballs.Attempt> result = new FutureTask<>(
+        new Callable<HappyEyeballs.Attempt>() {
+          @Override public HappyEyeballs.Attempt call() throws Exception {
+            return happyEyeballs.connect();
+          }
+        });
+    new Thread(result, "HappyEyeballsTest connect").start();
+    return result;
+  }
+
+  private static void assertConnectFails(Future<HappyEyeballs.Attempt> connect) throws Exception {
+    try {
+      connect.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof ConnectException);
+    }
+  }
+
+  private void assertAllSocketsClosed() {
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        assertTrue(socket.isClosed());
+      }
+    }
+  }
+
+  private HappyEyeballs happyEyeballs(Route... routes) {
+    return new HappyEyeballs(Arrays.asList(routes), 5000, null, EventListener.NONE);
+  }
+
+  private Address address(int port) {
+    return new Address("eyeballs.test", port, Dns.SYSTEM, new HangingSocketFactory(), null, null,
+        null, Authenticator.NONE, null, Arrays.asList(Protocol.HTTP_1_1),
+        Arrays.asList(ConnectionSpec.CLEARTEXT), ProxySelector.getDefault());
+  }
+
+  private static Route route(Address address, InetAddress inetAddress) {
+    return new Route(address, Proxy.NO_PROXY,
+        new InetSocketAddress(inetAddress, address.url().port()));
+  }
+
+  private static void serve(final Socket socket) {
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          BufferedSource source = Okio.buffer(Okio.source(socket));
+          BufferedSink sink = Okio.buffer(Okio.sink(socket));
+          while (true) {
+            while (!source.readUtf8LineStrict().isEmpty()) {
+            }
+            sink.writeUtf8("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok").flush();
+          }
+        } catch (IOException ignored) {
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Creates sockets whose connects to {@link #hanging} don't complete until they're closed. */
+  final class HangingSocketFactory extends SocketFactory {
+    @Override public Socket createSocket() {
+      CountDownLatch gate = createGate;
+      if (gate != null && createCount.getAndIncrement() == gatedSocketIndex) {
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+      Socket socket = new Socket() {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override public void connect(SocketAddress endpoint, int timeout) throws IOException {
+          if (hanging.contains(((InetSocketAddress) endpoint).getAddress())) {
+            try {
+              closed.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            throw new SocketException("Socket closed");
+          }
+          super.connect(endpoint, timeout);
+        }
+
+        @Override public synchronized void close() throws IOException {
+          closed.countDown();
+          super.close();
+        }
+      };
+      sockets.add(socket);
+      return socket;
+    }
+
+    @Override public Socket createSocket(String host, int port) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public Socket createSocket(
+        String host, int port, InetAddress localHost, int localPort) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public Socket createSocket(InetAddress host, int port) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public Socket createSocket(
+        InetAddress address, int port, InetAddress localAddress, int localPort) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.http2;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import cn.ollyice.library.okio.Buffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/** Literal header names, which readers share through {@link Hpack#NAMES}. */
+public final class HpackTest {
+  @Test public void literalNamesAreSharedAcrossConnections() throws Exception {
+    for (boolean huffman : new boolean[] {false, true}) {
+      Header header = new Header("x-trace-" + huffman, "value");
+      Header first = readOne(header, huffman);
+      Header second = readOne(header, huffman);
+
+      assertEquals(header, first);
+      assertEquals(header, second);
+      assertSame(first.name, second.name);
+      assertNotSame(first.value, second.value); // Only names are interned.
+    }
+  }
+
+  @Test public void namesLongerThanTheTableMaximumAreReadButNotShared() throws Exception {
+    StringBuilder name = new StringBuilder("x-");
+    while (name.length() <= Hpack.NAMES.maxByteCount()) name.append("long");
+    Header header = new Header(name.toString(), "value");
+
+    Header first = readOne(header, false);
+    Header second = readOne(header, false);
+    assertEquals(header, first);
+    assertEquals(header, second);
+    assertNotSame(first.name, second.name);
+  }
+
+  @Test public void uppercaseNameIsRejected() throws Exception {
+    Buffer in = new Buffer()
+        .writeByte(0x00) // Literal header field without indexing, new name.
+        .writeByte(3).writeUtf8("Foo")
+        .writeByte(3).writeUtf8("bar");
+    Hpack.Reader reader = new Hpack.Reader(4096, in);
+    try {
+      reader.readHeaders();
+      fail();
+    } catch (IOException expected) {
+      assertEquals("PROTOCOL_ERROR response malformed: mixed case name: Foo",
+          expected.getMessage());
+    }
+  }
+
+  @Test public void interningDoesNotSwallowTheValue() throws Exception {
+    // The name is interned straight out of the reader's buffer; the value must follow it intact.
+    Buffer in = new Buffer()
+        .writeByte(0x00)
+        .writeByte(5).writeUtf8("x-abc")
+        .writeByte(3).writeUtf8("xyz")
+        .writeByte(0x40) // Literal header field with incremental indexing, new name.
+        .writeByte(5).writeUtf8("x-abc")
+        .writeByte(1).writeUtf8("1");
+    Hpack.Reader reader = new Hpack.Reader(4096, in);
+    reader.readHeaders();
+    List<Header> headers = reader.getAndResetHeaderList();
+
+    assertEquals(2, headers.size());
+    assertEquals(new Header("x-abc", "xyz"), headers.get(0));
+    assertEquals(new Header("x-abc", "1"), headers.get(1));
+    assertSame(headers.get(0).name, headers.get(1).name);
+  }
+
+  /** Encodes {@code header} alone and decodes it with a new reader, as a new connection would. */
+  private static Header readOne(Header header, boolean huffman) throws IOException {
+    Buffer bytes = new Buffer();
+    new Hpack.Writer(4096, huffman, bytes).writeHeaders(Collections.singletonList(header));
+    Hpack.Reader reader = new Hpack.Reader(4096, bytes);
+    reader.readHeaders();
+    List<Header> headers = reader.getAndResetHeaderList();
+    assertEquals(1, headers.size());
+    return headers.get(0);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.http2;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import cn.ollyice.library.okio.BufferedSink;
+import cn.ollyice.library.okio.BufferedSource;
+import cn.ollyice.library.okio.ForwardingSink;
+import cn.ollyice.library.okio.Okio;
+
+/**
+ * Measures the throughput of one cleartext HTTP/2 connection over loopback as the number of
+ * concurrent streams grows. Each stream repeatedly POSTs a request body and reads the response.
+ * Reports requests per second, socket flushes per request on both sides, and how often the
+ * client's stream threads were blocked on monitors, which is where writers contend. Blocked time
+ * is summed over those threads.
+ *
+ * <p>Run {@link #main} with the stream counts to measure, and optionally {@code -Dmillis=} for how
+ * long to measure each after a one second warm up. The defaults are 1, 10, 50 and 200 streams.
+ */
+public final class Http2WriterLoopBenchmark {
+  private static final int REQUEST_SIZE = 8 * 1024;
+  private static final int RESPONSE_SIZE = 32 * 1024;
+  private static final long WARM_UP_MILLIS = 1000L;
+
+  private static final List<Header> REQUEST_HEADERS = Arrays.asList(
+      new Header(Header.TARGET_METHOD, "POST"),
+      new Header(Header.TARGET_PATH, "/"),
+      new Header(Header.TARGET_SCHEME, "http"),
+      new Header(Header.TARGET_AUTHORITY, "localhost"));
+
+  private static final List<Header> RESPONSE_HEADERS =
+      Collections.singletonList(new Header(Header.RESPONSE_STATUS, "200"));
+
+  private static final AtomicLong flushCount = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) args = new String[] {"1", "10", "50", "200"};
+    long millis = Long.getLong("millis", 3000L);
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    threads.setThreadContentionMonitoringEnabled(true);
+    for (String arg : args) {
+      run(threads, Integer.parseInt(arg), millis);
+    }
+    System.exit(0); // The connections' reader threads aren't daemons.
+  }
+
+  private static void run(final ThreadMXBean threads, int streamCount, long millis)
+      throws Exception {
+    final Http2Connection connection = connect();
+    final long measureStart = System.nanoTime() + WARM_UP_MILLIS * 1000000L;
+    final long measureEnd = measureStart + millis * 1000000L;
+    final AtomicLong requestCount = new AtomicLong();
+    final AtomicLong blockedCount = new AtomicLong();
+    final AtomicLong blockedMillis = new AtomicLong();
+
+    Thread[] streamThreads = new Thread[streamCount];
+    for (int i = 0; i < streamCount; i++) {
+      streamThreads[i] = new Thread() {
+        @Override public void run() {
+          try {
+            byte[] requestBody = new byte[REQUEST_SIZE];
+            ThreadInfo start = null;
+            for (long now; (now = System.nanoTime()) < measureEnd; ) {
+              if (start == null && now >= measureStart) {
+                start = threads.getThreadInfo(getId());
+              }
+              exchange(connection, requestBody);
+              if (start != null) requestCount.incrementAndGet();
+            }
+            ThreadInfo end = threads.getThreadInfo(getId());
+            if (start != null) {
+              blockedCount.addAndGet(end.getBlockedCount() - start.getBlockedCount());
+              blockedMillis.addAndGet(end.getBlockedTime() - start.getBlockedTime());
+            }
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      };
+      streamThreads[i].start();
+    }
+
+    while (System.nanoTime() < measureStart) {
+      Thread.sleep(10);
+    }
+    long flushesAtStart = flushCount.get();
+    for (Thread thread : streamThreads) {
+      thread.join();
+    }
+    long flushes = flushCount.get() - flushesAtStart;
+    connection.close();
+
+    long requests = requestCount.get();
+    double seconds = millis / 1000.0;
+    System.out.printf("streams=%3d req/s=%7.0f MB/s=%6.1f flushes/req=%5.2f blocked/req=%5.2f"
+            + " blockedMs/s=%6.1f%n",
+        streamCount,
+        requests / seconds,
+        requests * (double) (REQUEST_SIZE + RESPONSE_SIZE) / seconds / 1e6,
+        (double) flushes / requests,
+        (double) blockedCount.get() / requests,
+        blockedMillis.get() / seconds);
+  }
+
+  private static void exchange(Http2Connection connection, byte[] requestBody)
+      throws IOException {
+    Http2Stream stream = connection.newStream(REQUEST_HEADERS, true);
+    BufferedSink requestSink = Okio.buffer(stream.getSink());
+    requestSink.write(requestBody);
+    requestSink.close();
+    stream.takeResponseHeaders();
+    BufferedSource responseSource = Okio.buffer(stream.getSource());
+    long size = responseSource.readByteString().size();
+    if (size != RESPONSE_SIZE) throw new AssertionError(size);
+    responseSource.close();
+  }
+
+  /** Returns a client connection to a new server that answers every stream. */
+  private static Http2Connection connect() throws Exception {
+    final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    final byte[] responseBody = new byte[RESPONSE_SIZE];
+    Thread acceptor = new Thread("Http2WriterLoopBenchmark server") {
+      @Override public void run() {
+        try {
+          Socket socket = serverSocket.accept();
+          serverSocket.close();
+          socket.setTcpNoDelay(true);
+          new Http2Connection.Builder(false)
+              .socket(socket, "server", Okio.buffer(Okio.source(socket)), countingSink(socket))
+              .listener(new Http2Connection.Listener() {
+                @Override public void onStream(Http2Stream stream) throws IOException {
+                  Okio.buffer(stream.getSource()).readByteString();
+                  stream.sendResponseHeaders(RESPONSE_HEADERS, true);
+                  BufferedSink sink = Okio.buffer(stream.getSink());
+                  sink.write(responseBody);
+                  sink.close();
+                }
+              })
+              .build()
+              .start();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    acceptor.start();
+
+    Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    socket.setTcpNoDelay(true);
+    Http2Connection connection = new Http2Connection.Builder(true)
+        .socket(socket, "client", Okio.buffer(Okio.source(socket)), countingSink(socket))
+        .build();
+    connection.start();
+    acceptor.join();
+    return connection;
+  }
+
+  private static BufferedSink countingSink(Socket socket) throws IOException {
+    return Okio.buffer(new ForwardingSink(Okio.sink(socket)) {
+      @Override public void flush() throws IOException {
+        flushCount.incrementAndGet();
+        super.flush();
+      }
+    });
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okhttp.internal.http2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import cn.ollyice.library.okio.Buffer;
+import cn.ollyice.library.okio.BufferedSource;
+import cn.ollyice.library.okio.ByteString;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Frames written by {@link Http2WriterLoop}. The loop isn't started: awaiting a frame writes the
+ * queue on the test thread, so everything enqueued before it is written as one batch.
+ */
+public final class Http2WriterLoopTest {
+  private final Buffer bytesOut = new Buffer();
+  private final Http2WriterLoop loop = new Http2WriterLoop(new Http2Writer(bytesOut, true), "test");
+
+  @Test public void dataIsSplitWhenPeerLowersMaxFrameSize() throws Exception {
+    loop.applyAndAckSettings(new Settings().set(Settings.MAX_FRAME_SIZE, 32768)).await();
+    bytesOut.clear();
+
+    // Sized for the larger frames, but written after the peer lowers the limit.
+    loop.data(true, 3, new Buffer().write(new byte[30000]), 30000);
+    loop.applyAndAckSettings(new Settings().set(Settings.MAX_FRAME_SIZE, 16384));
+    loop.flush().await();
+
+    assertEquals(Arrays.asList("SETTINGS ACK", "DATA 3 16384", "DATA 3 13616 END_STREAM"),
+        readFrames());
+  }
+
+  @Test public void framesOfAStreamKeepTheirOrder() throws Exception {
+    List<Header> headers = Collections.singletonList(new Header(Header.RESPONSE_STATUS, "200"));
+    loop.data(false, 3, new Buffer().writeUtf8("abc"), 3);
+    loop.synReply(true, 3, headers);
+    loop.synReply(false, 5, headers);
+    loop.flush().await();
+
+    assertEquals(Arrays.asList("HEADERS 5", "DATA 3 3", "HEADERS 3 END_STREAM"), readFrames());
+  }
+
+  @Test public void rejectedDataFailsTheConnection() throws Exception {
+    loop.data(false, 0x80000003, new Buffer().writeUtf8("abc"), 3);
+    try {
+      loop.flush().await();
+      fail();
+    } catch (IOException expected) {
+    }
+    try {
+      loop.ping(false, 1, 2, null);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void writersWaitWhileTooMuchDataIsQueued() throws Exception {
+    final Object dataLock = new Object();
+    final Http2WriterLoop loop = new Http2WriterLoop(
+        new Http2Writer(bytesOut, true), "test", dataLock, 100);
+    loop.data(false, 3, new Buffer().write(new byte[60]), 60);
+    assertFalse(loop.dataQueueFull());
+    loop.data(false, 3, new Buffer().write(new byte[60]), 60);
+    assertTrue(loop.dataQueueFull());
+
+    final CountDownLatch waiting = new CountDownLatch(1);
+    Thread writer = new Thread() {
+      @Override public void run() {
+        synchronized (dataLock) {
+          waiting.countDown();
+          while (loop.dataQueueFull()) {
+            try {
+              dataLock.wait();
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      }
+    };
+    writer.start();
+    waiting.await();
+
+    // Writing the queue makes room and wakes the waiting writer.
+    loop.flush().await();
+    writer.join(5000);
+    assertFalse(writer.isAlive());
+    assertFalse(loop.dataQueueFull());
+    assertEquals(Arrays.asList("DATA 3 60", "DATA 3 60"), readFrames());
+  }
+
+  @Test public void stoppedLoopIsNeverFull() throws Exception {
+    Http2WriterLoop loop = new Http2WriterLoop(
+        new Http2Writer(bytesOut, true), "test", new Object(), 100);
+    loop.data(false, 0x80000003, new Buffer().write(new byte[200]), 200);
+    assertTrue(loop.dataQueueFull());
+    try {
+      loop.flush().await();
+      fail();
+    } catch (IOException expected) {
+    }
+    assertFalse(loop.dataQueueFull());
+  }
+
+  /** Reads the frames written so far, summarized as strings. */
+  private List<String> readFrames() throws IOException {
+    final List<String> frames = new ArrayList<>();
+    Http2Reader reader = new Http2Reader(bytesOut, false);
+    Http2Reader.Handler handler = new BaseHandler() {
+      @Override public void data(boolean inFinished, int streamId, BufferedSource source,
+          int length) throws IOException {
+        source.skip(length);
+        frames.add("DATA " + streamId + " " + length + (inFinished ? " END_STREAM" : ""));
+      }
+
+      @Override public void headers(boolean inFinished, int streamId, int associatedStreamId,
+          List<Header> headerBlock) {
+        frames.add("HEADERS " + streamId + (inFinished ? " END_STREAM" : ""));
+      }
+
+      @Override public void ackSettings() {
+        frames.add("SETTINGS ACK");
+      }
+    };
+    while (!bytesOut.exhausted()) {
+      reader.nextFrame(false, handler);
+    }
+    return frames;
+  }
+
+  static class BaseHandler implements Http2Reader.Handler {
+    @Override public void data(boolean inFinished, int streamId, BufferedSource source,
+        int length) throws IOException {
+      throw new AssertionError();
+    }
+
+    @Override public void headers(boolean inFinished, int streamId, int associatedStreamId,
+        List<Header> headerBlock) {
+      throw new AssertionError();
+    }
+
+    @Override public void rstStream(int streamId, ErrorCode errorCode) {
+      throw new AssertionError();
+    }
+
+    @Override public void settings(boolean clearPrevious, Settings settings) {
+      throw new AssertionError();
+    }
+
+    @Override public void ackSettings() {
+      throw new AssertionError();
+    }
+
+    @Override public void ping(boolean ack, int payload1, int payload2) {
+      throw new AssertionError();
+    }
+
+    @Override public void goAway(int lastGoodStreamId, ErrorCode errorCode, ByteString debugData) {
+      throw new AssertionError();
+    }
+
+    @Override public void windowUpdate(int streamId, long windowSizeIncrement) {
+      throw new AssertionError();
+    }
+
+    @Override public void priority(int streamId, int streamDependency, int weight,
+        boolean exclusive) {
+      throw new AssertionError();
+    }
+
+    @Override public void pushPromise(int streamId, int promisedStreamId,
+        List<Header> requestHeaders) {
+      throw new AssertionError();
+    }
+
+    @Override public void alternateService(int streamId, String origin, ByteString protocol,
+        String host, int port, long maxAge) {
+      throw new AssertionError();
+    }
+  }
+}
@@ -23,9 +23,9 @@ import javax.annotation.Nullable;
 import static cn.ollyice.library.okio.Util.checkOffsetAndCount;
 
 /**
- * This timeout uses a background thread to take action exactly when the timeout occurs. Use this to
- * implement timeouts where they aren't supported natively, such as to sockets that are blocked on
- * writing.
+ * This timeout uses a background thread to take action when the timeout occurs, never early and
+ * at most about a millisecond late. Use this to implement timeouts where they aren't supported
+ * natively, such as to sockets that are blocked on writing.
  *
  * <p>Subclasses should override {@link #timedOut} to take action when a timeout occurs. This method
  * will be invoked by the shared watchdog thread so it should not do any long-running operations.
@@ -51,23 +51,36 @@ public class AsyncTimeout extends Timeout {
   private static final long IDLE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
 
   /**
-   * The watchdog thread processes a linked list of pending timeouts, sorted in the order to be
-   * triggered. This class synchronizes on AsyncTimeout.class. This lock guards the queue.
+   * The watchdog thread processes a {@link TimerWheel} of pending timeouts. This class synchronizes
+   * on AsyncTimeout.class. This lock guards the wheel. Scheduling and cancelling a timeout are
+   * constant time, so the lock is held briefly no matter how many sockets are waiting.
    *
-   * <p>Head's 'next' points to the first element of the linked list. The first element is the next
-   * node to time out, or null if the queue is empty. The head is null until the watchdog thread is
-   * started and also after being idle for {@link #IDLE_TIMEOUT_MILLIS}.
+   * <p>The wheel is null until the watchdog thread is started and also after being idle for {@link
+   * #IDLE_TIMEOUT_MILLIS}.
    */
-  static @Nullable AsyncTimeout head;
+  static @Nullable TimerWheel wheel;
+
+  /** Returned by {@link #awaitTimeout} when the watchdog has been idle long enough to exit. */
+  static final AsyncTimeout IDLE = new AsyncTimeout();
+
+  /**
+   * The tick the watchdog is sleeping until. Scheduling a timeout wakes the watchdog only if it
+   * expires earlier than this.
+   */
+  static long watchdogWakeTick = Long.MAX_VALUE;
 
   /** True if this node is currently in the queue. */
   private boolean inQueue;
 
-  /** The next node in the linked list. */
-  private @Nullable AsyncTimeout next;
+  /** Neighbors in the timer wheel slot's doubly-linked list. */
+  @Nullable AsyncTimeout next;
+  @Nullable AsyncTimeout prev;
+
+  /** The timer wheel slot holding this node, or -1 if it isn't in the wheel. */
+  int slot = -1;
 
-  /** If scheduled, this is the time that the watchdog should time this out. */
-  private long timeoutAt;
+  /** If scheduled, this is the tick at which the watchdog should time this out. */
+  long expiresTick;
 
   public final void enter() {
     if (inQueue) throw new IllegalStateException("Unbalanced enter/exit");
@@ -82,36 +95,32 @@ public class AsyncTimeout extends Timeout {
 
   private static synchronized void scheduleTimeout(
       AsyncTimeout node, long timeoutNanos, boolean hasDeadline) {
-    // Start the watchdog thread and create the head node when the first timeout is scheduled.
-    if (head == null) {
-      head = new AsyncTimeout();
+    long now = System.nanoTime();
+
+    // Start the watchdog thread and create the wheel when the first timeout is scheduled.
+    if (wheel == null) {
+      wheel = new TimerWheel(now);
+      watchdogWakeTick = Long.MAX_VALUE;
       new Watchdog().start();
     }
 
-    long now = System.nanoTime();
+    long timeoutAt;
     if (timeoutNanos != 0 && hasDeadline) {
       // Compute the earliest event; either timeout or deadline. Because nanoTime can wrap around,
       // Math.min() is undefined for absolute values, but meaningful for relative ones.
-      node.timeoutAt = now + Math.min(timeoutNanos, node.deadlineNanoTime() - now);
+      timeoutAt = now + Math.min(timeoutNanos, node.deadlineNanoTime() - now);
     } else if (timeoutNanos != 0) {
-      node.timeoutAt = now + timeoutNanos;
+      timeoutAt = now + timeoutNanos;
     } else if (hasDeadline) {
-      node.timeoutAt = node.deadlineNanoTime();
+      timeoutAt = node.deadlineNanoTime();
     } else {
       throw new AssertionError();
     }
 
-    // Insert the node in sorted order.
-    long remainingNanos = node.remainingNanos(now);
-    for (AsyncTimeout prev = head; true; prev = prev.next) {
-      if (prev.next == null || remainingNanos < prev.next.remainingNanos(now)) {
-        node.next = prev.next;
-        prev.next = node;
-        if (prev == head) {
-          AsyncTimeout.class.notify(); // Wake up the watchdog when inserting at the front.
-        }
-        break;
-      }
+    node.expiresTick = wheel.tickFor(timeoutAt, now);
+    wheel.add(node);
+    if (node.expiresTick < watchdogWakeTick) {
+      AsyncTimeout.class.notify(); // Wake up the watchdog if this is due before it would wake.
     }
   }
 
@@ -124,25 +133,11 @@ public class AsyncTimeout extends Timeout {
 
   /** Returns true if the timeout occurred. */
   private static synchronized boolean cancelScheduledTimeout(AsyncTimeout node) {
-    // Remove the node from the linked list.
-    for (AsyncTimeout prev = head; prev != null; prev = prev.next) {
-      if (prev.next == node) {
-        prev.next = node.next;
-        node.next = null;
-        return false;
-      }
-    }
-
-    // The node wasn't found in the linked list: it must have timed out!
-    return true;
-  }
+    // The node isn't in the wheel: it must have timed out!
+    if (node.slot == -1) return true;
 
-  /**
-   * Returns the amount of time left until the time out. This will be negative if the timeout has
-   * elapsed and the timeout should occur immediately.
-   */
-  private long remainingNanos(long now) {
-    return timeoutAt - now;
+    wheel.remove(node);
+    return false;
   }
 
   /**
@@ -316,8 +311,8 @@ public class AsyncTimeout extends Timeout {
 
             // The queue is completely empty. Let this thread exit and let another watchdog thread
             // get created on the next call to scheduleTimeout().
-            if (timedOut == head) {
-              head = null;
+            if (timedOut == IDLE) {
+              wheel = null;
               return;
             }
           }
@@ -331,40 +326,45 @@ public class AsyncTimeout extends Timeout {
   }
 
   /**
-   * Removes and returns the node at the head of the list, waiting for it to time out if necessary.
-   * This returns {@link #head} if there was no node at the head of the list when starting, and
-   * there continues to be no node after waiting {@code IDLE_TIMEOUT_NANOS}. It returns null if a
-   * new node was inserted while waiting. Otherwise this returns the node being waited on that has
-   * been removed.
+   * Removes and returns a node that has timed out, waiting for one if necessary. This returns
+   * {@link #IDLE} if the wheel was empty when starting, and continues to be empty after waiting
+   * {@code IDLE_TIMEOUT_NANOS}. It returns null if the wheel advanced or a new node was scheduled
+   * while waiting. Otherwise this returns a node that has been removed.
    */
   static @Nullable AsyncTimeout awaitTimeout() throws InterruptedException {
-    // Get the next eligible node.
-    AsyncTimeout node = head.next;
+    TimerWheel wheel = AsyncTimeout.wheel;
 
     // The queue is empty. Wait until either something is enqueued or the idle timeout elapses.
-    if (node == null) {
+    if (wheel.size == 0) {
       long startNanos = System.nanoTime();
+      watchdogWakeTick = Long.MAX_VALUE;
       AsyncTimeout.class.wait(IDLE_TIMEOUT_MILLIS);
-      return head.next == null && (System.nanoTime() - startNanos) >= IDLE_TIMEOUT_NANOS
-          ? head  // The idle timeout elapsed.
+      return wheel.size == 0 && (System.nanoTime() - startNanos) >= IDLE_TIMEOUT_NANOS
+          ? IDLE  // The idle timeout elapsed.
           : null; // The situation has changed.
     }
 
-    long waitNanos = node.remainingNanos(System.nanoTime());
+    // A node in the current tick has timed out. Remove it.
+    AsyncTimeout node = wheel.pollExpired();
+    if (node != null) return node;
+
+    long nextTick = wheel.nextTick();
+    long waitNanos = wheel.nanoTime(nextTick) - System.nanoTime();
 
-    // The head of the queue hasn't timed out yet. Await that.
+    // The next tick with work hasn't started yet. Await that.
     if (waitNanos > 0) {
       // Waiting is made complicated by the fact that we work in nanoseconds,
       // but the API wants (millis, nanos) in two arguments.
       long waitMillis = waitNanos / 1000000L;
       waitNanos -= (waitMillis * 1000000L);
+      watchdogWakeTick = nextTick;
       AsyncTimeout.class.wait(waitMillis, (int) waitNanos);
+      watchdogWakeTick = Long.MAX_VALUE;
       return null;
     }
 
-    // The head of the queue has timed out. Remove it.
-    head.next = node.next;
-    node.next = null;
-    return node;
+    // The next tick with work has started. Cascade into it; its nodes are polled on the next call.
+    wheel.advance(nextTick);
+    return null;
   }
 }
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
@@ -33,6 +34,7 @@ import javax.annotation.Nullable;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
+import static cn.ollyice.library.okio.Util.arrayRangeEquals;
 import static cn.ollyice.library.okio.Util.checkOffsetAndCount;
 import static cn.ollyice.library.okio.Util.reverseBytesLong;
 
@@ -52,6 +54,15 @@ import static cn.ollyice.library.okio.Util.reverseBytesLong;
  * This class avoids zero-fill and GC churn by pooling byte arrays.
  */
 public final class Buffer implements BufferedSource, BufferedSink, Cloneable, ByteChannel {
+  /** The maximum number of segments passed to a single gathering write. */
+  private static final int GATHER_SEGMENT_COUNT = 64;
+
+  /** Byte strings at least this long are read as views that share segments. */
+  static final int SEGMENTING_THRESHOLD = 4096;
+
+  /** Patterns at least this long are searched for with Boyer-Moore-Horspool. */
+  static final int HORSPOOL_MINIMUM = 3;
+
   private static final byte[] DIGITS =
       { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
   static final int REPLACEMENT_CHARACTER = '\ufffd';
@@ -59,7 +70,29 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
   @Nullable Segment head;
   long size;
 
+  /** The size of segments this buffer allocates. Segments moved in from other buffers may differ. */
+  final int segmentSize;
+
   public Buffer() {
+    this.segmentSize = Segment.SIZE;
+  }
+
+  /**
+   * Returns a buffer that allocates segments of {@code segmentSize} bytes, for bulk transfers such
+   * as large downloads. Large segments come from a separate pool and make for short segment chains.
+   * {@code segmentSize} must be a power of two between 8 KiB and 1 MiB.
+   */
+  public Buffer(int segmentSize) {
+    if (segmentSize < Segment.SIZE || segmentSize > Segment.MAX_SIZE
+        || Integer.bitCount(segmentSize) != 1) {
+      throw new IllegalArgumentException("segmentSize out of range: " + segmentSize);
+    }
+    this.segmentSize = segmentSize;
+  }
+
+  /** Returns the size of segments this buffer allocates. */
+  public final int segmentSize() {
+    return segmentSize;
   }
 
   /** Returns the number of bytes currently in this buffer. */
@@ -246,7 +279,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
     if (in == null) throw new IllegalArgumentException("in == null");
     while (byteCount > 0 || forever) {
       Segment tail = writableSegment(1);
-      int maxToCopy = (int) Math.min(byteCount, Segment.SIZE - tail.limit);
+      int maxToCopy = (int) Math.min(byteCount, tail.data.length - tail.limit);
       int bytesRead = in.read(tail.data, tail.limit, maxToCopy);
       if (bytesRead == -1) {
         if (forever) return;
@@ -258,6 +291,73 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
     }
   }
 
+  /** Read and exhaust bytes from {@code channel} to this, starting at its current position. */
+  public final Buffer readFrom(FileChannel channel) throws IOException {
+    readFrom(channel, Long.MAX_VALUE, true);
+    return this;
+  }
+
+  /** Read {@code byteCount} bytes from {@code channel} to this. */
+  public final Buffer readFrom(FileChannel channel, long byteCount) throws IOException {
+    if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+    readFrom(channel, byteCount, false);
+    return this;
+  }
+
+  private void readFrom(FileChannel channel, long byteCount, boolean forever) throws IOException {
+    if (channel == null) throw new IllegalArgumentException("channel == null");
+    while (byteCount > 0 || forever) {
+      Segment tail = writableSegment(1);
+      int maxToCopy = (int) Math.min(byteCount, tail.data.length - tail.limit);
+      int bytesRead = channel.read(ByteBuffer.wrap(tail.data, tail.limit, maxToCopy));
+      if (bytesRead == -1) {
+        if (tail.pos == tail.limit) {
+          // We allocated a tail segment, but didn't end up needing it. Recycle!
+          head = tail.pop();
+          SegmentPool.recycle(tail);
+        }
+        if (forever) return;
+        throw new EOFException();
+      }
+      tail.limit += bytesRead;
+      size += bytesRead;
+      byteCount -= bytesRead;
+    }
+  }
+
+  /** Write the contents of this to {@code channel}. */
+  public final Buffer writeTo(FileChannel channel) throws IOException {
+    return writeTo(channel, size);
+  }
+
+  /**
+   * Write {@code byteCount} bytes from this to {@code channel}. Segments are handed to the channel
+   * in batches with a single gathering write, so a multi-segment buffer costs one system call per
+   * batch rather than one per segment.
+   */
+  public final Buffer writeTo(FileChannel channel, long byteCount) throws IOException {
+    if (channel == null) throw new IllegalArgumentException("channel == null");
+    checkOffsetAndCount(size, 0, byteCount);
+
+    ByteBuffer[] buffers = new ByteBuffer[(int) Math.min(GATHER_SEGMENT_COUNT,
+        byteCount / segmentSize + 2)];
+    while (byteCount > 0) {
+      // Wrap up to buffers.length segments covering at most byteCount bytes.
+      int count = 0;
+      long remaining = byteCount;
+      for (Segment s = head; remaining > 0 && count < buffers.length; s = s.next) {
+        int toWrite = (int) Math.min(remaining, s.limit - s.pos);
+        buffers[count++] = ByteBuffer.wrap(s.data, s.pos, toWrite);
+        remaining -= toWrite;
+      }
+
+      long written = channel.write(buffers, 0, count);
+      byteCount -= written;
+      skip(written);
+    }
+    return this;
+  }
+
   /**
    * Returns the number of bytes in segments that are not writable. This is the
    * number of bytes that can be flushed immediately to an underlying sink
@@ -269,7 +369,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
 
     // Omit the tail if it's still writable.
     Segment tail = head.prev;
-    if (tail.limit < Segment.SIZE && tail.owner) {
+    if (tail.limit < tail.data.length && tail.owner) {
       result -= tail.limit - tail.pos;
     }
 
@@ -541,9 +641,33 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
   }
 
   @Override public ByteString readByteString(long byteCount) throws EOFException {
+    // Share long strings rather than copying them, unless doing so would pin a mostly-unused large
+    // segment.
+    if (byteCount >= SEGMENTING_THRESHOLD && head != null && byteCount >= head.data.length / 2) {
+      return readByteStringView(byteCount);
+    }
     return new ByteString(readByteArray(byteCount));
   }
 
+  /**
+   * Removes {@code byteCount} bytes from this and returns them as a byte string that shares this
+   * buffer's segments instead of copying them. Operations that need contiguous bytes copy them on
+   * first use.
+   *
+   * <p>The shared segments can't be returned to the pool or appended to, so this costs more than a
+   * copy for short strings: prefer {@link #readByteString(long)} unless the bytes are long or the
+   * string is unlikely to be inspected.
+   */
+  public final ByteString readByteStringView(long byteCount) throws EOFException {
+    checkOffsetAndCount(size, 0, byteCount);
+    if (byteCount > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("byteCount > Integer.MAX_VALUE: " + byteCount);
+    }
+    ByteString result = snapshot((int) byteCount);
+    skip(byteCount);
+    return result;
+  }
+
   @Override public int select(Options options) {
     Segment s = head;
     if (s == null) return options.indexOf(ByteString.EMPTY);
@@ -551,7 +675,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
     ByteString[] byteStrings = options.byteStrings;
     for (int i = 0, listSize = byteStrings.length; i < listSize; i++) {
       ByteString b = byteStrings[i];
-      if (size >= b.size() && rangeEquals(s, s.pos, b, 0, b.size())) {
+      if (size >= b.size() && rangeEquals(s, s.pos, b.internalArray(), 0, b.size())) {
         try {
           skip(b.size());
           return i;
@@ -574,7 +698,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
     for (int i = 0, listSize = byteStrings.length; i < listSize; i++) {
       ByteString b = byteStrings[i];
       int bytesLimit = (int) Math.min(size, b.size());
-      if (bytesLimit == 0 || rangeEquals(s, s.pos, b, 0, bytesLimit)) {
+      if (bytesLimit == 0 || rangeEquals(s, s.pos, b.internalArray(), 0, bytesLimit)) {
         return i;
       }
     }
@@ -625,6 +749,15 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
     }
     if (byteCount == 0) return "";
 
+    if (charset.equals(Util.UTF_8)) {
+      // Decode UTF-8 in place across segments when that's faster than the charset.
+      String result = Utf8.decode(this, (int) byteCount);
+      if (result != null) {
+        skip(byteCount);
+        return result;
+      }
+    }
+
     Segment s = head;
     if (s.pos + byteCount > s.limit) {
       // If the string spans multiple segments, delegate to readBytes().
@@ -890,7 +1023,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
         Segment tail = writableSegment(1);
         byte[] data = tail.data;
         int segmentOffset = tail.limit - i;
-        int runLimit = Math.min(endIndex, Segment.SIZE - segmentOffset);
+        int runLimit = Math.min(endIndex, data.length - segmentOffset);
 
         // Emit a 7-bit character with 1 byte.
         data[segmentOffset + i++] = (byte) c; // 0xxxxxxx
@@ -1017,7 +1150,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
     while (offset < limit) {
       Segment tail = writableSegment(1);
 
-      int toCopy = Math.min(limit - offset, Segment.SIZE - tail.limit);
+      int toCopy = Math.min(limit - offset, tail.data.length - tail.limit);
       System.arraycopy(source, offset, tail.data, tail.limit, toCopy);
 
       offset += toCopy;
@@ -1036,7 +1169,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
     while (remaining > 0) {
       Segment tail = writableSegment(1);
 
-      int toCopy = Math.min(remaining, Segment.SIZE - tail.limit);
+      int toCopy = Math.min(remaining, tail.data.length - tail.limit);
       source.get(tail.data, tail.limit, toCopy);
 
       remaining -= toCopy;
@@ -1050,7 +1183,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
   @Override public long writeAll(Source source) throws IOException {
     if (source == null) throw new IllegalArgumentException("source == null");
     long totalBytesRead = 0;
-    for (long readCount; (readCount = source.read(this, Segment.SIZE)) != -1; ) {
+    for (long readCount; (readCount = source.read(this, segmentSize)) != -1; ) {
       totalBytesRead += readCount;
     }
     return totalBytesRead;
@@ -1205,16 +1338,16 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
    * bytes to, creating it if necessary.
    */
   Segment writableSegment(int minimumCapacity) {
-    if (minimumCapacity < 1 || minimumCapacity > Segment.SIZE) throw new IllegalArgumentException();
+    if (minimumCapacity < 1 || minimumCapacity > segmentSize) throw new IllegalArgumentException();
 
     if (head == null) {
-      head = SegmentPool.take(); // Acquire a first segment.
+      head = SegmentPool.take(segmentSize); // Acquire a first segment.
       return head.next = head.prev = head;
     }
 
     Segment tail = head.prev;
-    if (tail.limit + minimumCapacity > Segment.SIZE || !tail.owner) {
-      tail = tail.push(SegmentPool.take()); // Append a new empty segment to fill up.
+    if (tail.limit + minimumCapacity > tail.data.length || !tail.owner) {
+      tail = tail.push(SegmentPool.take(segmentSize)); // Append a new empty segment to fill up.
     }
     return tail;
   }
@@ -1279,7 +1412,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
       if (byteCount < (source.head.limit - source.head.pos)) {
         Segment tail = head != null ? head.prev : null;
         if (tail != null && tail.owner
-            && (byteCount + tail.limit - (tail.shared ? 0 : tail.pos) <= Segment.SIZE)) {
+            && (byteCount + tail.limit - (tail.shared ? 0 : tail.pos) <= tail.data.length)) {
           // Our existing segments are sufficient. Move bytes from source's head to our tail.
           source.head.writeTo(tail, (int) byteCount);
           source.size -= byteCount;
@@ -1371,11 +1504,9 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
     while (offset < toIndex) {
       byte[] data = s.data;
       int limit = (int) Math.min(s.limit, s.pos + toIndex - offset);
-      int pos = (int) (s.pos + fromIndex - offset);
-      for (; pos < limit; pos++) {
-        if (data[pos] == b) {
-          return pos - s.pos + offset;
-        }
+      int pos = Util.indexOf(data, (int) (s.pos + fromIndex - offset), limit, b);
+      if (pos != -1) {
+        return pos - s.pos + offset;
       }
 
       // Not in this segment. Try the next one.
@@ -1422,17 +1553,24 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
       }
     }
 
+    byte[] pattern = bytes.internalArray();
+    int bytesSize = pattern.length;
+    long resultLimit = size - bytesSize + 1;
+    if (bytesSize >= HORSPOOL_MINIMUM) {
+      return indexOfHorspool(s, offset, fromIndex, bytes, resultLimit);
+    }
+
     // Scan through the segments, searching for the lead byte. Each time that is found, delegate to
     // rangeEquals() to check for a complete match.
-    byte b0 = bytes.getByte(0);
-    int bytesSize = bytes.size();
-    long resultLimit = size - bytesSize + 1;
+    byte b0 = pattern[0];
     while (offset < resultLimit) {
       // Scan through the current segment.
       byte[] data = s.data;
       int segmentLimit = (int) Math.min(s.limit, s.pos + resultLimit - offset);
       for (int pos = (int) (s.pos + fromIndex - offset); pos < segmentLimit; pos++) {
-        if (data[pos] == b0 && rangeEquals(s, pos + 1, bytes, 1, bytesSize)) {
+        pos = Util.indexOf(data, pos, segmentLimit, b0);
+        if (pos == -1) break;
+        if (rangeEquals(s, pos + 1, pattern, 1, bytesSize)) {
           return pos - s.pos + offset;
         }
       }
@@ -1488,12 +1626,9 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
       byte b0 = targetBytes.getByte(0);
       byte b1 = targetBytes.getByte(1);
       while (offset < size) {
-        byte[] data = s.data;
-        for (int pos = (int) (s.pos + fromIndex - offset), limit = s.limit; pos < limit; pos++) {
-          int b = data[pos];
-          if (b == b0 || b == b1) {
-            return pos - s.pos + offset;
-          }
+        int pos = Util.indexOf(s.data, (int) (s.pos + fromIndex - offset), s.limit, b0, b1);
+        if (pos != -1) {
+          return pos - s.pos + offset;
         }
 
         // Not in this segment. Try the next one.
@@ -1502,15 +1637,17 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
         s = s.next;
       }
     } else {
-      // Scan through the segments, searching for a byte that's also in the array.
-      byte[] targetByteArray = targetBytes.internalArray();
+      // Scan through the segments, searching for a byte that's also in the array. Look each byte up
+      // in a 256-bit set rather than comparing it against every target.
+      long[] targetSet = new long[4];
+      for (byte t : targetBytes.internalArray()) {
+        targetSet[(t & 0xff) >>> 6] |= 1L << t;
+      }
       while (offset < size) {
         byte[] data = s.data;
         for (int pos = (int) (s.pos + fromIndex - offset), limit = s.limit; pos < limit; pos++) {
-          int b = data[pos];
-          for (byte t : targetByteArray) {
-            if (b == t) return pos - s.pos + offset;
-          }
+          int b = data[pos] & 0xff;
+          if ((targetSet[b >>> 6] & (1L << b)) != 0L) return pos - s.pos + offset;
         }
 
         // Not in this segment. Try the next one.
@@ -1536,12 +1673,17 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
         || bytes.size() - bytesOffset < byteCount) {
       return false;
     }
-    for (int i = 0; i < byteCount; i++) {
-      if (getByte(offset + i) != bytes.getByte(bytesOffset + i)) {
-        return false;
-      }
+    if (byteCount == 0) return true;
+
+    // Find the segment holding offset, then compare a segment at a time.
+    Segment s = head;
+    long segmentOffset = 0L;
+    for (long nextOffset; (nextOffset = segmentOffset + (s.limit - s.pos)) <= offset; ) {
+      s = s.next;
+      segmentOffset = nextOffset;
     }
-    return true;
+    return rangeEquals(s, (int) (s.pos + offset - segmentOffset), bytes.internalArray(),
+        bytesOffset, bytesOffset + byteCount);
   }
 
   /**
@@ -1549,29 +1691,73 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
    * is equal to {@code bytes[bytesOffset..bytesLimit)}.
    */
   private boolean rangeEquals(
-      Segment segment, int segmentPos, ByteString bytes, int bytesOffset, int bytesLimit) {
-    int segmentLimit = segment.limit;
-    byte[] data = segment.data;
-
+      Segment segment, int segmentPos, byte[] bytes, int bytesOffset, int bytesLimit) {
     for (int i = bytesOffset; i < bytesLimit; ) {
-      if (segmentPos == segmentLimit) {
+      if (segmentPos == segment.limit) {
         segment = segment.next;
-        data = segment.data;
         segmentPos = segment.pos;
-        segmentLimit = segment.limit;
       }
 
-      if (data[segmentPos] != bytes.getByte(i)) {
+      // Compare as much as this segment holds in one run.
+      int toCompare = Math.min(bytesLimit - i, segment.limit - segmentPos);
+      if (!arrayRangeEquals(segment.data, segmentPos, bytes, i, toCompare)) {
         return false;
       }
 
-      segmentPos++;
-      i++;
+      segmentPos += toCompare;
+      i += toCompare;
     }
 
     return true;
   }
 
+  /**
+   * Searches for {@code bytes} with Boyer-Moore-Horspool. Each step compares the byte under the
+   * window's last position and, unless the whole window matches, slides the window by that byte's
+   * shift. Long patterns such as multipart boundaries skip most of the buffer without reading it.
+   *
+   * <p>{@code s} is the segment holding {@code fromIndex}, and starts at {@code offset}. Windows may
+   * span segments; a second cursor tracks the segment holding the window's start.
+   */
+  private long indexOfHorspool(
+      Segment s, long offset, long fromIndex, ByteString bytes, long resultLimit) {
+    byte[] pattern = bytes.internalArray();
+    int[] skip = bytes.horspoolSkip();
+    int last = pattern.length - 1;
+    byte lastByte = pattern[last];
+
+    Segment windowSegment = s;
+    long windowSegmentOffset = offset;
+    for (long window = fromIndex; window < resultLimit; ) {
+      // Advance to the segment holding the window's last byte.
+      long end = window + last;
+      while (end >= offset + (s.limit - s.pos)) {
+        offset += s.limit - s.pos;
+        s = s.next;
+      }
+
+      int endPos = (int) (s.pos + end - offset);
+      byte b = s.data[endPos];
+      if (b == lastByte) {
+        if (window >= offset) {
+          // The window is within this segment.
+          if (arrayRangeEquals(s.data, endPos - last, pattern, 0, last)) return window;
+        } else {
+          // The window spans segments.
+          while (window >= windowSegmentOffset + (windowSegment.limit - windowSegment.pos)) {
+            windowSegmentOffset += windowSegment.limit - windowSegment.pos;
+            windowSegment = windowSegment.next;
+          }
+          int windowPos = (int) (windowSegment.pos + window - windowSegmentOffset);
+          if (rangeEquals(windowSegment, windowPos, pattern, 0, last)) return window;
+        }
+      }
+      window += skip[b & 0xff];
+    }
+
+    return -1L;
+  }
+
   @Override public void flush() {
   }
 
@@ -1721,7 +1907,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
 
   /** Returns a deep copy of this buffer. */
   @Override public Buffer clone() {
-    Buffer result = new Buffer();
+    Buffer result = new Buffer(segmentSize);
     if (size == 0) return result;
 
     result.head = head.sharedCopy();
@@ -2129,7 +2315,7 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
         boolean needsToSeek = true;
         for (long bytesToAdd = newSize - oldSize; bytesToAdd > 0; ) {
           Segment tail = buffer.writableSegment(1);
-          int segmentBytesToAdd = (int) Math.min(bytesToAdd, Segment.SIZE - tail.limit);
+          int segmentBytesToAdd = (int) Math.min(bytesToAdd, tail.data.length - tail.limit);
           tail.limit += segmentBytesToAdd;
           bytesToAdd -= segmentBytesToAdd;
 
@@ -2170,35 +2356,35 @@ public final class Buffer implements BufferedSource, BufferedSink, Cloneable, By
      * other parts of the current process.
      *
      * @param minByteCount the size of the contiguous capacity. Must be positive and not greater
-     *     than the capacity size of a single segment (8 KiB).
+     *     than the buffer's {@linkplain Buffer#segmentSize segment size} (8 KiB by default).
      * @return the number of bytes expanded by. Not less than {@code minByteCount}.
      */
     public final long expandBuffer(int minByteCount) {
       if (minByteCount <= 0) {
         throw new IllegalArgumentException("minByteCount <= 0: " + minByteCount);
       }
-      if (minByteCount > Segment.SIZE) {
-        throw new IllegalArgumentException("minByteCount > Segment.SIZE: " + minByteCount);
-      }
       if (buffer == null) {
         throw new IllegalStateException("not attached to a buffer");
       }
+      if (minByteCount > buffer.segmentSize) {
+        throw new IllegalArgumentException("minByteCount > segmentSize: " + minByteCount);
+      }
       if (!readWrite) {
         throw new IllegalStateException("expandBuffer() only permitted for read/write buffers");
       }
 
       long oldSize = buffer.size;
       Segment tail = buffer.writableSegment(minByteCount);
-      int result = Segment.SIZE - tail.limit;
-      tail.limit = Segment.SIZE;
+      int result = tail.data.length - tail.limit;
+      tail.limit = tail.data.length;
       buffer.size = oldSize + result;
 
       // Seek to the old size.
       this.segment = tail;
       this.offset = oldSize;
       this.data = tail.data;
-      this.start = Segment.SIZE - result;
-      this.end = Segment.SIZE;
+      this.start = tail.limit - result;
+      this.end = tail.limit;
 
       return result;
     }
@@ -60,6 +60,7 @@ public class ByteString implements Serializable, Comparable<ByteString> {
   final byte[] data;
   transient int hashCode; // Lazily computed; 0 if unknown.
   transient String utf8; // Lazily computed.
+  transient int[] horspoolSkip; // Lazily computed.
 
   ByteString(byte[] data) {
     this.data = data; // Trusted internal constructor doesn't clone data.
@@ -359,6 +360,24 @@ public class ByteString implements Serializable, Comparable<ByteString> {
     return data;
   }
 
+  /**
+   * Returns the Boyer-Moore-Horspool shift table for searching for this string: for each byte
+   * value, how far a window may slide when that byte is under the window's last position.
+   */
+  int[] horspoolSkip() {
+    int[] result = horspoolSkip;
+    if (result != null) return result;
+
+    byte[] pattern = internalArray();
+    int last = pattern.length - 1;
+    result = new int[256];
+    Arrays.fill(result, pattern.length);
+    for (int i = 0; i < last; i++) {
+      result[pattern[i] & 0xff] = last - i;
+    }
+    return horspoolSkip = result;
+  }
+
   /**
    * Returns a {@code ByteBuffer} view of the bytes in this {@code ByteString}.
    */
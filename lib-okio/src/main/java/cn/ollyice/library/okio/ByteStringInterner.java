@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.EOFException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded table of small, frequently repeated byte strings such as header names and JSON keys.
+ * Reading a token through {@link #intern(Buffer, long)} returns the canonical instance without
+ * allocating when the token is already in the table.
+ *
+ * <p>The table is a direct-mapped cache. Each token hashes to one slot, and a token that collides
+ * with another replaces it. Lookups take no locks; a racing replacement only costs a miss. Byte
+ * strings longer than the table's maximum are never interned.
+ */
+public final class ByteStringInterner {
+  private final ByteString[] table;
+  private final int maxByteCount;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * @param capacity the number of slots, rounded up to a power of two.
+   * @param maxByteCount the size of the longest byte string to intern.
+   */
+  public ByteStringInterner(int capacity, int maxByteCount) {
+    if (capacity < 1 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("capacity out of range: " + capacity);
+    }
+    if (maxByteCount < 0) throw new IllegalArgumentException("maxByteCount < 0: " + maxByteCount);
+    int slots = 1;
+    while (slots < capacity) slots <<= 1;
+    this.table = new ByteString[slots];
+    this.maxByteCount = maxByteCount;
+  }
+
+  /** Returns the canonical instance equal to {@code byteString}, adding it if necessary. */
+  public ByteString intern(ByteString byteString) {
+    if (byteString.size() > maxByteCount) return byteString;
+
+    int hash = byteString.hashCode();
+    int index = index(hash);
+    ByteString existing = table[index];
+    if (existing != null && existing.hashCode() == hash && existing.equals(byteString)) {
+      hitCount.incrementAndGet();
+      return existing;
+    }
+
+    missCount.incrementAndGet();
+    // Don't intern views of shared segments: they'd pin those segments in memory.
+    ByteString canonical = byteString instanceof SegmentedByteString
+        ? ByteString.of(byteString.internalArray())
+        : byteString;
+    table[index] = canonical;
+    return canonical;
+  }
+
+  /**
+   * Removes {@code byteCount} bytes from {@code source} and returns them as a byte string. If they
+   * equal an interned byte string, that instance is returned and nothing is allocated.
+   */
+  public ByteString intern(Buffer source, long byteCount) throws EOFException {
+    if (source.size < byteCount) throw new EOFException();
+    if (byteCount > maxByteCount) return source.readByteString(byteCount);
+
+    // Compute Arrays.hashCode() across the segments, so a hit needn't copy the bytes out first.
+    int hash = 1;
+    Segment s = source.head;
+    for (long remaining = byteCount; remaining > 0; s = s.next) {
+      byte[] data = s.data;
+      for (int pos = s.pos, limit = (int) Math.min(s.limit, s.pos + remaining); pos < limit; pos++) {
+        hash = 31 * hash + data[pos];
+        remaining--;
+      }
+    }
+
+    int index = index(hash);
+    ByteString existing = table[index];
+    if (existing != null
+        && existing.size() == byteCount
+        && existing.hashCode() == hash
+        && source.rangeEquals(0, existing)) {
+      source.skip(byteCount);
+      hitCount.incrementAndGet();
+      return existing;
+    }
+
+    missCount.incrementAndGet();
+    ByteString canonical = new ByteString(source.readByteArray(byteCount));
+    canonical.hashCode = hash;
+    table[index] = canonical;
+    return canonical;
+  }
+
+  /** Returns the number of lookups that found the byte string already interned. */
+  public long hitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of lookups that had to add the byte string. */
+  public long missCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of slots in this table. */
+  public int capacity() {
+    return table.length;
+  }
+
+  /** Returns the longest byte string this table will intern. */
+  public int maxByteCount() {
+    return maxByteCount;
+  }
+
+  private int index(int hash) {
+    hash ^= (hash >>> 16); // Spread the high bits, as HashMap does.
+    return hash & (table.length - 1);
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Pipe} for many producer threads and one consumer thread. Writers don't contend on a
+ * shared lock: each write moves its segments into a private chunk and appends that chunk to a
+ * lock-free queue. The consumer takes chunks off the head of the queue.
+ *
+ * <p>Like {@link Pipe}, the number of buffered bytes is bounded by a user-specified maximum. Blocking
+ * writes through {@link #sink()} wait for space, and blocking reads through {@link #source()} wait
+ * for data. Limits on the amount of time spent waiting can be configured with {@linkplain Timeout
+ * timeouts} on the source and the sink. Threads only take a lock when they must wait.
+ *
+ * <p>Event-driven callers can use {@link #tryWrite} and {@link #tryRead}, which never block, and
+ * register a one-shot callback with {@link #whenWritable} or {@link #whenReadable} to learn when to
+ * try again. This fits pull-based streams such as reactive backpressure: read while there is demand
+ * and data, and resume from the callback.
+ *
+ * <p>Bytes from one write of at most {@code maxBufferSize} bytes stay contiguous. Larger writes are
+ * split into pieces, and pieces from different producers may interleave.
+ *
+ * <p>When the sink is closed, source reads will continue to complete normally until the buffer has
+ * been exhausted. At that point reads will return -1, indicating the end of the stream. But if the
+ * source is closed first, writes to the sink will immediately fail with an {@link IOException}.
+ */
+public final class ConcurrentPipe {
+  final long maxBufferSize;
+
+  /** Chunks written but not yet taken by the consumer, oldest first. */
+  private final ConcurrentLinkedQueue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Bytes that are buffered or that a producer has reserved space for. This is incremented before
+   * a chunk is queued, so it never under-counts the queue.
+   */
+  private final AtomicLong size = new AtomicLong();
+
+  /**
+   * Bytes in queued chunks that the consumer hasn't read yet. Unlike {@link #size} this excludes
+   * space reserved for chunks not yet queued, so any thread can tell whether a read would find
+   * bytes without looking at {@link #current}.
+   */
+  private final AtomicLong readableSize = new AtomicLong();
+
+  /** Threads blocked or about to block on {@link #lock}. Signals skip the lock when this is 0. */
+  private final AtomicInteger waiterCount = new AtomicInteger();
+  private final Object lock = new Object();
+
+  private final AtomicReference<Runnable> readableCallback = new AtomicReference<>();
+  private final ConcurrentLinkedQueue<Runnable> writableCallbacks = new ConcurrentLinkedQueue<>();
+
+  /** The partially-read chunk. Only the consumer thread touches this. */
+  private @Nullable Chunk current;
+
+  volatile boolean sinkClosed;
+  volatile boolean sourceClosed;
+
+  private final Sink sink = new PipeSink();
+  private final Source source = new PipeSource();
+
+  public ConcurrentPipe(long maxBufferSize) {
+    if (maxBufferSize < 1L) {
+      throw new IllegalArgumentException("maxBufferSize < 1: " + maxBufferSize);
+    }
+    this.maxBufferSize = maxBufferSize;
+  }
+
+  public final Source source() {
+    return source;
+  }
+
+  public final Sink sink() {
+    return sink;
+  }
+
+  /** Returns the number of bytes buffered or being written. */
+  public long size() {
+    return size.get();
+  }
+
+  /**
+   * Writes as many of {@code byteCount} bytes as fit without waiting, and returns the number of
+   * bytes written. Returns 0 if the pipe is full. The bytes written by one call stay contiguous.
+   */
+  public long tryWrite(Buffer source, long byteCount) throws IOException {
+    Util.checkOffsetAndCount(source.size, 0, byteCount);
+    if (sinkClosed) throw new IllegalStateException("closed");
+    if (sourceClosed) throw new IOException("source is closed");
+    if (byteCount == 0L) return 0L;
+
+    long reserved = reserve(byteCount, 1L);
+    if (reserved > 0L) enqueue(source, reserved);
+    return reserved;
+  }
+
+  /**
+   * Reads up to {@code byteCount} bytes without waiting. Returns the number of bytes read, which is
+   * 0 if no bytes are buffered, or -1 if the sink is closed and all bytes have been read.
+   */
+  public long tryRead(Buffer sink, long byteCount) throws IOException {
+    if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+    if (sourceClosed) throw new IllegalStateException("closed");
+    if (byteCount == 0L) return 0L;
+
+    Chunk chunk = current;
+    if (chunk == null) chunk = current = chunks.poll();
+    if (chunk == null) {
+      // A producer may have reserved space but not yet queued its chunk. Don't report EOF early.
+      return sinkClosed && size.get() == 0L ? -1L : 0L;
+    }
+
+    // Drain as many queued chunks as fit, so small writes don't cost a read each.
+    long result = 0L;
+    while (chunk != null) {
+      result += chunk.read(sink, byteCount - result);
+      if (chunk.size() != 0L) break;
+      chunk = result < byteCount ? chunks.poll() : null;
+    }
+    current = chunk;
+    readableSize.addAndGet(-result);
+    size.addAndGet(-result);
+    signalWritable();
+    return result;
+  }
+
+  /**
+   * Runs {@code callback} once, when bytes can be read or the pipe is closed. If that's already
+   * the case, the callback runs immediately on the calling thread. Otherwise it runs on the thread
+   * that writes or closes. At most one readable callback may be pending.
+   */
+  public void whenReadable(Runnable callback) {
+    if (!readableCallback.compareAndSet(null, callback)) {
+      throw new IllegalStateException("a readable callback is already pending");
+    }
+    // Re-check after registering, in case the state changed before a signal could see it.
+    if (readableSize.get() > 0L || sinkClosed || sourceClosed) signalReadable();
+  }
+
+  /**
+   * Runs {@code callback} once, when there is space to write or the pipe is closed. If that's
+   * already the case, the callback runs immediately on the calling thread. Otherwise it runs on the
+   * thread that reads or closes.
+   */
+  public void whenWritable(Runnable callback) {
+    if (callback == null) throw new NullPointerException("callback == null");
+    writableCallbacks.add(callback);
+    if (size.get() < maxBufferSize || sinkClosed || sourceClosed) signalWritable();
+  }
+
+  /**
+   * Reserves space for between {@code minimum} and {@code byteCount} bytes. Returns the number of
+   * bytes reserved, or 0 if less than {@code minimum} is available.
+   */
+  private long reserve(long byteCount, long minimum) {
+    while (true) {
+      long current = size.get();
+      long available = maxBufferSize - current;
+      if (available < minimum) return 0L;
+      long reserved = Math.min(byteCount, available);
+      if (size.compareAndSet(current, current + reserved)) return reserved;
+    }
+  }
+
+  /** Queues {@code byteCount} bytes from {@code source}, for which space has been reserved. */
+  private void enqueue(Buffer source, long byteCount) throws IOException {
+    if (sinkClosed || sourceClosed) {
+      // Closed while we reserved. Back out so a reader that saw the close doesn't miss bytes.
+      size.addAndGet(-byteCount);
+      signalWritable();
+      if (sinkClosed) throw new IllegalStateException("closed");
+      throw new IOException("source is closed");
+    }
+
+    chunks.add(byteCount < Segment.SHARE_MINIMUM
+        ? new Chunk(source.readByteArray(byteCount), null)
+        : new Chunk(null, moveToBuffer(source, byteCount)));
+    readableSize.addAndGet(byteCount);
+
+    if (sourceClosed) {
+      // The source closed after the check above and may have drained the queue before this chunk
+      // arrived. Drain it again so the chunk's bytes aren't counted forever.
+      discardQueued();
+      throw new IOException("source is closed");
+    }
+    signalReadable();
+  }
+
+  /**
+   * Discards the queued chunks and releases their space. Both the closing source and a producer
+   * that raced it may call this; each releases only the chunks it polled.
+   */
+  private void discardQueued() {
+    long discarded = 0L;
+    for (Chunk chunk; (chunk = chunks.poll()) != null; ) {
+      discarded += chunk.discard();
+    }
+    readableSize.addAndGet(-discarded);
+    size.addAndGet(-discarded);
+    signalWritable();
+  }
+
+  private static Buffer moveToBuffer(Buffer source, long byteCount) {
+    Buffer result = new Buffer();
+    result.write(source, byteCount); // Moves whole segments; only the edges are copied.
+    return result;
+  }
+
+  private void signalReadable() {
+    Runnable callback = readableCallback.getAndSet(null);
+    if (callback != null) callback.run();
+    wakeWaiters();
+  }
+
+  private void signalWritable() {
+    Runnable callback;
+    while ((callback = writableCallbacks.poll()) != null) {
+      callback.run();
+    }
+    wakeWaiters();
+  }
+
+  /**
+   * Wakes blocked threads. Waiters increment {@link #waiterCount} before they re-check the state,
+   * and signalers change the state before they read it, so a wakeup is never lost.
+   */
+  private void wakeWaiters() {
+    if (waiterCount.get() == 0) return;
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+
+  final class PipeSink implements Sink {
+    final Timeout timeout = new Timeout();
+
+    @Override public void write(Buffer source, long byteCount) throws IOException {
+      Util.checkOffsetAndCount(source.size, 0, byteCount);
+      if (sinkClosed) throw new IllegalStateException("closed");
+
+      while (byteCount > 0) {
+        if (sinkClosed) throw new IllegalStateException("closed"); // Closed by another producer.
+        if (sourceClosed) throw new IOException("source is closed");
+
+        // Wait for room for the whole write, or the whole buffer, so it isn't split needlessly.
+        long minimum = Math.min(byteCount, maxBufferSize);
+        long reserved = reserve(byteCount, minimum);
+        if (reserved == 0L) {
+          waiterCount.incrementAndGet();
+          try {
+            synchronized (lock) {
+              if (!sinkClosed && !sourceClosed && maxBufferSize - size.get() < minimum) {
+                timeout.waitUntilNotified(lock); // Wait until the source drains the buffer.
+              }
+            }
+          } finally {
+            waiterCount.decrementAndGet();
+          }
+          continue;
+        }
+
+        enqueue(source, reserved);
+        byteCount -= reserved;
+      }
+    }
+
+    @Override public void flush() throws IOException {
+      if (sinkClosed) throw new IllegalStateException("closed");
+      if (sourceClosed && size.get() > 0) throw new IOException("source is closed");
+    }
+
+    @Override public void close() throws IOException {
+      if (sinkClosed) return;
+      if (sourceClosed && size.get() > 0) throw new IOException("source is closed");
+      sinkClosed = true;
+      signalReadable(); // Notify the source that no more bytes are coming.
+      signalWritable();
+    }
+
+    @Override public Timeout timeout() {
+      return timeout;
+    }
+  }
+
+  final class PipeSource implements Source {
+    final Timeout timeout = new Timeout();
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      while (true) {
+        long result = tryRead(sink, byteCount);
+        if (result != 0L || byteCount == 0L) return result;
+
+        waiterCount.incrementAndGet();
+        try {
+          synchronized (lock) {
+            if (readableSize.get() == 0L && !(sinkClosed && size.get() == 0L)) {
+              timeout.waitUntilNotified(lock); // Wait until the sink fills the buffer.
+            }
+          }
+        } finally {
+          waiterCount.decrementAndGet();
+        }
+      }
+    }
+
+    @Override public void close() throws IOException {
+      sourceClosed = true;
+
+      // Discard buffered bytes and release their space, so blocked writers fail promptly.
+      Chunk chunk = current;
+      current = null;
+      if (chunk != null) {
+        long discarded = chunk.discard();
+        readableSize.addAndGet(-discarded);
+        size.addAndGet(-discarded);
+      }
+      discardQueued(); // Also notifies the sink that no more bytes are desired.
+      signalReadable();
+    }
+
+    @Override public Timeout timeout() {
+      return timeout;
+    }
+  }
+
+  /**
+   * The bytes of one write. Small writes are copied into an array of exactly their size; holding a
+   * whole segment for each would waste memory and drain the segment pool. Large writes keep their
+   * segments, so they move without copying.
+   */
+  static final class Chunk {
+    final @Nullable byte[] bytes;
+    final @Nullable Buffer buffer;
+    int pos;
+
+    Chunk(@Nullable byte[] bytes, @Nullable Buffer buffer) {
+      this.bytes = bytes;
+      this.buffer = buffer;
+    }
+
+    long size() {
+      return bytes != null ? bytes.length - pos : buffer.size;
+    }
+
+    long read(Buffer sink, long byteCount) {
+      if (bytes == null) return buffer.read(sink, byteCount);
+      int toRead = (int) Math.min(byteCount, bytes.length - pos);
+      sink.write(bytes, pos, toRead);
+      pos += toRead;
+      return toRead;
+    }
+
+    /** Releases this chunk's bytes and returns how many there were. */
+    long discard() {
+      long result = size();
+      if (buffer != null) buffer.clear();
+      return result;
+    }
+  }
+}
@@ -90,8 +90,8 @@ public final class DeflaterSink implements Sink {
       // The @hide tag means that this code won't compile against the Android
       // 2.3 SDK, but it will run fine there.
       int deflated = syncFlush
-          ? deflater.deflate(s.data, s.limit, Segment.SIZE - s.limit, Deflater.SYNC_FLUSH)
-          : deflater.deflate(s.data, s.limit, Segment.SIZE - s.limit);
+          ? deflater.deflate(s.data, s.limit, s.data.length - s.limit, Deflater.SYNC_FLUSH)
+          : deflater.deflate(s.data, s.limit, s.data.length - s.limit);
 
       if (deflated > 0) {
         s.limit += deflated;
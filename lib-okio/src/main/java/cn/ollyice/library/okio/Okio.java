@@ -23,8 +23,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
@@ -39,6 +46,9 @@ import static cn.ollyice.library.okio.Util.checkOffsetAndCount;
 public final class Okio {
   static final Logger logger = Logger.getLogger(Okio.class.getName());
 
+  /** The largest region of a file that {@link #mappedSource} maps at once. */
+  static final long MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+
   private Okio() {
   }
 
@@ -136,7 +146,7 @@ public final class Okio {
         try {
           timeout.throwIfReached();
           Segment tail = sink.writableSegment(1);
-          int maxToCopy = (int) Math.min(byteCount, Segment.SIZE - tail.limit);
+          int maxToCopy = (int) Math.min(byteCount, tail.data.length - tail.limit);
           int bytesRead = in.read(tail.data, tail.limit, maxToCopy);
           if (bytesRead == -1) return -1;
           tail.limit += bytesRead;
@@ -194,6 +204,217 @@ public final class Okio {
     return sink(Files.newOutputStream(path, options));
   }
 
+  /**
+   * Returns a source that reads from {@code channel}, starting at its current position. Each read
+   * fills a segment directly from the channel.
+   */
+  public static Source source(final FileChannel channel) {
+    if (channel == null) throw new IllegalArgumentException("channel == null");
+
+    return new Source() {
+      @Override public long read(Buffer sink, long byteCount) throws IOException {
+        if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+        if (byteCount == 0) return 0;
+        Segment tail = sink.writableSegment(1);
+        int maxToCopy = (int) Math.min(byteCount, tail.data.length - tail.limit);
+        int bytesRead = channel.read(ByteBuffer.wrap(tail.data, tail.limit, maxToCopy));
+        if (bytesRead == -1) {
+          if (tail.pos == tail.limit) {
+            // We allocated a tail segment, but didn't end up needing it. Recycle!
+            sink.head = tail.pop();
+            SegmentPool.recycle(tail);
+          }
+          return -1;
+        }
+        tail.limit += bytesRead;
+        sink.size += bytesRead;
+        return bytesRead;
+      }
+
+      @Override public void close() throws IOException {
+        channel.close();
+      }
+
+      @Override public Timeout timeout() {
+        return Timeout.NONE;
+      }
+
+      @Override public String toString() {
+        return "source(" + channel + ")";
+      }
+    };
+  }
+
+  /**
+   * Returns a source that reads {@code file} through a read-only memory mapping. Bytes are copied
+   * straight from the mapped pages into segments without {@code read()} system calls. The file is
+   * mapped one window of up to {@code 64 MiB} at a time, and each window is unmapped as soon as the
+   * source moves past it or is closed, so at most one window per source is mapped at once.
+   */
+  public static Source mappedSource(File file) throws IOException {
+    if (file == null) throw new IllegalArgumentException("file == null");
+    final FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+
+    return new Source() {
+      long position;
+      final long length = channel.size();
+      MappedByteBuffer window;
+
+      @Override public long read(Buffer sink, long byteCount) throws IOException {
+        if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+        if (position >= length) return -1;
+        if (byteCount == 0) return 0;
+        if (window == null || !window.hasRemaining()) {
+          MappedByteBuffer previous = window;
+          window = null;
+          if (previous != null) unmap(previous);
+          long size = Math.min(length - position, MAPPED_WINDOW_SIZE);
+          window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+        Segment tail = sink.writableSegment(1);
+        int toCopy = (int) Math.min(Math.min(byteCount, tail.data.length - tail.limit),
+            window.remaining());
+        window.get(tail.data, tail.limit, toCopy);
+        tail.limit += toCopy;
+        sink.size += toCopy;
+        position += toCopy;
+        return toCopy;
+      }
+
+      @Override public void close() throws IOException {
+        if (window != null) {
+          unmap(window);
+          window = null;
+        }
+        channel.close();
+      }
+
+      @Override public Timeout timeout() {
+        return Timeout.NONE;
+      }
+
+      @Override public String toString() {
+        return "mappedSource(" + channel + ")";
+      }
+    };
+  }
+
+  /**
+   * Releases {@code buffer}'s mapping now instead of when it is garbage collected. Mapped sources
+   * never hand their window out, so no one can touch the pages afterwards. This is best effort: on
+   * a runtime with no way to unmap, the mapping is left for the collector.
+   */
+  static void unmap(MappedByteBuffer buffer) {
+    try {
+      if (Unmapper.INVOKE_CLEANER != null) {
+        Unmapper.INVOKE_CLEANER.invoke(Unmapper.UNSAFE, buffer);
+      } else if (Unmapper.CLEANER != null) {
+        Object cleaner = Unmapper.CLEANER.invoke(buffer);
+        if (cleaner != null) Unmapper.CLEAN.invoke(cleaner);
+      }
+    } catch (Exception ignored) {
+    }
+  }
+
+  /**
+   * The reflective lookups {@link #unmap} needs, resolved once when a window is first unmapped.
+   * Each Java 9+ field is null on older runtimes, and each Java 8 and Android field is null if the
+   * Java 9+ ones were found or the lookup failed.
+   */
+  private static final class Unmapper {
+    /** {@code sun.misc.Unsafe.theUnsafe} on Java 9+. */
+    static final @Nullable Object UNSAFE;
+    /** {@code Unsafe.invokeCleaner(ByteBuffer)} on Java 9+. */
+    static final @Nullable Method INVOKE_CLEANER;
+    /** {@code DirectByteBuffer.cleaner()} on Java 8 and Android. */
+    static final @Nullable Method CLEANER;
+    /** {@code Cleaner.clean()} on Java 8 and Android. */
+    static final @Nullable Method CLEAN;
+
+    static {
+      Object unsafe = null;
+      Method invokeCleaner = null;
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        unsafe = theUnsafe.get(null);
+        invokeCleaner = method;
+      } catch (Exception ignored) {
+      }
+      UNSAFE = unsafe;
+      INVOKE_CLEANER = invokeCleaner;
+
+      Method cleaner = null;
+      Method clean = null;
+      if (invokeCleaner == null) {
+        try {
+          Method method = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+          method.setAccessible(true);
+          clean = method.getReturnType().getMethod("clean");
+          clean.setAccessible(true);
+          cleaner = method;
+        } catch (Exception ignored) {
+          clean = null;
+        }
+      }
+      CLEANER = cleaner;
+      CLEAN = clean;
+    }
+  }
+
+  /**
+   * Returns a sink that writes to {@code channel} at its current position. Multi-segment writes use
+   * a single gathering write per batch of segments.
+   */
+  public static Sink sink(final FileChannel channel) {
+    if (channel == null) throw new IllegalArgumentException("channel == null");
+
+    return new Sink() {
+      @Override public void write(Buffer source, long byteCount) throws IOException {
+        source.writeTo(channel, byteCount);
+      }
+
+      @Override public void flush() throws IOException {
+      }
+
+      @Override public void close() throws IOException {
+        channel.close();
+      }
+
+      @Override public Timeout timeout() {
+        return Timeout.NONE;
+      }
+
+      @Override public String toString() {
+        return "sink(" + channel + ")";
+      }
+    };
+  }
+
+  /**
+   * Transfers {@code byteCount} bytes of {@code source} starting at {@code position} to {@code
+   * target} with {@link FileChannel#transferTo}. When {@code target} is a socket channel the kernel
+   * sends the file's pages directly and the bytes never enter the Java heap. Returns the number of
+   * bytes transferred, which is less than {@code byteCount} only if the file ends first.
+   */
+  public static long transfer(FileChannel source, long position, long byteCount,
+      WritableByteChannel target) throws IOException {
+    if (source == null) throw new IllegalArgumentException("source == null");
+    if (target == null) throw new IllegalArgumentException("target == null");
+    if (position < 0) throw new IllegalArgumentException("position < 0: " + position);
+    if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+
+    long total = 0;
+    while (total < byteCount && position + total < source.size()) {
+      long transferred = source.transferTo(position + total, byteCount - total, target);
+      if (transferred <= 0) break; // Non-blocking target is full.
+      total += transferred;
+    }
+    return total;
+  }
+
   /** Returns a sink that writes nowhere. */
   public static Sink blackhole() {
     return new Sink() {
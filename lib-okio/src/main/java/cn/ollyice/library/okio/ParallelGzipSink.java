@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.annotation.Nullable;
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+import static cn.ollyice.library.okio.Util.checkOffsetAndCount;
+import static java.util.zip.Deflater.DEFAULT_COMPRESSION;
+
+/**
+ * A sink that uses <a href="http://www.ietf.org/rfc/rfc1952.txt">GZIP</a> to compress written data
+ * to another sink, deflating independent blocks concurrently on an {@link Executor}.
+ *
+ * <p>Input is cut into blocks of {@link #BLOCK_SIZE} bytes. Each block is deflated by its own
+ * {@link Deflater}, primed with the last 32 KiB of the previous block as a preset dictionary so that
+ * matches can still reach back across the cut. Every block but the last ends with a sync flush,
+ * which byte-aligns its output, so the outputs concatenate into a single DEFLATE stream. Each block
+ * also computes its own CRC32; the writer combines them in order. The result is one ordinary GZIP
+ * member that any GZIP reader accepts. This is the technique used by pigz.
+ *
+ * <p>Compressed blocks are written to the underlying sink in order, by the thread that calls
+ * {@link #write}, {@link #flush} or {@link #close}. At most {@code parallelism} blocks are in flight;
+ * writing more blocks waits for the oldest to finish.
+ *
+ * <h3>Sync flush</h3>
+ * Each call to {@link #flush} ends the current block early, which may reduce compression. Only call
+ * {@link #flush} when application behavior requires it.
+ */
+public final class ParallelGzipSink implements Sink {
+  /** Uncompressed bytes per block. */
+  static final int BLOCK_SIZE = 128 * 1024;
+
+  /** DEFLATE can refer back at most this far, so a longer dictionary is wasted. */
+  static final int DICTIONARY_SIZE = 32 * 1024;
+
+  /** Sink into which the GZIP format is written. */
+  private final BufferedSink sink;
+  private final Executor executor;
+  private final int parallelism;
+  private final int level;
+
+  /** Input not yet handed to a block. */
+  private final Buffer pending = new Buffer();
+
+  /** Blocks handed to the executor, oldest first. */
+  private final ArrayDeque<FutureTask<Block>> inFlight = new ArrayDeque<>();
+
+  /** Deflaters to reuse, so each block doesn't allocate a new native zlib stream. */
+  private final ArrayDeque<Deflater> deflaters = new ArrayDeque<>();
+
+  /** The tail of the previous block's input, to prime the next block. Null for the first block. */
+  private @Nullable byte[] dictionary;
+
+  /** Checksum of the uncompressed bytes written so far. */
+  private long crc;
+
+  /** Uncompressed bytes written so far. */
+  private long byteCount;
+
+  private boolean closed;
+
+  public ParallelGzipSink(Sink sink, Executor executor, int parallelism) {
+    this(sink, executor, parallelism, DEFAULT_COMPRESSION);
+  }
+
+  public ParallelGzipSink(Sink sink, Executor executor, int parallelism, int level) {
+    if (sink == null) throw new IllegalArgumentException("sink == null");
+    if (executor == null) throw new IllegalArgumentException("executor == null");
+    if (parallelism < 1) throw new IllegalArgumentException("parallelism < 1: " + parallelism);
+    this.sink = Okio.buffer(sink);
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.level = level;
+
+    writeHeader();
+  }
+
+  @Override public void write(Buffer source, long byteCount) throws IOException {
+    if (closed) throw new IllegalStateException("closed");
+    checkOffsetAndCount(source.size, 0, byteCount);
+
+    while (byteCount > 0) {
+      long toMove = Math.min(byteCount, BLOCK_SIZE - pending.size);
+      pending.write(source, toMove);
+      byteCount -= toMove;
+      if (pending.size == BLOCK_SIZE) submit(false);
+    }
+  }
+
+  @Override public void flush() throws IOException {
+    if (closed) throw new IllegalStateException("closed");
+    if (pending.size > 0) submit(false);
+    while (!inFlight.isEmpty()) {
+      writeOldest();
+    }
+    sink.flush();
+  }
+
+  @Override public Timeout timeout() {
+    return sink.timeout();
+  }
+
+  @Override public void close() throws IOException {
+    if (closed) return;
+
+    Throwable thrown = null;
+    try {
+      submit(true);
+      while (!inFlight.isEmpty()) {
+        writeOldest();
+      }
+      writeFooter();
+    } catch (Throwable e) {
+      thrown = e;
+    }
+
+    // Wait out any blocks still running after a failure so their deflaters can be released.
+    while (!inFlight.isEmpty()) {
+      try {
+        inFlight.removeFirst().get();
+      } catch (Throwable ignored) {
+      }
+    }
+    synchronized (deflaters) {
+      for (Deflater deflater : deflaters) {
+        deflater.end();
+      }
+      deflaters.clear();
+    }
+    pending.clear();
+
+    try {
+      sink.close();
+    } catch (Throwable e) {
+      if (thrown == null) thrown = e;
+    }
+    closed = true;
+
+    if (thrown != null) Util.sneakyRethrow(thrown);
+  }
+
+  /** Hands the pending input to the executor as one block, first making room if necessary. */
+  private void submit(boolean last) throws IOException {
+    if (inFlight.size() >= parallelism) writeOldest();
+
+    final byte[] data = pending.readByteArray();
+    final byte[] blockDictionary = dictionary;
+    final boolean finish = last;
+    FutureTask<Block> task = new FutureTask<>(new Callable<Block>() {
+      @Override public Block call() {
+        return deflate(data, blockDictionary, finish);
+      }
+    });
+    executor.execute(task);
+    inFlight.addLast(task);
+
+    if (data.length >= DICTIONARY_SIZE) {
+      byte[] next = new byte[DICTIONARY_SIZE];
+      System.arraycopy(data, data.length - DICTIONARY_SIZE, next, 0, DICTIONARY_SIZE);
+      dictionary = next;
+    } else if (data.length > 0) {
+      // A short block after a flush. Keep as much of the previous dictionary as still fits.
+      int keep = blockDictionary != null
+          ? Math.min(blockDictionary.length, DICTIONARY_SIZE - data.length)
+          : 0;
+      byte[] next = new byte[keep + data.length];
+      if (keep > 0) {
+        System.arraycopy(blockDictionary, blockDictionary.length - keep, next, 0, keep);
+      }
+      System.arraycopy(data, 0, next, keep, data.length);
+      dictionary = next;
+    }
+  }
+
+  /** Waits for the oldest block, then appends its output and folds in its checksum. */
+  private void writeOldest() throws IOException {
+    Block block;
+    try {
+      block = inFlight.removeFirst().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    }
+
+    sink.write(block.compressed, block.compressed.size);
+    sink.emitCompleteSegments();
+    crc = crc32Combine(crc, block.crc, block.byteCount);
+    byteCount += block.byteCount;
+  }
+
+  /** Deflates one block. This runs on the executor. */
+  @IgnoreJRERequirement
+  Block deflate(byte[] data, @Nullable byte[] dictionary, boolean last) {
+    Deflater deflater;
+    synchronized (deflaters) {
+      deflater = deflaters.pollFirst();
+    }
+    if (deflater == null) deflater = new Deflater(level, true /* No wrap */);
+
+    try {
+      if (dictionary != null) deflater.setDictionary(dictionary);
+      deflater.setInput(data);
+      if (last) deflater.finish();
+
+      Buffer compressed = new Buffer();
+      while (true) {
+        Segment s = compressed.writableSegment(1);
+
+        // Every block but the last ends byte-aligned with a sync flush so the next block's output
+        // can follow it directly.
+        int deflated = last
+            ? deflater.deflate(s.data, s.limit, s.data.length - s.limit)
+            : deflater.deflate(s.data, s.limit, s.data.length - s.limit, Deflater.SYNC_FLUSH);
+
+        if (deflated > 0) {
+          s.limit += deflated;
+          compressed.size += deflated;
+        } else if (last ? deflater.finished() : deflater.needsInput()) {
+          if (s.pos == s.limit) {
+            // We allocated a tail segment, but didn't end up needing it. Recycle!
+            compressed.head = s.pop();
+            SegmentPool.recycle(s);
+          }
+          break;
+        }
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      return new Block(compressed, crc.getValue(), data.length);
+    } finally {
+      deflater.reset();
+      synchronized (deflaters) {
+        deflaters.addLast(deflater);
+      }
+    }
+  }
+
+  private void writeHeader() {
+    // Write the Gzip header directly into the buffer for the sink to avoid handling IOException.
+    Buffer buffer = this.sink.buffer();
+    buffer.writeShort(0x1f8b); // Two-byte Gzip ID.
+    buffer.writeByte(0x08); // 8 == Deflate compression method.
+    buffer.writeByte(0x00); // No flags.
+    buffer.writeInt(0x00); // No modification time.
+    buffer.writeByte(0x00); // No extra flags.
+    buffer.writeByte(0x00); // No OS.
+  }
+
+  private void writeFooter() throws IOException {
+    sink.writeIntLe((int) crc); // CRC of original data.
+    sink.writeIntLe((int) byteCount); // Length of original data.
+  }
+
+  /**
+   * Returns the CRC32 of two byte sequences concatenated, given the CRC32 of each and the length
+   * of the second. This is zlib's {@code crc32_combine()}: appending {@code length2} zero bytes to
+   * the first sequence is a linear operator on its CRC, applied here by repeated squaring.
+   */
+  static long crc32Combine(long crc1, long crc2, long length2) {
+    if (length2 <= 0) return crc1;
+
+    long[] even = new long[32]; // Even-power-of-two zeros operator.
+    long[] odd = new long[32]; // Odd-power-of-two zeros operator.
+
+    // Put the operator for one zero bit in odd.
+    odd[0] = 0xedb88320L; // CRC-32 polynomial.
+    long row = 1;
+    for (int n = 1; n < 32; n++) {
+      odd[n] = row;
+      row <<= 1;
+    }
+
+    gf2MatrixSquare(even, odd); // Put operator for two zero bits in even.
+    gf2MatrixSquare(odd, even); // Put operator for four zero bits in odd.
+
+    // Apply length2 zeros to crc1. The first squaring puts the operator for one zero byte, eight
+    // zero bits, in even.
+    do {
+      gf2MatrixSquare(even, odd);
+      if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+      length2 >>= 1;
+      if (length2 == 0) break;
+
+      gf2MatrixSquare(odd, even);
+      if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+      length2 >>= 1;
+    } while (length2 != 0);
+
+    return crc1 ^ crc2;
+  }
+
+  private static long gf2MatrixTimes(long[] matrix, long vector) {
+    long sum = 0;
+    for (int i = 0; vector != 0; i++, vector >>>= 1) {
+      if ((vector & 1) != 0) sum ^= matrix[i];
+    }
+    return sum;
+  }
+
+  private static void gf2MatrixSquare(long[] square, long[] matrix) {
+    for (int n = 0; n < 32; n++) {
+      square[n] = gf2MatrixTimes(matrix, matrix[n]);
+    }
+  }
+
+  /** The compressed output of one block. */
+  static final class Block {
+    final Buffer compressed;
+    final long crc;
+    final long byteCount;
+
+    Block(Buffer compressed, long crc, long byteCount) {
+      this.compressed = compressed;
+      this.crc = crc;
+      this.byteCount = byteCount;
+    }
+  }
+}
@@ -31,11 +31,18 @@ import javax.annotation.Nullable;
  * The lone exception is that the owner segment is allowed to append to the segment, writing data at
  * {@code limit} and beyond. There is a single owning segment for each byte array. Positions,
  * limits, prev, and next references are not shared.
+ *
+ * <p>Most segments are {@link #SIZE} bytes. Buffers created for bulk transfers use larger segments,
+ * so a single buffer may hold segments of mixed sizes. A segment's capacity is always the length of
+ * its byte array.
  */
 final class Segment {
-  /** The size of all segments in bytes. */
+  /** The size of segments in default buffers, in bytes. */
   static final int SIZE = 8192;
 
+  /** The size of the largest segments, allocated by buffers created for bulk transfers. */
+  static final int MAX_SIZE = 1024 * 1024;
+
   /** Segments will be shared when doing so avoids {@code arraycopy()} of this many bytes. */
   static final int SHARE_MINIMUM = 1024;
 
@@ -60,7 +67,11 @@ final class Segment {
   Segment prev;
 
   Segment() {
-    this.data = new byte[SIZE];
+    this(SIZE);
+  }
+
+  Segment(int size) {
+    this.data = new byte[size];
     this.owner = true;
     this.shared = false;
   }
@@ -151,7 +162,7 @@ final class Segment {
     if (prev == this) throw new IllegalStateException();
     if (!prev.owner) return; // Cannot compact: prev isn't writable.
     int byteCount = limit - pos;
-    int availableByteCount = SIZE - prev.limit + (prev.shared ? 0 : prev.pos);
+    int availableByteCount = prev.data.length - prev.limit + (prev.shared ? 0 : prev.pos);
     if (byteCount > availableByteCount) return; // Cannot compact: not enough writable space.
     writeTo(prev, byteCount);
     pop();
@@ -161,10 +172,10 @@ final class Segment {
   /** Moves {@code byteCount} bytes from this segment to {@code sink}. */
   public final void writeTo(Segment sink, int byteCount) {
     if (!sink.owner) throw new IllegalArgumentException();
-    if (sink.limit + byteCount > SIZE) {
+    if (sink.limit + byteCount > sink.data.length) {
       // We can't fit byteCount bytes at the sink's current position. Shift sink first.
       if (sink.shared) throw new IllegalArgumentException();
-      if (sink.limit + byteCount - sink.pos > SIZE) throw new IllegalArgumentException();
+      if (sink.limit + byteCount - sink.pos > sink.data.length) throw new IllegalArgumentException();
       System.arraycopy(sink.data, sink.pos, sink.data, 0, sink.limit - sink.pos);
       sink.limit -= sink.pos;
       sink.pos = 0;
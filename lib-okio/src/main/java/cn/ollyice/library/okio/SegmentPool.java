@@ -15,48 +15,205 @@
  */
 package cn.ollyice.library.okio;
 
-import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A collection of unused segments, necessary to avoid GC churn and zero-fill.
  * This pool is a thread-safe static singleton.
+ *
+ * <p>The pool is striped into a power-of-two number of buckets selected by thread ID, so threads
+ * rarely touch the same bucket. Each bucket is a singly-linked stack held in an atomic reference.
+ * A thread claims a bucket by swapping in {@link #LOCK}; a thread that finds a bucket locked doesn't
+ * wait: it allocates a new segment on take and drops the segment on recycle. The head segment's
+ * {@code limit} holds the total number of bytes in its bucket.
+ *
+ * <p>The total budget defaults to 64 KiB per bucket and may be changed with the {@code
+ * cn.ollyice.library.okio.SegmentPool.maxSize} system property, in bytes.
+ *
+ * <p>Segments larger than {@link Segment#SIZE} are kept apart in a single locked stack, so bulk
+ * buffers never crowd small segments out of the buckets. They are taken and recycled far less
+ * often, so the lock is cheap. That budget defaults to 2 MiB and may be changed with the {@code
+ * cn.ollyice.library.okio.SegmentPool.largeMaxSize} system property.
+ *
+ * <p>Hit, miss and contention counts are striped like the buckets: each bucket has its own counters
+ * on their own cache line, and readers sum across buckets. Shared counters would put every take and
+ * recycle back on one contended cache line.
  */
 final class SegmentPool {
-  /** The maximum number of bytes to pool. */
-  // TODO: Is 64 KiB a good maximum size? Do we ever have that many idle segments?
-  static final long MAX_SIZE = 64 * 1024; // 64 KiB.
+  /** The maximum number of bytes to pool across all buckets. */
+  static final long MAX_SIZE;
+
+  /** The number of buckets. A power of two so the thread ID can be masked. */
+  static final int HASH_BUCKET_COUNT =
+      Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+  /** The maximum number of bytes to pool in each bucket. */
+  static final int MAX_BUCKET_SIZE;
+
+  /** A sentinel segment marking a bucket as in use by another thread. */
+  static final Segment LOCK = new Segment(new byte[0], 0, 0, false, false);
+
+  /** Heads of the per-bucket stacks. */
+  static final AtomicReferenceArray<Segment> hashBuckets =
+      new AtomicReferenceArray<>(HASH_BUCKET_COUNT);
+
+  /** The maximum number of bytes to pool in large segments. */
+  static final long LARGE_MAX_SIZE;
+
+  /** Pooled segments larger than {@link Segment#SIZE}, of any size. Guarded by this class. */
+  static Segment largeNext;
+
+  /** Total bytes in {@link #largeNext}. Guarded by this class. */
+  static long largeByteCount;
 
-  /** Singly-linked list of segments. */
-  static @Nullable Segment next;
+  static final int HIT = 0;
+  static final int MISS = 1;
+  static final int CONTENTION = 2;
 
-  /** Total bytes in this pool. */
-  static long byteCount;
+  /** Longs per bucket in {@link #stats}: one 64-byte cache line. */
+  private static final int STATS_STRIDE = 8;
+
+  /**
+   * Counters indexed by {@code (bucket + 1) * STATS_STRIDE + kind}. Stripe zero is left unused so
+   * the first bucket's counters don't share a line with the array header.
+   */
+  private static final AtomicLongArray stats =
+      new AtomicLongArray((HASH_BUCKET_COUNT + 1) * STATS_STRIDE);
+
+  static {
+    long maxSize = sizeProperty("cn.ollyice.library.okio.SegmentPool.maxSize",
+        64L * 1024 * HASH_BUCKET_COUNT); // 64 KiB per bucket.
+    MAX_SIZE = maxSize;
+    MAX_BUCKET_SIZE = (int) Math.min(Integer.MAX_VALUE, maxSize / HASH_BUCKET_COUNT);
+    LARGE_MAX_SIZE = sizeProperty("cn.ollyice.library.okio.SegmentPool.largeMaxSize",
+        2L * 1024 * 1024);
+  }
 
   private SegmentPool() {
   }
 
   static Segment take() {
+    int bucket = bucketIndex();
+    Segment first = hashBuckets.getAndSet(bucket, LOCK);
+    if (first == LOCK) {
+      // We didn't acquire the lock. Don't take a pooled segment.
+      count(bucket, CONTENTION);
+      count(bucket, MISS);
+      return new Segment();
+    }
+    if (first == null) {
+      // We acquired the lock but the pool was empty. Unlock and return a new segment.
+      hashBuckets.set(bucket, null);
+      count(bucket, MISS);
+      return new Segment(); // Pool is empty. Don't zero-fill while holding a lock.
+    }
+    // We acquired the lock and the pool was not empty. Pop the first element and return it.
+    hashBuckets.set(bucket, first.next);
+    first.next = null;
+    first.limit = 0;
+    count(bucket, HIT);
+    return first;
+  }
+
+  /** Returns a segment whose byte array is {@code size} bytes. */
+  static Segment take(int size) {
+    if (size == Segment.SIZE) return take();
+
     synchronized (SegmentPool.class) {
-      if (next != null) {
-        Segment result = next;
-        next = result.next;
-        result.next = null;
-        byteCount -= Segment.SIZE;
-        return result;
+      for (Segment prev = null, s = largeNext; s != null; prev = s, s = s.next) {
+        if (s.data.length != size) continue;
+        if (prev == null) {
+          largeNext = s.next;
+        } else {
+          prev.next = s.next;
+        }
+        s.next = null;
+        largeByteCount -= size;
+        count(bucketIndex(), HIT);
+        return s;
       }
     }
-    return new Segment(); // Pool is empty. Don't zero-fill while holding a lock.
+    count(bucketIndex(), MISS);
+    return new Segment(size); // Pool has none of this size. Don't zero-fill while holding a lock.
   }
 
   static void recycle(Segment segment) {
     if (segment.next != null || segment.prev != null) throw new IllegalArgumentException();
     if (segment.shared) return; // This segment cannot be recycled.
+    if (segment == LOCK) throw new IllegalArgumentException();
+    if (segment.data.length != Segment.SIZE) {
+      recycleLarge(segment);
+      return;
+    }
+
+    int bucket = bucketIndex();
+    Segment first = hashBuckets.getAndSet(bucket, LOCK);
+    if (first == LOCK) {
+      count(bucket, CONTENTION);
+      return; // A take() is currently in progress.
+    }
+    int firstLimit = first != null ? first.limit : 0;
+    if (firstLimit + Segment.SIZE > MAX_BUCKET_SIZE) {
+      hashBuckets.set(bucket, first); // Pool is full.
+      return;
+    }
+
+    segment.next = first;
+    segment.pos = 0;
+    segment.limit = firstLimit + Segment.SIZE;
+    hashBuckets.set(bucket, segment);
+  }
+
+  private static void recycleLarge(Segment segment) {
     synchronized (SegmentPool.class) {
-      if (byteCount + Segment.SIZE > MAX_SIZE) return; // Pool is full.
-      byteCount += Segment.SIZE;
-      segment.next = next;
+      if (largeByteCount + segment.data.length > LARGE_MAX_SIZE) return; // Pool is full.
+      segment.next = largeNext;
       segment.pos = segment.limit = 0;
-      next = segment;
+      largeNext = segment;
+      largeByteCount += segment.data.length;
+    }
+  }
+
+  /** Returns the number of bytes currently pooled. This is a racy snapshot. */
+  static long byteCount() {
+    long result = largeByteCount();
+    for (int i = 0; i < HASH_BUCKET_COUNT; i++) {
+      Segment first = hashBuckets.get(i);
+      if (first != null && first != LOCK) result += first.limit;
+    }
+    return result;
+  }
+
+  /** Returns the sum of counter {@code kind} across all buckets. This is a racy snapshot. */
+  static long statCount(int kind) {
+    long result = 0L;
+    for (int i = 1; i <= HASH_BUCKET_COUNT; i++) {
+      result += stats.get(i * STATS_STRIDE + kind);
+    }
+    return result;
+  }
+
+  private static void count(int bucket, int kind) {
+    stats.getAndIncrement((bucket + 1) * STATS_STRIDE + kind);
+  }
+
+  static synchronized long largeByteCount() {
+    return largeByteCount;
+  }
+
+  private static long sizeProperty(String name, long defaultValue) {
+    String property = System.getProperty(name);
+    if (property == null) return defaultValue;
+    try {
+      return Math.max(0L, Long.parseLong(property));
+    } catch (NumberFormatException e) {
+      return defaultValue;
     }
   }
+
+  private static int bucketIndex() {
+    long id = Thread.currentThread().getId();
+    return (int) (id ^ (id >>> 32)) & (HASH_BUCKET_COUNT - 1);
+  }
 }
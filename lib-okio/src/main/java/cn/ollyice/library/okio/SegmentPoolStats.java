@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+/**
+ * Counters for the process-wide pool of segments that backs every {@link Buffer}. Values are
+ * cumulative since the pool was loaded and are read without synchronization.
+ */
+public final class SegmentPoolStats {
+  private SegmentPoolStats() {
+  }
+
+  /** Returns the number of segment allocations served from the pool. */
+  public static long hitCount() {
+    return SegmentPool.statCount(SegmentPool.HIT);
+  }
+
+  /** Returns the number of segment allocations that had to create a new segment. */
+  public static long missCount() {
+    return SegmentPool.statCount(SegmentPool.MISS);
+  }
+
+  /**
+   * Returns the number of takes and recycles that found their bucket in use by another thread.
+   * Such takes allocate and such recycles drop the segment rather than wait.
+   */
+  public static long contentionCount() {
+    return SegmentPool.statCount(SegmentPool.CONTENTION);
+  }
+
+  /** Returns the number of bytes currently held by the pool. */
+  public static long byteCount() {
+    return SegmentPool.byteCount();
+  }
+
+  /** Returns the maximum number of bytes the pool will hold in default-size segments. */
+  public static long maxSize() {
+    return SegmentPool.MAX_SIZE;
+  }
+
+  /** Returns the number of bytes currently held in large segments. Included in {@link #byteCount}. */
+  public static long largeByteCount() {
+    return SegmentPool.largeByteCount();
+  }
+
+  /** Returns the maximum number of bytes the pool will hold in large segments. */
+  public static long largeMaxSize() {
+    return SegmentPool.LARGE_MAX_SIZE;
+  }
+}
@@ -20,6 +20,7 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import javax.annotation.Nullable;
 
 import static cn.ollyice.library.okio.Util.arrayRangeEquals;
 import static cn.ollyice.library.okio.Util.checkOffsetAndCount;
@@ -53,6 +54,9 @@ final class SegmentedByteString extends ByteString {
   final transient byte[][] segments;
   final transient int[] directory;
 
+  /** A contiguous copy, made the first time an operation needs one. */
+  private transient @Nullable ByteString flattened;
+
   SegmentedByteString(Buffer buffer, int byteCount) {
     super(null);
     checkOffsetAndCount(buffer.size, 0, byteCount);
@@ -252,13 +256,17 @@ final class SegmentedByteString extends ByteString {
     return toByteString().lastIndexOf(other, fromIndex);
   }
 
-  /** Returns a copy as a non-segmented byte string. */
+  /** Returns a copy as a non-segmented byte string. The copy is made once and then reused. */
   private ByteString toByteString() {
-    return new ByteString(toByteArray());
+    ByteString result = flattened;
+    if (result == null) {
+      result = flattened = new ByteString(toByteArray());
+    }
+    return result;
   }
 
   @Override byte[] internalArray() {
-    return toByteArray();
+    return toByteString().data;
   }
 
   @Override public boolean equals(Object o) {
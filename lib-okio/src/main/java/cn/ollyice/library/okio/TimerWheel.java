@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import javax.annotation.Nullable;
+
+/**
+ * A hierarchical timer wheel of pending {@link AsyncTimeout} nodes. Adding and removing a node is
+ * constant time regardless of how many are pending.
+ *
+ * <p>Time is divided into ticks of {@link #TICK_NANOS} (about a millisecond). The wheel has {@link
+ * #LEVELS} levels of {@link #SLOT_COUNT} slots. Level 0 has one slot per tick; each slot of level
+ * {@code n} spans {@code 64^n} ticks. A node is placed in the coarsest level whose span covers its
+ * distance from {@link #currentTick}, and is cascaded into a finer level when the wheel reaches its
+ * slot. Nodes more than {@code 64^4} ticks (about 4.9 hours) away wait in the last level and are
+ * re-placed when it cascades.
+ *
+ * <p>A bitmap per level tracks non-empty slots so the watchdog can sleep until the next tick that
+ * has work instead of waking every tick.
+ *
+ * <p>This class is not thread safe. {@link AsyncTimeout} guards it with {@code AsyncTimeout.class}.
+ */
+final class TimerWheel {
+  /** Ticks are 2^20 ns, about 1.05 ms. Timeouts fire at most one tick late, and never early. */
+  static final int TICK_SHIFT = 20;
+  static final long TICK_NANOS = 1L << TICK_SHIFT;
+
+  static final int SLOT_BITS = 6;
+  static final int SLOT_COUNT = 1 << SLOT_BITS;
+  static final int SLOT_MASK = SLOT_COUNT - 1;
+  static final int LEVELS = 4;
+
+  /** Nodes further away than this many ticks are parked in the last level. */
+  static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+  /** Timeouts further away than this are clamped. This keeps tick arithmetic from overflowing. */
+  private static final long MAX_REMAINING_NANOS = 1L << 62;
+
+  /** Tick 0 starts here. */
+  final long originNanos;
+
+  /** Heads of doubly-linked lists, level-major. */
+  private final AsyncTimeout[] slots = new AsyncTimeout[LEVELS * SLOT_COUNT];
+
+  /** Bit {@code s} of {@code occupied[level]} is set if that level's slot {@code s} is non-empty. */
+  private final long[] occupied = new long[LEVELS];
+
+  /** The tick most recently advanced to. Cascades for this tick have already been performed. */
+  long currentTick;
+
+  /** The number of nodes in the wheel. */
+  int size;
+
+  TimerWheel(long originNanos) {
+    this.originNanos = originNanos;
+  }
+
+  /** Returns the first tick that starts at or after {@code timeoutAt}, but not before now. */
+  long tickFor(long timeoutAt, long now) {
+    long remainingNanos = Math.min(Math.max(timeoutAt - now, 0L), MAX_REMAINING_NANOS);
+    long tick = (now - originNanos + remainingNanos + TICK_NANOS - 1) >> TICK_SHIFT;
+    return Math.max(tick, currentTick);
+  }
+
+  /** Returns the time at which {@code tick} starts. */
+  long nanoTime(long tick) {
+    return originNanos + (tick << TICK_SHIFT);
+  }
+
+  void add(AsyncTimeout node) {
+    place(node);
+    size++;
+  }
+
+  void remove(AsyncTimeout node) {
+    unlink(node);
+    size--;
+  }
+
+  /**
+   * Returns the next tick that has work: either a level 0 slot to expire or a slot in a coarser
+   * level to cascade. Returns {@code Long.MAX_VALUE} if the wheel is empty.
+   */
+  long nextTick() {
+    long result = Long.MAX_VALUE;
+    long bits = occupied[0];
+    if (bits != 0L) {
+      int rotation = (int) (currentTick & SLOT_MASK);
+      result = currentTick + Long.numberOfTrailingZeros(Long.rotateRight(bits, rotation));
+    }
+    for (int level = 1; level < LEVELS; level++) {
+      bits = occupied[level];
+      if (bits == 0L) continue;
+      int shift = level * SLOT_BITS;
+      long block = (currentTick >> shift) + 1;
+      int rotation = (int) (block & SLOT_MASK);
+      long tick = (block + Long.numberOfTrailingZeros(Long.rotateRight(bits, rotation))) << shift;
+      result = Math.min(result, tick);
+    }
+    return result;
+  }
+
+  /**
+   * Moves the wheel forward to {@code tick}, cascading coarse slots that start there. Callers must
+   * not skip past a tick returned by {@link #nextTick}.
+   */
+  void advance(long tick) {
+    if (tick <= currentTick) return;
+    currentTick = tick;
+    for (int level = LEVELS - 1; level > 0; level--) {
+      int shift = level * SLOT_BITS;
+      if ((tick & ((1L << shift) - 1)) != 0L) continue;
+      int index = level * SLOT_COUNT + (int) ((tick >> shift) & SLOT_MASK);
+      AsyncTimeout node = slots[index];
+      if (node == null) continue;
+      slots[index] = null;
+      occupied[level] &= ~(1L << (index & SLOT_MASK));
+      while (node != null) {
+        AsyncTimeout next = node.next;
+        node.next = null;
+        node.prev = null;
+        place(node);
+        node = next;
+      }
+    }
+  }
+
+  /** Removes and returns a node that expires at the current tick, or null if there are none. */
+  @Nullable AsyncTimeout pollExpired() {
+    int index = (int) (currentTick & SLOT_MASK);
+    AsyncTimeout node;
+    while ((node = slots[index]) != null) {
+      unlink(node);
+      if (node.expiresTick <= currentTick) {
+        size--;
+        return node;
+      }
+      place(node); // Not due yet. This shouldn't happen, but never fire early.
+    }
+    return null;
+  }
+
+  private void place(AsyncTimeout node) {
+    long tick = node.expiresTick;
+    long delta = tick - currentTick;
+    int level;
+    if (delta < SLOT_COUNT) {
+      level = 0;
+      if (delta < 0) tick = currentTick;
+    } else if (delta < MAX_TICKS) {
+      level = (63 - Long.numberOfLeadingZeros(delta)) / SLOT_BITS;
+    } else {
+      level = LEVELS - 1;
+      tick = currentTick + MAX_TICKS - 1; // Park it. It's re-placed when this slot cascades.
+    }
+    int slot = (int) ((tick >> (level * SLOT_BITS)) & SLOT_MASK);
+    int index = level * SLOT_COUNT + slot;
+
+    AsyncTimeout head = slots[index];
+    node.next = head;
+    node.prev = null;
+    if (head != null) head.prev = node;
+    slots[index] = node;
+    occupied[level] |= 1L << slot;
+    node.slot = index;
+  }
+
+  private void unlink(AsyncTimeout node) {
+    int index = node.slot;
+    if (node.prev != null) {
+      node.prev.next = node.next;
+    } else {
+      slots[index] = node.next;
+      if (node.next == null) occupied[index / SLOT_COUNT] &= ~(1L << (index & SLOT_MASK));
+    }
+    if (node.next != null) node.next.prev = node.prev;
+    node.next = null;
+    node.prev = null;
+    node.slot = -1;
+  }
+}
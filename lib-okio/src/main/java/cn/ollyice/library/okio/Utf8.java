@@ -15,6 +15,9 @@
  */
 package cn.ollyice.library.okio;
 
+import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
+
 /**
  * cn.ollyice.library.okio assumes most applications use UTF-8 exclusively, and offers optimized implementations of
  * common operations on UTF-8 strings.
@@ -94,9 +97,11 @@ public final class Utf8 {
       int c = string.charAt(i);
 
       if (c < 0x80) {
-        // A 7-bit character with 1 byte.
-        result++;
-        i++;
+        // A run of 7-bit characters with 1 byte each. JSON and HTTP text is mostly these, so count
+        // the whole run without going around the outer loop.
+        int runStart = i++;
+        while (i < endIndex && string.charAt(i) < 0x80) i++;
+        result += i - runStart;
 
       } else if (c < 0x800) {
         // An 11-bit character with 2 bytes.
@@ -125,4 +130,143 @@ public final class Utf8 {
 
     return result;
   }
+
+  /**
+   * Decodes the first {@code byteCount} bytes of {@code buffer} as UTF-8 without consuming them,
+   * reading each segment in place rather than first copying into a contiguous array. Pure-ASCII
+   * runs are detected 8 bytes at a time.
+   *
+   * <p>Returns null if the bytes aren't well-formed UTF-8, or aren't ASCII and the platform decoder
+   * is faster. Callers fall back to the platform decoder, so malformed input gets exactly the same
+   * replacement characters as before.
+   */
+  static @Nullable String decode(Buffer buffer, int byteCount) {
+    Segment s = buffer.head;
+
+    // The common case: an ASCII string in one segment. Build it straight from the bytes.
+    if (s.limit - s.pos >= byteCount) {
+      if (isAscii(s.data, s.pos, s.pos + byteCount)) return asciiString(s.data, s.pos, byteCount);
+    } else if (isAscii(s, byteCount)) {
+      // ASCII across segments. Gather the bytes with arraycopy; that beats widening to chars.
+      byte[] bytes = new byte[byteCount];
+      for (int offset = 0; offset < byteCount; s = s.next) {
+        int toCopy = Math.min(byteCount - offset, s.limit - s.pos);
+        System.arraycopy(s.data, s.pos, bytes, offset, toCopy);
+        offset += toCopy;
+      }
+      return asciiString(bytes, 0, byteCount);
+    }
+
+    // HotSpot's intrinsic UTF-8 decoder beats this loop on non-ASCII text. Android's doesn't, and
+    // there decoding in place also saves copying the bytes out first.
+    if (!Util.DALVIK) return null;
+    return decodeInPlace(s, byteCount);
+  }
+
+  /**
+   * Decodes {@code byteCount} bytes starting at {@code s} with a byte loop, or returns null if they
+   * aren't well-formed UTF-8. This is the non-ASCII path of {@link #decode} on Android.
+   */
+  static @Nullable String decodeInPlace(Segment s, int byteCount) {
+    char[] chars = new char[byteCount];
+    int charCount = 0;
+    int codePoint = 0;
+    int needed = 0; // Continuation bytes still expected for codePoint.
+    int lower = 0x80;
+    int upper = 0xbf;
+
+    for (int remaining = byteCount; remaining > 0; s = s.next) {
+      byte[] data = s.data;
+      int pos = s.pos;
+      int limit = (int) Math.min(s.limit, (long) pos + remaining);
+      remaining -= limit - pos;
+
+      while (pos < limit) {
+        int b = data[pos];
+
+        if (b >= 0 && needed == 0) {
+          // Copy an ASCII run. Only Dalvik gets here, where byte loops beat word-at-a-time.
+          while (pos < limit && (b = data[pos]) >= 0) {
+            chars[charCount++] = (char) b;
+            pos++;
+          }
+          continue;
+        }
+
+        b &= 0xff;
+        pos++;
+        if (needed == 0) {
+          // A lead byte. Reject overlong forms, surrogates and code points past U+10FFFF up front.
+          if (b >= 0xc2 && b <= 0xdf) {
+            needed = 1;
+            codePoint = b & 0x1f;
+          } else if (b >= 0xe0 && b <= 0xef) {
+            if (b == 0xe0) lower = 0xa0;
+            if (b == 0xed) upper = 0x9f;
+            needed = 2;
+            codePoint = b & 0x0f;
+          } else if (b >= 0xf0 && b <= 0xf4) {
+            if (b == 0xf0) lower = 0x90;
+            if (b == 0xf4) upper = 0x8f;
+            needed = 3;
+            codePoint = b & 0x07;
+          } else {
+            return null;
+          }
+          continue;
+        }
+
+        // A continuation byte.
+        if (b < lower || b > upper) return null;
+        lower = 0x80;
+        upper = 0xbf;
+        codePoint = codePoint << 6 | b & 0x3f;
+        if (--needed > 0) continue;
+
+        if (codePoint < 0x10000) {
+          chars[charCount++] = (char) codePoint;
+        } else {
+          chars[charCount++] = (char) ((codePoint >>> 10) + 0xd7c0); // High surrogate.
+          chars[charCount++] = (char) ((codePoint & 0x3ff) + 0xdc00); // Low surrogate.
+        }
+      }
+    }
+
+    if (needed != 0) return null; // Truncated sequence.
+    return new String(chars, 0, charCount);
+  }
+
+  /** Returns true if the first {@code byteCount} bytes starting at {@code s} are all 7-bit. */
+  private static boolean isAscii(Segment s, int byteCount) {
+    for (int remaining = byteCount; remaining > 0; s = s.next) {
+      int toCheck = Math.min(remaining, s.limit - s.pos);
+      if (!isAscii(s.data, s.pos, s.pos + toCheck)) return false;
+      remaining -= toCheck;
+    }
+    return true;
+  }
+
+  /** Returns true if {@code data[pos..limit)} is all 7-bit bytes, checking 8 bytes at a time. */
+  static boolean isAscii(byte[] data, int pos, int limit) {
+    if (Util.WORD_AT_A_TIME && limit - pos >= 8) {
+      ByteBuffer words = ByteBuffer.wrap(data);
+      for (int wordLimit = limit - 7; pos < wordLimit; pos += 8) {
+        if ((words.getLong(pos) & 0x8080808080808080L) != 0L) return false;
+      }
+    }
+    for (; pos < limit; pos++) {
+      if (data[pos] < 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns a string of the 7-bit bytes {@code data[pos..pos+byteCount)}. The deprecated
+   * high-byte constructor copies bytes directly into the string without running a charset
+   * decoder.
+   */
+  @SuppressWarnings("deprecation")
+  static String asciiString(byte[] data, int pos, int byteCount) {
+    return new String(data, 0, pos, byteCount);
+  }
 }
@@ -15,12 +15,30 @@
  */
 package cn.ollyice.library.okio;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 
 final class Util {
   /** A cheap and type-safe constant for the UTF-8 Charset. */
   public static final Charset UTF_8 = Charset.forName("UTF-8");
 
+  /** True on Android's Dalvik and ART runtimes. */
+  static final boolean DALVIK = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+  /**
+   * True to scan and compare 8 bytes at a time with {@link ByteBuffer#getLong(int)}. HotSpot
+   * compiles that to a single load. Android's heap buffers assemble longs a byte at a time, which
+   * is slower than comparing bytes directly, so there we use plain loops.
+   */
+  static final boolean WORD_AT_A_TIME = !DALVIK;
+
+  private static final long LOW_BITS = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  /** Bulk paths are only worth their setup for ranges at least this long. */
+  private static final int WORD_MINIMUM = 16;
+
   private Util() {
   }
 
@@ -72,9 +90,59 @@ final class Util {
 
   public static boolean arrayRangeEquals(
       byte[] a, int aOffset, byte[] b, int bOffset, int byteCount) {
-    for (int i = 0; i < byteCount; i++) {
+    int i = 0;
+    if (WORD_AT_A_TIME && byteCount >= WORD_MINIMUM) {
+      ByteBuffer aWords = ByteBuffer.wrap(a);
+      ByteBuffer bWords = ByteBuffer.wrap(b);
+      for (int wordLimit = byteCount - 7; i < wordLimit; i += 8) {
+        if (aWords.getLong(i + aOffset) != bWords.getLong(i + bOffset)) return false;
+      }
+    }
+    for (; i < byteCount; i++) {
       if (a[i + aOffset] != b[i + bOffset]) return false;
     }
     return true;
   }
+
+  /**
+   * Returns the index of the first {@code b} in {@code data[pos..limit)}, or -1 if it isn't there.
+   * Long ranges are scanned a word at a time: XOR clears the bytes equal to {@code b}, and the
+   * classic has-zero-byte test finds the lowest cleared byte.
+   */
+  static int indexOf(byte[] data, int pos, int limit, byte b) {
+    if (WORD_AT_A_TIME && limit - pos >= WORD_MINIMUM) {
+      ByteBuffer words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+      long pattern = (b & 0xffL) * LOW_BITS;
+      for (int wordLimit = limit - 7; pos < wordLimit; pos += 8) {
+        long x = words.getLong(pos) ^ pattern;
+        long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+        if (found != 0L) return pos + (Long.numberOfTrailingZeros(found) >>> 3);
+      }
+    }
+    for (; pos < limit; pos++) {
+      if (data[pos] == b) return pos;
+    }
+    return -1;
+  }
+
+  /** Returns the index of the first {@code b0} or {@code b1} in {@code data[pos..limit)}, or -1. */
+  static int indexOf(byte[] data, int pos, int limit, byte b0, byte b1) {
+    if (WORD_AT_A_TIME && limit - pos >= WORD_MINIMUM) {
+      ByteBuffer words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+      long pattern0 = (b0 & 0xffL) * LOW_BITS;
+      long pattern1 = (b1 & 0xffL) * LOW_BITS;
+      for (int wordLimit = limit - 7; pos < wordLimit; pos += 8) {
+        long word = words.getLong(pos);
+        long x0 = word ^ pattern0;
+        long x1 = word ^ pattern1;
+        long found = ((x0 - LOW_BITS) & ~x0 | (x1 - LOW_BITS) & ~x1) & HIGH_BITS;
+        if (found != 0L) return pos + (Long.numberOfTrailingZeros(found) >>> 3);
+      }
+    }
+    for (; pos < limit; pos++) {
+      int b = data[pos];
+      if (b == b0 || b == b1) return pos;
+    }
+    return -1;
+  }
 }
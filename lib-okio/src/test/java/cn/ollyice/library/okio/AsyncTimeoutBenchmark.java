@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AsyncTimeout#exit} followed by {@link AsyncTimeout#enter} while many other
+ * timeouts are pending, as when each of many idle sockets has a read timeout. The timer wheel is
+ * compared with a copy of the sorted linked list it replaced, whose enter and exit walk the list.
+ * Pending timeouts are 10 to 60 seconds away, so none fire during a run.
+ *
+ * <p>Run {@link #main} with the numbers of pending timeouts to measure, and optionally {@code
+ * -Dmillis=} for how long to measure each after a warm up. The defaults are 10, 100, 1,000 and
+ * 10,000.
+ */
+public final class AsyncTimeoutBenchmark {
+  private static final long WARM_UP_MILLIS = 500L;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) args = new String[] {"10", "100", "1000", "10000"};
+    long millis = Long.getLong("millis", 2000L);
+
+    for (String arg : args) {
+      int pendingCount = Integer.parseInt(arg);
+      runWheel(pendingCount, millis);
+      runSortedList(pendingCount, millis);
+    }
+    System.exit(0); // Don't wait a minute for the watchdog to idle out.
+  }
+
+  private static void runWheel(int pendingCount, long millis) {
+    Random random = new Random(0);
+    AsyncTimeout[] timeouts = new AsyncTimeout[pendingCount];
+    for (int i = 0; i < pendingCount; i++) {
+      timeouts[i] = new AsyncTimeout();
+      timeouts[i].timeout(10000 + random.nextInt(50000), TimeUnit.MILLISECONDS);
+      timeouts[i].enter();
+    }
+
+    long measureStart = System.nanoTime() + WARM_UP_MILLIS * 1000000L;
+    long measureEnd = measureStart + millis * 1000000L;
+    long start = 0L;
+    long ops = 0L;
+    for (long now; (now = System.nanoTime()) < measureEnd; ) {
+      if (start == 0L && now >= measureStart) {
+        start = now;
+        ops = 0L;
+      }
+      for (int i = 0; i < 100; i++) {
+        AsyncTimeout timeout = timeouts[random.nextInt(pendingCount)];
+        if (timeout.exit()) throw new AssertionError("timed out");
+        timeout.enter();
+      }
+      ops += 100;
+    }
+    report("wheel      ", pendingCount, System.nanoTime() - start, ops);
+
+    for (AsyncTimeout timeout : timeouts) {
+      timeout.exit();
+    }
+  }
+
+  private static void runSortedList(int pendingCount, long millis) {
+    Random random = new Random(0);
+    SortedList list = new SortedList();
+    SortedList.Node[] nodes = new SortedList.Node[pendingCount];
+    for (int i = 0; i < pendingCount; i++) {
+      nodes[i] = new SortedList.Node();
+      nodes[i].timeoutNanos = TimeUnit.MILLISECONDS.toNanos(10000 + random.nextInt(50000));
+      list.enter(nodes[i]);
+    }
+
+    long measureStart = System.nanoTime() + WARM_UP_MILLIS * 1000000L;
+    long measureEnd = measureStart + millis * 1000000L;
+    long start = 0L;
+    long ops = 0L;
+    for (long now; (now = System.nanoTime()) < measureEnd; ) {
+      if (start == 0L && now >= measureStart) {
+        start = now;
+        ops = 0L;
+      }
+      for (int i = 0; i < 100; i++) {
+        SortedList.Node node = nodes[random.nextInt(pendingCount)];
+        if (list.exit(node)) throw new AssertionError("timed out");
+        list.enter(node);
+      }
+      ops += 100;
+    }
+    report("sorted list", pendingCount, System.nanoTime() - start, ops);
+  }
+
+  private static void report(String name, int pendingCount, long nanos, long ops) {
+    System.out.printf("%s pending=%6d ns/exit+enter=%8.1f%n",
+        name, pendingCount, (double) nanos / ops);
+  }
+
+  /** The queue AsyncTimeout used before the timer wheel, without the watchdog. */
+  static final class SortedList {
+    static final class Node {
+      long timeoutNanos;
+      long timeoutAt;
+      Node next;
+    }
+
+    private final Node head = new Node();
+
+    synchronized void enter(Node node) {
+      long now = System.nanoTime();
+      node.timeoutAt = now + node.timeoutNanos;
+      long remainingNanos = node.timeoutAt - now;
+      for (Node prev = head; true; prev = prev.next) {
+        if (prev.next == null || remainingNanos < prev.next.timeoutAt - now) {
+          node.next = prev.next;
+          prev.next = node;
+          if (prev == head) notify();
+          break;
+        }
+      }
+    }
+
+    synchronized boolean exit(Node node) {
+      for (Node prev = head; prev != null; prev = prev.next) {
+        if (prev.next == node) {
+          prev.next = node.next;
+          node.next = null;
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the {@link Buffer} searches that parse HTTP: finding each line feed in a header block,
+ * as {@link Buffer#readUtf8LineStrict} does, and finding a multipart boundary in a body. Each is
+ * compared with a copy of the byte-at-a-time search it replaced, over the same buffer, and both
+ * must find the same offsets. Buffers are written in uneven chunks so that lines and boundaries
+ * straddle segments. Reports MB scanned per second.
+ *
+ * <p>Run {@link #main}, optionally with {@code -Dmillis=} for how long to measure each search after
+ * a warm up. {@link WordAtATimeParityTest} checks the same searches for correctness.
+ */
+public final class BufferSearchBenchmark {
+  private static final long WARM_UP_MILLIS = 500L;
+
+  private static final String HEADERS = ""
+      + "HTTP/1.1 200 OK\r\n"
+      + "Date: Mon, 25 Jun 2018 08:12:31 GMT\r\n"
+      + "Content-Type: application/json; charset=utf-8\r\n"
+      + "Content-Length: 18245\r\n"
+      + "Connection: keep-alive\r\n"
+      + "Cache-Control: private, max-age=0, must-revalidate\r\n"
+      + "ETag: W/\"4745-aG4Zt1vMuB3mI3SwVv0w6Q\"\r\n"
+      + "Vary: Accept-Encoding, Origin\r\n"
+      + "Set-Cookie: session=8d2f4c9e0b7a4e61a3f5c2d1e0f9a8b7; Path=/; HttpOnly; Secure\r\n"
+      + "Strict-Transport-Security: max-age=31536000; includeSubDomains\r\n"
+      + "X-Content-Type-Options: nosniff\r\n"
+      + "X-Request-Id: 5b0f1c2e-7d3a-4e8b-9f61-2c4d5e6f7a8b\r\n"
+      + "Server: nginx\r\n"
+      + "\r\n";
+
+  interface Search {
+    /** Returns a checksum of the offsets found, so both searches can be compared. */
+    long run(Buffer buffer) throws IOException;
+  }
+
+  public static void main(String[] args) throws Exception {
+    long millis = Long.getLong("millis", 2000L);
+
+    Buffer headers = fragmented(repeat(HEADERS, 64).getBytes("UTF-8"));
+    run("header lines", headers, millis, new Search() {
+      @Override public long run(Buffer buffer) {
+        return lineFeeds(buffer, false);
+      }
+    }, new Search() {
+      @Override public long run(Buffer buffer) {
+        return lineFeeds(buffer, true);
+      }
+    });
+
+    final ByteString boundary = ByteString.encodeUtf8("\r\n--OkHttpBoundary7d3a4e8b9f612c4d5e6f");
+    Random random = new Random(0);
+    byte[] body = new byte[1024 * 1024];
+    random.nextBytes(body);
+    byte[] text = repeat(HEADERS, body.length / HEADERS.length()).getBytes("UTF-8");
+    for (byte[] data : new byte[][] {body, text}) {
+      Buffer buffer = fragmented(data);
+      buffer.write(boundary);
+      buffer.writeUtf8("--\r\n");
+      run(data == body ? "boundary in binary" : "boundary in text", buffer, millis, new Search() {
+        @Override public long run(Buffer buffer) throws IOException {
+          return buffer.indexOf(boundary);
+        }
+      }, new Search() {
+        @Override public long run(Buffer buffer) {
+          return bytewiseIndexOf(buffer, boundary, 0L);
+        }
+      });
+    }
+  }
+
+  private static void run(String name, Buffer buffer, long millis, Search search,
+      Search bytewise) throws IOException {
+    long expected = bytewise.run(buffer);
+    if (search.run(buffer) != expected) throw new AssertionError(name);
+    double searchRate = measure(buffer, millis, search);
+    double bytewiseRate = measure(buffer, millis, bytewise);
+    System.out.printf("%-18s word at a time MB/s=%8.1f bytewise MB/s=%8.1f%n",
+        name, searchRate, bytewiseRate);
+  }
+
+  private static double measure(Buffer buffer, long millis, Search search) throws IOException {
+    long measureStart = System.nanoTime() + WARM_UP_MILLIS * 1000000L;
+    long measureEnd = measureStart + millis * 1000000L;
+    long start = 0L;
+    long passes = 0L;
+    long checksum = 0L;
+    for (long now; (now = System.nanoTime()) < measureEnd; ) {
+      if (start == 0L && now >= measureStart) {
+        start = now;
+        passes = 0L;
+      }
+      checksum += search.run(buffer);
+      passes++;
+    }
+    if (checksum == 0L) throw new AssertionError();
+    return passes * (double) buffer.size() / ((System.nanoTime() - start) / 1e9) / 1e6;
+  }
+
+  /** Finds every line feed in {@code buffer}, the way reading it line by line does. */
+  static long lineFeeds(Buffer buffer, boolean bytewise) {
+    long checksum = 0L;
+    for (long from = 0L; ; ) {
+      long newline = bytewise
+          ? bytewiseIndexOf(buffer, (byte) '\n', from, buffer.size())
+          : buffer.indexOf((byte) '\n', from, buffer.size());
+      if (newline == -1L) return checksum;
+      checksum += newline;
+      from = newline + 1;
+    }
+  }
+
+  /** {@code Buffer.indexOf(byte, long, long)} before it scanned a word at a time. */
+  static long bytewiseIndexOf(Buffer buffer, byte b, long fromIndex, long toIndex) {
+    if (toIndex > buffer.size) toIndex = buffer.size;
+    if (fromIndex == toIndex) return -1L;
+
+    Segment s = buffer.head;
+    if (s == null) return -1L;
+    long offset;
+    if (buffer.size - fromIndex < fromIndex) {
+      offset = buffer.size;
+      while (offset > fromIndex) {
+        s = s.prev;
+        offset -= (s.limit - s.pos);
+      }
+    } else {
+      offset = 0L;
+      for (long nextOffset; (nextOffset = offset + (s.limit - s.pos)) < fromIndex; ) {
+        s = s.next;
+        offset = nextOffset;
+      }
+    }
+
+    while (offset < toIndex) {
+      byte[] data = s.data;
+      int limit = (int) Math.min(s.limit, s.pos + toIndex - offset);
+      int pos = (int) (s.pos + fromIndex - offset);
+      for (; pos < limit; pos++) {
+        if (data[pos] == b) return pos - s.pos + offset;
+      }
+      offset += (s.limit - s.pos);
+      fromIndex = offset;
+      s = s.next;
+    }
+    return -1L;
+  }
+
+  /** {@code Buffer.indexOf(ByteString, long)} before it used Horspool's skip table. */
+  static long bytewiseIndexOf(Buffer buffer, ByteString bytes, long fromIndex) {
+    Segment s = buffer.head;
+    if (s == null) return -1L;
+    long offset = 0L;
+    for (long nextOffset; (nextOffset = offset + (s.limit - s.pos)) < fromIndex; ) {
+      s = s.next;
+      offset = nextOffset;
+    }
+
+    byte b0 = bytes.getByte(0);
+    int bytesSize = bytes.size();
+    long resultLimit = buffer.size - bytesSize + 1;
+    while (offset < resultLimit) {
+      byte[] data = s.data;
+      int segmentLimit = (int) Math.min(s.limit, s.pos + resultLimit - offset);
+      for (int pos = (int) (s.pos + fromIndex - offset); pos < segmentLimit; pos++) {
+        if (data[pos] == b0 && bytewiseRangeEquals(s, pos + 1, bytes, 1, bytesSize)) {
+          return pos - s.pos + offset;
+        }
+      }
+      offset += (s.limit - s.pos);
+      fromIndex = offset;
+      s = s.next;
+    }
+    return -1L;
+  }
+
+  private static boolean bytewiseRangeEquals(
+      Segment segment, int segmentPos, ByteString bytes, int bytesOffset, int bytesLimit) {
+    int segmentLimit = segment.limit;
+    byte[] data = segment.data;
+    for (int i = bytesOffset; i < bytesLimit; ) {
+      if (segmentPos == segmentLimit) {
+        segment = segment.next;
+        data = segment.data;
+        segmentPos = segment.pos;
+        segmentLimit = segment.limit;
+      }
+      if (data[segmentPos] != bytes.getByte(i)) return false;
+      segmentPos++;
+      i++;
+    }
+    return true;
+  }
+
+  /** Returns a buffer holding {@code data} in segments that are neither full nor aligned. */
+  private static Buffer fragmented(byte[] data) {
+    Random random = new Random(0);
+    Buffer result = new Buffer();
+    for (int pos = 0; pos < data.length; ) {
+      Buffer chunk = new Buffer();
+      int byteCount = Math.min(data.length - pos, 1000 + random.nextInt(Segment.SIZE));
+      chunk.write(data, pos, byteCount);
+      result.write(chunk, byteCount); // Moves the segments instead of filling the tail.
+      pos += byteCount;
+    }
+    return result;
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder result = new StringBuilder(s.length() * count);
+    for (int i = 0; i < count; i++) {
+      result.append(s);
+    }
+    return result.toString();
+  }
+}
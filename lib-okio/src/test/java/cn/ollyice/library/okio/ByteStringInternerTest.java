@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.EOFException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class ByteStringInternerTest {
+  private final ByteStringInterner interner = new ByteStringInterner(100, 64);
+
+  @Test public void capacityRoundsUpToAPowerOfTwo() {
+    assertEquals(128, interner.capacity());
+    assertEquals(1, new ByteStringInterner(1, 0).capacity());
+    assertEquals(64, interner.maxByteCount());
+  }
+
+  @Test public void repeatedReadsReturnTheSameInstance() throws Exception {
+    Buffer source = new Buffer().writeUtf8("content-typecontent-typecontent-length");
+    ByteString first = interner.intern(source, 12);
+    ByteString second = interner.intern(source, 12);
+    ByteString other = interner.intern(source, 14);
+
+    assertEquals("content-type", first.utf8());
+    assertSame(first, second);
+    assertEquals("content-length", other.utf8());
+    assertEquals(0L, source.size());
+    assertEquals(1L, interner.hitCount());
+    assertEquals(2L, interner.missCount());
+
+    assertSame(first, interner.intern(ByteString.encodeUtf8("content-type")));
+    assertEquals(2L, interner.hitCount());
+  }
+
+  @Test public void readAcrossSegments() throws Exception {
+    ByteString name = ByteString.encodeUtf8("x-request-id");
+    ByteString interned = interner.intern(name);
+
+    for (int split = 0; split <= name.size(); split++) {
+      Buffer source = new Buffer();
+      source.write(new byte[Segment.SIZE - split]);
+      source.write(name);
+      source.writeUtf8("tail");
+      source.skip(Segment.SIZE - split);
+
+      ByteString read = interner.intern(source, name.size());
+      assertSame(interned, read);
+      assertEquals(name.hashCode(), read.hashCode());
+      assertEquals("tail", source.readUtf8());
+    }
+  }
+
+  @Test public void collidingStringReplacesTheOldOne() throws Exception {
+    ByteStringInterner oneSlot = new ByteStringInterner(1, 64);
+    ByteString a = oneSlot.intern(ByteString.encodeUtf8("a"));
+    ByteString b = oneSlot.intern(ByteString.encodeUtf8("b"));
+
+    ByteString a2 = oneSlot.intern(new Buffer().writeUtf8("a"), 1);
+    assertEquals(a, a2);
+    assertNotSame(a, a2);
+    assertEquals(b, oneSlot.intern(ByteString.encodeUtf8("b")));
+    assertEquals(0L, oneSlot.hitCount());
+  }
+
+  @Test public void equalHashesDoNotMatchDifferentBytes() throws Exception {
+    // "Aa" and "BB" have the same Arrays.hashCode().
+    ByteString aa = ByteString.encodeUtf8("Aa");
+    ByteString bb = ByteString.encodeUtf8("BB");
+    assertEquals(aa.hashCode(), bb.hashCode());
+
+    interner.intern(aa);
+    assertEquals(bb, interner.intern(new Buffer().write(bb), 2));
+    assertEquals(0L, interner.hitCount());
+  }
+
+  @Test public void longStringsAreNotInterned() throws Exception {
+    ByteStringInterner small = new ByteStringInterner(16, 4);
+    ByteString first = small.intern(new Buffer().writeUtf8("abcde"), 5);
+    ByteString second = small.intern(new Buffer().writeUtf8("abcde"), 5);
+    assertEquals("abcde", first.utf8());
+    assertNotSame(first, second);
+    assertEquals(0L, small.hitCount() + small.missCount());
+  }
+
+  @Test public void viewsAreCopiedBeforeInterning() throws Exception {
+    ByteStringInterner large = new ByteStringInterner(16, 2 * Segment.SIZE);
+    ByteString view = new Buffer().write(new byte[Segment.SIZE]).readByteStringView(Segment.SIZE);
+    assertTrue(view instanceof SegmentedByteString);
+
+    ByteString interned = large.intern(view);
+    assertEquals(view, interned);
+    assertFalse(interned instanceof SegmentedByteString);
+    assertSame(interned, large.intern(new Buffer().write(new byte[Segment.SIZE]), Segment.SIZE));
+  }
+
+  @Test(expected = EOFException.class)
+  public void readingMoreThanBufferedThrows() throws Exception {
+    interner.intern(new Buffer().writeUtf8("abc"), 4);
+  }
+}
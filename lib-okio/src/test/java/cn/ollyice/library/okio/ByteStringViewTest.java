@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static cn.ollyice.library.okio.Buffer.SEGMENTING_THRESHOLD;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Byte strings that {@link Buffer#readByteString(long)} returns as views of the buffer's segments.
+ * Each must behave exactly like a copy of the same bytes, and must not change when the buffer it
+ * came from is written to, overwritten in place, or cleared.
+ */
+public final class ByteStringViewTest {
+  private static final int LARGE = 64 * 1024;
+
+  private final Random random = new Random(0);
+
+  @Test public void onlyLargeReadsShareSegments() throws Exception {
+    assertFalse(read(Segment.SIZE, SEGMENTING_THRESHOLD - 1) instanceof SegmentedByteString);
+    assertTrue(read(Segment.SIZE, SEGMENTING_THRESHOLD) instanceof SegmentedByteString);
+    assertTrue(read(Segment.SIZE, 3 * Segment.SIZE + 1) instanceof SegmentedByteString);
+
+    // A short read from a large segment is copied so it doesn't pin the whole segment.
+    assertFalse(read(LARGE, SEGMENTING_THRESHOLD) instanceof SegmentedByteString);
+    assertFalse(read(LARGE, LARGE / 2 - 1) instanceof SegmentedByteString);
+    assertTrue(read(LARGE, LARGE / 2) instanceof SegmentedByteString);
+  }
+
+  @Test public void viewBehavesLikeCopy() throws Exception {
+    int[] sizes = {SEGMENTING_THRESHOLD, Segment.SIZE - 1, Segment.SIZE + 1, 5 * Segment.SIZE + 3};
+    for (int size : sizes) {
+      byte[] data = text(size);
+      ByteString copy = ByteString.of(data);
+      ByteString view = fragmented(data).readByteString(size);
+      assertTrue(view instanceof SegmentedByteString);
+
+      assertEquals(copy, view);
+      assertEquals(view, copy);
+      assertEquals(copy.hashCode(), view.hashCode());
+      assertEquals(0, view.compareTo(copy));
+      assertArrayEquals(data, view.toByteArray());
+      assertEquals(copy.utf8(), view.utf8());
+      assertEquals(copy.hex(), view.hex());
+      assertEquals(copy.sha256(), view.sha256());
+      assertEquals(copy, new Buffer().write(view).readByteString());
+
+      // A view differs from copies that differ in one byte or in length.
+      byte[] changed = data.clone();
+      changed[size / 2]++;
+      assertFalse(view.equals(ByteString.of(changed)));
+      assertFalse(view.equals(copy.substring(1)));
+
+      for (int i = 0; i < 20; i++) {
+        int begin = random.nextInt(size);
+        int end = begin + random.nextInt(size - begin + 1);
+        ByteString expected = copy.substring(begin, end);
+        ByteString actual = view.substring(begin, end);
+        assertEquals(expected, actual);
+        assertEquals(expected.hashCode(), actual.hashCode());
+        assertEquals(copy.indexOf(expected), view.indexOf(expected));
+        assertEquals(copy.lastIndexOf(expected), view.lastIndexOf(expected));
+        assertTrue(view.rangeEquals(begin, expected, 0, end - begin));
+      }
+    }
+  }
+
+  @Test public void writesToTheSourceDoNotReachTheView() throws Exception {
+    byte[] data = text(2 * Segment.SIZE + 100);
+    Buffer source = new Buffer().write(data);
+    ByteString view = source.readByteString(Segment.SIZE + 100); // Ends mid-segment.
+    assertTrue(view instanceof SegmentedByteString);
+
+    // Appending can't fill the shared tail segment.
+    source.write(new byte[Segment.SIZE]);
+    source.write(new Buffer().write(new byte[100]), 100);
+
+    // Overwriting the unread bytes that share the view's last segment copies it first.
+    Buffer.UnsafeCursor cursor = source.readAndWriteUnsafe();
+    for (cursor.seek(0L); cursor.next() != -1; ) {
+      Arrays.fill(cursor.data, cursor.start, cursor.end, (byte) 0);
+    }
+    cursor.close();
+
+    // Clearing doesn't recycle the shared segments, so later buffers can't overwrite them.
+    source.clear();
+    for (int i = 0; i < 10; i++) {
+      new Buffer().write(new byte[4 * Segment.SIZE]).clear();
+    }
+
+    assertArrayEquals(Arrays.copyOf(data, Segment.SIZE + 100), view.toByteArray());
+  }
+
+  private ByteString read(int segmentSize, int byteCount) throws Exception {
+    return new Buffer(segmentSize).write(text(byteCount + 10)).readByteString(byteCount);
+  }
+
+  /** Returns a buffer holding {@code data} in segments that are neither full nor aligned. */
+  private Buffer fragmented(byte[] data) {
+    Buffer result = new Buffer();
+    for (int pos = 0; pos < data.length; ) {
+      int byteCount = Math.min(data.length - pos, 1 + random.nextInt(Segment.SIZE));
+      result.write(new Buffer().write(data, pos, byteCount), byteCount);
+      pos += byteCount;
+    }
+    return result;
+  }
+
+  /** Text with repeats, so that searches find matches at more than one offset. */
+  private byte[] text(int size) {
+    byte[] result = new byte[size];
+    for (int i = 0; i < size; i++) {
+      result[i] = (byte) ('a' + random.nextInt(4));
+    }
+    return result;
+  }
+}
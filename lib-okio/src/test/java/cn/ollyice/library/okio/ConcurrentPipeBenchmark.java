@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures producers writing small frames through a 64 KiB pipe to one consumer, with {@link
+ * ConcurrentPipe} against {@link Pipe}, whose producers all take the buffer's lock. Each frame
+ * carries the time it was written, so the consumer can report the latency from write to read as
+ * well as throughput. Frames are {@value #FRAME_SIZE} bytes and the consumer reads whole frames, so
+ * neither pipe splits one.
+ *
+ * <p>Run {@link #main} with the numbers of producers to measure, and optionally {@code -Dmillis=}
+ * for how long to measure each after a warm up. The defaults are 1, 2, 4 and 8. Contention only
+ * shows when there are more cores than producers; the core count is printed first.
+ */
+public final class ConcurrentPipeBenchmark {
+  private static final long WARM_UP_MILLIS = 500L;
+  private static final int FRAME_SIZE = 128;
+  private static final long MAX_BUFFER_SIZE = 64 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) args = new String[] {"1", "2", "4", "8"};
+    long millis = Long.getLong("millis", 2000L);
+    System.out.printf("cores=%d%n", Runtime.getRuntime().availableProcessors());
+
+    for (String arg : args) {
+      int producerCount = Integer.parseInt(arg);
+      Pipe pipe = new Pipe(MAX_BUFFER_SIZE);
+      run("Pipe          ", producerCount, millis, pipe.sink(), pipe.source());
+      ConcurrentPipe concurrentPipe = new ConcurrentPipe(MAX_BUFFER_SIZE);
+      run("ConcurrentPipe", producerCount, millis, concurrentPipe.sink(), concurrentPipe.source());
+    }
+  }
+
+  private static void run(String name, int producerCount, long millis, final Sink sink,
+      Source source) throws Exception {
+    final AtomicBoolean stop = new AtomicBoolean();
+    final List<Thread> producers = new ArrayList<>();
+    for (int i = 0; i < producerCount; i++) {
+      Thread producer = new Thread() {
+        @Override public void run() {
+          byte[] padding = new byte[FRAME_SIZE - 8];
+          Buffer frame = new Buffer();
+          try {
+            while (!stop.get()) {
+              frame.writeLong(System.nanoTime());
+              frame.write(padding);
+              sink.write(frame, FRAME_SIZE);
+            }
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          }
+        }
+      };
+      producer.start();
+      producers.add(producer);
+    }
+
+    long measureStart = System.nanoTime() + WARM_UP_MILLIS * 1000000L;
+    long measureEnd = measureStart + millis * 1000000L;
+    long[] latencies = new long[1024];
+    int latencyCount = 0;
+    Buffer read = new Buffer();
+    while (true) {
+      long now = System.nanoTime();
+      if (now >= measureEnd && !stop.get()) {
+        stop.set(true);
+        new Thread() { // Close once the producers stop, so the read below returns -1.
+          @Override public void run() {
+            try {
+              for (Thread producer : producers) {
+                producer.join();
+              }
+              sink.close();
+            } catch (Exception e) {
+              throw new AssertionError(e);
+            }
+          }
+        }.start();
+      }
+
+      if (source.read(read, 64 * FRAME_SIZE) == -1L) break;
+      now = System.nanoTime();
+      while (read.size() >= FRAME_SIZE) {
+        long writtenAt = read.readLong();
+        read.skip(FRAME_SIZE - 8);
+        if (writtenAt - measureStart < 0L || writtenAt - measureEnd >= 0L) continue;
+        if (latencyCount == latencies.length) {
+          latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        }
+        latencies[latencyCount++] = now - writtenAt;
+      }
+    }
+    if (read.size() != 0L) throw new AssertionError("split frame");
+
+    Arrays.sort(latencies, 0, latencyCount);
+    System.out.printf("%s producers=%d MB/s=%7.1f p50 us=%8.1f p99 us=%8.1f p99.9 us=%8.1f%n",
+        name, producerCount,
+        (double) latencyCount * FRAME_SIZE / (millis / 1e3) / 1e6,
+        percentile(latencies, latencyCount, 0.50),
+        percentile(latencies, latencyCount, 0.99),
+        percentile(latencies, latencyCount, 0.999));
+  }
+
+  /** Returns the given percentile of the first {@code count} sorted values, in microseconds. */
+  private static double percentile(long[] sorted, int count, double percentile) {
+    if (count == 0) return Double.NaN;
+    return sorted[Math.min(count - 1, (int) (count * percentile))] / 1e3;
+  }
+}
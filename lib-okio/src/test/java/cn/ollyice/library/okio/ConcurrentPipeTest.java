@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ConcurrentPipeTest {
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Random random = new Random(0);
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void bytesArriveInOrder() throws Exception {
+    final ConcurrentPipe pipe = new ConcurrentPipe(64 * 1024);
+    final byte[] data = new byte[1024 * 1024];
+    random.nextBytes(data);
+
+    Future<?> producer = executor.submit(new Callable<Void>() {
+      @Override public Void call() throws Exception {
+        Random random = new Random(1);
+        for (int pos = 0; pos < data.length; ) {
+          int byteCount = Math.min(data.length - pos, 1 + random.nextInt(100 * 1024));
+          pipe.sink().write(new Buffer().write(data, pos, byteCount), byteCount);
+          pos += byteCount;
+        }
+        pipe.sink().close();
+        return null;
+      }
+    });
+
+    Buffer read = new Buffer();
+    for (long count; (count = pipe.source().read(read, 1 + random.nextInt(20000))) != -1L; ) {
+      assertTrue(count > 0L);
+    }
+    producer.get(5, TimeUnit.SECONDS);
+    assertEquals(ByteString.of(data), read.readByteString());
+    assertEquals(0L, pipe.size());
+  }
+
+  /** Frames from different producers may interleave, but no frame is split. */
+  @Test public void manyProducersKeepEachWriteContiguous() throws Exception {
+    final ConcurrentPipe pipe = new ConcurrentPipe(1000);
+    final int frameSize = 100;
+    final int framesPerProducer = 2000;
+    List<Future<?>> producers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      final byte id = (byte) i;
+      producers.add(executor.submit(new Callable<Void>() {
+        @Override public Void call() throws Exception {
+          for (int frame = 0; frame < framesPerProducer; frame++) {
+            Buffer buffer = new Buffer();
+            buffer.writeByte(id);
+            buffer.writeInt(frame);
+            buffer.write(new byte[frameSize - 5]);
+            pipe.sink().write(buffer, frameSize);
+          }
+          return null;
+        }
+      }));
+    }
+
+    int[] nextFrame = new int[4];
+    Buffer read = new Buffer();
+    for (int frames = 0; frames < 4 * framesPerProducer; frames++) {
+      while (read.size() < frameSize) {
+        pipe.source().read(read, 1 + random.nextInt(3 * frameSize));
+      }
+      int id = read.readByte();
+      assertEquals(nextFrame[id]++, read.readInt());
+      assertEquals(ByteString.of(new byte[frameSize - 5]), read.readByteString(frameSize - 5));
+    }
+    for (Future<?> producer : producers) {
+      producer.get(5, TimeUnit.SECONDS);
+    }
+    assertEquals(0L, read.size());
+    assertEquals(0L, pipe.size());
+  }
+
+  @Test public void tryWriteAndWhenWritable() throws Exception {
+    ConcurrentPipe pipe = new ConcurrentPipe(10);
+    assertEquals(10L, pipe.tryWrite(new Buffer().writeUtf8("abcdefghijklmno"), 15));
+    assertEquals(0L, pipe.tryWrite(new Buffer().writeUtf8("p"), 1));
+
+    AtomicInteger writable = new AtomicInteger();
+    pipe.whenWritable(counter(writable));
+    assertEquals(0, writable.get());
+
+    Buffer read = new Buffer();
+    assertEquals(4L, pipe.tryRead(read, 4));
+    assertEquals("abcd", read.readUtf8());
+    assertEquals(1, writable.get());
+
+    // There's room now, so the callback runs at once.
+    pipe.whenWritable(counter(writable));
+    assertEquals(2, writable.get());
+    assertEquals(4L, pipe.tryWrite(new Buffer().writeUtf8("pqrstu"), 6));
+    assertEquals(10L, pipe.size());
+  }
+
+  @Test public void whenReadableSeesPartlyReadChunk() throws Exception {
+    final ConcurrentPipe pipe = new ConcurrentPipe(100);
+    pipe.tryWrite(new Buffer().writeUtf8("abcdefghij"), 10);
+    Buffer read = new Buffer();
+    assertEquals(3L, pipe.tryRead(read, 3));
+
+    // Registered from another thread, which must not look at the consumer's partly-read chunk.
+    final AtomicInteger readable = new AtomicInteger();
+    executor.submit(new Callable<Void>() {
+      @Override public Void call() {
+        pipe.whenReadable(counter(readable));
+        return null;
+      }
+    }).get();
+    assertEquals(1, readable.get());
+
+    assertEquals(7L, pipe.tryRead(read, 100));
+    assertEquals("abcdefghij", read.readUtf8());
+    pipe.whenReadable(counter(readable));
+    assertEquals(1, readable.get());
+
+    pipe.tryWrite(new Buffer().writeUtf8("k"), 1);
+    assertEquals(2, readable.get());
+    assertEquals(1L, pipe.tryRead(read, 100));
+
+    pipe.whenReadable(counter(readable));
+    pipe.sink().close();
+    assertEquals(3, readable.get());
+    assertEquals(-1L, pipe.tryRead(read, 100));
+  }
+
+  @Test public void closingSourceReleasesSpaceAndFailsWriters() throws Exception {
+    final ConcurrentPipe pipe = new ConcurrentPipe(10);
+    pipe.tryWrite(new Buffer().writeUtf8("abcdefghij"), 10);
+    pipe.tryRead(new Buffer(), 3);
+
+    Future<?> blocked = executor.submit(new Callable<Void>() {
+      @Override public Void call() throws Exception {
+        pipe.sink().write(new Buffer().writeUtf8("klmnopqrst"), 10);
+        return null;
+      }
+    });
+    Thread.sleep(100);
+    pipe.source().close();
+    assertEquals(0L, pipe.size());
+
+    try {
+      blocked.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException expected) {
+      assertEquals("source is closed", expected.getCause().getMessage());
+    }
+    try {
+      pipe.tryWrite(new Buffer().writeUtf8("u"), 1);
+      fail();
+    } catch (IOException expected) {
+      assertEquals("source is closed", expected.getMessage());
+    }
+  }
+
+  /**
+   * Producers that are between checking for a close and queueing their chunk when the source
+   * closes must release their bytes too, or the pipe counts them as buffered forever.
+   */
+  @Test public void closingSourceWhileProducersWriteReleasesEverything() throws Exception {
+    for (int round = 0; round < 50; round++) {
+      final ConcurrentPipe pipe = new ConcurrentPipe(1024 * 1024);
+      List<Future<?>> producers = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        producers.add(executor.submit(new Callable<Void>() {
+          @Override public Void call() {
+            byte[] data = new byte[3 * Segment.SIZE];
+            try {
+              while (true) {
+                pipe.tryWrite(new Buffer().write(data), data.length);
+                pipe.tryWrite(new Buffer().write(data, 0, 10), 10);
+              }
+            } catch (IOException expected) {
+              return null;
+            }
+          }
+        }));
+      }
+      Buffer read = new Buffer();
+      for (int i = random.nextInt(50); i > 0; i--) {
+        pipe.tryRead(read, Segment.SIZE);
+        read.clear();
+        Thread.yield();
+      }
+      pipe.source().close();
+      for (Future<?> producer : producers) {
+        producer.get(5, TimeUnit.SECONDS);
+      }
+      assertEquals("round " + round, 0L, pipe.size());
+    }
+  }
+
+  private static Runnable counter(final AtomicInteger count) {
+    return new Runnable() {
+      @Override public void run() {
+        count.incrementAndGet();
+      }
+    };
+  }
+}
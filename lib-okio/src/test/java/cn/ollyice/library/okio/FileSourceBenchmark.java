@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Measures reading a whole file through {@link Okio#source(File)}, which reads the file's input
+ * stream, against {@link Okio#source(java.nio.channels.FileChannel)} and {@link
+ * Okio#mappedSource}. Each pass opens the file, reads it into a buffer that is cleared after every
+ * read, and closes it, so mapping and unmapping costs are included. The file is usually in the
+ * page cache after the first pass, so this measures the copy path rather than the disk. Reports
+ * MB/s and checks that every source read the whole file.
+ *
+ * <p>Run {@link #main} with the file sizes to measure in MiB, and optionally {@code -Dmillis=} for
+ * how long to measure each source after a warm up. The defaults are 1, 16 and 128 MiB; files over
+ * 64 MiB span more than one mapped window.
+ */
+public final class FileSourceBenchmark {
+  private static final long READ_SIZE = 64 * 1024;
+  private static final long WARM_UP_MILLIS = 500L;
+
+  enum Kind {
+    STREAM {
+      @Override Source open(File file) throws IOException {
+        return Okio.source(file);
+      }
+    },
+    CHANNEL {
+      @Override Source open(File file) throws IOException {
+        return Okio.source(new RandomAccessFile(file, "r").getChannel());
+      }
+    },
+    MAPPED {
+      @Override Source open(File file) throws IOException {
+        return Okio.mappedSource(file);
+      }
+    };
+
+    abstract Source open(File file) throws IOException;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) args = new String[] {"1", "16", "128"};
+    long millis = Long.getLong("millis", 2000L);
+
+    for (String arg : args) {
+      long size = Long.parseLong(arg) * 1024 * 1024;
+      File file = File.createTempFile("FileSourceBenchmark", ".bin");
+      try {
+        write(file, size);
+        for (Kind kind : Kind.values()) {
+          run(kind, file, size, millis);
+        }
+      } finally {
+        file.delete();
+      }
+    }
+  }
+
+  private static void run(Kind kind, File file, long size, long millis) throws IOException {
+    Buffer buffer = new Buffer();
+    long measureStart = System.nanoTime() + WARM_UP_MILLIS * 1000000L;
+    long measureEnd = measureStart + millis * 1000000L;
+    long start = 0L;
+    long passes = 0L;
+    for (long now; (now = System.nanoTime()) < measureEnd; ) {
+      if (start == 0L && now >= measureStart) {
+        start = now;
+        passes = 0L;
+      }
+      long total = 0L;
+      Source source = kind.open(file);
+      try {
+        for (long read; (read = source.read(buffer, READ_SIZE)) != -1L; ) {
+          total += read;
+          buffer.clear();
+        }
+      } finally {
+        source.close();
+      }
+      if (total != size) throw new AssertionError(kind + " read " + total + " of " + size);
+      passes++;
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%4d MiB %-7s passes=%5d MB/s=%8.1f%n",
+        size / 1024 / 1024, kind, passes, passes * (double) size / seconds / 1e6);
+  }
+
+  private static void write(File file, long size) throws IOException {
+    byte[] chunk = new byte[1024 * 1024];
+    new Random(0).nextBytes(chunk);
+    BufferedSink sink = Okio.buffer(Okio.sink(file));
+    try {
+      for (long written = 0; written < size; written += chunk.length) {
+        sink.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+      }
+    } finally {
+      sink.close();
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures compressing 16 MiB of log-like text with {@link ParallelGzipSink} on 1, 2, 4 and 8
+ * threads, against {@link GzipSink} on the calling thread. Reports uncompressed MB per second and
+ * compressed size as a fraction of the input, since cutting the input into blocks costs a little
+ * compression. Gains past one thread need that many free cores; the core count is printed first.
+ *
+ * <p>Run {@link #main}, optionally with {@code -Dmillis=} for how long to measure each after a warm
+ * up. {@link ParallelGzipSinkTest} checks the output for correctness.
+ */
+public final class ParallelGzipSinkBenchmark {
+  private static final long WARM_UP_MILLIS = 500L;
+
+  interface Compressor {
+    Sink open(Sink sink);
+  }
+
+  public static void main(String[] args) throws Exception {
+    long millis = Long.getLong("millis", 2000L);
+    byte[] input = logLines(16 * 1024 * 1024);
+    System.out.printf("cores=%d%n", Runtime.getRuntime().availableProcessors());
+
+    run("GzipSink           ", input, millis, new Compressor() {
+      @Override public Sink open(Sink sink) {
+        return new GzipSink(sink);
+      }
+    });
+
+    for (final int threads : new int[] {1, 2, 4, 8}) {
+      final ExecutorService executor = Executors.newFixedThreadPool(threads);
+      run(String.format("ParallelGzipSink x%d", threads), input, millis, new Compressor() {
+        @Override public Sink open(Sink sink) {
+          return new ParallelGzipSink(sink, executor, threads);
+        }
+      });
+      executor.shutdown();
+    }
+  }
+
+  private static void run(String name, byte[] input, long millis, Compressor compressor)
+      throws IOException {
+    long measureStart = System.nanoTime() + WARM_UP_MILLIS * 1000000L;
+    long measureEnd = measureStart + millis * 1000000L;
+    long start = 0L;
+    long passes = 0L;
+    long compressedSize = 0L;
+    for (long now; (now = System.nanoTime()) < measureEnd; ) {
+      if (start == 0L && now >= measureStart) {
+        start = now;
+        passes = 0L;
+      }
+      compressedSize = compress(input, compressor);
+      passes++;
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%s MB/s=%7.1f ratio=%.4f%n",
+        name, passes * (double) input.length / seconds / 1e6,
+        (double) compressedSize / input.length);
+  }
+
+  /** Compresses {@code input} in 8 KiB writes, as from a stream, and returns the output size. */
+  private static long compress(byte[] input, Compressor compressor) throws IOException {
+    CountingSink counter = new CountingSink();
+    Sink sink = compressor.open(counter);
+    Buffer chunk = new Buffer();
+    for (int pos = 0; pos < input.length; pos += Segment.SIZE) {
+      int byteCount = Math.min(input.length - pos, Segment.SIZE);
+      chunk.write(input, pos, byteCount);
+      sink.write(chunk, byteCount);
+    }
+    sink.close();
+    return counter.size;
+  }
+
+  /** Discards everything written to it, counting the bytes. */
+  static final class CountingSink implements Sink {
+    long size;
+
+    @Override public void write(Buffer source, long byteCount) throws IOException {
+      size += byteCount;
+      source.skip(byteCount);
+    }
+
+    @Override public void flush() {
+    }
+
+    @Override public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override public void close() {
+    }
+  }
+
+  private static byte[] logLines(int size) {
+    String[] levels = {"DEBUG", "INFO", "INFO", "INFO", "WARN", "ERROR"};
+    String[] messages = {
+        "connection acquired", "request headers sent", "response headers received",
+        "cache miss", "retrying after timeout", "connection released to pool"
+    };
+    Random random = new Random(0);
+    StringBuilder result = new StringBuilder(size + 200);
+    long millis = 1530000000000L;
+    while (result.length() < size) {
+      millis += random.nextInt(500);
+      result.append(millis).append(' ')
+          .append(levels[random.nextInt(levels.length)]).append(" [okhttp-")
+          .append(random.nextInt(16)).append("] ")
+          .append(messages[random.nextInt(messages.length)]).append(" id=")
+          .append(Long.toHexString(random.nextLong())).append('\n');
+    }
+    result.setLength(size);
+    return result.toString().getBytes(Util.UTF_8);
+  }
+}
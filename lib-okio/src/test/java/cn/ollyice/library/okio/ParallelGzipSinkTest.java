@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import org.junit.After;
+import org.junit.Test;
+
+import static cn.ollyice.library.okio.ParallelGzipSink.BLOCK_SIZE;
+import static cn.ollyice.library.okio.ParallelGzipSink.DICTIONARY_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class ParallelGzipSinkTest {
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private final Random random = new Random(0);
+
+  @After public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test public void roundTripThroughGzipInputStreamAndGzipSource() throws Exception {
+    int[] sizes = {0, 1, DICTIONARY_SIZE, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1,
+        5 * BLOCK_SIZE + 123};
+    for (int parallelism : new int[] {1, 4}) {
+      for (int size : sizes) {
+        for (byte[] data : new byte[][] {text(size), randomBytes(size)}) {
+          Buffer gzipped = new Buffer();
+          ParallelGzipSink sink = new ParallelGzipSink(gzipped, executor, parallelism);
+          writeInUnevenChunks(sink, data);
+          sink.close();
+          byte[] compressed = gzipped.readByteArray();
+
+          assertArrayEquals(data, gunzipWithJdk(compressed));
+          assertArrayEquals(data, gunzipWithOkio(compressed));
+        }
+      }
+    }
+  }
+
+  @Test public void crc32CombineMatchesDirectCrc32() {
+    byte[] data = randomBytes(3 * BLOCK_SIZE + 17);
+    int[] splits = {0, 1, 7, 8, 255, 256, 4096, BLOCK_SIZE, 2 * BLOCK_SIZE + 5, data.length - 1,
+        data.length};
+    for (int split : splits) {
+      long crc1 = crc32(data, 0, split);
+      long crc2 = crc32(data, split, data.length - split);
+      assertEquals("split at " + split, crc32(data, 0, data.length),
+          ParallelGzipSink.crc32Combine(crc1, crc2, data.length - split));
+    }
+
+    // Three or more parts combine left to right, as the sink folds in its blocks.
+    long combined = 0L;
+    int pos = 0;
+    while (pos < data.length) {
+      int length = Math.min(data.length - pos, random.nextInt(40000));
+      combined = ParallelGzipSink.crc32Combine(combined, crc32(data, pos, length), length);
+      pos += length;
+    }
+    assertEquals(crc32(data, 0, data.length), combined);
+  }
+
+  /**
+   * Each flush ends a block early. The next block must still be primed with the last 32 KiB of
+   * input, gathered across the short blocks before it, or its back references decode to the wrong
+   * bytes.
+   */
+  @Test public void flushCarriesDictionaryAcrossShortBlocks() throws Exception {
+    byte[] phrase = randomBytes(20000);
+    Buffer gzipped = new Buffer();
+    ParallelGzipSink sink = new ParallelGzipSink(gzipped, executor, 4);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+    // Write the phrase twice in short flushed blocks. The second copy can only be compressed as
+    // back references if each block's dictionary gathers the short blocks before it.
+    for (int i = 0; i < 20; i++) {
+      int begin = (i % 10) * 2000;
+      byte[] block = Arrays.copyOfRange(phrase, begin, begin + 2000);
+      sink.write(new Buffer().write(block), block.length);
+      sink.flush();
+      expected.write(block);
+
+      // Everything written so far decodes after each flush.
+      assertArrayEquals(expected.toByteArray(), inflateFlushed(gzipped.snapshot().toByteArray()));
+    }
+    long flushedSize = gzipped.size();
+    // A full block after the short ones.
+    byte[] tail = text(BLOCK_SIZE + 1000);
+    sink.write(new Buffer().write(tail), tail.length);
+    expected.write(tail);
+    sink.close();
+
+    byte[] compressed = gzipped.readByteArray();
+    assertArrayEquals(expected.toByteArray(), gunzipWithJdk(compressed));
+    assertArrayEquals(expected.toByteArray(), gunzipWithOkio(compressed));
+
+    // The repeated phrase was compressed as back references, not stored again.
+    assertTrue(flushedSize < phrase.length * 5 / 4);
+  }
+
+  @Test public void flushWithNothingPendingWritesNothing() throws Exception {
+    Buffer gzipped = new Buffer();
+    ParallelGzipSink sink = new ParallelGzipSink(gzipped, executor, 2);
+    sink.flush();
+    assertEquals(10, gzipped.size()); // Just the header.
+    sink.flush();
+    assertEquals(10, gzipped.size());
+    sink.close();
+    assertArrayEquals(new byte[0], gunzipWithJdk(gzipped.readByteArray()));
+  }
+
+  /** Returns the data deflated so far, reading the raw DEFLATE stream that follows the header. */
+  private static byte[] inflateFlushed(byte[] gzipped) throws Exception {
+    Inflater inflater = new Inflater(true);
+    inflater.setInput(gzipped, 10, gzipped.length - 10);
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int count; (count = inflater.inflate(buffer)) > 0; ) {
+      result.write(buffer, 0, count);
+    }
+    assertTrue(inflater.needsInput()); // Ended on a block boundary, with nothing held back.
+    inflater.end();
+    return result.toByteArray();
+  }
+
+  private static byte[] gunzipWithJdk(byte[] gzipped) throws Exception {
+    GZIPInputStream in = new GZIPInputStream(new Buffer().write(gzipped).inputStream());
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int count; (count = in.read(buffer)) != -1; ) {
+      result.write(buffer, 0, count);
+    }
+    return result.toByteArray();
+  }
+
+  private static byte[] gunzipWithOkio(byte[] gzipped) throws Exception {
+    BufferedSource source = Okio.buffer(new GzipSource(new Buffer().write(gzipped)));
+    byte[] result = source.readByteArray();
+    source.close();
+    return result;
+  }
+
+  private void writeInUnevenChunks(Sink sink, byte[] data) throws Exception {
+    for (int pos = 0; pos < data.length; ) {
+      int byteCount = Math.min(data.length - pos, 1 + random.nextInt(BLOCK_SIZE / 2));
+      sink.write(new Buffer().write(data, pos, byteCount), byteCount);
+      pos += byteCount;
+    }
+  }
+
+  private static long crc32(byte[] data, int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(data, offset, length);
+    return crc.getValue();
+  }
+
+  /** Compressible text with repeats at distances within and beyond the dictionary. */
+  private byte[] text(int size) {
+    String[] words = {"okio ", "segment ", "buffer ", "deflate ", "gzip ", "block ", "crc ", "\n"};
+    StringBuilder result = new StringBuilder(size);
+    while (result.length() < size) {
+      result.append(words[random.nextInt(words.length)]);
+      if (random.nextInt(50) == 0) result.append(random.nextLong());
+    }
+    result.setLength(size);
+    return result.toString().getBytes(Util.UTF_8);
+  }
+
+  private byte[] randomBytes(int size) {
+    byte[] result = new byte[size];
+    random.nextBytes(result);
+    return result;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link SegmentPool} against the single locked pool it replaced, with every thread
+ * taking and recycling segments at once. Each operation takes {@link #SEGMENTS_PER_OP} segments,
+ * writes to them, and recycles them, which is what filling and draining a 32 KiB {@link Buffer}
+ * does to the pool. Reports operations per second and bytes allocated per operation: an
+ * allocation is a pool miss, whether the pool was empty, full, or locked by another thread.
+ *
+ * <p>Run {@link #main} with the thread counts to measure, and optionally {@code -Dmillis=} for how
+ * long to measure each after a warm up. The defaults are 1, 2, 4, 8 and 16 threads.
+ */
+public final class SegmentPoolBenchmark {
+  private static final int SEGMENTS_PER_OP = 4;
+  private static final long WARM_UP_MILLIS = 500L;
+
+  interface Pool {
+    Segment take();
+
+    void recycle(Segment segment);
+  }
+
+  static final Pool STRIPED = new Pool() {
+    @Override public Segment take() {
+      return SegmentPool.take();
+    }
+
+    @Override public void recycle(Segment segment) {
+      SegmentPool.recycle(segment);
+    }
+  };
+
+  /** The pool before it was striped: one 64 KiB stack guarded by one lock. */
+  static final Pool GLOBAL = new Pool() {
+    static final long MAX_SIZE = 64 * 1024;
+    Segment next;
+    long byteCount;
+
+    @Override public Segment take() {
+      synchronized (this) {
+        if (next != null) {
+          Segment result = next;
+          next = result.next;
+          result.next = null;
+          byteCount -= Segment.SIZE;
+          return result;
+        }
+      }
+      return new Segment();
+    }
+
+    @Override public void recycle(Segment segment) {
+      synchronized (this) {
+        if (byteCount + Segment.SIZE > MAX_SIZE) return;
+        byteCount += Segment.SIZE;
+        segment.next = next;
+        segment.pos = segment.limit = 0;
+        next = segment;
+      }
+    }
+  };
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) args = new String[] {"1", "2", "4", "8", "16"};
+    long millis = Long.getLong("millis", 2000L);
+    System.out.printf("cpus=%d striped buckets=%d%n",
+        Runtime.getRuntime().availableProcessors(), SegmentPool.HASH_BUCKET_COUNT);
+
+    for (String arg : args) {
+      int threadCount = Integer.parseInt(arg);
+      run("global ", GLOBAL, threadCount, millis);
+      run("striped", STRIPED, threadCount, millis);
+    }
+  }
+
+  private static void run(String name, final Pool pool, int threadCount, long millis)
+      throws Exception {
+    final long measureStart = System.nanoTime() + WARM_UP_MILLIS * 1000000L;
+    final long measureEnd = measureStart + millis * 1000000L;
+    final AtomicLong opCount = new AtomicLong();
+    final AtomicLong allocated = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(threadCount);
+
+    for (int t = 0; t < threadCount; t++) {
+      new Thread() {
+        @Override public void run() {
+          Segment[] segments = new Segment[SEGMENTS_PER_OP];
+          long ops = 0;
+          long allocatedAtStart = -1L;
+          for (long now; (now = System.nanoTime()) < measureEnd; ) {
+            if (allocatedAtStart == -1L && now >= measureStart) {
+              allocatedAtStart = allocatedBytes();
+            }
+            for (int i = 0; i < SEGMENTS_PER_OP; i++) {
+              segments[i] = pool.take();
+              segments[i].data[i] = (byte) ops;
+              segments[i].limit = Segment.SIZE;
+            }
+            for (int i = 0; i < SEGMENTS_PER_OP; i++) {
+              pool.recycle(segments[i]);
+              segments[i] = null;
+            }
+            if (allocatedAtStart != -1L) ops++;
+          }
+          opCount.addAndGet(ops);
+          allocated.addAndGet(allocatedBytes() - allocatedAtStart);
+          done.countDown();
+        }
+      }.start();
+    }
+    done.await();
+
+    long ops = opCount.get();
+    System.out.printf("%s threads=%2d ops/s=%,12.0f allocated bytes/op=%8.1f%n",
+        name, threadCount, ops / (millis / 1000.0), (double) allocated.get() / ops);
+  }
+
+  /** Bytes allocated by the current thread, or 0 if the JVM doesn't track them. */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0L;
+  }
+}
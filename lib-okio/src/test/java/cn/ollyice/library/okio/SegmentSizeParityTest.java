@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Moves bytes between buffers of the default segment size and buffers of large segments, and
+ * checks the results against plain byte arrays. Segments of different sizes meet when one buffer
+ * writes to, copies to, or shares its segments with the other, so each operation runs in both
+ * directions.
+ */
+public final class SegmentSizeParityTest {
+  private static final int LARGE = 64 * 1024;
+
+  /** Sizes around both segment sizes and the byte string sharing threshold. */
+  private static final int[] SIZES = {
+      0, 1, Buffer.SEGMENTING_THRESHOLD - 1, Buffer.SEGMENTING_THRESHOLD, Segment.SIZE - 1,
+      Segment.SIZE, Segment.SIZE + 1, LARGE / 2, LARGE - 1, LARGE, LARGE + 1, 3 * LARGE + 17
+  };
+
+  private final Random random = new Random(0);
+
+  @Test public void copyTo() throws Exception {
+    for (int fromSize : new int[] {Segment.SIZE, LARGE}) {
+      for (int toSize : new int[] {Segment.SIZE, LARGE}) {
+        for (int size : SIZES) {
+          byte[] data = randomBytes(size);
+          Buffer source = filled(fromSize, data);
+          for (int offset : new int[] {0, Math.min(1, size), size / 3, size / 2}) {
+            int byteCount = Math.max(0, size - offset - 7);
+            Buffer target = new Buffer(toSize).writeUtf8("prefix");
+            source.copyTo(target, offset, byteCount);
+            assertEquals("prefix", target.readUtf8(6));
+            assertArrayEquals(Arrays.copyOfRange(data, offset, offset + byteCount),
+                target.readByteArray());
+          }
+          assertArrayEquals(data, source.readByteArray()); // copyTo doesn't consume.
+        }
+      }
+    }
+  }
+
+  @Test public void readByteString() throws Exception {
+    for (int fromSize : new int[] {Segment.SIZE, LARGE}) {
+      for (int size : SIZES) {
+        byte[] data = randomBytes(size);
+        Buffer source = filled(fromSize, data).writeUtf8("suffix");
+        ByteString byteString = source.readByteString(size);
+        assertEquals(ByteString.of(data), byteString);
+        assertEquals(ByteString.of(data).hashCode(), byteString.hashCode());
+        assertEquals("suffix", source.readUtf8());
+
+        // Writes after the read don't reach the byte string.
+        source.write(new byte[size]);
+        assertArrayEquals(data, byteString.toByteArray());
+      }
+    }
+  }
+
+  @Test public void segmentedByteStringMovesBetweenSizes() throws Exception {
+    for (int fromSize : new int[] {Segment.SIZE, LARGE}) {
+      for (int toSize : new int[] {Segment.SIZE, LARGE}) {
+        for (int size : SIZES) {
+          byte[] data = randomBytes(size);
+          ByteString snapshot = filled(fromSize, data).snapshot();
+          assertEquals(ByteString.of(data), snapshot);
+
+          Buffer target = new Buffer(toSize).writeUtf8("prefix");
+          target.write(snapshot);
+          assertEquals("prefix", target.readUtf8(6));
+          assertArrayEquals(data, target.readByteArray());
+
+          int begin = size / 3;
+          int end = size - size / 4;
+          assertEquals(ByteString.of(data).substring(begin, end), snapshot.substring(begin, end));
+          assertTrue(snapshot.rangeEquals(begin, data, begin, end - begin));
+        }
+      }
+    }
+  }
+
+  @Test public void cloneKeepsSegmentSize() {
+    byte[] data = randomBytes(3 * LARGE + 17);
+    Buffer clone = filled(LARGE, data).clone();
+    assertEquals(LARGE, clone.segmentSize());
+    clone.write(data);
+    assertArrayEquals(concat(data, data), clone.readByteArray());
+  }
+
+  /** Moves random runs back and forth between two buffers and checks both against byte arrays. */
+  @Test public void randomWritesBetweenSizes() throws Exception {
+    Buffer small = new Buffer();
+    Buffer large = new Buffer(LARGE);
+    ByteArrayOutputStream smallExpected = new ByteArrayOutputStream();
+    ByteArrayOutputStream largeExpected = new ByteArrayOutputStream();
+
+    for (int round = 0; round < 500; round++) {
+      byte[] data = randomBytes(random.nextInt(2 * LARGE));
+      switch (random.nextInt(4)) {
+        case 0:
+          small.write(data);
+          smallExpected.write(data);
+          break;
+        case 1:
+          large.write(data);
+          largeExpected.write(data);
+          break;
+        case 2:
+          moveRandom(small, smallExpected, large, largeExpected);
+          break;
+        default:
+          moveRandom(large, largeExpected, small, smallExpected);
+          break;
+      }
+      assertEquals(smallExpected.size(), small.size());
+      assertEquals(largeExpected.size(), large.size());
+    }
+    assertArrayEquals(smallExpected.toByteArray(), small.readByteArray());
+    assertArrayEquals(largeExpected.toByteArray(), large.readByteArray());
+  }
+
+  private void moveRandom(Buffer from, ByteArrayOutputStream fromExpected, Buffer to,
+      ByteArrayOutputStream toExpected) throws Exception {
+    byte[] fromBytes = fromExpected.toByteArray();
+    int byteCount = fromBytes.length == 0 ? 0 : random.nextInt(fromBytes.length + 1);
+    to.write(from, byteCount);
+    toExpected.write(fromBytes, 0, byteCount);
+    fromExpected.reset();
+    fromExpected.write(fromBytes, byteCount, fromBytes.length - byteCount);
+  }
+
+  /** Returns a buffer of {@code segmentSize} segments holding {@code data} in uneven writes. */
+  private Buffer filled(int segmentSize, byte[] data) {
+    Buffer result = new Buffer(segmentSize);
+    for (int pos = 0; pos < data.length; ) {
+      int byteCount = Math.min(data.length - pos, 1 + random.nextInt(segmentSize));
+      result.write(data, pos, byteCount);
+      pos += byteCount;
+    }
+    return result;
+  }
+
+  private byte[] randomBytes(int size) {
+    byte[] result = new byte[size];
+    random.nextBytes(result);
+    return result;
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] result = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static cn.ollyice.library.okio.TimerWheel.MAX_TICKS;
+import static cn.ollyice.library.okio.TimerWheel.TICK_NANOS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link TimerWheel} with a fake clock the way the watchdog in {@link AsyncTimeout} does,
+ * without waiting. Every timeout must fire at the first tick at or after it is due: never early
+ * and less than one tick late. The clock starts just before {@code nanoTime} wraps around.
+ */
+public final class TimerWheelTest {
+  private long nowNanos = Long.MAX_VALUE - 1000L * TICK_NANOS;
+  private final TimerWheel wheel = new TimerWheel(nowNanos);
+
+  /** When each scheduled node was scheduled and when it is due. */
+  private final Map<AsyncTimeout, long[]> schedules = new IdentityHashMap<>();
+  private final List<AsyncTimeout> fired = new ArrayList<>();
+
+  @Test public void firesOnTimeAtEveryLevel() {
+    long[] delays = {
+        0L, 1L, TICK_NANOS - 1, TICK_NANOS, 63 * TICK_NANOS, 64 * TICK_NANOS, 65 * TICK_NANOS + 1,
+        4095 * TICK_NANOS, 4096 * TICK_NANOS, 4097 * TICK_NANOS + 5, 262143 * TICK_NANOS,
+        262144 * TICK_NANOS, MAX_TICKS * TICK_NANOS - 1, MAX_TICKS * TICK_NANOS + 12345,
+        3 * MAX_TICKS * TICK_NANOS + 7
+    };
+    List<AsyncTimeout> nodes = new ArrayList<>();
+    for (long delay : delays) {
+      nodes.add(schedule(delay));
+    }
+    assertEquals(delays.length, wheel.size);
+
+    runFor(4 * MAX_TICKS * TICK_NANOS);
+    assertFiredOnce(nodes);
+    assertEquals(0, wheel.size);
+    assertEquals(Long.MAX_VALUE, wheel.nextTick());
+  }
+
+  @Test public void cascadedNodesFireOnTime() {
+    // Schedule from a clock that isn't aligned to any slot so cascades happen mid-delay.
+    runFor(12345 * TICK_NANOS + 17);
+    List<AsyncTimeout> nodes = new ArrayList<>();
+    for (long delay = 1; delay < 100000 * TICK_NANOS; delay = delay * 3 + 11) {
+      nodes.add(schedule(delay));
+    }
+    runFor(100000 * TICK_NANOS);
+    assertFiredOnce(nodes);
+  }
+
+  @Test public void cancelledNodesDoNotFire() {
+    AsyncTimeout level0 = schedule(10 * TICK_NANOS);
+    AsyncTimeout level1 = schedule(1000 * TICK_NANOS);
+    AsyncTimeout level2 = schedule(100000 * TICK_NANOS);
+    AsyncTimeout parked = schedule(2 * MAX_TICKS * TICK_NANOS);
+    AsyncTimeout kept = schedule(200000 * TICK_NANOS);
+
+    // Let level 2 cascade before cancelling, so cancel unlinks from a finer level than it entered.
+    runFor(99000 * TICK_NANOS);
+    assertTrue(fired.contains(level0));
+    cancel(level1); // Already fired: a no-op, as in AsyncTimeout.exit().
+    cancel(level2);
+    cancel(parked);
+    assertEquals(1, wheel.size);
+
+    runFor(3 * MAX_TICKS * TICK_NANOS);
+    assertEquals(3, fired.size());
+    assertEquals(kept, fired.get(2));
+    assertFalse(fired.contains(level2));
+    assertFalse(fired.contains(parked));
+    assertEquals(Long.MAX_VALUE, wheel.nextTick());
+  }
+
+  @Test public void rescheduleEarlierAndLater() {
+    AsyncTimeout sooner = schedule(10000 * TICK_NANOS);
+    AsyncTimeout later = schedule(50 * TICK_NANOS);
+    runFor(20 * TICK_NANOS);
+
+    reschedule(sooner, 100 * TICK_NANOS + 3);
+    reschedule(later, 300000 * TICK_NANOS);
+    runFor(200 * TICK_NANOS);
+    assertEquals(1, fired.size());
+    assertEquals(sooner, fired.get(0));
+
+    runFor(MAX_TICKS * TICK_NANOS);
+    assertEquals(later, fired.get(1));
+  }
+
+  @Test public void timeoutInThePastFiresWithinATick() {
+    runFor(5 * TICK_NANOS + 1);
+    AsyncTimeout node = schedule(-TICK_NANOS);
+    runFor(TICK_NANOS);
+    assertEquals(node, fired.get(0));
+  }
+
+  /** Random schedules, cancels and reschedules, each checked when it fires. */
+  @Test public void randomOperations() {
+    Random random = new Random(0);
+    List<AsyncTimeout> pending = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      long delay = randomDelay(random);
+      switch (random.nextInt(4)) {
+        case 0:
+        case 1:
+          pending.add(schedule(delay));
+          break;
+        case 2:
+          if (!pending.isEmpty()) {
+            cancel(pending.remove(random.nextInt(pending.size())));
+          }
+          break;
+        default:
+          if (!pending.isEmpty()) {
+            AsyncTimeout node = pending.get(random.nextInt(pending.size()));
+            if (node.slot != -1) reschedule(node, delay);
+          }
+          break;
+      }
+      runFor(random.nextInt(5000) * TICK_NANOS / 100);
+    }
+    runFor(2 * MAX_TICKS * TICK_NANOS);
+    assertEquals(0, wheel.size);
+    assertFiredOnce(schedules.keySet()); // Everything not cancelled.
+  }
+
+  private static long randomDelay(Random random) {
+    switch (random.nextInt(4)) {
+      case 0:
+        return random.nextInt(64) * TICK_NANOS + random.nextInt((int) TICK_NANOS);
+      case 1:
+        return (long) random.nextInt(1000000) * TICK_NANOS / 10;
+      case 2:
+        return (long) random.nextInt(1000) * TICK_NANOS * 1000;
+      default:
+        return (long) (random.nextDouble() * 2 * MAX_TICKS * TICK_NANOS);
+    }
+  }
+
+  private void assertFiredOnce(Collection<AsyncTimeout> nodes) {
+    Set<AsyncTimeout> distinct =
+        Collections.newSetFromMap(new IdentityHashMap<AsyncTimeout, Boolean>());
+    distinct.addAll(fired);
+    assertEquals(fired.size(), distinct.size());
+    assertEquals(nodes.size(), fired.size());
+    assertTrue(distinct.containsAll(nodes));
+  }
+
+  private AsyncTimeout schedule(long delayNanos) {
+    AsyncTimeout node = new AsyncTimeout();
+    node.expiresTick = wheel.tickFor(nowNanos + delayNanos, nowNanos);
+    schedules.put(node, new long[] {nowNanos, nowNanos + delayNanos});
+    wheel.add(node);
+    return node;
+  }
+
+  private void cancel(AsyncTimeout node) {
+    if (node.slot != -1) {
+      wheel.remove(node);
+      schedules.remove(node);
+    }
+  }
+
+  private void reschedule(AsyncTimeout node, long delayNanos) {
+    wheel.remove(node);
+    node.expiresTick = wheel.tickFor(nowNanos + delayNanos, nowNanos);
+    schedules.put(node, new long[] {nowNanos, nowNanos + delayNanos});
+    wheel.add(node);
+  }
+
+  /**
+   * Moves the clock forward and fires everything due by then, like {@link
+   * AsyncTimeout#awaitTimeout} would if it never had to wait.
+   */
+  private void runFor(long nanos) {
+    long until = nowNanos + nanos;
+    while (true) {
+      AsyncTimeout node = wheel.pollExpired();
+      if (node != null) {
+        // The watchdog polls no earlier than the start of the current tick.
+        long tickStart = wheel.nanoTime(wheel.currentTick);
+        long firedAt = tickStart - nowNanos > 0L ? tickStart : nowNanos;
+        long[] schedule = schedules.get(node);
+        long due = schedule[1];
+        long earliest = due - schedule[0] > 0L ? due : schedule[0]; // Past timeouts fire at once.
+        assertTrue("fired early", firedAt - due >= 0L);
+        assertTrue("fired late", firedAt - earliest < TICK_NANOS);
+        fired.add(node);
+        continue;
+      }
+      long nextTick = wheel.nextTick();
+      if (nextTick == Long.MAX_VALUE || wheel.nanoTime(nextTick) - until > 0L) break;
+      // The current tick's slot is empty, so the next tick with work is always later.
+      assertTrue("wheel is stuck", nextTick > wheel.currentTick);
+      wheel.advance(nextTick);
+    }
+    nowNanos = until;
+  }
+}
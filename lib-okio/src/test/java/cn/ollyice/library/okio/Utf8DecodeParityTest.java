@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks {@link Utf8#decode}, and {@link Buffer#readUtf8} which uses it, against {@code new
+ * String(bytes, UTF_8)}. The in-place decoder must return exactly the platform's string for
+ * well-formed input and null for anything else, so that malformed input falls back and gets the
+ * platform's replacement characters. Every input is also decoded split across two segments at
+ * each offset.
+ */
+public final class Utf8DecodeParityTest {
+  /** Bytes at the edges of the ranges the decoder distinguishes. */
+  private static final int[] EDGE_BYTES = {
+      0x00, 0x7f, 0x80, 0x8f, 0x90, 0x9f, 0xa0, 0xbf, 0xc0, 0xc1, 0xc2, 0xdf, 0xe0, 0xed, 0xef,
+      0xf0, 0xf4, 0xf5, 0xff
+  };
+
+  private final Random random = new Random(0);
+
+  @Test public void malformed() throws Exception {
+    int[][] inputs = {
+        {0x80}, // Lone continuation.
+        {0xbf, 'a'},
+        {0xc2}, // Truncated.
+        {0xe2, 0x82},
+        {0xf0, 0x9f, 0x98},
+        {'a', 0xe2, 0x82, 'b'}, // Interrupted.
+        {0xc0, 0x80}, // Overlong.
+        {0xc1, 0xbf},
+        {0xe0, 0x80, 0x80},
+        {0xe0, 0x9f, 0xbf},
+        {0xf0, 0x80, 0x80, 0x80},
+        {0xf0, 0x8f, 0xbf, 0xbf},
+        {0xed, 0xa0, 0x80}, // Surrogates.
+        {0xed, 0xbf, 0xbf},
+        {0xed, 0xa0, 0xbd, 0xed, 0xb8, 0x80},
+        {0xf4, 0x90, 0x80, 0x80}, // Past U+10FFFF.
+        {0xf5, 0x80, 0x80, 0x80},
+        {0xff},
+    };
+    for (int[] input : inputs) {
+      assertParity(bytes(input), false);
+    }
+  }
+
+  @Test public void wellFormedEdges() throws Exception {
+    int[][] inputs = {
+        {0x00},
+        {0x7f},
+        {0xc2, 0x80}, // U+0080
+        {0xdf, 0xbf}, // U+07FF
+        {0xe0, 0xa0, 0x80}, // U+0800
+        {0xed, 0x9f, 0xbf}, // U+D7FF
+        {0xee, 0x80, 0x80}, // U+E000
+        {0xef, 0xbf, 0xbf}, // U+FFFF
+        {0xf0, 0x90, 0x80, 0x80}, // U+10000
+        {0xf4, 0x8f, 0xbf, 0xbf}, // U+10FFFF
+    };
+    for (int[] input : inputs) {
+      assertParity(bytes(input), true);
+    }
+  }
+
+  /** Every lead byte followed by edge bytes, which covers each range boundary. */
+  @Test public void leadBytesWithEdgeContinuations() throws Exception {
+    for (int lead = 0x80; lead <= 0xff; lead++) {
+      for (int b1 : EDGE_BYTES) {
+        assertParity(bytes(new int[] {lead, b1}), null);
+        for (int b2 : EDGE_BYTES) {
+          assertParity(bytes(new int[] {lead, b1, b2}), null);
+          if (lead >= 0xf0) {
+            for (int b3 : EDGE_BYTES) {
+              assertParity(bytes(new int[] {lead, b1, b2, b3}), null);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /** Text that mixes 1 to 4 byte characters, as well-formed input and with one byte changed. */
+  @Test public void randomText() throws Exception {
+    for (int round = 0; round < 2000; round++) {
+      StringBuilder text = new StringBuilder();
+      for (int i = 1 + random.nextInt(40); i > 0; i--) {
+        text.appendCodePoint(randomCodePoint());
+      }
+      byte[] bytes = text.toString().getBytes(Util.UTF_8);
+      assertParity(bytes, true);
+
+      bytes[random.nextInt(bytes.length)] = (byte) EDGE_BYTES[random.nextInt(EDGE_BYTES.length)];
+      assertParity(bytes, null);
+    }
+  }
+
+  /**
+   * Decodes {@code bytes} whole and split at every offset, and checks the results against the
+   * platform decoder. If {@code wellFormed} is null it is worked out from the bytes.
+   */
+  private void assertParity(byte[] bytes, Boolean wellFormed) throws Exception {
+    String expected = new String(bytes, Util.UTF_8);
+    boolean roundTrips = Arrays.equals(bytes, expected.getBytes(Util.UTF_8));
+    if (wellFormed != null) assertEquals(Arrays.toString(bytes), wellFormed, roundTrips);
+
+    for (int split = 0; split <= bytes.length; split++) {
+      Buffer buffer = splitAt(bytes, split);
+      String inPlace = Utf8.decodeInPlace(buffer.head, bytes.length);
+      if (roundTrips) {
+        assertNotNull(Arrays.toString(bytes), inPlace);
+        assertEquals(expected, inPlace);
+      } else {
+        assertNull(Arrays.toString(bytes), inPlace);
+      }
+      assertArrayEquals(bytes, buffer.snapshot().toByteArray()); // Decoding doesn't consume.
+      assertEquals(expected, buffer.readUtf8());
+    }
+  }
+
+  /** Returns a buffer with {@code bytes[0..split)} at the end of one segment and the rest after. */
+  private static Buffer splitAt(byte[] bytes, int split) throws Exception {
+    Buffer buffer = new Buffer();
+    byte[] padding = new byte[Segment.SIZE - split];
+    buffer.write(padding);
+    buffer.write(bytes);
+    buffer.skip(padding.length);
+    return buffer;
+  }
+
+  private int randomCodePoint() {
+    switch (random.nextInt(4)) {
+      case 0:
+        return random.nextInt(0x80);
+      case 1:
+        return 0x80 + random.nextInt(0x800 - 0x80);
+      case 2:
+        int codePoint = 0x800 + random.nextInt(0x10000 - 0x800);
+        return codePoint >= 0xd800 && codePoint <= 0xdfff ? 0xfffd : codePoint;
+      default:
+        return 0x10000 + random.nextInt(0x110000 - 0x10000);
+    }
+  }
+
+  private static byte[] bytes(int[] values) {
+    byte[] result = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      result[i] = (byte) values[i];
+    }
+    return result;
+  }
+}
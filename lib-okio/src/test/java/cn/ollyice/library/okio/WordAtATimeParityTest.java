@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ollyice.library.okio;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the word-at-a-time scans in {@link Util} and the Horspool search in {@link Buffer} against
+ * plain byte loops. Inputs mix in high-bit bytes, which break a has-zero-byte test that forgets to
+ * mask, and put matches on both sides of segment boundaries.
+ */
+public final class WordAtATimeParityTest {
+  private static final byte[] INTERESTING_BYTES = {
+      0x00, 0x01, 0x7f, (byte) 0x80, (byte) 0x81, (byte) 0xfe, (byte) 0xff, 'a', '\r', '\n'
+  };
+
+  private final Random random = new Random(0);
+
+  @Test public void indexOfByte() {
+    for (int round = 0; round < 200; round++) {
+      byte[] data = randomBytes(64);
+      for (int pos = 0; pos < 24; pos++) {
+        for (int limit = pos; limit <= data.length; limit++) {
+          for (byte b : INTERESTING_BYTES) {
+            assertEquals(scalarIndexOf(data, pos, limit, b, b), Util.indexOf(data, pos, limit, b));
+          }
+        }
+      }
+    }
+  }
+
+  @Test public void indexOfEitherByte() {
+    for (int round = 0; round < 100; round++) {
+      byte[] data = randomBytes(64);
+      for (int pos = 0; pos < 24; pos++) {
+        for (int limit = pos; limit <= data.length; limit++) {
+          byte b0 = INTERESTING_BYTES[random.nextInt(INTERESTING_BYTES.length)];
+          byte b1 = INTERESTING_BYTES[random.nextInt(INTERESTING_BYTES.length)];
+          assertEquals(scalarIndexOf(data, pos, limit, b0, b1),
+              Util.indexOf(data, pos, limit, b0, b1));
+        }
+      }
+    }
+  }
+
+  @Test public void arrayRangeEquals() {
+    for (int byteCount = 0; byteCount <= 40; byteCount++) {
+      byte[] a = randomBytes(byteCount + 11);
+      int aOffset = random.nextInt(12);
+      for (int bOffset = 0; bOffset < 12; bOffset++) {
+        byte[] b = new byte[byteCount + bOffset + 3];
+        System.arraycopy(a, aOffset, b, bOffset, byteCount);
+        assertEquals(true, Util.arrayRangeEquals(a, aOffset, b, bOffset, byteCount));
+
+        // Flip each byte in turn, including into and out of the high bit.
+        for (int i = 0; i < byteCount; i++) {
+          b[bOffset + i] ^= (i & 1) == 0 ? 0x80 : 0x01;
+          assertEquals(false, Util.arrayRangeEquals(a, aOffset, b, bOffset, byteCount));
+          b[bOffset + i] ^= (i & 1) == 0 ? 0x80 : 0x01;
+        }
+      }
+    }
+  }
+
+  @Test public void indexOfByteStringAcrossSegments() throws IOException {
+    for (int needleSize = 1; needleSize <= 24; needleSize++) {
+      for (int round = 0; round < 20; round++) {
+        byte[] needle = randomBytes(needleSize);
+        // Place the needle so it starts anywhere from fully before to fully after a boundary.
+        int boundary = Segment.SIZE;
+        int needleAt = boundary - needleSize - 2 + random.nextInt(needleSize + 4);
+        byte[] data = randomBytes(2 * Segment.SIZE + 100);
+        System.arraycopy(needle, 0, data, needleAt, needleSize);
+
+        // Skipping a prefix shifts where the segment boundaries fall within data.
+        int skip = random.nextInt(needleSize + 1);
+        Buffer buffer = new Buffer();
+        buffer.write(data);
+        buffer.skip(skip);
+
+        ByteString bytes = ByteString.of(needle);
+        for (long fromIndex : new long[] {0, needleAt - skip - 1, needleAt - skip}) {
+          if (fromIndex < 0) continue;
+          assertEquals(scalarIndexOf(data, skip, needle, fromIndex),
+              buffer.indexOf(bytes, fromIndex));
+        }
+      }
+    }
+  }
+
+  /** Returns bytes that are mostly from {@link #INTERESTING_BYTES}, so matches are common. */
+  private byte[] randomBytes(int size) {
+    byte[] result = new byte[size];
+    for (int i = 0; i < size; i++) {
+      result[i] = random.nextInt(4) == 0
+          ? (byte) random.nextInt(256)
+          : INTERESTING_BYTES[random.nextInt(INTERESTING_BYTES.length)];
+    }
+    return result;
+  }
+
+  private static int scalarIndexOf(byte[] data, int pos, int limit, byte b0, byte b1) {
+    for (int i = pos; i < limit; i++) {
+      if (data[i] == b0 || data[i] == b1) return i;
+    }
+    return -1;
+  }
+
+  /** Searches {@code data[skip..]} for {@code needle}, returning an index relative to skip. */
+  private static long scalarIndexOf(byte[] data, int skip, byte[] needle, long fromIndex) {
+    outer:
+    for (int i = (int) (skip + fromIndex); i <= data.length - needle.length; i++) {
+      for (int j = 0; j < needle.length; j++) {
+        if (data[i + j] != needle[j]) continue outer;
+      }
+      return i - skip;
+    }
+    return -1L;
+  }
+}